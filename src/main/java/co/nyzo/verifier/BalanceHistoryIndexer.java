@@ -0,0 +1,372 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.metrics.MetricsCounter;
+import co.nyzo.verifier.metrics.MetricsRegistry;
+import co.nyzo.verifier.util.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BalanceHistoryIndexer {
+
+    // This indexes the balance of every account over time, so the balance of an account at any height can be found
+    // without replaying the chain. As blocks are frozen, the balance list of each block is compared to the balance list
+    // of the previous block, and a change point is recorded in the BalanceHistoryStore for each account whose balance
+    // changed. An account that is removed from the balance list is recorded with a balance of zero.
+
+    // When started on a fresh store, the indexer records every account of the frozen-edge balance list as a baseline,
+    // and the coverage starts at that height. Earlier history is filled by rebuild(), which streams the consolidated
+    // block files from a start height, deriving each balance list in memory. The rebuild should be run while the
+    // indexer is not active. A later baseline, recorded when the index cannot continue from the previous list, also
+    // records a balance of zero for every account in the store that is not in the new list, so older records do not
+    // show through.
+
+    // If no balance list can be found to continue the index, the indexer is stalled. This is logged, exposed as a
+    // gauge, and, if the stall persists, the indexer rebuilds from the start of its coverage. If the rebuild is not
+    // possible, the store is cleared, and the index starts again from the frozen edge.
+
+    private static final String activeKey = "balance_history_indexer_active";
+    private static final boolean indexingActive = PreferencesUtil.getBoolean(activeKey, false);
+
+    private static final int compactionThreshold = PreferencesUtil.getInt("balance_history_compaction_threshold",
+            4096);
+
+    private static final long stallRebuildInterval = 60000L;
+
+    public static final File directory = new File(Verifier.dataRootDirectory, "balance_history");
+    public static final int maximumChangesPerQuery = 1000;
+
+    private static final AtomicBoolean alive = new AtomicBoolean(false);
+    private static final MetricsCounter stallRebuilds = MetricsRegistry.counter("nyzo_balance_history_stall_rebuilds");
+    private static long stallStartTimestamp = -1L;
+    private static long rebuildEndHeight = -1L;
+
+    private static BalanceHistoryStore store = null;
+    private static BalanceList previousBalanceList = null;
+
+    public static void start() {
+
+        // Start the thread if indexing is active.
+        if (indexingActive && !alive.getAndSet(true)) {
+
+            MetricsRegistry.gauge("nyzo_balance_history_stalled", () -> stallStartTimestamp < 0L ? 0L : 1L);
+            MetricsRegistry.gauge("nyzo_balance_history_coverage_end_height", () -> getStore().getCoverageEndHeight());
+
+            ThreadUtil.startLongRunning(new Runnable() {
+                @Override
+                public void run() {
+
+                    while (!UpdateUtil.shouldTerminate()) {
+                        try {
+                            ThreadUtil.sleep(1000L);
+                            indexToFrozenEdge();
+                        } catch (Exception e) {
+                            LogUtil.println("BalanceHistoryIndexer: exception in outer thread" +
+                                    PrintUtil.printException(e));
+                        }
+                    }
+
+                    alive.set(false);
+                }
+            }, "BalanceHistoryIndexer");
+        } else {
+            LogUtil.println("BalanceHistoryIndexer: not starting");
+        }
+    }
+
+    public static synchronized BalanceHistoryStore getStore() {
+
+        if (store == null) {
+            store = new BalanceHistoryStore(directory, compactionThreshold);
+        }
+
+        return store;
+    }
+
+    public static Long balanceForAccount(byte[] identifier, long height) {
+
+        // A null value is returned for heights outside the coverage of the index. Inside the coverage, an account without
+        // a change point at or below the height did not exist at that height, so its balance is zero.
+        BalanceHistoryStore store = getStore();
+        Long balance = null;
+        if (height >= store.getCoverageStartHeight() && height <= store.getCoverageEndHeight() &&
+                store.getCoverageStartHeight() >= 0L) {
+            BalanceHistoryStore.Change change = store.changeAtOrBelow(identifier, height);
+            balance = change == null ? 0L : change.getBalance();
+        }
+
+        return balance;
+    }
+
+    public static List<BalanceHistoryStore.Change> changesForAccount(byte[] identifier, long minimumHeight,
+                                                                     long maximumHeight) {
+        return getStore().changesInRange(identifier, minimumHeight, maximumHeight, maximumChangesPerQuery);
+    }
+
+    private static synchronized void indexToFrozenEdge() {
+
+        // Blocks are indexed one at a time from the end of the coverage. Near the frozen edge, balance lists are
+        // usually available from the balance list manager. Otherwise, each is derived from the previous list, or
+        // loaded from the block files.
+        BalanceHistoryStore store = getStore();
+        boolean foundList = true;
+        while (foundList && store.getCoverageEndHeight() < BlockManager.getFrozenEdgeHeight() &&
+                !UpdateUtil.shouldTerminate()) {
+
+            // After a restart, the list at the end of the coverage is needed to continue the index.
+            long coverageEndHeight = store.getCoverageEndHeight();
+            if (coverageEndHeight >= 0L && (previousBalanceList == null ||
+                    previousBalanceList.getBlockHeight() != coverageEndHeight)) {
+                previousBalanceList = BalanceListManager.recentBalanceListForHeight(coverageEndHeight);
+                if (previousBalanceList == null) {
+                    previousBalanceList = BlockManager.loadBalanceListFromFileForHeight(coverageEndHeight);
+                }
+            }
+
+            BalanceList balanceList;
+            if (coverageEndHeight < 0L) {
+                balanceList = BalanceListManager.getFrozenEdgeList();
+            } else {
+                long height = store.getCoverageEndHeight() + 1L;
+                balanceList = BalanceListManager.recentBalanceListForHeight(height);
+                if (balanceList == null) {
+                    balanceList = nextBalanceList(height);
+                }
+            }
+
+            foundList = balanceList != null;
+            if (foundList) {
+                indexBalanceList(store, balanceList);
+                stallStartTimestamp = -1L;
+            }
+        }
+
+        if (!foundList) {
+            handleStall(store);
+        }
+    }
+
+    private static void handleStall(BalanceHistoryStore store) {
+
+        long coverageEndHeight = store.getCoverageEndHeight();
+        if (stallStartTimestamp < 0L) {
+            stallStartTimestamp = System.currentTimeMillis();
+            LogUtil.println("BalanceHistoryIndexer: unable to find the balance list to continue from height " +
+                    coverageEndHeight + "; rebuilding in " + stallRebuildInterval / 1000L + " seconds if this " +
+                    "persists");
+        } else if (System.currentTimeMillis() - stallStartTimestamp >= stallRebuildInterval &&
+                coverageEndHeight >= 0L) {
+
+            // The rebuild reads the consolidated files, so it is only possible if they are kept. The balance list at
+            // the end of the rebuild is kept so that the index continues from it. If the index stalled again where the
+            // last rebuild ended, another rebuild would not help.
+            long startHeight = store.getCoverageStartHeight();
+            long endHeight = BlockManager.getFrozenEdgeHeight();
+            LogUtil.println("BalanceHistoryIndexer: stalled at height " + coverageEndHeight + "; rebuilding heights " +
+                    startHeight + " to " + endHeight);
+            stallRebuilds.increment();
+            BalanceList lastList = BlockFileConsolidator.keepsConsolidatedFiles() &&
+                    coverageEndHeight != rebuildEndHeight ? rebuildInternal(store, startHeight, endHeight) : null;
+            rebuildEndHeight = lastList == null ? -1L : lastList.getBlockHeight();
+            if (lastList == null) {
+                LogUtil.println("BalanceHistoryIndexer: rebuild was not possible; restarting the index at the " +
+                        "frozen edge");
+                store.clear();
+            }
+            previousBalanceList = lastList;
+            stallStartTimestamp = -1L;
+        }
+    }
+
+    private static BalanceList nextBalanceList(long height) {
+
+        BalanceList balanceList = null;
+        Block previousBlock = BlockManager.frozenBlockForHeight(height - 1L);
+        Block block = BlockManager.frozenBlockForHeight(height);
+        if (previousBalanceList != null && previousBlock != null && block != null) {
+            balanceList = Block.balanceListForNextBlock(previousBlock, previousBalanceList, block.getTransactions(),
+                    block.getVerifierIdentifier(), block.getBlockchainVersion());
+            if (balanceList != null && !ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+                balanceList = null;
+            }
+        }
+
+        if (balanceList == null) {
+            balanceList = BlockManager.loadBalanceListFromFileForHeight(height);
+        }
+
+        return balanceList;
+    }
+
+    private static void indexBalanceList(BalanceHistoryStore store, BalanceList balanceList) {
+
+        // If the list does not follow the coverage, or the previous list is not available, it is recorded in full as a
+        // new baseline.
+        long height = balanceList.getBlockHeight();
+        boolean isContinuation = previousBalanceList != null && previousBalanceList.getBlockHeight() == height - 1L &&
+                store.getCoverageEndHeight() == height - 1L;
+        if (isContinuation) {
+            recordChanges(store, previousBalanceList, balanceList);
+        } else {
+            recordBaseline(store, balanceList);
+        }
+        store.flush(isContinuation ? store.getCoverageStartHeight() : height, height);
+        previousBalanceList = balanceList;
+    }
+
+    public static int recordChanges(BalanceHistoryStore store, BalanceList previousList, BalanceList balanceList) {
+
+        // Both lists are sorted on identifier, so the changes are found in a single pass over both lists. If the
+        // previous list is null, all accounts are recorded.
+        long height = balanceList.getBlockHeight();
+        int numberOfChanges = 0;
+        int previousIndex = 0;
+        int index = 0;
+        int previousSize = previousList == null ? 0 : previousList.getNumberOfItems();
+        int size = balanceList.getNumberOfItems();
+        while (previousIndex < previousSize || index < size) {
+            int comparison;
+            if (previousIndex >= previousSize) {
+                comparison = 1;
+            } else if (index >= size) {
+                comparison = -1;
+            } else {
+                comparison = previousList.compareIdentifiers(previousIndex, balanceList, index);
+            }
+
+            if (comparison < 0) {
+                // The account was removed.
+                store.add(previousList.getIdentifier(previousIndex), height, 0L);
+                numberOfChanges++;
+                previousIndex++;
+            } else if (comparison > 0) {
+                // The account was added.
+                store.add(balanceList.getIdentifier(index), height, balanceList.getBalance(index));
+                numberOfChanges++;
+                index++;
+            } else {
+                if (previousList.getBalance(previousIndex) != balanceList.getBalance(index)) {
+                    store.add(balanceList.getIdentifier(index), height, balanceList.getBalance(index));
+                    numberOfChanges++;
+                }
+                previousIndex++;
+                index++;
+            }
+        }
+
+        return numberOfChanges;
+    }
+
+    public static int recordBaseline(BalanceHistoryStore store, BalanceList balanceList) {
+
+        // Every account of the list is recorded. Accounts with a balance in the store that are not in the list are
+        // recorded with a balance of zero. Both are found before anything is added.
+        List<byte[]> storedAccounts = store.accountsWithBalance();
+        Set<ByteBuffer> listAccounts = new HashSet<>();
+        for (int i = 0; i < balanceList.getNumberOfItems(); i++) {
+            listAccounts.add(ByteBuffer.wrap(balanceList.getIdentifier(i)));
+        }
+
+        int numberOfChanges = recordChanges(store, null, balanceList);
+        for (byte[] identifier : storedAccounts) {
+            if (!listAccounts.contains(ByteBuffer.wrap(identifier))) {
+                store.add(identifier, balanceList.getBlockHeight(), 0L);
+                numberOfChanges++;
+            }
+        }
+
+        return numberOfChanges;
+    }
+
+    public static long rebuild(BalanceHistoryStore store, long startHeight, long endHeight) {
+
+        BalanceList lastList = rebuildInternal(store, startHeight, endHeight);
+        return lastList == null ? -1L : lastList.getBlockHeight();
+    }
+
+    private static BalanceList rebuildInternal(BalanceHistoryStore store, long startHeight, long endHeight) {
+
+        // The store is cleared, and the consolidated files are read in order. Each file is read once; the balance
+        // lists stored in the file are used where present, and all others are derived from the previous list. The
+        // store is flushed once per file. This returns the balance list of the last block indexed.
+        store.clear();
+        BalanceList previousList = null;
+        BalanceList lastList = null;
+        Block previousBlock = null;
+        long coverageStartHeight = -1L;
+        long lastHeight = -1L;
+        boolean continuous = true;
+        long startTimestamp = System.currentTimeMillis();
+        for (long fileStartHeight = startHeight - startHeight % BlockManager.blocksPerFile; continuous &&
+                fileStartHeight <= endHeight; fileStartHeight += BlockManager.blocksPerFile) {
+
+            File file = BlockManager.consolidatedFileForBlockHeight(fileStartHeight);
+            continuous = file.exists();
+            try {
+                ByteBuffer buffer = continuous ? ByteBuffer.wrap(Files.readAllBytes(Paths.get(
+                        file.getAbsolutePath()))) : ByteBuffer.allocate(2);
+                int numberOfBlocks = continuous ? buffer.getShort() : 0;
+                for (int i = 0; i < numberOfBlocks && continuous; i++) {
+                    Block block = Block.fromByteBuffer(buffer, false);
+                    long height = block.getBlockHeight();
+                    BalanceList balanceList;
+                    if (previousBlock == null || previousBlock.getBlockHeight() != height - 1L) {
+                        balanceList = BalanceList.fromByteBuffer(buffer);
+                    } else if (height < startHeight) {
+                        balanceList = null;
+                    } else if (height == startHeight) {
+                        balanceList = BlockManager.loadBalanceListFromFileForHeight(height);
+                    } else {
+                        balanceList = Block.balanceListForNextBlock(previousBlock, previousList,
+                                block.getTransactions(), block.getVerifierIdentifier(), block.getBlockchainVersion());
+                        if (balanceList != null && !ByteUtil.arraysAreEqual(balanceList.getHash(),
+                                block.getBalanceListHash())) {
+                            LogUtil.println("BalanceHistoryIndexer: balance list does not match block " + height);
+                            balanceList = null;
+                        }
+                    }
+
+                    // Records start at the start height. Below it, the blocks are only read to reach it. A gap in the
+                    // chain above the start height ends the rebuild. The blockchain must be initialized to at least
+                    // the end height, as balance lists above the frozen edge are derived with transaction validation.
+                    if (height >= startHeight && height <= endHeight) {
+                        if ((lastHeight >= 0L && height != lastHeight + 1L) || balanceList == null) {
+                            continuous = false;
+                        } else {
+                            recordChanges(store, lastHeight < 0L ? null : previousList, balanceList);
+                            coverageStartHeight = coverageStartHeight < 0L ? height : coverageStartHeight;
+                            lastHeight = height;
+                            lastList = balanceList;
+                        }
+                    }
+
+                    previousBlock = block;
+                    previousList = balanceList;
+                    continuous &= height < endHeight;
+                }
+            } catch (Exception e) {
+                LogUtil.println("BalanceHistoryIndexer: exception rebuilding from " + file + ": " +
+                        PrintUtil.printException(e));
+                continuous = false;
+            }
+
+            if (lastHeight >= 0L) {
+                store.flush(coverageStartHeight, lastHeight);
+            }
+        }
+        store.compactAll();
+
+        double elapsedSeconds = Math.max(0.001, (System.currentTimeMillis() - startTimestamp) / 1000.0);
+        LogUtil.println("BalanceHistoryIndexer: rebuilt heights %d to %d in %.1f seconds (%.0f blocks/s)",
+                coverageStartHeight, lastHeight, elapsedSeconds, (lastHeight - coverageStartHeight + 1) /
+                        elapsedSeconds);
+
+        return lastList;
+    }
+}
@@ -0,0 +1,695 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class BalanceHistoryStore {
+
+    // This stores the change points of account balances: a record of (identifier, height, balance) is added each time
+    // the balance of an account changes. The store is divided into 256 shards on the first byte of the identifier.
+    // Each shard has a log and a stack of sorted runs:
+    //   - the log, to which records are appended in the order they are added; the log is also held in memory, indexed
+    //     by account
+    //   - the runs, each a file with records ordered by identifier and then height
+    // When the log of a shard reaches the compaction threshold, the log is sorted and written as a new run, and the log
+    // is cleared. Records are always added in ascending height, so each run only contains records above those of the
+    // runs before it, and the log only contains records above those of all runs.
+
+    // Runs are merged with a size-ratio policy: after a run is written, the newest two runs are merged while the older
+    // is no more than the size ratio times the newer. Adjacent runs therefore differ in size by at least the ratio, a
+    // shard has a logarithmic number of runs, and each record is rewritten a logarithmic number of times. Merging the
+    // log into a single sorted file would instead rewrite the entire shard at every compaction.
+
+    // A point-in-time query checks the log of the account, and then performs a binary search of each run, newest
+    // first, until a record is found. A range query uses the same search to find the first record in each run and then
+    // reads sequentially.
+
+    // The coverage file records the range of heights indexed. Records above the end of the coverage are the result of
+    // an interrupted write, and they are discarded when the store is opened.
+
+    public static class Change {
+
+        private final long height;
+        private final long balance;
+
+        public Change(long height, long balance) {
+            this.height = height;
+            this.balance = balance;
+        }
+
+        public long getHeight() {
+            return height;
+        }
+
+        public long getBalance() {
+            return balance;
+        }
+
+        @Override
+        public String toString() {
+            return "[Change: height=" + height + ", balance=" + PrintUtil.printAmount(balance) + "]";
+        }
+    }
+
+    private static final int numberOfShards = 256;
+    private static final int identifierLength = FieldByteSize.identifier;
+    private static final int recordLength = identifierLength + FieldByteSize.blockHeight +
+            FieldByteSize.transactionAmount;
+
+    private static final int compactionSizeRatio = 4;
+
+    private class Run {
+
+        private final int shardIndex;
+        private final long sequence;
+        private FileChannel channel = null;
+
+        private Run(int shardIndex, long sequence) {
+            this.shardIndex = shardIndex;
+            this.sequence = sequence;
+        }
+
+        private File file() {
+            return new File(directory, String.format("s_%02x_%012d.nyzobalancesorted", shardIndex, sequence));
+        }
+
+        private long numberOfRecords() throws IOException {
+            return channel == null ? 0L : channel.size() / recordLength;
+        }
+    }
+
+    private class Shard {
+
+        private final int index;
+        private final Map<ByteBuffer, List<Change>> log = new HashMap<>();
+        private int logRecordCount = 0;
+        private final ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+        private final List<Run> runs = new ArrayList<>();  // oldest first
+        private long nextSequence = 0L;
+
+        private Shard(int index) {
+            this.index = index;
+        }
+
+        private File logFile() {
+            return new File(directory, String.format("s_%02x.nyzobalancelog", index));
+        }
+
+        private String runFilePrefix() {
+            return String.format("s_%02x_", index);
+        }
+    }
+
+    private final File directory;
+    private final int compactionThreshold;
+    private final Shard[] shards = new Shard[numberOfShards];
+    private long coverageStartHeight = -1L;
+    private long coverageEndHeight = -1L;
+
+    public BalanceHistoryStore(File directory, int compactionThreshold) {
+
+        this.directory = directory;
+        this.compactionThreshold = compactionThreshold;
+
+        directory.mkdirs();
+        loadCoverage();
+        for (int i = 0; i < numberOfShards; i++) {
+            shards[i] = new Shard(i);
+            loadShard(shards[i]);
+        }
+    }
+
+    public synchronized long getCoverageStartHeight() {
+        return coverageStartHeight;
+    }
+
+    public synchronized long getCoverageEndHeight() {
+        return coverageEndHeight;
+    }
+
+    public synchronized void add(byte[] identifier, long height, long balance) {
+
+        Shard shard = shardForIdentifier(identifier);
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.put(identifier);
+        record.putLong(height);
+        record.putLong(balance);
+        shard.pendingRecords.write(record.array(), 0, recordLength);
+        addToLog(shard, identifier, new Change(height, balance));
+    }
+
+    public synchronized void flush(long coverageStartHeight, long coverageEndHeight) {
+
+        // The pending records are appended to the logs before the coverage is updated, so the coverage never includes
+        // records that were not written. Logs that have reached the threshold are compacted.
+        for (Shard shard : shards) {
+            if (shard.pendingRecords.size() > 0) {
+                try (FileOutputStream outputStream = new FileOutputStream(shard.logFile(), true)) {
+                    shard.pendingRecords.writeTo(outputStream);
+                } catch (Exception e) {
+                    LogUtil.println("unable to write balance history log " + shard.logFile() + ": " +
+                            PrintUtil.printException(e));
+                }
+                shard.pendingRecords.reset();
+            }
+        }
+
+        this.coverageStartHeight = coverageStartHeight;
+        this.coverageEndHeight = coverageEndHeight;
+        writeCoverage();
+
+        for (Shard shard : shards) {
+            if (shard.logRecordCount >= compactionThreshold) {
+                compact(shard);
+            }
+        }
+    }
+
+    public synchronized void compactAll() {
+
+        // This writes all logs and merges each shard into a single run.
+        for (Shard shard : shards) {
+            if (shard.logRecordCount > 0) {
+                compact(shard);
+            }
+            boolean merged = true;
+            while (merged && shard.runs.size() > 1) {
+                merged = mergeNewestRuns(shard);
+            }
+        }
+    }
+
+    public synchronized int numberOfRuns() {
+
+        int numberOfRuns = 0;
+        for (Shard shard : shards) {
+            numberOfRuns += shard.runs.size();
+        }
+
+        return numberOfRuns;
+    }
+
+    public synchronized List<byte[]> accountsWithBalance() {
+
+        // This returns the identifiers of all accounts whose most recent change has a balance other than zero. Each
+        // shard is read sequentially, from the oldest run to the log, so the last change seen for each account is its
+        // most recent change.
+        List<byte[]> identifiers = new ArrayList<>();
+        for (Shard shard : shards) {
+            Map<ByteBuffer, Long> balances = new HashMap<>();
+            for (Run run : shard.runs) {
+                try (RecordStream stream = new RecordStream(run.file())) {
+                    for (byte[] record = stream.peek(); record != null; record = stream.next()) {
+                        ByteBuffer buffer = ByteBuffer.wrap(record);
+                        balances.put(ByteBuffer.wrap(Arrays.copyOf(record, identifierLength)),
+                                buffer.getLong(identifierLength + FieldByteSize.blockHeight));
+                    }
+                } catch (Exception e) {
+                    LogUtil.println("unable to read balance history file " + run.file() + ": " +
+                            PrintUtil.printException(e));
+                }
+            }
+            for (Map.Entry<ByteBuffer, List<Change>> entry : shard.log.entrySet()) {
+                List<Change> changes = entry.getValue();
+                balances.put(entry.getKey(), changes.get(changes.size() - 1).getBalance());
+            }
+
+            for (Map.Entry<ByteBuffer, Long> entry : balances.entrySet()) {
+                if (entry.getValue() != 0L) {
+                    identifiers.add(entry.getKey().array());
+                }
+            }
+        }
+
+        return identifiers;
+    }
+
+    public synchronized void clear() {
+
+        for (Shard shard : shards) {
+            for (Run run : shard.runs) {
+                closeChannel(run);
+                run.file().delete();
+            }
+            shard.runs.clear();
+            shard.log.clear();
+            shard.logRecordCount = 0;
+            shard.pendingRecords.reset();
+            shard.logFile().delete();
+        }
+        coverageStartHeight = -1L;
+        coverageEndHeight = -1L;
+        writeCoverage();
+    }
+
+    public synchronized void close() {
+
+        for (Shard shard : shards) {
+            for (Run run : shard.runs) {
+                closeChannel(run);
+            }
+        }
+    }
+
+    public synchronized Change changeAtOrBelow(byte[] identifier, long height) {
+
+        // The log is checked first, as its records are all above those of the runs. The runs are then checked from
+        // newest to oldest.
+        Shard shard = shardForIdentifier(identifier);
+        Change result = null;
+        List<Change> logChanges = shard.log.get(ByteBuffer.wrap(identifier));
+        if (logChanges != null) {
+            for (int i = logChanges.size() - 1; i >= 0 && result == null; i--) {
+                if (logChanges.get(i).getHeight() <= height) {
+                    result = logChanges.get(i);
+                }
+            }
+        }
+
+        try {
+            for (int i = shard.runs.size() - 1; i >= 0 && result == null; i--) {
+                // The search finds the first record above the height, so the record before it, if it is for the same
+                // account, is the result.
+                Run run = shard.runs.get(i);
+                long position = search(run, identifier, height + 1L);
+                if (position > 0) {
+                    ByteBuffer record = readRecord(run, position - 1L);
+                    if (identifierMatches(record, identifier)) {
+                        result = new Change(record.getLong(identifierLength),
+                                record.getLong(identifierLength + FieldByteSize.blockHeight));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LogUtil.println("unable to read balance history for " + PrintUtil.compactPrintByteArray(identifier) +
+                    ": " + PrintUtil.printException(e));
+        }
+
+        return result;
+    }
+
+    public synchronized List<Change> changesInRange(byte[] identifier, long minimumHeight, long maximumHeight,
+                                                    int maximumResults) {
+
+        // The runs are read from oldest to newest, followed by the log, so the changes are in ascending height. A
+        // change at or below the last height found is a duplicate left by an interrupted merge, and it is skipped.
+        Shard shard = shardForIdentifier(identifier);
+        List<Change> changes = new ArrayList<>();
+        long lastHeight = -1L;
+        try {
+            for (Run run : shard.runs) {
+                long numberOfRecords = run.numberOfRecords();
+                for (long position = search(run, identifier, minimumHeight); position < numberOfRecords &&
+                        changes.size() < maximumResults; position++) {
+                    ByteBuffer record = readRecord(run, position);
+                    long height = record.getLong(identifierLength);
+                    if (!identifierMatches(record, identifier) || height > maximumHeight) {
+                        break;
+                    }
+                    if (height > lastHeight) {
+                        changes.add(new Change(height, record.getLong(identifierLength + FieldByteSize.blockHeight)));
+                        lastHeight = height;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LogUtil.println("unable to read balance history for " + PrintUtil.compactPrintByteArray(identifier) +
+                    ": " + PrintUtil.printException(e));
+        }
+
+        List<Change> logChanges = shard.log.get(ByteBuffer.wrap(identifier));
+        if (logChanges != null) {
+            for (Change change : logChanges) {
+                if (change.getHeight() >= minimumHeight && change.getHeight() <= maximumHeight &&
+                        change.getHeight() > lastHeight && changes.size() < maximumResults) {
+                    changes.add(change);
+                }
+            }
+        }
+
+        return changes;
+    }
+
+    private Shard shardForIdentifier(byte[] identifier) {
+        return shards[identifier[0] & 0xff];
+    }
+
+    private static void addToLog(Shard shard, byte[] identifier, Change change) {
+
+        ByteBuffer key = ByteBuffer.wrap(identifier);
+        List<Change> changes = shard.log.get(key);
+        if (changes == null) {
+            changes = new ArrayList<>(2);
+            shard.log.put(ByteBuffer.wrap(identifier.clone()), changes);
+        }
+        changes.add(change);
+        shard.logRecordCount++;
+    }
+
+    private long search(Run run, byte[] identifier, long height) throws IOException {
+
+        // This returns the position of the first record in the run that is not less than the identifier and height.
+        byte[] key = ByteBuffer.allocate(recordLength).put(identifier).putLong(height).array();
+        long lowPosition = 0L;
+        long highPosition = run.numberOfRecords();
+        while (lowPosition < highPosition) {
+            long midPosition = (lowPosition + highPosition) >>> 1;
+            if (compareRecords(readRecord(run, midPosition).array(), key) < 0) {
+                lowPosition = midPosition + 1L;
+            } else {
+                highPosition = midPosition;
+            }
+        }
+
+        return lowPosition;
+    }
+
+    private static ByteBuffer readRecord(Run run, long position) throws IOException {
+
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        while (record.hasRemaining()) {
+            if (run.channel.read(record, position * recordLength + record.position()) < 0) {
+                throw new EOFException("unexpected end of " + run.file());
+            }
+        }
+
+        return record;
+    }
+
+    private static int compareRecords(byte[] record1, byte[] record2) {
+
+        // Records are ordered on identifier and then height. Heights are not negative, so comparing the big-endian
+        // bytes of both fields as unsigned values gives this order.
+        int result = 0;
+        for (int i = 0; i < identifierLength + FieldByteSize.blockHeight && result == 0; i++) {
+            result = Integer.compare(record1[i] & 0xff, record2[i] & 0xff);
+        }
+
+        return result;
+    }
+
+    private static boolean identifierMatches(ByteBuffer record, byte[] identifier) {
+
+        boolean matches = true;
+        for (int i = 0; i < identifierLength && matches; i++) {
+            matches = record.get(i) == identifier[i];
+        }
+
+        return matches;
+    }
+
+    private void compact(Shard shard) {
+
+        // The log, sorted in memory, is written as a new run. The log is deleted after the run is in place; if the
+        // process stops between the two steps, the log records are written again, and the duplicate records are
+        // skipped by queries and removed when the runs are merged.
+        List<byte[]> logRecords = new ArrayList<>(shard.logRecordCount);
+        for (Map.Entry<ByteBuffer, List<Change>> entry : shard.log.entrySet()) {
+            for (Change change : entry.getValue()) {
+                ByteBuffer record = ByteBuffer.allocate(recordLength);
+                record.put(entry.getKey().array());
+                record.putLong(change.getHeight());
+                record.putLong(change.getBalance());
+                logRecords.add(record.array());
+            }
+        }
+        logRecords.sort(new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] record1, byte[] record2) {
+                return compareRecords(record1, record2);
+            }
+        });
+
+        Run run = new Run(shard.index, shard.nextSequence);
+        if (writeRun(run, new RecordStream(logRecords), new RecordStream(new ArrayList<>()))) {
+            shard.nextSequence++;
+            shard.runs.add(run);
+            shard.logFile().delete();
+            shard.log.clear();
+            shard.logRecordCount = 0;
+            shard.pendingRecords.reset();
+
+            // Merge the newest runs while they are within the size ratio of each other.
+            boolean merged = true;
+            while (merged && shard.runs.size() > 1 && runsShouldMerge(shard.runs.get(shard.runs.size() - 2),
+                    shard.runs.get(shard.runs.size() - 1))) {
+                merged = mergeNewestRuns(shard);
+            }
+        }
+    }
+
+    private static boolean runsShouldMerge(Run olderRun, Run newerRun) {
+
+        boolean shouldMerge = false;
+        try {
+            shouldMerge = olderRun.numberOfRecords() <= newerRun.numberOfRecords() * compactionSizeRatio;
+        } catch (Exception ignored) { }
+
+        return shouldMerge;
+    }
+
+    private boolean mergeNewestRuns(Shard shard) {
+
+        // The newest two runs are merged into a file that replaces the newer run, and the older run is then deleted.
+        // If the process stops between the two steps, the records of the older run are duplicated in the merged run,
+        // which queries and later merges handle.
+        Run olderRun = shard.runs.get(shard.runs.size() - 2);
+        Run newerRun = shard.runs.get(shard.runs.size() - 1);
+        boolean successful = false;
+        RecordStream olderStream = null;
+        try {
+            olderStream = new RecordStream(olderRun.file());
+            successful = writeRun(newerRun, olderStream, new RecordStream(newerRun.file()));
+        } catch (Exception e) {
+            LogUtil.println("unable to merge balance history shard " + shard.index + ": " +
+                    PrintUtil.printException(e));
+            if (olderStream != null) {
+                olderStream.close();
+            }
+        }
+
+        if (successful) {
+            closeChannel(olderRun);
+            olderRun.file().delete();
+            shard.runs.remove(shard.runs.size() - 2);
+        }
+
+        return successful;
+    }
+
+    private boolean writeRun(Run run, RecordStream olderStream, RecordStream newerStream) {
+
+        // The two streams are merged into a temporary file, which is then moved into place. Identical records are
+        // written once.
+        File temporaryFile = new File(run.file().getAbsolutePath() + "_temp");
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporaryFile), 1 << 16))) {
+            byte[] previousRecord = null;
+            while (olderStream.peek() != null || newerStream.peek() != null) {
+                byte[] record;
+                if (newerStream.peek() == null || (olderStream.peek() != null &&
+                        compareRecords(olderStream.peek(), newerStream.peek()) <= 0)) {
+                    record = olderStream.peek();
+                    olderStream.next();
+                } else {
+                    record = newerStream.peek();
+                    newerStream.next();
+                }
+
+                if (previousRecord == null || !Arrays.equals(previousRecord, record)) {
+                    outputStream.write(record);
+                }
+                previousRecord = record;
+            }
+        } catch (Exception e) {
+            LogUtil.println("unable to write balance history file " + run.file() + ": " +
+                    PrintUtil.printException(e));
+            temporaryFile.delete();
+            return false;
+        } finally {
+            olderStream.close();
+            newerStream.close();
+        }
+
+        boolean successful = false;
+        closeChannel(run);
+        try {
+            Files.move(Paths.get(temporaryFile.getAbsolutePath()), Paths.get(run.file().getAbsolutePath()),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            openChannel(run);
+            successful = true;
+        } catch (Exception e) {
+            LogUtil.println("unable to replace balance history file " + run.file() + ": " +
+                    PrintUtil.printException(e));
+        }
+
+        return successful;
+    }
+
+    private static class RecordStream implements Closeable {
+
+        // This reads records in order from either a list in memory or a run file.
+        private final Iterator<byte[]> iterator;
+        private final DataInputStream inputStream;
+        private byte[] record = null;
+
+        private RecordStream(List<byte[]> records) {
+            this.iterator = records.iterator();
+            this.inputStream = null;
+            next();
+        }
+
+        private RecordStream(File file) throws IOException {
+            this.iterator = null;
+            this.inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            next();
+        }
+
+        private byte[] peek() {
+            return record;
+        }
+
+        private byte[] next() {
+
+            if (iterator != null) {
+                record = iterator.hasNext() ? iterator.next() : null;
+            } else {
+                record = new byte[recordLength];
+                try {
+                    inputStream.readFully(record);
+                } catch (Exception ignored) {
+                    record = null;
+                }
+            }
+
+            return record;
+        }
+
+        @Override
+        public void close() {
+
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (Exception ignored) { }
+            }
+        }
+    }
+
+    private void loadShard(Shard shard) {
+
+        // The runs are found by name and ordered by sequence. Temporary files left by an interrupted merge are
+        // removed.
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.startsWith(shard.runFilePrefix()) && name.endsWith(".nyzobalancesorted_temp")) {
+                file.delete();
+            } else if (name.startsWith(shard.runFilePrefix()) && name.endsWith(".nyzobalancesorted")) {
+                try {
+                    long sequence = Long.parseLong(name.substring(shard.runFilePrefix().length(),
+                            name.indexOf('.')));
+                    shard.runs.add(new Run(shard.index, sequence));
+                    shard.nextSequence = Math.max(shard.nextSequence, sequence + 1L);
+                } catch (Exception ignored) { }
+            }
+        }
+        shard.runs.sort(new Comparator<Run>() {
+            @Override
+            public int compare(Run run1, Run run2) {
+                return Long.compare(run1.sequence, run2.sequence);
+            }
+        });
+        for (Run run : shard.runs) {
+            openChannel(run);
+        }
+
+        // The log is read to the last complete record at or below the end of the coverage. If anything follows, the log
+        // is rewritten without it.
+        File logFile = shard.logFile();
+        if (logFile.exists()) {
+            try {
+                byte[] bytes = Files.readAllBytes(Paths.get(logFile.getAbsolutePath()));
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                int validLength = 0;
+                while (buffer.remaining() >= recordLength) {
+                    byte[] identifier = new byte[identifierLength];
+                    buffer.get(identifier);
+                    long height = buffer.getLong();
+                    long balance = buffer.getLong();
+                    if (height > coverageEndHeight) {
+                        break;
+                    }
+                    addToLog(shard, identifier, new Change(height, balance));
+                    validLength = buffer.position();
+                }
+                if (validLength < bytes.length) {
+                    Files.write(Paths.get(logFile.getAbsolutePath()), Arrays.copyOf(bytes, validLength));
+                }
+            } catch (Exception e) {
+                LogUtil.println("unable to load balance history log " + logFile + ": " + PrintUtil.printException(e));
+            }
+        }
+    }
+
+    private static void openChannel(Run run) {
+
+        if (run.file().exists()) {
+            try {
+                run.channel = FileChannel.open(Paths.get(run.file().getAbsolutePath()), StandardOpenOption.READ);
+            } catch (Exception e) {
+                LogUtil.println("unable to open balance history file " + run.file() + ": " +
+                        PrintUtil.printException(e));
+            }
+        }
+    }
+
+    private static void closeChannel(Run run) {
+
+        if (run.channel != null) {
+            try {
+                run.channel.close();
+            } catch (Exception ignored) { }
+            run.channel = null;
+        }
+    }
+
+    private File coverageFile() {
+        return new File(directory, "coverage");
+    }
+
+    private void loadCoverage() {
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(coverageFile().getAbsolutePath())));
+            coverageStartHeight = buffer.getLong();
+            coverageEndHeight = buffer.getLong();
+        } catch (Exception ignored) { }
+    }
+
+    private void writeCoverage() {
+
+        File temporaryFile = new File(coverageFile().getAbsolutePath() + "_temp");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(FieldByteSize.blockHeight * 2);
+            buffer.putLong(coverageStartHeight);
+            buffer.putLong(coverageEndHeight);
+            Path temporaryPath = Paths.get(temporaryFile.getAbsolutePath());
+            Files.write(temporaryPath, buffer.array());
+            Files.move(temporaryPath, Paths.get(coverageFile().getAbsolutePath()), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception e) {
+            LogUtil.println("unable to write balance history coverage: " + PrintUtil.printException(e));
+        }
+    }
+}
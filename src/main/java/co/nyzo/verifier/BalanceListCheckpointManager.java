@@ -0,0 +1,433 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.metrics.LatencyHistogram;
+import co.nyzo.verifier.metrics.MetricsCounter;
+import co.nyzo.verifier.metrics.MetricsRegistry;
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BalanceListCheckpointManager {
+
+    // A consolidated block file stores a balance list only for its first block and for the first block after each gap.
+    // Previously, a balance list for any other height was obtained by extracting the entire consolidated file to
+    // individual files. Now, the balance list of every block at a multiple of the checkpoint interval is stored when the
+    // block is frozen, and a historical balance list is derived in memory from the nearest checkpoint at or below its
+    // height, so at most (interval - 1) blocks are rolled forward and nothing is written for a lookup.
+
+    // Checkpoints are only useful when consolidated files are kept, so they are not written otherwise. They are
+    // written on a background thread, so freezing a block never waits for the disk. The first checkpoint in the range
+    // of each consolidated file is a full balance list. Later checkpoints in the same range are deltas against it:
+    // only the accounts that were added or removed, or whose balance or blocks-until-fee value differs from the value
+    // expected for an account without activity, are stored. Only the most recent checkpoints are kept, and checkpoints
+    // for the consolidated files in that window that predate this process are created once, in the background. An
+    // interval of 0 disables checkpoints; lookups then roll forward from the balance list stored in the consolidated
+    // file.
+
+    public static final File checkpointDirectory = new File(BlockManager.blockRootDirectory, "balance_checkpoints");
+
+    private static final long interval = Math.max(0L, PreferencesUtil.getLong("balance_list_checkpoint_interval",
+            100L));
+    private static final long retention = Math.max(1L, PreferencesUtil.getLong("balance_list_checkpoint_retention",
+            1000L));
+    private static final String fullExtension = ".nyzobalancelist";
+    private static final String deltaExtension = ".nyzobalancedelta";
+    private static final int blocksBetweenFee = 500;
+
+    private static final LatencyHistogram lookupTime =
+            MetricsRegistry.histogram("nyzo_balance_list_derivation_seconds");
+    private static final MetricsCounter blocksRolledForward =
+            MetricsRegistry.counter("nyzo_balance_list_blocks_rolled_forward");
+    private static final MetricsCounter checkpointsUsed = MetricsRegistry.counter("nyzo_balance_list_checkpoints_used");
+    private static final MetricsCounter checkpointsWritten =
+            MetricsRegistry.counter("nyzo_balance_list_checkpoints_written");
+    private static final MetricsCounter checkpointBytesWritten =
+            MetricsRegistry.counter("nyzo_balance_list_checkpoint_bytes_written");
+    private static final MetricsCounter checkpointsDropped =
+            MetricsRegistry.counter("nyzo_balance_list_checkpoints_dropped");
+
+    // The writer has a short queue. If the disk cannot keep up, a checkpoint is dropped, which only means that
+    // lookups near its height roll forward from an earlier checkpoint.
+    private static final ExecutorService writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(4), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "BalanceListCheckpointManager-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }, new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            checkpointsDropped.increment();
+        }
+    });
+    private static final AtomicBoolean backfillScheduled = new AtomicBoolean(false);
+
+    // This is the full checkpoint that deltas are written against. It is only accessed on the writer thread.
+    private static BalanceList baseCheckpoint = null;
+
+    public static long getInterval() {
+        return interval;
+    }
+
+    public static void blockFrozen(BalanceList balanceList) {
+
+        if (interval > 0L && balanceList.getBlockHeight() % interval == 0L &&
+                BlockFileConsolidator.keepsConsolidatedFiles()) {
+            if (!backfillScheduled.getAndSet(true)) {
+                writer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        backfill(balanceList.getBlockHeight());
+                    }
+                });
+            }
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeCheckpoint(balanceList);
+                    prune(balanceList.getBlockHeight());
+                }
+            });
+        }
+    }
+
+    private static void writeCheckpoint(BalanceList balanceList) {
+
+        // A delta is written if the base checkpoint is in the range of the same consolidated file. Otherwise, this
+        // checkpoint is written in full and becomes the base.
+        long height = balanceList.getBlockHeight();
+        long fileStartHeight = height - height % BlockManager.blocksPerFile;
+        if (baseCheckpoint == null || baseCheckpoint.getBlockHeight() < fileStartHeight ||
+                baseCheckpoint.getBlockHeight() >= height) {
+            if (writeFile(fileForHeight(height, fullExtension), balanceList.getBytes())) {
+                baseCheckpoint = balanceList;
+            }
+        } else {
+            writeFile(fileForHeight(height, deltaExtension), encodeDelta(baseCheckpoint, balanceList));
+        }
+    }
+
+    private static boolean writeFile(File file, byte[] bytes) {
+
+        // The checkpoint is written to a temporary file and moved into place so that a partial file is never read.
+        boolean successful = true;
+        File temporaryFile = new File(file.getAbsolutePath() + "_temp");
+        try {
+            checkpointDirectory.mkdirs();
+            Path temporaryPath = Paths.get(temporaryFile.getAbsolutePath());
+            Files.write(temporaryPath, bytes);
+            Files.move(temporaryPath, Paths.get(file.getAbsolutePath()), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            checkpointsWritten.increment();
+            checkpointBytesWritten.add(bytes.length);
+        } catch (Exception e) {
+            LogUtil.println("unable to write balance-list checkpoint " + file.getName() + ": " + e.getMessage());
+            temporaryFile.delete();
+            successful = false;
+        }
+
+        return successful;
+    }
+
+    private static void prune(long height) {
+
+        // Whole consolidated-file ranges are removed, so a delta is never kept without its base.
+        long thresholdHeight = height - retention * interval;
+        thresholdHeight -= thresholdHeight % BlockManager.blocksPerFile;
+        File[] files = checkpointDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long fileHeight = heightForFile(file);
+                if (fileHeight >= 0L && fileHeight < thresholdHeight) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static void backfill(long height) {
+
+        // Checkpoints are created for the consolidated files in the retention window that do not have them. Each file
+        // is read once, and its balance lists are rolled forward from the list stored at the start of the file.
+        long startHeight = Math.max(0L, height - retention * interval);
+        long numberOfFiles = 0L;
+        for (long fileStartHeight = startHeight - startHeight % BlockManager.blocksPerFile; fileStartHeight < height &&
+                !UpdateUtil.shouldTerminate(); fileStartHeight += BlockManager.blocksPerFile) {
+            File file = BlockManager.consolidatedFileForBlockHeight(fileStartHeight);
+            long firstCheckpointHeight = (fileStartHeight + interval - 1L) / interval * interval;
+            if (file.exists() && !fileForHeight(firstCheckpointHeight, fullExtension).exists() &&
+                    !fileForHeight(firstCheckpointHeight, deltaExtension).exists()) {
+                backfillFile(file);
+                numberOfFiles++;
+            }
+        }
+
+        if (numberOfFiles > 0L) {
+            LogUtil.println("created balance-list checkpoints for " + numberOfFiles + " consolidated files");
+        }
+    }
+
+    private static void backfillFile(File file) {
+
+        // This follows the file format read by BlockManager.loadBalanceListFromFile(). A balance list is only stored
+        // as a checkpoint if it matches its block.
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file.getAbsolutePath())));
+            int numberOfBlocks = buffer.getShort();
+            Block previousBlock = null;
+            BalanceList balanceList = null;
+            for (int i = 0; i < numberOfBlocks; i++) {
+                Block block = Block.fromByteBuffer(buffer, false);
+                if (previousBlock == null || previousBlock.getBlockHeight() != block.getBlockHeight() - 1L) {
+                    balanceList = BalanceList.fromByteBuffer(buffer);
+                } else if (balanceList != null) {
+                    balanceList = Block.balanceListForNextBlock(previousBlock, balanceList, block.getTransactions(),
+                            block.getVerifierIdentifier(), block.getBlockchainVersion());
+                }
+
+                if (balanceList != null && block.getBlockHeight() % interval == 0L) {
+                    if (ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+                        writeCheckpoint(balanceList);
+                    } else {
+                        balanceList = null;
+                    }
+                }
+                previousBlock = block;
+            }
+        } catch (Exception e) {
+            LogUtil.println("unable to create balance-list checkpoints for " + file.getName() + ": " +
+                    e.getMessage());
+        }
+    }
+
+    public static BalanceList checkpointForHeight(long blockHeight) {
+
+        BalanceList balanceList = null;
+        try {
+            File fullFile = fileForHeight(blockHeight, fullExtension);
+            File deltaFile = fileForHeight(blockHeight, deltaExtension);
+            if (fullFile.exists()) {
+                balanceList = BalanceList.fromByteBuffer(ByteBuffer.wrap(Files.readAllBytes(Paths.get(
+                        fullFile.getAbsolutePath()))));
+            } else if (deltaFile.exists()) {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(deltaFile.getAbsolutePath())));
+                long baseHeight = buffer.getLong(0);
+                File baseFile = fileForHeight(baseHeight, fullExtension);
+                BalanceList base = BalanceList.fromByteBuffer(ByteBuffer.wrap(Files.readAllBytes(Paths.get(
+                        baseFile.getAbsolutePath()))));
+                balanceList = decodeDelta(base, buffer);
+            }
+            if (balanceList != null && balanceList.getBlockHeight() != blockHeight) {
+                balanceList = null;
+            }
+        } catch (Exception ignored) {
+            balanceList = null;
+        }
+
+        return balanceList;
+    }
+
+    public static byte[] encodeDelta(BalanceList base, BalanceList balanceList) {
+
+        // The delta is the height of the base, the changed accounts in identifier order, and the balance list without
+        // its accounts, which carries all other fields. A removed account is stored with a balance of zero. The
+        // blocks-until-fee value of an account without activity counts down by one each block and wraps from zero to
+        // the last value of the next fee period.
+        long blocksElapsed = balanceList.getBlockHeight() - base.getBlockHeight();
+        List<Integer> changedIndices = new ArrayList<>();
+        List<Integer> removedIndices = new ArrayList<>();
+        int baseIndex = 0;
+        int index = 0;
+        while (baseIndex < base.getNumberOfItems() || index < balanceList.getNumberOfItems()) {
+            int comparison = baseIndex >= base.getNumberOfItems() ? 1 : index >= balanceList.getNumberOfItems() ? -1 :
+                    base.compareIdentifiers(baseIndex, balanceList, index);
+            if (comparison < 0) {
+                removedIndices.add(baseIndex++);
+            } else if (comparison > 0) {
+                changedIndices.add(index++);
+            } else {
+                if (balanceList.getBalance(index) != base.getBalance(baseIndex) || balanceList.getBlocksUntilFee(index)
+                        != expectedBlocksUntilFee(base.getBlocksUntilFee(baseIndex), blocksElapsed)) {
+                    changedIndices.add(index);
+                }
+                baseIndex++;
+                index++;
+            }
+        }
+
+        byte[] listBytes = withoutItems(balanceList).getBytes();
+        int bytesPerItem = FieldByteSize.identifier + FieldByteSize.transactionAmount + FieldByteSize.blocksUntilFee;
+        ByteBuffer buffer = ByteBuffer.allocate(FieldByteSize.blockHeight + FieldByteSize.unnamedInteger +
+                (changedIndices.size() + removedIndices.size()) * bytesPerItem + listBytes.length);
+        buffer.putLong(base.getBlockHeight());
+        buffer.putInt(changedIndices.size() + removedIndices.size());
+        int changedPosition = 0;
+        int removedPosition = 0;
+        while (changedPosition < changedIndices.size() || removedPosition < removedIndices.size()) {
+            boolean takeRemoved = changedPosition >= changedIndices.size() || (removedPosition <
+                    removedIndices.size() && base.compareIdentifiers(removedIndices.get(removedPosition), balanceList,
+                    changedIndices.get(changedPosition)) < 0);
+            if (takeRemoved) {
+                buffer.put(base.getIdentifier(removedIndices.get(removedPosition++)));
+                buffer.putLong(0L);
+                buffer.putShort((short) 0);
+            } else {
+                int changedIndex = changedIndices.get(changedPosition++);
+                buffer.put(balanceList.getIdentifier(changedIndex));
+                buffer.putLong(balanceList.getBalance(changedIndex));
+                buffer.putShort(balanceList.getBlocksUntilFee(changedIndex));
+            }
+        }
+        buffer.put(listBytes);
+
+        return buffer.array();
+    }
+
+    public static BalanceList decodeDelta(BalanceList base, ByteBuffer buffer) {
+
+        long baseHeight = buffer.getLong();
+        BalanceList result = null;
+        if (baseHeight == base.getBlockHeight()) {
+            Map<ByteBuffer, BalanceListItem> changes = new HashMap<>();
+            int numberOfChanges = buffer.getInt();
+            for (int i = 0; i < numberOfChanges; i++) {
+                byte[] identifier = Message.getByteArray(buffer, FieldByteSize.identifier);
+                changes.put(ByteBuffer.wrap(identifier), new BalanceListItem(identifier, buffer.getLong(),
+                        buffer.getShort()));
+            }
+            BalanceList list = BalanceList.fromByteBuffer(buffer);
+
+            // Accounts without changes take their balances from the base. Removed accounts have balances of zero, so
+            // they are removed when the list is created.
+            long blocksElapsed = list.getBlockHeight() - baseHeight;
+            List<BalanceListItem> items = new ArrayList<>(base.getNumberOfItems() + changes.size());
+            for (int i = 0; i < base.getNumberOfItems(); i++) {
+                byte[] identifier = base.getIdentifier(i);
+                if (!changes.containsKey(ByteBuffer.wrap(identifier))) {
+                    items.add(new BalanceListItem(identifier, base.getBalance(i),
+                            expectedBlocksUntilFee(base.getBlocksUntilFee(i), blocksElapsed)));
+                }
+            }
+            items.addAll(changes.values());
+            result = new BalanceList(list.getBlockchainVersion(), list.getBlockHeight(), list.getRolloverFees(),
+                    list.getPreviousVerifiers(), items, list.getUnlockThreshold(), list.getUnlockTransferSum(),
+                    list.getPendingCycleTransactions(), list.getRecentlyApprovedCycleTransactions());
+        }
+
+        return result;
+    }
+
+    private static short expectedBlocksUntilFee(short blocksUntilFee, long blocksElapsed) {
+        return (short) (((blocksUntilFee - blocksElapsed) % blocksBetweenFee + blocksBetweenFee) % blocksBetweenFee);
+    }
+
+    private static BalanceList withoutItems(BalanceList balanceList) {
+        return new BalanceList(balanceList.getBlockchainVersion(), balanceList.getBlockHeight(),
+                balanceList.getRolloverFees(), balanceList.getPreviousVerifiers(), Collections.emptyList(),
+                balanceList.getUnlockThreshold(), balanceList.getUnlockTransferSum(),
+                balanceList.getPendingCycleTransactions(), balanceList.getRecentlyApprovedCycleTransactions());
+    }
+
+    public static BalanceList deriveBalanceList(long blockHeight) {
+
+        // The nearest checkpoint in the same consolidated file is used if it is available. If the checkpoint does not
+        // match its block, the derivation is repeated from the balance list stored in the file.
+        long startTimestamp = System.nanoTime();
+        long fileStartHeight = blockHeight - blockHeight % BlockManager.blocksPerFile;
+        BalanceList checkpoint = null;
+        if (interval > 0L) {
+            long checkpointHeight = blockHeight - blockHeight % interval;
+            if (checkpointHeight >= fileStartHeight) {
+                checkpoint = checkpointForHeight(checkpointHeight);
+            }
+        }
+
+        File file = BlockManager.consolidatedFileForBlockHeight(blockHeight);
+        BalanceList balanceList = deriveBalanceList(file, blockHeight, checkpoint);
+        if (balanceList == null && checkpoint != null) {
+            LogUtil.println("balance-list checkpoint for height " + checkpoint.getBlockHeight() + " does not match " +
+                    "its block; deriving from the consolidated file");
+            balanceList = deriveBalanceList(file, blockHeight, null);
+        }
+        lookupTime.recordSince(startTimestamp);
+
+        return balanceList;
+    }
+
+    public static BalanceList deriveBalanceList(File file, long blockHeight, BalanceList checkpoint) {
+
+        // This follows the file format read by BlockManager.loadBalanceListFromFile(). Blocks below the checkpoint are
+        // parsed to advance through the file, but their balance lists are not derived.
+        BalanceList result = null;
+        if (file.exists()) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file.getAbsolutePath())));
+                int numberOfBlocks = buffer.getShort();
+                Block previousBlock = null;
+                BalanceList balanceList = null;
+                boolean foundBlock = false;
+                for (int i = 0; i < numberOfBlocks && !foundBlock; i++) {
+                    Block block = Block.fromByteBuffer(buffer, false);
+                    long height = block.getBlockHeight();
+                    if (previousBlock == null || previousBlock.getBlockHeight() != height - 1L) {
+                        balanceList = BalanceList.fromByteBuffer(buffer);
+                    } else if (checkpoint != null && height == checkpoint.getBlockHeight()) {
+                        balanceList = checkpoint;
+                        if (!ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+                            foundBlock = true;
+                            balanceList = null;
+                        }
+                        checkpointsUsed.increment();
+                    } else if (checkpoint != null && height < checkpoint.getBlockHeight()) {
+                        balanceList = null;
+                    } else if (balanceList != null) {
+                        balanceList = Block.balanceListForNextBlock(previousBlock, balanceList,
+                                block.getTransactions(), block.getVerifierIdentifier(), block.getBlockchainVersion());
+                        blocksRolledForward.increment();
+                    }
+
+                    if (height == blockHeight) {
+                        foundBlock = true;
+                        if (balanceList != null && ByteUtil.arraysAreEqual(balanceList.getHash(),
+                                block.getBalanceListHash())) {
+                            result = balanceList;
+                        }
+                    }
+
+                    previousBlock = block;
+                }
+            } catch (Exception ignored) { }
+        }
+
+        return result;
+    }
+
+    private static File fileForHeight(long blockHeight, String extension) {
+        return new File(checkpointDirectory, String.format("b_%09d", blockHeight) + extension);
+    }
+
+    private static long heightForFile(File file) {
+
+        long height = -1L;
+        String name = file.getName();
+        if (name.startsWith("b_") && (name.endsWith(fullExtension) || name.endsWith(deltaExtension))) {
+            try {
+                height = Long.parseLong(name.substring(2, name.indexOf('.')));
+            } catch (Exception ignored) { }
+        }
+
+        return height;
+    }
+}
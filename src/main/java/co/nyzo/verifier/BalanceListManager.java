@@ -123,8 +123,8 @@ public class BalanceListManager {
             frozenEdgeBalanceMap = BalanceManager.makeBalanceMap(frozenEdgeList);
 
             Set<ByteBuffer> accountsInSystem = ConcurrentHashMap.newKeySet();
-            for (BalanceListItem item : frozenEdgeList.getItems()) {
-                accountsInSystem.add(ByteBuffer.wrap(item.getIdentifier()));
+            for (int i = 0; i < frozenEdgeList.getNumberOfItems(); i++) {
+                accountsInSystem.add(ByteBuffer.wrap(frozenEdgeList.getIdentifier(i)));
             }
 
             BalanceListManager.accountsInSystem = accountsInSystem;
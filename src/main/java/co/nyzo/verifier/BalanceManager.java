@@ -164,8 +164,8 @@ public class BalanceManager {
 
         Map<ByteBuffer, Long> balanceMap = new ConcurrentHashMap<>();
         if (balanceList != null) {
-            for (BalanceListItem item : balanceList.getItems()) {
-                balanceMap.put(ByteBuffer.wrap(item.getIdentifier()), item.getBalance());
+            for (int i = 0; i < balanceList.getNumberOfItems(); i++) {
+                balanceMap.put(ByteBuffer.wrap(balanceList.getIdentifier(i)), balanceList.getBalance(i));
             }
         }
 
@@ -1,55 +1,53 @@
 package co.nyzo.verifier;
 
+import co.nyzo.verifier.util.ThreadUtil;
+
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
 
 public class BlacklistManager {
 
+    // Blacklisted addresses are stored in the IP reputation table, which expires them and allows them to be checked
+    // without allocation.
     private static final long blacklistDuration = 1000L * 60L * 10L;  // ten minutes
-    private static final Map<ByteBuffer, Long> blacklistedAddresses = new HashMap<>();
 
     public static void addToBlacklist(byte[] ipAddress) {
 
-        if (BlockManager.completedInitialization() && BlockManager.isCycleComplete() &&
-                !BlockManager.inGenesisCycle()) {
+        if (blacklistingEnabled()) {
+            IpReputationTable.blacklist(ipAddress, blacklistDuration);
+        }
+    }
 
-            ByteBuffer addressBuffer = ByteBuffer.wrap(ipAddress);
-            if (!blacklistedAddresses.containsKey(addressBuffer)) {
-                blacklistedAddresses.put(addressBuffer, System.currentTimeMillis());
-            }
+    public static void addToBlacklist(int ipAddress) {
+
+        if (blacklistingEnabled()) {
+            IpReputationTable.blacklist(ipAddress, blacklistDuration);
         }
     }
 
-    public static boolean inBlacklist(ByteBuffer ipAddress) {
-        long timestamp = blacklistedAddresses.getOrDefault(ipAddress, 0L);
-        return System.currentTimeMillis() < timestamp + blacklistDuration;
+    private static boolean blacklistingEnabled() {
+        return BlockManager.completedInitialization() && BlockManager.isCycleComplete() &&
+                !BlockManager.inGenesisCycle();
+    }
+
+    public static boolean inBlacklist(int ipAddress) {
+        return IpReputationTable.isBlacklisted(ipAddress);
     }
 
     public static boolean inBlacklist(byte[] ipAddress) {
-        return inBlacklist(ByteBuffer.wrap(ipAddress));
+        return IpReputationTable.isBlacklisted(ipAddress);
     }
 
     public static int getBlacklistSize() {
-        return blacklistedAddresses.size();
+        return IpReputationTable.getNumberOfBlacklistedAddresses();
     }
 
     public static void performMaintenance() {
 
-        // Remove addresses of any nodes in the current cycle.
+        // Remove addresses of any nodes in the current cycle. Expired addresses are removed by the table.
         for (Node node : NodeManager.getMesh()) {
             if (BlockManager.verifierInOrNearCurrentCycle(ByteBuffer.wrap(node.getIdentifier()))) {
-                ByteBuffer ipAddress = ByteBuffer.wrap(node.getIpAddress());
-                blacklistedAddresses.remove(ipAddress);
-            }
-        }
-
-        // Remove addresses that have expired.
-        for (ByteBuffer address : new HashSet<>(blacklistedAddresses.keySet())) {
-            if (System.currentTimeMillis() - blacklistedAddresses.getOrDefault(address, 0L) > blacklistDuration) {
-                blacklistedAddresses.remove(address);
+                IpReputationTable.removeFromBlacklist(node.getIpAddress());
             }
         }
     }
@@ -74,7 +72,7 @@ public class BlacklistManager {
 
         BufferedReader outputReader = new BufferedReader(new InputStreamReader(inputStream));
 
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -86,6 +84,6 @@ public class BlacklistManager {
                     e.printStackTrace();
                 }
             }
-        }).start();
+        }, "BlacklistManager-processOutput");
     }
 }
@@ -1,6 +1,8 @@
 package co.nyzo.verifier;
 
 import co.nyzo.verifier.client.ConsoleColor;
+import co.nyzo.verifier.metrics.LatencyHistogram;
+import co.nyzo.verifier.metrics.MetricsRegistry;
 import co.nyzo.verifier.util.*;
 
 import java.io.RandomAccessFile;
@@ -31,6 +33,9 @@ public class Block implements MessageObject {
     private static final long approvedCycleTransactionRetentionInterval = 10_000L;
     private static final long maximumCycleTransactionSumPerInterval = 100_000L * Transaction.micronyzoMultiplierRatio;
 
+    private static final LatencyHistogram balanceListComputationTime =
+            MetricsRegistry.histogram("nyzo_balance_list_computation_seconds");
+
     // This is used to test the sentinel by applying a timestamp offset to blocks produced by this verifier.
     private static long blockDelayHeight = -1L;
 
@@ -547,6 +552,7 @@ public class Block implements MessageObject {
                                                       List<Transaction> transactions, byte[] verifierIdentifier,
                                                       int blockchainVersion) {
 
+        long startTimestamp = System.nanoTime();
         BalanceList result = null;
         try {
             // Only continue if the necessary data is available. For all blocks other than the Genesis block, the
@@ -727,6 +733,7 @@ public class Block implements MessageObject {
         } catch (Exception e) {
             System.out.println(PrintUtil.printException(e));
         }
+        balanceListComputationTime.recordSince(startTimestamp);
 
         return result;
     }
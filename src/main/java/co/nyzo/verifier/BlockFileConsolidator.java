@@ -1,11 +1,17 @@
 package co.nyzo.verifier;
 
-import co.nyzo.verifier.util.LogUtil;
-import co.nyzo.verifier.util.PreferencesUtil;
-import co.nyzo.verifier.util.UpdateUtil;
-
-import java.io.File;
+import co.nyzo.verifier.metrics.MetricsCounter;
+import co.nyzo.verifier.metrics.MetricsRegistry;
+import co.nyzo.verifier.util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BlockFileConsolidator {
 
@@ -19,6 +25,23 @@ public class BlockFileConsolidator {
     private static final String runOptionValueDisable = "disable";
     private static String runOption = PreferencesUtil.get(runOptionKey).toLowerCase();
 
+    // File indexes are consolidated in parallel. The number of index threads limits the number of files read and
+    // written at once. Balance lists are hashed on a separate pool sized to the processors.
+    private static final int numberOfIndexThreads = Math.max(1,
+            PreferencesUtil.getInt("block_file_consolidator_threads", 4));
+    private static final ExecutorService indexPool = createPool("BlockFileConsolidator-index-",
+            numberOfIndexThreads);
+    private static final ExecutorService verificationPool = createPool("BlockFileConsolidator-verification-",
+            Runtime.getRuntime().availableProcessors());
+    private static final MetricsCounter filesConsolidated = MetricsRegistry.counter("nyzo_block_files_consolidated");
+
+    private static final Comparator<FileEntry> entryComparator = new Comparator<FileEntry>() {
+        @Override
+        public int compare(FileEntry entry1, FileEntry entry2) {
+            return Long.compare(entry1.height, entry2.height);
+        }
+    };
+
     public static void main(String[] args) {
         // If a command-line argument is specified, it overrides the run option value from the preferences file. This
         // allows behavior such as disabling of the consolidator for the verifier in the preferences file, then running
@@ -31,22 +54,11 @@ public class BlockFileConsolidator {
 
     public static void start() {
 
-        // Ensure the value is explicitly set to one of the enumerated values. The default is "delete" for the verifier
-        // and the sentinel. This conserves disk space, which reduces maintenance and improves robustness of these run
-        // modes. The default is "consolidate" for the client. The client never participates in blockchain creation,
-        // which weighs its emphasis more toward utility.
-        if (!runOption.equals(runOptionValueConsolidate) && !runOption.equals(runOptionValueDeleteOnly) &&
-                !runOption.equals(runOptionValueDisable)) {
-            if (RunMode.getRunMode() == RunMode.Client) {
-                runOption = runOptionValueConsolidate;
-            } else {
-                runOption = runOptionValueDeleteOnly;
-            }
-        }
+        runOption = effectiveRunOption();
         LogUtil.println("BlockFileConsolidator setting: " + runOptionKey + "=" + runOption);
 
         if (!runOption.equals(runOptionValueDisable)) {
-            new Thread(new Runnable() {
+            ThreadUtil.startLongRunning(new Runnable() {
                 @Override
                 public void run() {
 
@@ -64,8 +76,31 @@ public class BlockFileConsolidator {
                         } catch (Exception ignored) { }
                     }
                 }
-            }, "BlockFileConsolidator").start();
+            }, "BlockFileConsolidator");
+        }
+    }
+
+    private static String effectiveRunOption() {
+
+        // Ensure the value is explicitly set to one of the enumerated values. The default is "delete" for the verifier
+        // and the sentinel. This conserves disk space, which reduces maintenance and improves robustness of these run
+        // modes. The default is "consolidate" for the client. The client never participates in blockchain creation,
+        // which weighs its emphasis more toward utility.
+        String option = runOption;
+        if (!option.equals(runOptionValueConsolidate) && !option.equals(runOptionValueDeleteOnly) &&
+                !option.equals(runOptionValueDisable)) {
+            if (RunMode.getRunMode() == RunMode.Client) {
+                option = runOptionValueConsolidate;
+            } else {
+                option = runOptionValueDeleteOnly;
+            }
         }
+
+        return option;
+    }
+
+    public static boolean keepsConsolidatedFiles() {
+        return effectiveRunOption().equals(runOptionValueConsolidate);
     }
 
     private static void consolidateFiles() {
@@ -83,8 +118,8 @@ public class BlockFileConsolidator {
         }
         long currentFileIndex = consolidationThreshold / BlockManager.blocksPerFile;
 
-        // Build a map of all files that need to be consolidated.
-        Map<Long, List<File>> fileMap = new HashMap<>();
+        // Build a map of all files that need to be consolidated. The files for each index are sorted on height.
+        Map<Long, List<File>> fileMap = new TreeMap<>();
         if (individualFiles != null) {
             for (File file : individualFiles) {
                 long blockHeight = blockHeightForFile(file);
@@ -101,71 +136,273 @@ public class BlockFileConsolidator {
                 }
             }
         }
+        for (List<File> files : fileMap.values()) {
+            files.sort(new Comparator<File>() {
+                @Override
+                public int compare(File file1, File file2) {
+                    return Long.compare(blockHeightForFile(file1), blockHeightForFile(file2));
+                }
+            });
+        }
 
-        // Process each file index.
-        for (Long fileIndex : fileMap.keySet()) {
-            // If the delete-only option is set, skip consolidation.
-            if (!runOption.equals(runOptionValueDeleteOnly)) {
-                consolidateFiles(fileIndex, fileMap.get(fileIndex));
-            }
+        // Process the file indexes in parallel. Each index is read, merged, verified, written, and deleted by one task,
+        // so the number of threads bounds the number of files being read or written at once.
+        long startTimestamp = System.currentTimeMillis();
+        AtomicInteger numberOfFilesProcessed = new AtomicInteger(0);
+        List<Future<?>> futures = new ArrayList<>();
+        for (Map.Entry<Long, List<File>> entry : fileMap.entrySet()) {
+            futures.add(indexPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // If the delete-only option is set, skip consolidation. If consolidation fails, the individual
+                    // files are kept so that they can be consolidated on a later pass.
+                    long fileIndex = entry.getKey();
+                    List<File> files = entry.getValue();
+                    try {
+                        if (runOption.equals(runOptionValueDeleteOnly) || consolidateFiles(fileIndex, files)) {
+                            deleteFiles(files);
+                            numberOfFilesProcessed.addAndGet(files.size());
+                            filesConsolidated.add(files.size());
+                        }
+                    } catch (Exception e) {
+                        LogUtil.println("exception consolidating files for index " + fileIndex + ": " +
+                                PrintUtil.printException(e));
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception ignored) { }
+        }
 
-            deleteFiles(fileMap.get(fileIndex));
+        if (!fileMap.isEmpty()) {
+            double elapsedSeconds = Math.max(0.001, (System.currentTimeMillis() - startTimestamp) / 1000.0);
+            LogUtil.println("BlockFileConsolidator processed %d files for %d indexes in %.1f seconds (%.1f files/s)",
+                    numberOfFilesProcessed.get(), fileMap.size(), elapsedSeconds,
+                    numberOfFilesProcessed.get() / elapsedSeconds);
         }
     }
 
-    private static void consolidateFiles(long fileIndex, List<File> individualFiles) {
+    private static boolean consolidateFiles(long fileIndex, List<File> individualFiles) throws Exception {
 
-        // Get the blocks from the existing consolidated file for this index.
         long startBlockHeight = fileIndex * BlockManager.blocksPerFile;
-        File consolidatedFile = BlockManager.consolidatedFileForBlockHeight(startBlockHeight);
-        List<Block> blocks = BlockManager.loadBlocksInFile(consolidatedFile, startBlockHeight, startBlockHeight +
-                BlockManager.blocksPerFile - 1);
+        int[] offsets = consolidateFiles(fileIndex, individualFiles,
+                BlockManager.consolidatedFileForBlockHeight(startBlockHeight),
+                HistoricalBlockManager.offsetFileForHeight(startBlockHeight));
+        if (offsets != null) {
+            HistoricalBlockManager.writeOffsetFile(startBlockHeight, offsets);
+        }
+
+        return offsets != null;
+    }
 
-        // Add the blocks from the individual files.
+    private static int[] consolidateFiles(long fileIndex, List<File> individualFiles, File consolidatedFile,
+                                          File offsetFile) throws Exception {
+
+        // Read the entries of the existing consolidated file for this index and each individual file. Only the block
+        // bytes are kept. The locations of the balance lists are recorded, and only the balance lists that are needed
+        // in the consolidated file are read again later, so the full balance lists of individual files are not held in
+        // memory.
+        long startBlockHeight = fileIndex * BlockManager.blocksPerFile;
+        long endBlockHeight = startBlockHeight + BlockManager.blocksPerFile - 1;
+        List<List<FileEntry>> inputs = new ArrayList<>();
+        inputs.add(readEntries(consolidatedFile, startBlockHeight, endBlockHeight));
         for (File file : individualFiles) {
-            blocks.addAll(BlockManager.loadBlocksInFile(file, 0, Long.MAX_VALUE));
+            inputs.add(readEntries(file, 0L, Long.MAX_VALUE));
         }
 
-        // Sort the blocks on block height ascending.
-        Collections.sort(blocks, new Comparator<Block>() {
-            @Override
-            public int compare(Block block1, Block block2) {
-                return ((Long) block1.getBlockHeight()).compareTo(block2.getBlockHeight());
+        // Merge the inputs, which are each sorted on height. For a height present in more than one input, the entry
+        // of the earliest input is kept, so the existing consolidated file takes precedence.
+        List<FileEntry> entries = mergeEntries(inputs);
+
+        // A balance list is needed for the first block and the first block after each gap. The balance lists are read
+        // and verified against the balance-list hashes of their blocks in parallel. If a balance list is not in the
+        // files or does not match, it is loaded the way it was before.
+        List<Future<byte[]>> balanceListFutures = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            FileEntry entry = entries.get(i);
+            if (i == 0 || entry.height != entries.get(i - 1).height + 1L) {
+                balanceListFutures.add(verificationPool.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return verifiedBalanceList(entry);
+                    }
+                }));
+            } else {
+                balanceListFutures.add(null);
             }
-        });
+        }
+        List<byte[]> balanceLists = new ArrayList<>();
+        boolean balanceListsAvailable = true;
+        for (int i = 0; i < entries.size(); i++) {
+            byte[] balanceList = balanceListFutures.get(i) == null ? null : balanceListFutures.get(i).get();
+            if (balanceListFutures.get(i) != null && balanceList == null) {
+                LogUtil.println("unable to get a verified balance list at height " + entries.get(i).height +
+                        " in block consolidation process on " + Verifier.getNickname());
+                balanceListsAvailable = false;
+            }
+            balanceLists.add(balanceList);
+        }
 
-        // Dedupe blocks.
-        for (int i = blocks.size() - 1; i > 0; i--) {
-            if (blocks.get(i).getBlockHeight() == blocks.get(i - 1).getBlockHeight()) {
-                blocks.remove(i);
+        // Write the consolidated file. The offsets of the blocks are recorded as they are written, so the offset file
+        // is written without reading the consolidated file again. The stale offset file is deleted before the
+        // consolidated file is replaced. The offsets are returned, or null if the file was not written.
+        int[] offsets = null;
+        if (balanceListsAvailable && !entries.isEmpty()) {
+            offsetFile.delete();
+            consolidatedFile.getParentFile().mkdirs();  // ensure the parent directory exists
+            offsets = HistoricalBlockManager.emptyOffsets();
+            File temporaryFile = new File(consolidatedFile.getAbsolutePath() + "_temp");
+            try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporaryFile), 1 << 20))) {
+                outputStream.writeShort((short) entries.size());  // number of blocks
+                for (int i = 0; i < entries.size(); i++) {
+                    FileEntry entry = entries.get(i);
+                    int offsetIndex = (int) (entry.height - startBlockHeight);
+                    offsets[offsetIndex * 2] = outputStream.size();
+                    outputStream.write(entry.blockBytes);
+                    offsets[offsetIndex * 2 + 1] = outputStream.size();
+                    if (balanceLists.get(i) != null) {
+                        outputStream.write(balanceLists.get(i));
+                    }
+                }
             }
+            Files.move(Paths.get(temporaryFile.getAbsolutePath()), Paths.get(consolidatedFile.getAbsolutePath()),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            LogUtil.println("consolidated " + individualFiles.size() + " files to a single file for start height " +
+                    startBlockHeight + " on " + Verifier.getNickname() + "; used " + (balanceLists.size() -
+                    Collections.frequency(balanceLists, null)) + " balance lists");
+        }
+
+        return offsets;
+    }
+
+    private static class FileEntry {
+
+        private final long height;
+        private final byte[] blockBytes;
+        private final byte[] balanceListHash;
+        private final File file;
+        private final int balanceListOffset;  // -1 if the balance list is not present after the block
+        private final int balanceListLength;
+
+        private FileEntry(long height, byte[] blockBytes, byte[] balanceListHash, File file, int balanceListOffset,
+                          int balanceListLength) {
+            this.height = height;
+            this.blockBytes = blockBytes;
+            this.balanceListHash = balanceListHash;
+            this.file = file;
+            this.balanceListOffset = balanceListOffset;
+            this.balanceListLength = balanceListLength;
         }
+    }
+
+    private static List<FileEntry> readEntries(File file, long minimumHeight, long maximumHeight) {
+
+        // This follows the file format read by BlockManager.loadBlocksInFile(). The file is read without holding the
+        // BlockManager lock, so several files can be read at once.
+        List<FileEntry> entries = new ArrayList<>();
+        if (file.exists()) {
+            try {
+                byte[] fileBytes = Files.readAllBytes(Paths.get(file.getAbsolutePath()));
+                ByteBuffer buffer = ByteBuffer.wrap(fileBytes);
+                int numberOfBlocks = buffer.getShort();
+                Block previousBlock = null;
+                for (int i = 0; i < numberOfBlocks; i++) {
+                    int blockOffset = buffer.position();
+                    Block block = Block.fromByteBuffer(buffer, false);
+                    int balanceListOffset = buffer.position();
+                    if (previousBlock == null || (previousBlock.getBlockHeight() != block.getBlockHeight() - 1)) {
+                        BalanceList.fromByteBuffer(buffer);
+                    }
+                    int balanceListLength = buffer.position() - balanceListOffset;
 
-        // Get the balance lists.
-        List<BalanceList> balanceLists = new ArrayList<>();
-        for (int i = 0; i < blocks.size(); i++) {
-            if (i == 0 || blocks.get(i).getBlockHeight() != (blocks.get(i - 1).getBlockHeight() + 1)) {
-                BalanceList balanceList = BlockManager.loadBalanceListFromFileForHeight(blocks.get(i).getBlockHeight());
-                if (balanceList == null) {
-                    LogUtil.println("unexpected null balance list at height " + blocks.get(i).getBlockHeight() +
-                            " in block consolidation process on " + Verifier.getNickname());
-                } else {
-                    balanceLists.add(balanceList);
+                    if (block.getBlockHeight() >= minimumHeight && block.getBlockHeight() <= maximumHeight) {
+                        entries.add(new FileEntry(block.getBlockHeight(), Arrays.copyOfRange(fileBytes, blockOffset,
+                                balanceListOffset), block.getBalanceListHash(), file,
+                                balanceListLength > 0 ? balanceListOffset : -1, balanceListLength));
+                    }
+                    previousBlock = block;
                 }
+            } catch (Exception e) {
+                LogUtil.println("unable to read block file " + file + ": " + PrintUtil.printException(e));
+            }
+        }
+
+        // The entries of a file are expected to be in order. If they are not, they are sorted.
+        for (int i = 1; i < entries.size(); i++) {
+            if (entries.get(i).height < entries.get(i - 1).height) {
+                entries.sort(entryComparator);
+                break;
+            }
+        }
+
+        return entries;
+    }
+
+    private static List<FileEntry> mergeEntries(List<List<FileEntry>> inputs) {
+
+        // This is a k-way merge. Each element of the queue is the index of an input and a position in that input.
+        PriorityQueue<int[]> queue = new PriorityQueue<>(Math.max(1, inputs.size()), new Comparator<int[]>() {
+            @Override
+            public int compare(int[] position1, int[] position2) {
+                int result = Long.compare(inputs.get(position1[0]).get(position1[1]).height,
+                        inputs.get(position2[0]).get(position2[1]).height);
+                return result == 0 ? Integer.compare(position1[0], position2[0]) : result;
+            }
+        });
+        for (int i = 0; i < inputs.size(); i++) {
+            if (!inputs.get(i).isEmpty()) {
+                queue.add(new int[] { i, 0 });
             }
         }
 
-        // Delete the offset file. If needed, this file will be rebuilt by HistoricalBlockManager to reflect the
-        // contents of the new consolidated file.
-        HistoricalBlockManager.offsetFileForHeight(fileIndex * BlockManager.blocksPerFile).delete();
+        List<FileEntry> merged = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            int[] position = queue.poll();
+            List<FileEntry> input = inputs.get(position[0]);
+            FileEntry entry = input.get(position[1]);
+            if (merged.isEmpty() || merged.get(merged.size() - 1).height != entry.height) {
+                merged.add(entry);
+            }
+            if (++position[1] < input.size()) {
+                queue.add(position);
+            }
+        }
+
+        return merged;
+    }
+
+    private static byte[] verifiedBalanceList(FileEntry entry) {
+
+        byte[] balanceList = null;
+        if (entry.balanceListOffset >= 0) {
+            try (RandomAccessFile file = new RandomAccessFile(entry.file, "r")) {
+                byte[] bytes = new byte[entry.balanceListLength];
+                file.seek(entry.balanceListOffset);
+                file.readFully(bytes);
+                if (ByteUtil.arraysAreEqual(HashUtil.doubleSHA256Concurrent(bytes, 0, bytes.length),
+                        entry.balanceListHash)) {
+                    balanceList = bytes;
+                }
+            } catch (Exception ignored) { }
+        }
 
-        // Write the combined file.
-        consolidatedFile.getParentFile().mkdirs();  // ensure the parent directory exists
-        BlockManager.writeBlocksToFile(blocks, balanceLists, consolidatedFile);
+        if (balanceList == null) {
+            BalanceList loadedList = BlockManager.loadBalanceListFromFileForHeight(entry.height);
+            if (loadedList != null) {
+                byte[] bytes = loadedList.getBytes();
+                if (ByteUtil.arraysAreEqual(HashUtil.doubleSHA256Concurrent(bytes, 0, bytes.length),
+                        entry.balanceListHash)) {
+                    balanceList = bytes;
+                }
+            }
+        }
 
-        LogUtil.println("consolidated " + individualFiles.size() + " files to a single file for start height " +
-                startBlockHeight + " on " + Verifier.getNickname() + "; used " + balanceLists.size() +
-                " balance lists");
+        return balanceList;
     }
 
     private static void deleteFiles(List<File> individualFiles) {
@@ -180,6 +417,19 @@ public class BlockFileConsolidator {
         System.out.println("deleted " + individualFiles.size() + " block files in BlockFileConsolidator");
     }
 
+    private static ExecutorService createPool(String namePrefix, int numberOfThreads) {
+
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        return Executors.newFixedThreadPool(numberOfThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
     private static long blockHeightForFile(File file) {
 
         long height = -1;
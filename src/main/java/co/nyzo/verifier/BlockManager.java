@@ -1,6 +1,8 @@
 package co.nyzo.verifier;
 
 import co.nyzo.verifier.client.ConsoleColor;
+import co.nyzo.verifier.metrics.LatencyHistogram;
+import co.nyzo.verifier.metrics.MetricsRegistry;
 import co.nyzo.verifier.util.*;
 
 import java.io.File;
@@ -34,6 +36,8 @@ public class BlockManager {
     private static final AtomicBoolean completedInitialization = new AtomicBoolean(false);
     private static boolean cycleComplete = false;
 
+    private static final LatencyHistogram blockFreezeTime = MetricsRegistry.histogram("nyzo_block_freeze_seconds");
+
     private static final String lastVerifierJoinHeightKey = "last_verifier_join_height";
     private static long lastVerifierJoinHeight = PersistentData.getLong(lastVerifierJoinHeightKey, -1L);
 
@@ -240,12 +244,14 @@ public class BlockManager {
         // Only continue if the block's previous hash is correct and the balance list is available.
         if (ByteUtil.arraysAreEqual(previousBlockHash, block.getPreviousBlockHash()) && balanceList != null) {
 
+            long startTimestamp = System.nanoTime();
             try {
                 setFrozenEdge(block, cycleVerifiers);
                 BalanceListManager.updateFrozenEdge(balanceList);
 
                 writeBlocksToFile(Collections.singletonList(block), Collections.singletonList(balanceList),
                         individualFileForBlockHeight(block.getBlockHeight()));
+                BalanceListCheckpointManager.blockFrozen(balanceList);
 
                 if (block.getBlockHeight() == 0L) {
 
@@ -257,6 +263,7 @@ public class BlockManager {
                 reportOnly.printStackTrace();
                 System.err.println("exception writing block to file " + reportOnly.getMessage());
             }
+            blockFreezeTime.recordSince(startTimestamp);
         }
     }
 
@@ -349,11 +356,11 @@ public class BlockManager {
 
     public static BalanceList loadBalanceListFromFileForHeight(long blockHeight) {
 
+        // If the balance list is not in an individual file, derive it in memory from the nearest checkpoint in the
+        // consolidated file.
         BalanceList balanceList = loadBalanceListFromFile(individualFileForBlockHeight(blockHeight), blockHeight);
         if (balanceList == null) {
-            extractConsolidatedFile(consolidatedFileForBlockHeight(blockHeight));
-
-            balanceList = loadBalanceListFromFile(individualFileForBlockHeight(blockHeight), blockHeight);
+            balanceList = BalanceListCheckpointManager.deriveBalanceList(blockHeight);
         }
 
         return balanceList;
@@ -1,5 +1,6 @@
 package co.nyzo.verifier;
 
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -46,6 +47,26 @@ public class BlockManagerMap {
         return blockMap.get(blockHeight);
     }
 
+    public static long highestMissingHeight(long minimumHeight, long maximumHeight) {
+
+        // This marks the heights present in the map in a single pass over the keys, and then finds the highest
+        // unmarked height at or below the maximum. If every height in the range is present, the height below the
+        // range is returned.
+        long highestMissingHeight = minimumHeight - 1L;
+        if (maximumHeight >= minimumHeight) {
+            BitSet presentHeights = new BitSet((int) (maximumHeight - minimumHeight + 1L));
+            for (Long height : blockMap.keySet()) {
+                if (height >= minimumHeight && height <= maximumHeight) {
+                    presentHeights.set((int) (height - minimumHeight));
+                }
+            }
+            highestMissingHeight = minimumHeight +
+                    presentHeights.previousClearBit((int) (maximumHeight - minimumHeight));
+        }
+
+        return highestMissingHeight;
+    }
+
     // TODO: remove this; it is for debugging only
     public static synchronized String mapInformation() {
 
@@ -1,6 +1,7 @@
 package co.nyzo.verifier;
 
 import co.nyzo.verifier.messages.BlockRequest;
+import co.nyzo.verifier.messages.BlockResponse;
 import co.nyzo.verifier.messages.BlockVote;
 import co.nyzo.verifier.util.ConsensusTracker;
 import co.nyzo.verifier.util.LogUtil;
@@ -261,10 +262,17 @@ public class BlockVoteManager {
                     frozenBlockRequestHeight = maximumHeightToRequest + 1L;
                 }
 
-                // Send the request.
-                Message message = new Message(MessageType.BlockRequest11, new BlockRequest(minimumHeightToRequest,
-                        maximumHeightToRequest, false));
-                Message.fetchFromRandomNode(message, null);
+                // Send the request through the missing-data coordinator. The blocks in the response are registered as
+                // unfrozen blocks when the response is parsed, so the handler only reports whether any were returned.
+                MissingDataRequestManager.request(MessageType.BlockRequest11, minimumHeightToRequest, null, null,
+                        new BlockRequest(minimumHeightToRequest, maximumHeightToRequest, false),
+                        new RequestCoordinator.ResponseHandler() {
+                            @Override
+                            public boolean handleResponse(Message message) {
+                                return message != null && message.getContent() instanceof BlockResponse &&
+                                        !((BlockResponse) message.getContent()).getBlocks().isEmpty();
+                            }
+                        });
             }
         }
     }
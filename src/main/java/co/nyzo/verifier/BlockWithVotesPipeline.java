@@ -0,0 +1,336 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.messages.BlockVote;
+import co.nyzo.verifier.messages.BlockWithVotesCompactRequest;
+import co.nyzo.verifier.messages.BlockWithVotesCompactResponse;
+import co.nyzo.verifier.messages.BlockWithVotesRequest;
+import co.nyzo.verifier.messages.BlockWithVotesResponse;
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BlockWithVotesPipeline {
+
+    // This class is the catch-up counterpart of the single block-with-votes request in the verifier and sentinel.
+    // When a node is far behind the open edge, several consecutive heights are requested at once (each request goes
+    // to a randomly selected node), the block signature and all vote signatures of each response are verified in
+    // parallel, and verified blocks are handed back to the owner in height order to be frozen. Consecutive heights are
+    // requested together with the compact request. If a peer does not answer a compact request, the heights are
+    // requested individually with the standard request, and after several such failures in a row, compact requests
+    // are suspended for a while, as most of the mesh likely does not support them yet.
+
+    public interface BlockProcessor {
+        boolean processBlock(Block block, List<Message> voteMessages);
+    }
+
+    private static final int pipelineDepth = PreferencesUtil.getInt("block_with_votes_pipeline_depth", 8);
+    private static final long pipelineThreshold = PreferencesUtil.getLong("block_with_votes_pipeline_threshold", 10L);
+    private static final long requestTimeout = 5000L;
+    private static final int compactBatchSize = Math.min(BlockWithVotesCompactRequest.maximumNumberOfHeights,
+            PreferencesUtil.getInt("block_with_votes_compact_batch_size", 4));
+    private static final int compactFailureThreshold = 3;
+    private static final long compactSuspensionInterval = 600000L;  // 10 minutes
+
+    private static final ExecutorService verificationService =
+            Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(0);
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BlockWithVotesPipeline-verification-" +
+                            threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final Map<Long, Long> outstandingRequests = new ConcurrentHashMap<>();
+    private static final Map<Long, VerifiedBlock> verifiedBlocks = new ConcurrentHashMap<>();
+    private static final AtomicInteger consecutiveCompactFailures = new AtomicInteger(0);
+    private static volatile long compactSuspensionEndTimestamp = 0L;
+
+    // The catch-up statistics are updated by the verifier thread and read by the status response on listener threads.
+    private static volatile boolean catchUpActive = false;
+    private static volatile long catchUpStartTimestamp = 0L;
+    private static volatile long catchUpEndTimestamp = 0L;
+    private static final AtomicLong catchUpBlocksFrozen = new AtomicLong(0L);
+
+    public static boolean isActive() {
+
+        // The pipeline is only used when the frozen edge is well behind the open edge. Close to the open edge, the
+        // standard one-height-at-a-time request is sufficient and puts less load on the mesh.
+        return pipelineDepth > 1 &&
+                BlockManager.openEdgeHeight(false) - BlockManager.getFrozenEdgeHeight() > pipelineThreshold;
+    }
+
+    public static void requestBlocks() {
+
+        long frozenEdgeHeight = BlockManager.getFrozenEdgeHeight();
+        removeStaleEntries(frozenEdgeHeight);
+
+        // Runs of consecutive heights that need to be requested are collected into batches for compact requests.
+        long maximumHeight = Math.min(frozenEdgeHeight + pipelineDepth, BlockManager.openEdgeHeight(false));
+        long currentTimestamp = System.currentTimeMillis();
+        boolean useCompactRequests = compactBatchSize > 1 && currentTimestamp >= compactSuspensionEndTimestamp;
+        long batchStartHeight = -1L;
+        int batchSize = 0;
+        for (long height = frozenEdgeHeight + 1L; height <= maximumHeight + 1L; height++) {
+            Long requestTimestamp = outstandingRequests.get(height);
+            boolean needsRequest = height <= maximumHeight && !verifiedBlocks.containsKey(height) &&
+                    (requestTimestamp == null || requestTimestamp < currentTimestamp - requestTimeout);
+            if (needsRequest) {
+                outstandingRequests.put(height, currentTimestamp);
+                if (!useCompactRequests) {
+                    requestBlock(height);
+                } else {
+                    if (batchSize == 0) {
+                        batchStartHeight = height;
+                    }
+                    batchSize++;
+                }
+            }
+            if (batchSize > 0 && (!needsRequest || batchSize == compactBatchSize)) {
+                requestCompactBatch(batchStartHeight, batchSize, true);
+                batchSize = 0;
+            }
+        }
+
+        if (!catchUpActive) {
+            catchUpActive = true;
+            catchUpStartTimestamp = currentTimestamp;
+            catchUpBlocksFrozen.set(0L);
+            LogUtil.println("started block-with-votes pipeline at height " + (frozenEdgeHeight + 1L) + ", depth=" +
+                    pipelineDepth);
+        }
+        catchUpEndTimestamp = currentTimestamp;
+    }
+
+    private static void requestBlock(long height) {
+
+        LogUtil.println("pipeline requesting block with votes for height " + height);
+        BlockWithVotesRequest request = new BlockWithVotesRequest(height);
+        Message message = new Message(MessageType.BlockWithVotesRequest37, request);
+        Message.fetchFromRandomNode(message, new MessageCallback() {
+            @Override
+            public void responseReceived(Message message) {
+
+                BlockWithVotesResponse response = message == null ? null :
+                        (BlockWithVotesResponse) message.getContent();
+                if (response != null && response.getBlock() != null && response.getBlock().getBlockHeight() == height
+                        && !response.getVotes().isEmpty()) {
+                    verify(response.getBlock(), response.getVotes());
+                } else {
+                    outstandingRequests.remove(height);
+                }
+            }
+        });
+    }
+
+    private static void requestCompactBatch(long startHeight, int numberOfHeights, boolean useCycleIndex) {
+
+        // Without the cycle index, the request carries a hash that matches no cycle, so the responder sends the
+        // identifier table.
+        LogUtil.println("pipeline requesting compact blocks with votes for heights " + startHeight + " to " +
+                (startHeight + numberOfHeights - 1L));
+        byte[] cycleHash = useCycleIndex ? BlockWithVotesCompactResponse.currentCycleHash() :
+                new byte[FieldByteSize.hash];
+        BlockWithVotesCompactRequest request = new BlockWithVotesCompactRequest(startHeight, numberOfHeights,
+                cycleHash);
+        Message message = new Message(MessageType.BlockWithVotesCompactRequest55, request);
+        Message.fetchFromRandomNode(message, new MessageCallback() {
+            @Override
+            public void responseReceived(Message message) {
+
+                if (message != null && message.getContent() instanceof BlockWithVotesCompactResponse) {
+                    // Heights that are missing from the response are released to be requested again.
+                    consecutiveCompactFailures.set(0);
+                    BlockWithVotesCompactResponse response = (BlockWithVotesCompactResponse) message.getContent();
+                    Set<Long> heightsReceived = new HashSet<>();
+                    for (BlockWithVotesResponse entry : response.getEntries()) {
+                        long height = entry.getBlock().getBlockHeight();
+                        if (height >= startHeight && height < startHeight + numberOfHeights &&
+                                !entry.getVotes().isEmpty() && heightsReceived.add(height)) {
+                            verify(entry.getBlock(), entry.getVotes());
+                        }
+                    }
+                    for (long height = startHeight; height < startHeight + numberOfHeights; height++) {
+                        if (!heightsReceived.contains(height)) {
+                            outstandingRequests.remove(height);
+                        }
+                    }
+                } else if (message != null && message.getType() == MessageType.BlockWithVotesCompactResponse56 &&
+                        useCycleIndex) {
+                    // The peer answered, but the response could not be read. This happens when the local cycle changed
+                    // after the request was sent, so the cycle indices in the response cannot be resolved. The batch
+                    // is requested again with the identifier table.
+                    consecutiveCompactFailures.set(0);
+                    requestCompactBatch(startHeight, numberOfHeights, false);
+                } else {
+                    // The heights are requested individually. Only a missing response counts as a failure, as the peer
+                    // might not support compact requests. A response that could not be read does not.
+                    if (message == null && consecutiveCompactFailures.incrementAndGet() >= compactFailureThreshold) {
+                        consecutiveCompactFailures.set(0);
+                        compactSuspensionEndTimestamp = System.currentTimeMillis() + compactSuspensionInterval;
+                        LogUtil.println("suspending compact block-with-votes requests after " +
+                                compactFailureThreshold + " consecutive failures");
+                    }
+                    for (long height = startHeight; height < startHeight + numberOfHeights; height++) {
+                        requestBlock(height);
+                    }
+                }
+            }
+        });
+    }
+
+    private static void verify(Block block, List<BlockVote> votes) {
+
+        // Verification is split into one task for the block signature and one task for each vote. This keeps the
+        // message-queue thread free and spreads the signature checks over all available cores. The last task to
+        // complete publishes the result.
+        Message[] voteMessages = new Message[votes.size()];
+        boolean[] blockSignatureValid = new boolean[1];
+        AtomicInteger remainingTasks = new AtomicInteger(votes.size() + 1);
+
+        verificationService.submit(new Runnable() {
+            @Override
+            public void run() {
+                blockSignatureValid[0] = block.signatureIsValid();
+                if (remainingTasks.decrementAndGet() == 0) {
+                    publish(block, voteMessages, blockSignatureValid[0]);
+                }
+            }
+        });
+
+        for (int i = 0; i < votes.size(); i++) {
+            int index = i;
+            BlockVote vote = votes.get(i);
+            verificationService.submit(new Runnable() {
+                @Override
+                public void run() {
+
+                    // Reconstruct the message in which the vote was originally sent. Only votes with valid signatures
+                    // are retained.
+                    if (ByteUtil.arraysAreEqual(block.getHash(), vote.getHash())) {
+                        Message voteMessage = new Message(vote.getMessageTimestamp(), MessageType.BlockVote19, vote,
+                                vote.getSenderIdentifier(), vote.getMessageSignature(),
+                                new byte[FieldByteSize.ipAddress]);
+                        if (voteMessage.isValid()) {
+                            voteMessages[index] = voteMessage;
+                        }
+                    }
+                    if (remainingTasks.decrementAndGet() == 0) {
+                        publish(block, voteMessages, blockSignatureValid[0]);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void publish(Block block, Message[] voteMessages, boolean blockSignatureValid) {
+
+        long height = block.getBlockHeight();
+        List<Message> validVoteMessages = new ArrayList<>();
+        for (Message voteMessage : voteMessages) {
+            if (voteMessage != null) {
+                validVoteMessages.add(voteMessage);
+            }
+        }
+
+        if (blockSignatureValid && !validVoteMessages.isEmpty() && height > BlockManager.getFrozenEdgeHeight()) {
+            verifiedBlocks.put(height, new VerifiedBlock(block, validVoteMessages));
+        } else {
+            outstandingRequests.remove(height);
+        }
+    }
+
+    public static int freezeReadyBlocks(BlockProcessor processor) {
+
+        // Blocks are processed strictly in height order, starting one past the frozen edge. Processing stops at the
+        // first height that is not yet verified or that the processor is unable to freeze; a failed height is
+        // discarded so that it will be requested again.
+        int numberOfBlocksFrozen = 0;
+        long height = BlockManager.getFrozenEdgeHeight() + 1L;
+        VerifiedBlock verifiedBlock;
+        boolean continueProcessing = true;
+        while (continueProcessing && (verifiedBlock = verifiedBlocks.remove(height)) != null) {
+            outstandingRequests.remove(height);
+            if (processor.processBlock(verifiedBlock.getBlock(), verifiedBlock.getVoteMessages()) &&
+                    BlockManager.getFrozenEdgeHeight() == height) {
+                numberOfBlocksFrozen++;
+                height++;
+            } else {
+                continueProcessing = false;
+            }
+        }
+
+        if (numberOfBlocksFrozen > 0) {
+            catchUpBlocksFrozen.addAndGet(numberOfBlocksFrozen);
+            catchUpEndTimestamp = System.currentTimeMillis();
+            LogUtil.println("pipeline froze " + numberOfBlocksFrozen + " blocks, catch-up throughput: " +
+                    getThroughputDescription());
+        }
+
+        // When the pipeline is no longer needed, report the final throughput and reset for the next catch-up.
+        if (catchUpActive && !isActive()) {
+            LogUtil.println("block-with-votes pipeline finished, catch-up throughput: " + getThroughputDescription());
+            catchUpActive = false;
+        }
+
+        return numberOfBlocksFrozen;
+    }
+
+    private static void removeStaleEntries(long frozenEdgeHeight) {
+
+        for (Long height : new HashSet<>(outstandingRequests.keySet())) {
+            if (height <= frozenEdgeHeight) {
+                outstandingRequests.remove(height);
+            }
+        }
+        for (Long height : new HashSet<>(verifiedBlocks.keySet())) {
+            if (height <= frozenEdgeHeight) {
+                verifiedBlocks.remove(height);
+            }
+        }
+    }
+
+    public static double getThroughput() {
+
+        long interval = catchUpEndTimestamp - catchUpStartTimestamp;
+        return interval <= 0L ? 0.0 : catchUpBlocksFrozen.get() * 1000.0 / interval;
+    }
+
+    public static String getThroughputDescription() {
+
+        return String.format("%d blocks in %.1f s (%.2f blocks/sec)", catchUpBlocksFrozen.get(),
+                Math.max(0L, catchUpEndTimestamp - catchUpStartTimestamp) / 1000.0, getThroughput());
+    }
+
+    private static class VerifiedBlock {
+
+        private final Block block;
+        private final List<Message> voteMessages;
+
+        VerifiedBlock(Block block, List<Message> voteMessages) {
+            this.block = block;
+            this.voteMessages = voteMessages;
+        }
+
+        Block getBlock() {
+            return block;
+        }
+
+        List<Message> getVoteMessages() {
+            return voteMessages;
+        }
+    }
+}
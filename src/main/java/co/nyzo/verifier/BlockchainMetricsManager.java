@@ -1,12 +1,11 @@
 package co.nyzo.verifier;
 
-import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.HeightWindowAccumulator;
+import co.nyzo.verifier.util.PreferencesUtil;
 import co.nyzo.verifier.util.PrintUtil;
 
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class BlockchainMetricsManager {
 
@@ -18,43 +17,205 @@ public class BlockchainMetricsManager {
     // Above baseline, one transaction is allowed per block for each Nyzo in organic transactions, on average, in the
     // previous cycle. This ensures that transaction capacity automatically increases to support additional demand on
     // the system while eliminating the possibility of cheap attacks with many small transactions. To enable this
-    // behavior, the sum of transactions over the previous cycle must be tracked.
-    private static final Map<Long, Long> blockTransactionSumMap = new ConcurrentHashMap<>();
-    private static long cycleTransactionSum = 0L;
-    private static int cycleLength = 1;
+    // behavior, the sum of transactions over the previous cycle must be tracked. The window starts at the height of
+    // the block minus the cycle length of the block, so it follows changes in the cycle length. The maximum span of the
+    // accumulator is far above any cycle length; it only limits the values retained while cycle information is not
+    // available.
+    private static final int maximumCycleWindow = 16384;
+    private static final HeightWindowAccumulator cycleTransactionAccumulator = new HeightWindowAccumulator(4096,
+            maximumCycleWindow);
+    private static volatile long cycleTransactionSum = 0L;
+    private static volatile int cycleLength = 1;
+
+    // General metrics are also tracked for the frozen blocks over windows of fixed lengths. Vote latency is the time
+    // from the verification timestamp of a block to its freezing. It is only recorded for blocks that are frozen
+    // promptly, as blocks fetched while catching up were not voted on by this verifier in real time.
+    private static final long maximumVoteLatency = Block.blockDuration * 10L;
+    private static final List<WindowAccumulator> metricsWindows = createMetricsWindows();
+
+    private static class WindowAccumulator {
+
+        private final int length;
+        private final HeightWindowAccumulator transactions;
+        private final HeightWindowAccumulator fees;
+        private final HeightWindowAccumulator bytes;
+        private final HeightWindowAccumulator voteLatency;
+
+        private WindowAccumulator(int length) {
+            this.length = length;
+            this.transactions = new HeightWindowAccumulator(length, length);
+            this.fees = new HeightWindowAccumulator(length, length);
+            this.bytes = new HeightWindowAccumulator(length, length);
+            this.voteLatency = new HeightWindowAccumulator(length, length);
+        }
+
+        private void register(long height, long transactionCount, long transactionFees, long byteSize,
+                              long latency) {
+
+            transactions.put(height, transactionCount);
+            fees.put(height, transactionFees);
+            bytes.put(height, byteSize);
+            if (latency >= 0L) {
+                voteLatency.put(height, latency);
+            }
+
+            long threshold = height - length + 1L;
+            transactions.removeBelow(threshold);
+            fees.removeBelow(threshold);
+            bytes.removeBelow(threshold);
+            voteLatency.removeBelow(threshold);
+        }
+
+        private BlockMetricsWindow snapshot() {
+            return new BlockMetricsWindow(length, transactions.getNumberOfValues(), transactions.getSum(),
+                    fees.getSum(), bytes.getSum(), voteLatency.getNumberOfValues(), voteLatency.getSum());
+        }
+    }
+
+    // This is a snapshot of the sums and counts of a window, taken under the manager's lock, so it can be read after
+    // the lock is released while blocks continue to be registered.
+    public static class BlockMetricsWindow {
+
+        private final int length;
+        private final int numberOfBlocks;
+        private final long transactions;
+        private final long fees;
+        private final long bytes;
+        private final int numberOfVoteLatencySamples;
+        private final long voteLatencySum;
+
+        private BlockMetricsWindow(int length, int numberOfBlocks, long transactions, long fees, long bytes,
+                                   int numberOfVoteLatencySamples, long voteLatencySum) {
+            this.length = length;
+            this.numberOfBlocks = numberOfBlocks;
+            this.transactions = transactions;
+            this.fees = fees;
+            this.bytes = bytes;
+            this.numberOfVoteLatencySamples = numberOfVoteLatencySamples;
+            this.voteLatencySum = voteLatencySum;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getNumberOfBlocks() {
+            return numberOfBlocks;
+        }
+
+        public long getTransactions() {
+            return transactions;
+        }
+
+        public long getFees() {
+            return fees;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getAverageTransactions() {
+            return average(transactions, numberOfBlocks);
+        }
+
+        public double getAverageBytes() {
+            return average(bytes, numberOfBlocks);
+        }
+
+        public int getNumberOfVoteLatencySamples() {
+            return numberOfVoteLatencySamples;
+        }
+
+        public double getAverageVoteLatency() {
+            return average(voteLatencySum, numberOfVoteLatencySamples);
+        }
+
+        private static double average(long sum, int count) {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d blocks: n=%d, tx=%.1f/block, fees=%s, bytes=%.0f/block, vote=%.0f ms (%d)",
+                    length, getNumberOfBlocks(), getAverageTransactions(), PrintUtil.printAmount(getFees()),
+                    getAverageBytes(), getAverageVoteLatency(), getNumberOfVoteLatencySamples());
+        }
+    }
 
     public static int maximumTransactionsForBlockAssembly() {
         int additionalTransactions = (int) (cycleTransactionSum / Transaction.micronyzoMultiplierRatio / cycleLength);
         return baselineTransactionsPerBlock + Math.max(additionalTransactions, 0);
     }
 
-    public static void registerBlock(Block block) {
+    public static synchronized void registerBlock(Block block) {
 
-        // Store the block transaction sum in the map.
-        long blockSum = standardTransactionSum(block.getTransactions());
-        blockTransactionSumMap.put(block.getBlockHeight(), blockSum);
-
-        // Calculate the cycle sum and, in the same process, remove old values from the map.
-        long cycleTransactionSum = 0L;
+        // Store the block transaction sum. If the cycle information is available, remove values below the window
+        // for the cycle and store the cycle length. Otherwise, the cycle sum is zero, and values are retained until
+        // the cycle information is available.
+        long height = block.getBlockHeight();
+        cycleTransactionAccumulator.put(height, standardTransactionSum(block.getTransactions()));
         if (block.getCycleInformation() != null) {
-            long thresholdHeight = block.getBlockHeight() - block.getCycleInformation().getCycleLength();
-            for (Long height : new HashSet<>(blockTransactionSumMap.keySet())) {
-                if (height < thresholdHeight) {
-                    blockTransactionSumMap.remove(height);
-                } else {
-                    cycleTransactionSum += blockTransactionSumMap.get(height);
-                }
-            }
-
-            // Store the cycle length.
+            cycleTransactionAccumulator.removeBelow(height - block.getCycleInformation().getCycleLength());
             cycleLength = block.getCycleInformation().getCycleLength();
+            cycleTransactionSum = cycleTransactionAccumulator.getSum();
+        } else {
+            cycleTransactionSum = 0L;
+        }
+
+        // Register the block in the general metrics windows.
+        long latency = System.currentTimeMillis() - block.getVerificationTimestamp();
+        if (latency < 0L || latency > maximumVoteLatency) {
+            latency = -1L;
+        }
+        long transactionCount = block.getTransactions().size();
+        long transactionFees = block.getTransactionFees();
+        long byteSize = block.getByteSize();
+        for (WindowAccumulator window : metricsWindows) {
+            window.register(height, transactionCount, transactionFees, byteSize, latency);
+        }
+    }
+
+    public static long getCycleTransactionSum() {
+        return cycleTransactionSum;
+    }
+
+    public static synchronized List<BlockMetricsWindow> getMetricsWindows() {
+
+        List<BlockMetricsWindow> windows = new ArrayList<>();
+        for (WindowAccumulator window : metricsWindows) {
+            windows.add(window.snapshot());
+        }
+
+        return windows;
+    }
+
+    public static synchronized List<String> metricsDescriptions() {
+
+        List<String> descriptions = new ArrayList<>();
+        descriptions.add("cycle transaction sum: " + PrintUtil.printAmountWithCommas(cycleTransactionSum) +
+                ", maximum transactions: " + maximumTransactionsForBlockAssembly());
+        for (WindowAccumulator window : metricsWindows) {
+            descriptions.add(window.snapshot().toString());
+        }
+
+        return descriptions;
+    }
+
+    private static List<WindowAccumulator> createMetricsWindows() {
+
+        // The window lengths, in blocks, are a comma-separated list.
+        List<WindowAccumulator> windows = new ArrayList<>();
+        for (String value : PreferencesUtil.get("blockchain_metrics_windows", "10,100,1000").split(",")) {
+            try {
+                int length = Integer.parseInt(value.trim());
+                if (length > 0) {
+                    windows.add(new WindowAccumulator(length));
+                }
+            } catch (Exception ignored) { }
         }
 
-        // Store the cycle sum.
-        BlockchainMetricsManager.cycleTransactionSum = cycleTransactionSum;
-        LogUtil.println("after registering block " + block + " in BlockchainMetricsManager(), cycleTransactionSum=" +
-                PrintUtil.printAmountWithCommas(BlockchainMetricsManager.cycleTransactionSum) + ", cycleLength=" +
-                cycleLength);
+        return windows;
     }
 
     private static long standardTransactionSum(List<Transaction> transactions) {
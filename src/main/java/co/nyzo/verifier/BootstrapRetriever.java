@@ -0,0 +1,364 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.messages.BlockRequest;
+import co.nyzo.verifier.messages.BlockResponse;
+import co.nyzo.verifier.messages.BootstrapResponseV2;
+import co.nyzo.verifier.util.FileUtil;
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.ThreadUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BootstrapRetriever {
+
+    // This class retrieves the data needed to jump to a consensus frozen edge: the frozen-edge block, its balance list,
+    // and a range of blocks behind the frozen edge. Requests are spread over all trusted entry points that agreed with
+    // the winning bootstrap response, with random mesh nodes as a fallback, and several requests are outstanding at
+    // once. Everything is verified against the winning hash: the frozen-edge block by its hash and its signature, the
+    // balance list by the hash in the block, and the range blocks by hash linkage back from the frozen-edge block and
+    // their signatures. The block hash is derived only from the signature, so a matching hash alone does not show that
+    // the block is authentic. The persisted frozen edge is checked the same way when it is loaded. Verified data is
+    // written to the bootstrap directory as it arrives so that an interrupted bootstrap can resume.
+
+    public static final File bootstrapDirectory = new File(Verifier.dataRootDirectory, "bootstrap");
+
+    private static final int blocksPerRequest = 10;
+    private static final int maximumOutstandingRequests =
+            PreferencesUtil.getInt("bootstrap_maximum_outstanding_requests", 20);
+    private static final int blockRangeCycles = PreferencesUtil.getInt("bootstrap_block_range_cycles", 1);
+    private static final long requestTimeout = 5000L;
+    private static final long maximumRetrievalTime = 1000L * 60L * 2L;  // 2 minutes
+
+    private final long frozenEdgeHeight;
+    private final byte[] frozenEdgeHash;
+    private final long rangeStartHeight;
+    private final List<TrustedEntryPoint> peers;
+    private final AtomicInteger peerIndex = new AtomicInteger(0);
+
+    private volatile Block frozenEdge = null;
+    private volatile BalanceList frozenEdgeBalanceList = null;
+    private final Set<TrustedEntryPoint> balanceListRequestPeers = ConcurrentHashMap.newKeySet();
+    private long lastFrozenEdgeRequestTimestamp = 0L;
+
+    private final Map<Long, Block> rangeBlocks = new ConcurrentHashMap<>();
+    private final Map<Long, Long> outstandingRequests = new ConcurrentHashMap<>();
+
+    public BootstrapRetriever(BootstrapResponseV2 winningResponse, List<TrustedEntryPoint> agreeingPeers) {
+
+        this.frozenEdgeHeight = winningResponse.getFrozenEdgeHeight();
+        this.frozenEdgeHash = winningResponse.getFrozenEdgeHash();
+        long rangeLength = (long) winningResponse.getCycleVerifiers().size() * blockRangeCycles +
+                (blockRangeCycles > 0 ? 1L : 0L);
+        this.rangeStartHeight = Math.max(1L, Math.max(frozenEdgeHeight - rangeLength,
+                BlockManager.getFrozenEdgeHeight() + 1L));
+        this.peers = new ArrayList<>(agreeingPeers);
+        Collections.shuffle(this.peers);
+
+        loadPersistedState();
+    }
+
+    public Block getFrozenEdge() {
+        return frozenEdge;
+    }
+
+    public BalanceList getFrozenEdgeBalanceList() {
+        return frozenEdgeBalanceList;
+    }
+
+    public boolean retrieve() {
+
+        // The frozen edge and balance list are required. The range is best effort: if it cannot be completed in the
+        // allotted time, the blocks that link to the frozen edge are still used, and the historical chain filler
+        // completes the rest later.
+        long startTimestamp = System.currentTimeMillis();
+        while (!UpdateUtil.shouldTerminate() && System.currentTimeMillis() < startTimestamp + maximumRetrievalTime &&
+                (frozenEdge == null || !rangeComplete())) {
+
+            if (frozenEdge == null) {
+                requestFrozenEdge();
+            }
+            discardUnlinkedBlock();
+            requestRange();
+
+            ThreadUtil.sleep(100L);
+        }
+
+        LogUtil.println(String.format("bootstrap retrieval for height %d: frozen edge %s, %d of %d range blocks, " +
+                        "%.1f s", frozenEdgeHeight, frozenEdge == null ? "missing" : "retrieved", getRangeBlocks().size(),
+                frozenEdgeHeight - rangeStartHeight, (System.currentTimeMillis() - startTimestamp) / 1000.0));
+
+        return frozenEdge != null && frozenEdgeBalanceList != null;
+    }
+
+    private void requestFrozenEdge() {
+
+        // Balance lists are rate-limited per requester IP by each peer, so the balance list is requested at most once
+        // from each agreeing peer. All agreeing peers are asked at once, and the first verified response is used.
+        // After the agreeing peers have been tried, random nodes from the mesh are used.
+        if (lastFrozenEdgeRequestTimestamp < System.currentTimeMillis() - requestTimeout) {
+            lastFrozenEdgeRequestTimestamp = System.currentTimeMillis();
+
+            Message message = new Message(MessageType.BlockRequest11, new BlockRequest(frozenEdgeHeight,
+                    frozenEdgeHeight, true));
+            MessageCallback callback = new MessageCallback() {
+                @Override
+                public void responseReceived(Message message) {
+                    processFrozenEdgeResponse(message);
+                }
+            };
+
+            boolean sentToPeer = false;
+            for (TrustedEntryPoint peer : peers) {
+                if (balanceListRequestPeers.add(peer)) {
+                    sentToPeer = true;
+                    Message.fetchTcp(peer.getHost(), peer.getPort(), message, callback);
+                }
+            }
+
+            if (!sentToPeer) {
+                Message.fetchFromRandomNode(message, callback);
+            }
+        }
+    }
+
+    private void processFrozenEdgeResponse(Message message) {
+
+        if (message != null && message.getContent() instanceof BlockResponse && frozenEdge == null) {
+
+            BlockResponse response = (BlockResponse) message.getContent();
+            List<Block> responseBlocks = response.getBlocks();
+            BalanceList balanceList = response.getInitialBalanceList();
+            if (!responseBlocks.isEmpty() && balanceList != null) {
+
+                // If the hashes of the block and balance list are correct and the block signature is valid, they
+                // can be saved.
+                Block responseBlock = responseBlocks.get(0);
+                if (frozenEdgeIsValid(responseBlock, balanceList)) {
+
+                    frozenEdgeBalanceList = balanceList;
+                    frozenEdge = responseBlock;
+
+                    bootstrapDirectory.mkdirs();
+                    BlockManager.writeBlocksToFile(Collections.singletonList(responseBlock),
+                            Collections.singletonList(balanceList), frozenEdgeFile());
+                }
+            }
+        }
+    }
+
+    private boolean frozenEdgeIsValid(Block block, BalanceList balanceList) {
+
+        // The signature is checked last, as it is the most expensive check.
+        return block != null && balanceList != null && block.getBlockHeight() == frozenEdgeHeight &&
+                ByteUtil.arraysAreEqual(block.getHash(), frozenEdgeHash) &&
+                ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash()) &&
+                block.signatureIsValid();
+    }
+
+    private void requestRange() {
+
+        // Expire requests that have not returned.
+        long currentTimestamp = System.currentTimeMillis();
+        for (Long startHeight : new HashSet<>(outstandingRequests.keySet())) {
+            if (outstandingRequests.getOrDefault(startHeight, currentTimestamp) < currentTimestamp - requestTimeout) {
+                outstandingRequests.remove(startHeight);
+            }
+        }
+
+        // Request each missing chunk of the range, up to the limit of outstanding requests. Chunks are aligned to the
+        // frozen-edge height so that a resumed bootstrap for a nearby frozen edge reuses most of the stored chunks.
+        for (long endHeight = frozenEdgeHeight - 1L; endHeight >= rangeStartHeight &&
+                outstandingRequests.size() < maximumOutstandingRequests; endHeight -= blocksPerRequest) {
+
+            long startHeight = Math.max(rangeStartHeight, endHeight - blocksPerRequest + 1L);
+            if (!outstandingRequests.containsKey(startHeight) && !chunkComplete(startHeight, endHeight)) {
+                outstandingRequests.put(startHeight, currentTimestamp);
+
+                Message message = new Message(MessageType.BlockRequest11, new BlockRequest(startHeight, endHeight,
+                        false));
+                MessageCallback callback = new MessageCallback() {
+                    @Override
+                    public void responseReceived(Message message) {
+                        processRangeResponse(message, startHeight);
+                    }
+                };
+
+                TrustedEntryPoint peer = nextPeer();
+                if (peer == null) {
+                    Message.fetchFromRandomNode(message, callback);
+                } else {
+                    Message.fetchTcp(peer.getHost(), peer.getPort(), message, callback);
+                }
+            }
+        }
+    }
+
+    private void processRangeResponse(Message message, long startHeight) {
+
+        if (message != null && message.getContent() instanceof BlockResponse) {
+            // The block hash is derived from the signature only, so the signature must be checked to bind the rest of
+            // the block to the hash that is verified by linkage.
+            List<Block> acceptedBlocks = new ArrayList<>();
+            for (Block block : ((BlockResponse) message.getContent()).getBlocks()) {
+                if (block.getBlockHeight() >= rangeStartHeight && block.getBlockHeight() < frozenEdgeHeight &&
+                        block.signatureIsValid()) {
+                    rangeBlocks.put(block.getBlockHeight(), block);
+                    acceptedBlocks.add(block);
+                }
+            }
+
+            if (!acceptedBlocks.isEmpty()) {
+                persistChunk(acceptedBlocks);
+            }
+        }
+
+        outstandingRequests.remove(startHeight);
+    }
+
+    private TrustedEntryPoint nextPeer() {
+        return peers.isEmpty() ? null : peers.get(Math.abs(peerIndex.getAndIncrement() % peers.size()));
+    }
+
+    private boolean chunkComplete(long startHeight, long endHeight) {
+
+        boolean complete = true;
+        for (long height = startHeight; height <= endHeight && complete; height++) {
+            complete = rangeBlocks.containsKey(height);
+        }
+
+        return complete;
+    }
+
+    private boolean rangeComplete() {
+        return getRangeBlocks().size() == frozenEdgeHeight - rangeStartHeight;
+    }
+
+    private void discardUnlinkedBlock() {
+
+        // Step back from the frozen edge. If a block is present but does not link to its successor, it is removed so
+        // that it will be requested again, likely from a different peer. Blocks below the first gap cannot be checked
+        // yet, so they are left in place.
+        if (frozenEdge != null) {
+            byte[] expectedHash = frozenEdge.getPreviousBlockHash();
+            boolean checking = true;
+            for (long height = frozenEdgeHeight - 1L; height >= rangeStartHeight && checking; height--) {
+                Block block = rangeBlocks.get(height);
+                if (block == null) {
+                    checking = false;
+                } else if (ByteUtil.arraysAreEqual(expectedHash, block.getHash())) {
+                    expectedHash = block.getPreviousBlockHash();
+                } else {
+                    rangeBlocks.remove(height);
+                    checking = false;
+                }
+            }
+        }
+    }
+
+    public List<Block> getRangeBlocks() {
+
+        // Build the list by stepping back from the frozen edge, stopping at the first block that is missing or does
+        // not link.
+        List<Block> blocks = new ArrayList<>();
+        if (frozenEdge != null) {
+            byte[] expectedHash = frozenEdge.getPreviousBlockHash();
+            boolean linked = true;
+            for (long height = frozenEdgeHeight - 1L; height >= rangeStartHeight && linked; height--) {
+                Block block = rangeBlocks.get(height);
+                if (block != null && ByteUtil.arraysAreEqual(expectedHash, block.getHash())) {
+                    blocks.add(0, block);
+                    expectedHash = block.getPreviousBlockHash();
+                } else {
+                    linked = false;
+                }
+            }
+        }
+
+        return blocks;
+    }
+
+    private File frozenEdgeFile() {
+        return new File(bootstrapDirectory, String.format("edge_%09d.nyzoblock", frozenEdgeHeight));
+    }
+
+    private static File chunkFile(long startHeight) {
+        return new File(bootstrapDirectory, String.format("range_%09d.nyzoblock", startHeight));
+    }
+
+    private void persistChunk(List<Block> blocks) {
+
+        int byteSize = FieldByteSize.unnamedShort;
+        for (Block block : blocks) {
+            byteSize += block.getByteSize();
+        }
+
+        byte[] bytes = new byte[byteSize];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putShort((short) blocks.size());
+        for (Block block : blocks) {
+            buffer.put(block.getBytes());
+        }
+
+        bootstrapDirectory.mkdirs();
+        FileUtil.writeFile(Paths.get(chunkFile(blocks.get(0).getBlockHeight()).getAbsolutePath()), bytes);
+    }
+
+    private void loadPersistedState() {
+
+        File[] files = bootstrapDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    if (name.equals(frozenEdgeFile().getName())) {
+
+                        // The frozen edge is only reused if it passes the same checks as a response. Otherwise, the
+                        // file is deleted and the frozen edge is requested again.
+                        List<Block> blocks = BlockManager.loadBlocksInFile(file, frozenEdgeHeight, frozenEdgeHeight);
+                        BalanceList balanceList = BlockManager.loadBalanceListFromFile(file, frozenEdgeHeight);
+                        if (blocks.size() == 1 && frozenEdgeIsValid(blocks.get(0), balanceList)) {
+                            frozenEdgeBalanceList = balanceList;
+                            frozenEdge = blocks.get(0);
+                        } else {
+                            file.delete();
+                        }
+                    } else if (name.startsWith("range_") && name.endsWith(".nyzoblock")) {
+
+                        // Range blocks are loaded provisionally. Only those that link back from the frozen edge are
+                        // used, and any that do not link are replaced as the range is retrieved.
+                        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file.getAbsolutePath())));
+                        int numberOfBlocks = buffer.getShort();
+                        for (int i = 0; i < numberOfBlocks; i++) {
+                            Block block = Block.fromByteBuffer(buffer, false);
+                            if (block.getBlockHeight() >= rangeStartHeight &&
+                                    block.getBlockHeight() < frozenEdgeHeight) {
+                                rangeBlocks.put(block.getBlockHeight(), block);
+                            }
+                        }
+                    } else {
+                        file.delete();
+                    }
+                } catch (Exception ignored) {
+                    file.delete();
+                }
+            }
+        }
+
+        if (frozenEdge != null || !rangeBlocks.isEmpty()) {
+            LogUtil.println("resuming bootstrap for height " + frozenEdgeHeight + " with " + (frozenEdge == null ?
+                    "no frozen edge" : "frozen edge") + " and " + getRangeBlocks().size() + " linked range blocks");
+        }
+    }
+
+    public static void clearPersistedState() {
+        FileUtil.delete(bootstrapDirectory);
+    }
+}
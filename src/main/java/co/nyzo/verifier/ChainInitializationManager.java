@@ -1,7 +1,5 @@
 package co.nyzo.verifier;
 
-import co.nyzo.verifier.messages.BlockRequest;
-import co.nyzo.verifier.messages.BlockResponse;
 import co.nyzo.verifier.messages.BootstrapRequest;
 import co.nyzo.verifier.messages.BootstrapResponseV2;
 import co.nyzo.verifier.util.*;
@@ -9,7 +7,6 @@ import co.nyzo.verifier.util.*;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChainInitializationManager {
@@ -17,10 +14,17 @@ public class ChainInitializationManager {
     // This is a map from the identifier to the bootstrap response.
     private static final Map<ByteBuffer, BootstrapResponseV2> bootstrapResponses = new ConcurrentHashMap<>();
 
-    private static void processBootstrapResponseMessage(Message message) {
+    // This is a map from the identifier to the trusted entry point that provided the bootstrap response.
+    private static final Map<ByteBuffer, TrustedEntryPoint> bootstrapResponseSources = new ConcurrentHashMap<>();
+
+    private static long lastBootstrapTime = -1L;
+
+    private static void processBootstrapResponseMessage(Message message, TrustedEntryPoint entryPoint) {
 
         BootstrapResponseV2 response = (BootstrapResponseV2) message.getContent();
-        bootstrapResponses.put(ByteBuffer.wrap(message.getSourceNodeIdentifier()), response);
+        ByteBuffer identifier = ByteBuffer.wrap(message.getSourceNodeIdentifier());
+        bootstrapResponses.put(identifier, response);
+        bootstrapResponseSources.put(identifier, entryPoint);
     }
 
     private static synchronized BootstrapResponseV2 winningResponse() {
@@ -49,61 +53,44 @@ public class ChainInitializationManager {
         return winningResponse;
     }
 
-    private static void fetchBlock(BootstrapResponseV2 bootstrapResponse) {
-
-        Set<BalanceList> balanceListSet = new HashSet<>();  // single item; using a set to allow access from thread
-        Set<Block> blockSet = new HashSet<>();  // single item; using a set to allow access from thread
-
-        int numberOfAttempts = 0;
-        while (!UpdateUtil.shouldTerminate() && (balanceListSet.isEmpty() || blockSet.isEmpty()) &&
-                numberOfAttempts++ < 10) {
-
-            System.out.println("trying to fetch block for height " + bootstrapResponse.getFrozenEdgeHeight());
-
-            AtomicBoolean processedResponse = new AtomicBoolean(false);
-
-            long height = bootstrapResponse.getFrozenEdgeHeight();
-            Message message = new Message(MessageType.BlockRequest11, new BlockRequest(height, height, true));
-            Message.fetchFromRandomNode(message, new MessageCallback() {
-                @Override
-                public void responseReceived(Message message) {
-
-                    System.out.println("received response for block fetch");
-
-                    BlockResponse response = (BlockResponse) message.getContent();
-                    List<Block> responseBlocks = response.getBlocks();
-
-                    if (!responseBlocks.isEmpty() && response.getInitialBalanceList() != null) {
-
-                        // If the hashes of the block and balance list are correct, they can be saved.
-                        Block responseBlock = responseBlocks.get(0);
-                        if (ByteUtil.arraysAreEqual(responseBlock.getHash(), bootstrapResponse.getFrozenEdgeHash()) &&
-                                ByteUtil.arraysAreEqual(response.getInitialBalanceList().getHash(),
-                                        responseBlock.getBalanceListHash())) {
+    private static List<TrustedEntryPoint> agreeingEntryPoints(BootstrapResponseV2 winningResponse) {
+
+        // These are the trusted entry points that sent a response identical to the winning response. They are the
+        // preferred sources for the frozen edge, the balance list, and the range of blocks behind the frozen edge.
+        ByteBuffer winningResponseBytes = ByteBuffer.wrap(winningResponse.getBytes());
+        List<TrustedEntryPoint> entryPoints = new ArrayList<>();
+        for (ByteBuffer identifier : bootstrapResponses.keySet()) {
+            BootstrapResponseV2 response = bootstrapResponses.get(identifier);
+            TrustedEntryPoint entryPoint = bootstrapResponseSources.get(identifier);
+            if (response != null && entryPoint != null &&
+                    winningResponseBytes.equals(ByteBuffer.wrap(response.getBytes()))) {
+                entryPoints.add(entryPoint);
+            }
+        }
 
-                            blockSet.add(responseBlock);
-                            balanceListSet.add(response.getInitialBalanceList());
-                        }
-                    }
+        return entryPoints;
+    }
 
-                    processedResponse.set(true);
-                }
-            });
+    private static void fetchBlock(BootstrapResponseV2 bootstrapResponse) {
 
-            // Sleep up to five seconds to allow the request to return.
-            try {
-                for (int i = 0; i < 10 && !processedResponse.get(); i++) {
-                    Thread.sleep(500L);
-                }
-            } catch (Exception ignored) { }
-        }
+        BootstrapRetriever retriever = new BootstrapRetriever(bootstrapResponse,
+                agreeingEntryPoints(bootstrapResponse));
+        if (retriever.retrieve()) {
 
-        if (!blockSet.isEmpty() && !balanceListSet.isEmpty()) {
+            // The range blocks are added to the map before the frozen edge is set. When the frozen edge is set, the
+            // blocks behind it are used to calculate the cycle information.
+            for (Block block : retriever.getRangeBlocks()) {
+                BlockManagerMap.addBlock(block);
+            }
 
-            Block block = blockSet.iterator().next();
-            BalanceList balanceList = balanceListSet.iterator().next();
-            BlockManager.freezeBlock(block, block.getPreviousBlockHash(), balanceList,
+            Block block = retriever.getFrozenEdge();
+            BlockManager.freezeBlock(block, block.getPreviousBlockHash(), retriever.getFrozenEdgeBalanceList(),
                     bootstrapResponse.getCycleVerifiers());
+
+            // The partial state is only needed until the frozen edge has been set.
+            if (BlockManager.getFrozenEdgeHeight() == block.getBlockHeight()) {
+                BootstrapRetriever.clearPersistedState();
+            }
         }
     }
 
@@ -131,6 +118,8 @@ public class ChainInitializationManager {
                     ", is " + (openEdgeHeight - BlockManager.getFrozenEdgeHeight()) + " past frozen edge, " +
                     BlockManager.getFrozenEdgeHeight() + " and cycleComplete=" + BlockManager.isCycleComplete());
 
+            long startTimestamp = System.currentTimeMillis();
+
             // Attempt to jump into the blockchain. This should succeed on the first attempt, but it may take
             // longer if we are starting a new mesh.
             BootstrapResponseV2 consensusBootstrapResponse = null;
@@ -156,7 +145,7 @@ public class ChainInitializationManager {
                                         System.out.println("Bootstrap response is null");
                                     } else {
                                         numberOfResponsesReceived.incrementAndGet();
-                                        processBootstrapResponseMessage(message);
+                                        processBootstrapResponseMessage(message, entryPoint);
                                     }
                                 }
                             });
@@ -194,6 +183,15 @@ public class ChainInitializationManager {
                     fetchBlock(consensusBootstrapResponse);
                 }
             }
+
+            // This is the time from the start of the consensus process until the frozen edge is ready.
+            lastBootstrapTime = System.currentTimeMillis() - startTimestamp;
+            LogUtil.println(String.format("frozen-edge initialization completed in %.1f s, frozen edge is %d",
+                    lastBootstrapTime / 1000.0, BlockManager.getFrozenEdgeHeight()));
         }
     }
+
+    public static long getLastBootstrapTime() {
+        return lastBootstrapTime;
+    }
 }
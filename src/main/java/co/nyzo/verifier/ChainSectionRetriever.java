@@ -1,10 +1,8 @@
 package co.nyzo.verifier;
 
-import co.nyzo.verifier.client.ConsoleColor;
 import co.nyzo.verifier.messages.BlockRequest;
 import co.nyzo.verifier.messages.BlockResponse;
-import co.nyzo.verifier.util.LogUtil;
-import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
 import co.nyzo.verifier.util.ThreadUtil;
 
 import java.util.ArrayList;
@@ -14,11 +12,17 @@ import java.util.concurrent.ConcurrentHashMap;
 
 public class ChainSectionRetriever {
 
+    private static final int maximumOutstandingRequests =
+            PreferencesUtil.getInt("chain_section_retriever_concurrent_requests", 4);
+    private static final long blocksPerRequest = 10L;
+    private static final long requestTimeout = 5000L;
+
     private long startHeight;
     private long endHeight;
     private byte[] anchorHash;
-    private boolean complete;
+    private volatile boolean complete;
     private Map<Long, Block> blockMap;
+    private Map<Long, Long> outstandingRequests;
 
     public ChainSectionRetriever(long startHeight, long endHeight, byte[] anchorHash) {
         this.startHeight = startHeight;
@@ -26,6 +30,7 @@ public class ChainSectionRetriever {
         this.anchorHash = anchorHash;
         this.complete = false;
         this.blockMap = new ConcurrentHashMap<>();
+        this.outstandingRequests = new ConcurrentHashMap<>();
 
         start();
     }
@@ -64,90 +69,113 @@ public class ChainSectionRetriever {
 
     private void start() {
 
-        new Thread(new Runnable() {
+        // The retrieval loop may run for several minutes, so it has its own thread instead of holding a thread of the
+        // executor.
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
                 int numberOfIterations = 0;
                 final int maximumIterations = 1000;
                 while (numberOfIterations++ < maximumIterations && !complete) {
 
-                    // Wait for the message queue to clear. This ensures that the previous response has been dispatched
-                    // before continuing.
-                    MessageQueue.blockThisThreadUntilClear();
-
                     // If the trailing edge is set, gaps behind the frozen edge have been filled. If the section is
                     // behind the frozen edge, this retriever is no longer needed.
                     if (BlockManager.getTrailingEdgeHeight() > 0 && startHeight > 0 &&
                             startHeight < BlockManager.getFrozenEdgeHeight()) {
                         complete = true;
-                    } else {
-
-                        // If blocks are needed, fetch them.
-                        byte[] expectedHash = anchorHash;
-                        long fetchEndHeight = -1L;
-                        for (long height = endHeight; height >= startHeight && fetchEndHeight < 0L; height--) {
-                            Block block = blockMap.get(height);
-                            if (block != null && ByteUtil.arraysAreEqual(expectedHash, block.getHash())) {
-                                expectedHash = block.getPreviousBlockHash();
-                            } else {
-                                fetchEndHeight = height;
-                            }
-                        }
-                        if (fetchEndHeight > 0) {
-                            long fetchStartHeight = Math.max(startHeight, fetchEndHeight - 9);
-                            BlockRequest request = new BlockRequest(fetchStartHeight, fetchEndHeight, false);
-                            Message.fetchFromRandomNode(new Message(MessageType.BlockRequest11, request),
-                                    new MessageCallback() {
-                                        @Override
-                                        public void responseReceived(Message message) {
-                                            processFetchResponse(message);
-                                        }
-                                    });
-                        } else {
-                            complete = true;
-                        }
+                    } else if (!requestMissingChunks()) {
+                        complete = true;
                     }
 
-                    // Sleep for 1 second to avoid consuming too much CPU.
+                    // Sleep briefly to avoid consuming too much CPU. Several requests are outstanding at once, so
+                    // this interval does not limit the rate of retrieval the way a per-request wait would.
                     if (numberOfIterations < maximumIterations && !complete) {
-                        ThreadUtil.sleep(1000L);
+                        ThreadUtil.sleep(250L);
                     }
                 }
 
                 complete = true;
             }
-        }).start();
+        }, "ChainSectionRetriever-" + startHeight + "-" + endHeight);
+    }
+
+    private boolean requestMissingChunks() {
+
+        // Step back from the anchor to find the first height that is not linked. If a block is present at that
+        // height, its hash does not match, so it is removed to be requested again.
+        byte[] expectedHash = anchorHash;
+        long linkedStartHeight = endHeight + 1L;
+        for (long height = endHeight; height >= startHeight && linkedStartHeight == height + 1L; height--) {
+            Block block = blockMap.get(height);
+            if (block != null && ByteUtil.arraysAreEqual(expectedHash, block.getHash())) {
+                expectedHash = block.getPreviousBlockHash();
+                linkedStartHeight = height;
+            } else if (block != null) {
+                blockMap.remove(height);
+            }
+        }
+
+        // Request all chunks below the linked section that are incomplete and do not have a current request, up to
+        // the maximum number of outstanding requests. Chunks are aligned to the start height so that they remain
+        // stable as the linked section grows.
+        boolean blocksNeeded = linkedStartHeight > startHeight;
+        if (blocksNeeded) {
+            long timestamp = System.currentTimeMillis();
+            for (Long chunkStartHeight : new ArrayList<>(outstandingRequests.keySet())) {
+                if (outstandingRequests.get(chunkStartHeight) < timestamp - requestTimeout) {
+                    outstandingRequests.remove(chunkStartHeight);
+                }
+            }
+
+            long lastChunkStartHeight = startHeight + (linkedStartHeight - 1L - startHeight) / blocksPerRequest *
+                    blocksPerRequest;
+            for (long chunkStartHeight = lastChunkStartHeight; chunkStartHeight >= startHeight &&
+                    outstandingRequests.size() < maximumOutstandingRequests; chunkStartHeight -= blocksPerRequest) {
+                long chunkEndHeight = Math.min(chunkStartHeight + blocksPerRequest - 1L, linkedStartHeight - 1L);
+                if (!outstandingRequests.containsKey(chunkStartHeight) &&
+                        !chunkIsPresent(chunkStartHeight, chunkEndHeight)) {
+                    outstandingRequests.put(chunkStartHeight, timestamp);
+                    requestChunk(chunkStartHeight, chunkEndHeight);
+                }
+            }
+        }
+
+        return blocksNeeded;
+    }
+
+    private boolean chunkIsPresent(long chunkStartHeight, long chunkEndHeight) {
+
+        boolean present = true;
+        for (long height = chunkStartHeight; height <= chunkEndHeight && present; height++) {
+            present = blockMap.containsKey(height);
+        }
+
+        return present;
+    }
+
+    private void requestChunk(long chunkStartHeight, long chunkEndHeight) {
+
+        BlockRequest request = new BlockRequest(chunkStartHeight, chunkEndHeight, false);
+        Message.fetchFromRandomNode(new Message(MessageType.BlockRequest11, request), new MessageCallback() {
+            @Override
+            public void responseReceived(Message message) {
+                processFetchResponse(message);
+                outstandingRequests.remove(chunkStartHeight);
+            }
+        });
     }
 
     private void processFetchResponse(Message message) {
 
+        // Responses may arrive in any order, so blocks are stored by height without checking linkage. Linkage to the
+        // anchor is checked when blocks are retrieved and when the next requests are planned. The signature is
+        // checked here, as the block hash covers only the signature.
         if (message != null && message.getContent() instanceof BlockResponse) {
             BlockResponse response = (BlockResponse) message.getContent();
-            List<Block> responseBlocks = response.getBlocks();
-            if (!responseBlocks.isEmpty()) {
-
-                // Get the end height of the list. Step back to that height, if it is valid.
-                long listEndHeight = responseBlocks.get(responseBlocks.size() - 1).getBlockHeight();
-                if (listEndHeight >= startHeight) {
-                    byte[] expectedHash = anchorHash;
-                    for (long height = endHeight; height > listEndHeight && expectedHash != null; height--) {
-                        Block block = blockMap.get(height);
-                        if (block != null && ByteUtil.arraysAreEqual(expectedHash, block.getHash())) {
-                            expectedHash = block.getPreviousBlockHash();
-                        } else {
-                            expectedHash = null;
-                        }
-                    }
-
-                    for (int i = responseBlocks.size() - 1; i >= 0 && expectedHash != null; i--) {
-                        Block block = responseBlocks.get(i);
-                        if (block.signatureIsValid() && ByteUtil.arraysAreEqual(expectedHash, block.getHash())) {
-                            blockMap.put(block.getBlockHeight(), block);
-                            expectedHash = block.getPreviousBlockHash();
-                        } else {
-                            expectedHash = null;
-                        }
-                    }
+            for (Block block : response.getBlocks()) {
+                if (block.getBlockHeight() >= startHeight && block.getBlockHeight() <= endHeight &&
+                        !blockMap.containsKey(block.getBlockHeight()) && block.signatureIsValid()) {
+                    blockMap.put(block.getBlockHeight(), block);
                 }
             }
         }
@@ -19,7 +19,7 @@ public class ConnectionManager {
 
     private static void start() {
 
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
                 int i = 0;
@@ -43,7 +43,7 @@ public class ConnectionManager {
                     }
                 }
             }
-        }).start();
+        }, "ConnectionManager-socketCloser");
     }
 
     public static void slowCloseSocket(Socket socket) {
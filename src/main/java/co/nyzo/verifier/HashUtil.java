@@ -44,6 +44,26 @@ public class HashUtil {
         return messageDigest.digest(messageDigest.digest(data));
     }
 
+    // The methods above share one digest and are synchronized. This method uses a digest for each thread, so it can be
+    // used for hashing large inputs in parallel.
+    private static final ThreadLocal<MessageDigest> threadDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            MessageDigest digest = null;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (Exception ignored) { }
+            return digest;
+        }
+    };
+
+    public static byte[] doubleSHA256Concurrent(byte[] data, int offset, int length) {
+
+        MessageDigest digest = threadDigest.get();
+        digest.update(data, offset, length);
+        return digest.digest(digest.digest());
+    }
+
     public static long longSHA256(byte[] data) {
 
         byte[] sha256 = singleSHA256(data);
@@ -7,6 +7,7 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -20,7 +21,7 @@ public class HistoricalBlockManager {
         // Start the manager if the preference indicates. Resource usage is not trivial, so the default is false.
         if (PreferencesUtil.getBoolean(startManagerKey, false) && !alive.getAndSet(true)) {
 
-            new Thread(new Runnable() {
+            ThreadUtil.startLongRunning(new Runnable() {
                 @Override
                 public void run() {
 
@@ -46,7 +47,7 @@ public class HistoricalBlockManager {
 
                     alive.set(false);
                 }
-            }).start();
+            }, "HistoricalBlockManager");
         } else {
             LogUtil.println("HistoricalBlockManager: not starting");
         }
@@ -72,26 +73,39 @@ public class HistoricalBlockManager {
             int[] offsets = blockOffsetsForConsolidatedFile(consolidatedFile);
 
             // Write the offsets to the file.
-            byte[] offsetBytes = new byte[offsets.length * 4];
-            ByteBuffer offsetBuffer = ByteBuffer.wrap(offsetBytes);
-            for (int offset : offsets) {
-                offsetBuffer.putInt(offset);
-            }
-            try {
-                Files.write(Paths.get(offsetFileForHeight(offsetFileHeight).getAbsolutePath()), offsetBytes);
-            } catch (Exception ignored) { }
+            writeOffsetFile(offsetFileHeight, offsets);
         }
     }
 
+    public static int[] emptyOffsets() {
+
+        // The array contains a start offset and an end offset for each of the 1000 blocks that might be in a
+        // consolidated file. The block heights are implicit, relative to the start height of the file. An offset of
+        // -1 indicates that the block is not in the file.
+        int[] offsets = new int[(int) BlockManager.blocksPerFile * 2];
+        Arrays.fill(offsets, -1);
+
+        return offsets;
+    }
+
+    public static void writeOffsetFile(long height, int[] offsets) {
+
+        byte[] offsetBytes = new byte[offsets.length * 4];
+        ByteBuffer offsetBuffer = ByteBuffer.wrap(offsetBytes);
+        for (int offset : offsets) {
+            offsetBuffer.putInt(offset);
+        }
+        try {
+            Files.write(Paths.get(offsetFileForHeight(height).getAbsolutePath()), offsetBytes);
+        } catch (Exception ignored) { }
+    }
+
     private static int[] blockOffsetsForConsolidatedFile(File file) {
 
-        // The result contains a start offset and an end offset for each of the 1000 blocks that might be in the file.
-        // The block heights are implicit, relative to the start height of the file. The offsets are 32-bit integers.
+        // The block file consolidator builds the offsets while writing the file. This is used for files that do not
+        // have offset files.
         int blocksPerFile = (int) BlockManager.blocksPerFile;
-        int[] offsets = new int[blocksPerFile * 2];
-        for (int i = 0; i < blocksPerFile; i++) {
-            offsets[i] = -1;
-        }
+        int[] offsets = emptyOffsets();
 
         // Generate the offsets.
         if (file.exists()) {
@@ -1,134 +1,314 @@
 package co.nyzo.verifier;
 
+import co.nyzo.verifier.util.LogUtil;
 import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.ThreadUtil;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class HistoricalChainFiller {
 
     private static final String blockBaseUrlKey = "consolidated_block_base_url";
     private static final String blockBaseUrl = PreferencesUtil.get(blockBaseUrlKey,
             "https://blocks.nyzo.co/blockFiles/");
+
+    // Consolidated files are fetched concurrently, up to the number of concurrent fetches, and each pass fetches at
+    // most the number of files per pass. Verification proceeds from the newest file to the oldest as each download
+    // completes, so a pass that stops at a bad file only discards the files older than it.
+    private static final int concurrentFetches = Math.max(1,
+            PreferencesUtil.getInt("historical_chain_filler_concurrent_fetches", 4));
+    private static final int filesPerPass = Math.max(1,
+            PreferencesUtil.getInt("historical_chain_filler_files_per_pass", 8));
+    private static final long fetchTimeout = 120000L;
+    private static final long gapRetrieverTimeout = 60000L;
+
+    private static RemoteFileSource fileSource = new UrlFileSource(blockBaseUrl);
+    private static File blockDirectory = BlockManager.blockRootDirectory;
     private static ChainSectionRetriever gapRetriever = null;
+    private static final AtomicBoolean passInProgress = new AtomicBoolean(false);
+
+    private static final ExecutorService fetchService = Executors.newFixedThreadPool(concurrentFetches,
+            new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(0);
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "HistoricalChainFiller-fetch-" +
+                            threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    public static void setFileSource(RemoteFileSource fileSource) {
+        HistoricalChainFiller.fileSource = fileSource;
+    }
+
+    public static RemoteFileSource getFileSource() {
+        return fileSource;
+    }
+
+    public static void setBlockDirectory(File blockDirectory) {
+        HistoricalChainFiller.blockDirectory = blockDirectory;
+    }
+
+    public static File getBlockDirectory() {
+        return blockDirectory;
+    }
 
     public static void fillChainHistory() {
 
-        // Step back from the frozen edge to find the latest block that is missing.
-        Block block = BlockManager.getFrozenEdge();
-        long gapEndHeight = -1L;
-        while (gapEndHeight < 0L) {
-            Block previousBlock = BlockManager.frozenBlockForHeight(block.getBlockHeight() - 1L);
-            if (previousBlock == null) {
-                gapEndHeight = block.getBlockHeight() - 1L;
-            } else {
-                block = previousBlock;
-            }
+        // Each pass runs in its own thread so that downloads do not delay the verifier's main loop. A new pass is
+        // not started while the previous pass is still running.
+        if (!passInProgress.getAndSet(true)) {
+            ThreadUtil.startLongRunning(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        performPass();
+                    } catch (Exception e) {
+                        LogUtil.println("exception in historical chain filler: " + PrintUtil.printException(e));
+                    } finally {
+                        passInProgress.set(false);
+                    }
+                }
+            }, "HistoricalChainFiller-pass");
         }
+    }
 
-        // If a height was found, try to get the consolidated file that will fill it in.
-        if (gapEndHeight > 0 && gapEndHeight > BlockManager.getTrailingEdgeHeight()) {
+    private static void performPass() {
+
+        // Find the latest block that is missing with a single pass over the block map. Only the region above the
+        // trailing edge is considered, as blocks below it are not retained in the map.
+        long frozenEdgeHeight = BlockManager.getFrozenEdgeHeight();
+        long trailingEdgeHeight = BlockManager.getTrailingEdgeHeight();
+        long gapEndHeight = BlockManagerMap.highestMissingHeight(Math.max(trailingEdgeHeight, 0L),
+                frozenEdgeHeight - 1L);
+        Block block = gapEndHeight + 1L == frozenEdgeHeight ? BlockManager.getFrozenEdge() :
+                BlockManagerMap.blockForHeight(gapEndHeight + 1L);
+
+        if (gapEndHeight > 0 && gapEndHeight > trailingEdgeHeight && block != null) {
             long fileIndex = gapEndHeight / BlockManager.blocksPerFile;
-            long frozenEdgeFileIndex = BlockManager.getFrozenEdgeHeight() / BlockManager.blocksPerFile;
-
-            // If the file index is the frozen-edge index, the previous file needs to be fetched, instead, and the gap
-            // needs to be fetched from the cycle.
-            boolean fetchFile;
-            List<Block> gapBlocks;
-            if (fileIndex < frozenEdgeFileIndex) {
-                fetchFile = true;
-                gapBlocks = new ArrayList<>();
-            } else {  // fileIndex == frozenEdgeFileIndex
-                fileIndex--;  // step back to the previous file, which is the latest file available
-                long gapStartHeight = frozenEdgeFileIndex * BlockManager.blocksPerFile;
+            long frozenEdgeFileIndex = frozenEdgeHeight / BlockManager.blocksPerFile;
 
-                // Get the gap retriever. If a new one needs to be made, make it now.
-                ChainSectionRetriever gapRetriever = HistoricalChainFiller.gapRetriever;
+            // If the gap reaches into the frozen-edge file, that section has not been consolidated yet, so it is
+            // fetched from the cycle while the older files are downloaded.
+            ChainSectionRetriever gapRetriever = null;
+            if (fileIndex >= frozenEdgeFileIndex) {
+                fileIndex = frozenEdgeFileIndex - 1L;  // the latest file available
+                long gapStartHeight = frozenEdgeFileIndex * BlockManager.blocksPerFile;
+                gapRetriever = HistoricalChainFiller.gapRetriever;
                 if (gapRetriever == null || gapRetriever.getStartHeight() != gapStartHeight ||
                         gapRetriever.getEndHeight() != gapEndHeight) {
                     gapRetriever = new ChainSectionRetriever(gapStartHeight, gapEndHeight,
                             block.getPreviousBlockHash());
+                    HistoricalChainFiller.gapRetriever = gapRetriever;
                 }
+            }
+
+            List<Long> fileIndices = new ArrayList<>();
+            for (long index = fileIndex; index >= 0 && index > fileIndex - filesPerPass; index--) {
+                fileIndices.add(index);
+            }
 
-                // Get the blocks from the gap retriever. If the blocks in the gap are available, then the file can be
-                // fetched.
-                boolean gapRetrieverComplete = gapRetriever.isComplete();  // Access before the blocks to avoid a race.
+            // Wait for the chain section, if one is needed. If the section is not complete, the files cannot be
+            // verified in this pass. The retriever is discarded if it finished without the full section so that the
+            // next pass starts a new one.
+            byte[] anchorHash = block.getPreviousBlockHash();
+            List<Block> gapBlocks = new ArrayList<>();
+            if (gapRetriever != null) {
+                long waitEndTimestamp = System.currentTimeMillis() + gapRetrieverTimeout;
+                while (!gapRetriever.isComplete() && System.currentTimeMillis() < waitEndTimestamp) {
+                    ThreadUtil.sleep(250L);
+                }
                 gapBlocks = gapRetriever.getBlocks();
-                if (gapBlocks.size() == gapEndHeight - gapStartHeight + 1) {
-                    fetchFile = true;
-                } else {
-                    // In this case, the file cannot be fetched yet. If the gap retriever has completed, it is set to
-                    // null so that a new one can be made to attempt the process again.
-                    fetchFile = false;
-                    if (gapRetrieverComplete) {
-                        gapRetriever = null;
+                if (gapBlocks.size() != gapRetriever.getEndHeight() - gapRetriever.getStartHeight() + 1) {
+                    anchorHash = null;
+                    if (gapRetriever.isComplete()) {
+                        HistoricalChainFiller.gapRetriever = null;
                     }
                 }
+            }
+
+            int numberOfFilesStored = anchorHash == null ? 0 : storeFiles(fileIndices, gapBlocks, anchorHash);
+            LogUtil.println("historical chain filler stored " + numberOfFilesStored + " of " + fileIndices.size() +
+                    " files, gap end height=" + gapEndHeight + ", source=" + fileSource);
+        }
+    }
 
-                // Store the gap retriever in the class field. The local field was used throughout the loop to avoid
-                // any question of concurrency issues.
-                HistoricalChainFiller.gapRetriever = gapRetriever;
+    public static int storeFiles(List<Long> fileIndices, List<Block> gapBlocks, byte[] anchorHash) {
+
+        // The file indices are ordered newest first. Files that are already present locally are verified in place;
+        // the others are downloaded concurrently, up to the number of concurrent fetches.
+        Map<Long, Future<File>> downloads = new HashMap<>();
+        for (long index : fileIndices) {
+            if (!consolidatedFile(index).exists()) {
+                downloads.put(index, fetchService.submit(new Callable<File>() {
+                    @Override
+                    public File call() {
+                        return fetchFile(index);
+                    }
+                }));
             }
+        }
 
-            if (fetchFile) {
-                requestFile(fileIndex, gapBlocks, block.getPreviousBlockHash());
+        // Verify and store the files in order as they become available. Each file provides the anchor hash for the
+        // file before it. The gap blocks are stored with the first file, as their balance lists are derived from it.
+        // If a local file does not verify, a replacement is downloaded beside it and verified, and only then moved
+        // over the local file, so the local data is kept if the download fails. Downloads behind a broken link are
+        // cancelled.
+        int numberOfFilesStored = 0;
+        for (long index : fileIndices) {
+            Future<File> download = downloads.get(index);
+            boolean downloaded = download != null;
+            File file = null;
+            if (download == null) {
+                file = consolidatedFile(index);
+            } else if (anchorHash == null) {
+                download.cancel(true);
+            } else {
+                try {
+                    file = download.get(fetchTimeout, TimeUnit.MILLISECONDS);
+                } catch (Exception ignored) {
+                    download.cancel(true);
+                }
+            }
+
+            if (anchorHash != null && file != null) {
+                List<Block> fileGapBlocks = numberOfFilesStored == 0 ? gapBlocks : Collections.<Block>emptyList();
+                byte[] previousHash = storeFile(index, file, fileGapBlocks, anchorHash);
+                if (previousHash == null && download == null) {
+                    LogUtil.println("historical chain filler replacing local file that did not verify: " + file);
+                    File replacement = fetchFile(index);
+                    if (replacement != null) {
+                        previousHash = storeFile(index, replacement, fileGapBlocks, anchorHash);
+                    }
+                    downloaded = true;
+                }
+
+                anchorHash = previousHash;
+                if (anchorHash != null) {
+                    numberOfFilesStored++;
+                }
+            }
+
+            // A download that was not moved into place is removed.
+            if (downloaded) {
+                downloadFile(index).delete();
             }
         }
+
+        return numberOfFilesStored;
     }
 
-    private static void requestFile(long fileIndex, List<Block> gapBlocks, byte[] anchorHash) {
+    private static File consolidatedFile(long fileIndex) {
+
+        // Files are stored in the same layout as the block manager's consolidated files, relative to the block
+        // directory.
         File file = BlockManager.consolidatedFileForBlockHeight(fileIndex * BlockManager.blocksPerFile);
+        return new File(new File(blockDirectory, file.getParentFile().getName()), file.getName());
+    }
+
+    private static File downloadFile(long fileIndex) {
+
+        // Files are downloaded beside their permanent locations so that they can be moved into place without
+        // copying.
+        File file = consolidatedFile(fileIndex);
+        return new File(file.getAbsolutePath() + "_download");
+    }
+
+    private static File fetchFile(long fileIndex) {
 
-        // Ensure that the consolidated directory exists.
+        File file = consolidatedFile(fileIndex);
         file.getParentFile().mkdirs();
+        File temporaryFile = downloadFile(fileIndex);
+        return fileSource.fetchFile(file.getName(), temporaryFile) ? temporaryFile : null;
+    }
+
+    public static List<Block> verifiedBlocksInFile(long fileIndex, File file, List<Block> gapBlocks,
+                                                   byte[] anchorHash) {
+
+        // The file is mapped rather than read into memory, and each block is checked against the previous block as
+        // it is parsed, so a broken file is rejected at its first bad link. The gap blocks continue the chain from
+        // the end of the file, and the last block must match the anchor. An empty list is returned if the file is
+        // incomplete or any link is broken.
+        long minimumHeight = fileIndex * BlockManager.blocksPerFile;
+        List<Block> blocks = new ArrayList<>();
+        boolean allAreGood = false;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int numberOfBlocks = buffer.getShort();
+            allAreGood = numberOfBlocks == BlockManager.blocksPerFile;
+            Block previousBlock = null;
+            for (int i = 0; i < numberOfBlocks && allAreGood; i++) {
+                Block block = Block.fromByteBuffer(buffer, false);
+                if (previousBlock == null || previousBlock.getBlockHeight() != block.getBlockHeight() - 1) {
+                    // Read and discard the balance list.
+                    BalanceList.fromByteBuffer(buffer);
+                }
+
+                allAreGood = block.getBlockHeight() == minimumHeight + i && (previousBlock == null ||
+                        ByteUtil.arraysAreEqual(previousBlock.getHash(), block.getPreviousBlockHash()));
+                blocks.add(block);
+                previousBlock = block;
+            }
+        } catch (Exception ignored) {
+            allAreGood = false;
+        }
+
+        for (int i = 0; i < gapBlocks.size() && allAreGood; i++) {
+            Block block = gapBlocks.get(i);
+            allAreGood = ByteUtil.arraysAreEqual(blocks.get(blocks.size() - 1).getHash(),
+                    block.getPreviousBlockHash());
+            blocks.add(block);
+        }
+
+        allAreGood = allAreGood && ByteUtil.arraysAreEqual(blocks.get(blocks.size() - 1).getHash(), anchorHash);
+
+        return allAreGood ? blocks : new ArrayList<>();
+    }
 
-        try {
-            // Download the file to a temporary location.
-            URL url = new URL(blockBaseUrl + file.getName());
-            ReadableByteChannel channel = Channels.newChannel(url.openStream());
-            File temporaryFile = new File(file.getAbsolutePath() + "_temp");
-            temporaryFile.delete();
-            FileOutputStream outputStream = new FileOutputStream(temporaryFile);
-            outputStream.getChannel().transferFrom(channel, 0, Long.MAX_VALUE);
-            channel.close();
-            outputStream.close();
-
-            // Load the blocks of the file into memory and add the gap blocks to the end of the list.
-            long minimumHeight = fileIndex * BlockManager.blocksPerFile;
-            long maximumHeight = minimumHeight + BlockManager.blocksPerFile - 1;
-            List<Block> blocks = BlockManager.loadBlocksInFile(temporaryFile, minimumHeight, maximumHeight);
-            blocks.addAll(gapBlocks);
-
-            // Step back to the beginning of the file to check for blockchain continuity.
-            boolean allAreGood = true;
-            byte[] expectedHash = anchorHash;
-            for (int i = blocks.size() - 1; i >= 0 && allAreGood; i--) {
-                Block block = blocks.get(i);
-                if (ByteUtil.arraysAreEqual(expectedHash, block.getHash())) {
-                    expectedHash = block.getPreviousBlockHash();
-                } else {
-                    allAreGood = false;
+    private static byte[] storeFile(long fileIndex, File sourceFile, List<Block> gapBlocks, byte[] anchorHash) {
+
+        byte[] previousHash = null;
+        List<Block> blocks = verifiedBlocksInFile(fileIndex, sourceFile, gapBlocks, anchorHash);
+        if (!blocks.isEmpty()) {
+
+            // Move a verified download to its permanent location. The move replaces any existing file atomically, so
+            // the location always holds either the previous file or the verified one.
+            File file = consolidatedFile(fileIndex);
+            boolean fileIsInPlace = sourceFile.equals(file);
+            if (!fileIsInPlace) {
+                try {
+                    Files.move(sourceFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    fileIsInPlace = true;
+                } catch (Exception e) {
+                    LogUtil.println("unable to move verified file into place: " + PrintUtil.printException(e));
                 }
             }
 
-            // If all the blocks are continuous, move the consolidated file to its permanent position and write the gap
-            // blocks to file. Also, add the blocks to the block manager map.
-            if (allAreGood) {
-                // Move the consolidated file to its permanent location.
-                file.delete();
-                temporaryFile.renameTo(file);
+            if (fileIsInPlace) {
 
                 // Save individual block files for the gap blocks.
-                BalanceList balanceList =
-                        BlockManager.loadBalanceListFromFile(file, blocks.get(0).getBlockHeight());
                 if (blocks.size() > BlockManager.blocksPerFile) {
-                    for (int i = 1; i < blocks.size(); i++) {
+                    BalanceList balanceList = BlockManager.loadBalanceListFromFile(file,
+                            blocks.get(0).getBlockHeight());
+                    for (int i = 1; i < blocks.size() && balanceList != null; i++) {
                         balanceList = Block.balanceListForNextBlock(blocks.get(i - 1), balanceList,
                                 blocks.get(i).getTransactions(), blocks.get(i).getVerifierIdentifier(),
                                 blocks.get(i).getBlockchainVersion());
@@ -145,8 +325,11 @@ public class HistoricalChainFiller {
                 for (Block block : blocks) {
                     BlockManagerMap.addBlock(block);
                 }
+
+                previousHash = blocks.get(0).getPreviousBlockHash();
             }
+        }
 
-        } catch (Exception ignored) { }
+        return previousHash;
     }
 }
@@ -0,0 +1,688 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.metrics.MetricsCounter;
+import co.nyzo.verifier.metrics.MetricsRegistry;
+import co.nyzo.verifier.util.IpUtil;
+import co.nyzo.verifier.util.LogUtil;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+public class IpReputationTable {
+
+    // This holds the state of each IP address that the verifier is tracking: blacklisting, static and dynamic
+    // whitelisting, and the number of open mesh and web connections. IPv4 addresses are stored as primitive ints in an
+    // open-addressing table with linear probing, and the fields are held in parallel primitive arrays, so checking an
+    // IPv4 address does not allocate. Reads use an optimistic stamp and only take the lock if a write happened at the
+    // same time. Other addresses, such as IPv6 addresses, are kept in a map keyed by their full bytes, so each address
+    // has its own state.
+
+    // Blacklist and whitelist entries expire. The check for an address compares its expiration timestamp to the
+    // current time, so expiration is exact. Removing expired entries from the table is done by a hierarchical timing
+    // wheel: 64 slots of one second, 64 slots of 64 seconds, and an overflow slot for longer intervals. Advancing the
+    // wheel only visits the addresses whose expirations are due, rather than sweeping the whole table.
+
+    public enum ConnectionType {
+        Mesh,
+        Web
+    }
+
+    private static final int flagStaticWhitelist = 1;
+
+    private static final int minimumCapacity = 1024;
+    private static final long tickInterval = 1000L;
+    private static final int wheelBits = 6;
+    private static final int wheelSize = 1 << wheelBits;
+    private static final int wheelMask = wheelSize - 1;
+    private static final int overflowBucket = wheelSize * 2;
+
+    private static final StampedLock lock = new StampedLock();
+
+    private static int[] addresses = new int[minimumCapacity];
+    private static boolean[] occupied = new boolean[minimumCapacity];
+    private static byte[] flags = new byte[minimumCapacity];
+    private static long[] blacklistExpirations = new long[minimumCapacity];
+    private static long[] whitelistExpirations = new long[minimumCapacity];
+    private static int[] meshConnections = new int[minimumCapacity];
+    private static int[] webConnections = new int[minimumCapacity];
+    private static int size = 0;
+    private static int numberOfBlacklistedAddresses = 0;
+    private static int numberOfAddressesWithMeshConnections = 0;
+
+    // Each wheel bucket is a list of addresses. An address may appear more than once if its expiration was extended;
+    // the extra entries are ignored when they are due.
+    private static final int[][] wheelBuckets = new int[overflowBucket + 1][];
+    private static final int[] wheelBucketSizes = new int[overflowBucket + 1];
+    private static long wheelTick = System.currentTimeMillis() / tickInterval;
+
+    // Entries for addresses that are not IPv4 addresses. These are rare, so expired entries are removed by a sweep of
+    // the map when the wheel advances.
+    private static final Map<ByteBuffer, AddressEntry> otherAddresses = new HashMap<>();
+
+    private static class AddressEntry {
+        private byte flags = 0;
+        private long blacklistExpiration = 0L;
+        private long whitelistExpiration = 0L;
+        private int meshConnections = 0;
+        private int webConnections = 0;
+
+        private boolean isUnused() {
+            return flags == 0 && blacklistExpiration == 0L && whitelistExpiration == 0L && meshConnections == 0 &&
+                    webConnections == 0;
+        }
+    }
+
+    private static final MetricsCounter insertions = MetricsRegistry.counter("nyzo_ip_table_insertions");
+    private static final MetricsCounter removals = MetricsRegistry.counter("nyzo_ip_table_removals");
+    static {
+        for (int i = 0; i < wheelBuckets.length; i++) {
+            wheelBuckets[i] = new int[8];
+        }
+        MetricsRegistry.gauge("nyzo_ip_table_size", () -> size);
+        MetricsRegistry.gauge("nyzo_ip_table_blacklisted", () -> numberOfBlacklistedAddresses);
+    }
+
+    public static boolean isBlacklisted(byte[] address) {
+
+        boolean blacklisted;
+        if (address.length == 4) {
+            blacklisted = isBlacklisted(IpUtil.addressAsInt(address));
+        } else {
+            long stamp = lock.readLock();
+            try {
+                AddressEntry entry = otherAddresses.get(ByteBuffer.wrap(address));
+                blacklisted = entry != null && System.currentTimeMillis() < entry.blacklistExpiration;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        return blacklisted;
+    }
+
+    public static boolean isWhitelisted(byte[] address) {
+
+        boolean whitelisted;
+        if (address.length == 4) {
+            whitelisted = isWhitelisted(IpUtil.addressAsInt(address));
+        } else {
+            long stamp = lock.readLock();
+            try {
+                AddressEntry entry = otherAddresses.get(ByteBuffer.wrap(address));
+                whitelisted = entry != null && ((entry.flags & flagStaticWhitelist) != 0 ||
+                        System.currentTimeMillis() < entry.whitelistExpiration);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        return whitelisted;
+    }
+
+    public static void blacklist(byte[] address, long duration) {
+
+        if (address.length == 4) {
+            blacklist(IpUtil.addressAsInt(address), duration);
+        } else {
+            long now = System.currentTimeMillis();
+            long stamp = lock.writeLock();
+            try {
+                AddressEntry entry = entryForInsertion(address);
+                if (entry.blacklistExpiration <= now) {
+                    if (entry.blacklistExpiration == 0L) {
+                        numberOfBlacklistedAddresses++;
+                    }
+                    entry.blacklistExpiration = now + duration;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    public static void removeFromBlacklist(byte[] address) {
+
+        if (address.length == 4) {
+            removeFromBlacklist(IpUtil.addressAsInt(address));
+        } else {
+            long stamp = lock.writeLock();
+            try {
+                ByteBuffer key = ByteBuffer.wrap(address);
+                AddressEntry entry = otherAddresses.get(key);
+                if (entry != null && entry.blacklistExpiration != 0L) {
+                    entry.blacklistExpiration = 0L;
+                    numberOfBlacklistedAddresses--;
+                    removeIfUnused(key, entry);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    public static void addStaticWhitelist(byte[] address) {
+
+        if (address.length == 4) {
+            addStaticWhitelist(IpUtil.addressAsInt(address));
+        } else {
+            long stamp = lock.writeLock();
+            try {
+                entryForInsertion(address).flags |= flagStaticWhitelist;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    public static void whitelistDynamically(byte[] address, long duration) {
+
+        if (address.length == 4) {
+            whitelistDynamically(IpUtil.addressAsInt(address), duration);
+        } else {
+            long stamp = lock.writeLock();
+            try {
+                entryForInsertion(address).whitelistExpiration = System.currentTimeMillis() + duration;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    public static int incrementConnections(byte[] address, ConnectionType type) {
+
+        int connections;
+        if (address.length == 4) {
+            connections = incrementConnections(IpUtil.addressAsInt(address), type);
+        } else {
+            long stamp = lock.writeLock();
+            try {
+                AddressEntry entry = entryForInsertion(address);
+                if (type == ConnectionType.Mesh) {
+                    connections = ++entry.meshConnections;
+                    if (connections == 1) {
+                        numberOfAddressesWithMeshConnections++;
+                    }
+                } else {
+                    connections = ++entry.webConnections;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        return connections;
+    }
+
+    public static void decrementConnections(byte[] address, ConnectionType type) {
+
+        if (address.length == 4) {
+            decrementConnections(IpUtil.addressAsInt(address), type);
+        } else {
+            long stamp = lock.writeLock();
+            try {
+                ByteBuffer key = ByteBuffer.wrap(address);
+                AddressEntry entry = otherAddresses.get(key);
+                if (entry != null) {
+                    if (type == ConnectionType.Mesh && entry.meshConnections > 0) {
+                        if (--entry.meshConnections == 0) {
+                            numberOfAddressesWithMeshConnections--;
+                        }
+                    } else if (type == ConnectionType.Web && entry.webConnections > 0) {
+                        entry.webConnections--;
+                    }
+                    removeIfUnused(key, entry);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    public static boolean isBlacklisted(int address) {
+
+        long now = System.currentTimeMillis();
+        long stamp = lock.tryOptimisticRead();
+        boolean blacklisted = isBlacklisted(address, now);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                blacklisted = isBlacklisted(address, now);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        return blacklisted;
+    }
+
+    public static boolean isWhitelisted(int address) {
+
+        long now = System.currentTimeMillis();
+        long stamp = lock.tryOptimisticRead();
+        boolean whitelisted = isWhitelisted(address, now);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                whitelisted = isWhitelisted(address, now);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        return whitelisted;
+    }
+
+    public static void blacklist(int address, long duration) {
+
+        // An address that is already blacklisted keeps its original expiration, so repeated offenses do not extend
+        // the interval.
+        long now = System.currentTimeMillis();
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotForInsertion(address);
+            if (blacklistExpirations[slot] <= now) {
+                if (blacklistExpirations[slot] == 0L) {
+                    numberOfBlacklistedAddresses++;
+                }
+                blacklistExpirations[slot] = now + duration;
+                schedule(address, now + duration);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public static void removeFromBlacklist(int address) {
+
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotForAddress(address);
+            if (slot >= 0 && blacklistExpirations[slot] != 0L) {
+                blacklistExpirations[slot] = 0L;
+                numberOfBlacklistedAddresses--;
+                removeIfUnused(slot);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public static void addStaticWhitelist(int address) {
+
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotForInsertion(address);
+            flags[slot] |= flagStaticWhitelist;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public static void whitelistDynamically(int address, long duration) {
+
+        long now = System.currentTimeMillis();
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotForInsertion(address);
+            whitelistExpirations[slot] = now + duration;
+            schedule(address, now + duration);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public static int incrementConnections(int address, ConnectionType type) {
+
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotForInsertion(address);
+            int connections;
+            if (type == ConnectionType.Mesh) {
+                connections = ++meshConnections[slot];
+                if (connections == 1) {
+                    numberOfAddressesWithMeshConnections++;
+                }
+            } else {
+                connections = ++webConnections[slot];
+            }
+
+            return connections;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public static void decrementConnections(int address, ConnectionType type) {
+
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotForAddress(address);
+            if (slot >= 0) {
+                if (type == ConnectionType.Mesh && meshConnections[slot] > 0) {
+                    if (--meshConnections[slot] == 0) {
+                        numberOfAddressesWithMeshConnections--;
+                    }
+                } else if (type == ConnectionType.Web && webConnections[slot] > 0) {
+                    webConnections[slot]--;
+                }
+                removeIfUnused(slot);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public static int size() {
+        return size + otherAddresses.size();
+    }
+
+    public static int getNumberOfBlacklistedAddresses() {
+        return numberOfBlacklistedAddresses;
+    }
+
+    public static int getNumberOfAddressesWithMeshConnections() {
+        return numberOfAddressesWithMeshConnections;
+    }
+
+    public static void performMaintenance() {
+        advance(System.currentTimeMillis());
+    }
+
+    public static void advance(long timestamp) {
+
+        // Each tick empties one first-level bucket. When the first level wraps, the next second-level bucket is
+        // distributed into the first level, and when the second level wraps, the overflow bucket is redistributed.
+        long targetTick = timestamp / tickInterval;
+        long stamp = lock.writeLock();
+        try {
+            while (wheelTick < targetTick) {
+                wheelTick++;
+                long tickTimestamp = wheelTick * tickInterval;
+                if ((wheelTick & wheelMask) == 0) {
+                    if (((wheelTick >> wheelBits) & wheelMask) == 0) {
+                        reschedule(overflowBucket, tickTimestamp);
+                    }
+                    reschedule(wheelSize + (int) ((wheelTick >> wheelBits) & wheelMask), tickTimestamp);
+                }
+                expireBucket((int) (wheelTick & wheelMask), tickTimestamp);
+            }
+            expireOtherAddresses(timestamp);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static boolean isBlacklisted(int address, long now) {
+
+        // The arrays are read into locals so that a concurrent resize cannot cause an out-of-bounds index. The result
+        // is discarded by the caller if the read was not valid.
+        int[] addresses = IpReputationTable.addresses;
+        boolean[] occupied = IpReputationTable.occupied;
+        long[] blacklistExpirations = IpReputationTable.blacklistExpirations;
+        int slot = find(addresses, occupied, address);
+
+        return slot >= 0 && slot < blacklistExpirations.length && now < blacklistExpirations[slot];
+    }
+
+    private static boolean isWhitelisted(int address, long now) {
+
+        int[] addresses = IpReputationTable.addresses;
+        boolean[] occupied = IpReputationTable.occupied;
+        byte[] flags = IpReputationTable.flags;
+        long[] whitelistExpirations = IpReputationTable.whitelistExpirations;
+        int slot = find(addresses, occupied, address);
+
+        return slot >= 0 && slot < flags.length && slot < whitelistExpirations.length &&
+                ((flags[slot] & flagStaticWhitelist) != 0 || now < whitelistExpirations[slot]);
+    }
+
+    private static int find(int[] addresses, boolean[] occupied, int address) {
+
+        int mask = Math.min(addresses.length, occupied.length) - 1;
+        int slot = hash(address) & mask;
+        int result = -1;
+        for (int i = 0; i <= mask && occupied[slot] && result < 0; i++) {
+            if (addresses[slot] == address) {
+                result = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return result;
+    }
+
+    private static int slotForAddress(int address) {
+        return find(addresses, occupied, address);
+    }
+
+    private static int slotForInsertion(int address) {
+
+        int slot = slotForAddress(address);
+        if (slot < 0) {
+            if ((size + 1) * 2 > addresses.length) {
+                resize(addresses.length * 2);
+            }
+            int mask = addresses.length - 1;
+            slot = hash(address) & mask;
+            while (occupied[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            occupied[slot] = true;
+            addresses[slot] = address;
+            size++;
+            insertions.increment();
+        }
+
+        return slot;
+    }
+
+    private static void removeIfUnused(int slot) {
+
+        if (flags[slot] == 0 && blacklistExpirations[slot] == 0L && whitelistExpirations[slot] == 0L &&
+                meshConnections[slot] == 0 && webConnections[slot] == 0) {
+
+            // Backward-shift deletion keeps the probe sequences of the following entries intact without tombstones.
+            int mask = addresses.length - 1;
+            int emptySlot = slot;
+            int current = (slot + 1) & mask;
+            while (occupied[current]) {
+                int home = hash(addresses[current]) & mask;
+                if (((current - home) & mask) >= ((current - emptySlot) & mask)) {
+                    moveSlot(current, emptySlot);
+                    emptySlot = current;
+                }
+                current = (current + 1) & mask;
+            }
+            clearSlot(emptySlot);
+            size--;
+            removals.increment();
+        }
+    }
+
+    private static void moveSlot(int from, int to) {
+        occupied[to] = true;
+        addresses[to] = addresses[from];
+        flags[to] = flags[from];
+        blacklistExpirations[to] = blacklistExpirations[from];
+        whitelistExpirations[to] = whitelistExpirations[from];
+        meshConnections[to] = meshConnections[from];
+        webConnections[to] = webConnections[from];
+    }
+
+    private static void clearSlot(int slot) {
+        occupied[slot] = false;
+        addresses[slot] = 0;
+        flags[slot] = 0;
+        blacklistExpirations[slot] = 0L;
+        whitelistExpirations[slot] = 0L;
+        meshConnections[slot] = 0;
+        webConnections[slot] = 0;
+    }
+
+    private static void resize(int capacity) {
+
+        int[] oldAddresses = addresses;
+        boolean[] oldOccupied = occupied;
+        byte[] oldFlags = flags;
+        long[] oldBlacklistExpirations = blacklistExpirations;
+        long[] oldWhitelistExpirations = whitelistExpirations;
+        int[] oldMeshConnections = meshConnections;
+        int[] oldWebConnections = webConnections;
+
+        addresses = new int[capacity];
+        occupied = new boolean[capacity];
+        flags = new byte[capacity];
+        blacklistExpirations = new long[capacity];
+        whitelistExpirations = new long[capacity];
+        meshConnections = new int[capacity];
+        webConnections = new int[capacity];
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldOccupied[i]) {
+                int slot = hash(oldAddresses[i]) & mask;
+                while (occupied[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                occupied[slot] = true;
+                addresses[slot] = oldAddresses[i];
+                flags[slot] = oldFlags[i];
+                blacklistExpirations[slot] = oldBlacklistExpirations[i];
+                whitelistExpirations[slot] = oldWhitelistExpirations[i];
+                meshConnections[slot] = oldMeshConnections[i];
+                webConnections[slot] = oldWebConnections[i];
+            }
+        }
+    }
+
+    private static void schedule(int address, long expiration) {
+
+        long expirationTick = (expiration + tickInterval - 1L) / tickInterval;
+        long ticks = expirationTick - wheelTick;
+        int bucket;
+        if (ticks < wheelSize) {
+            bucket = (int) (Math.max(expirationTick, wheelTick + 1L) & wheelMask);
+        } else if ((expirationTick >> wheelBits) - (wheelTick >> wheelBits) < wheelSize) {
+            bucket = wheelSize + (int) ((expirationTick >> wheelBits) & wheelMask);
+        } else {
+            bucket = overflowBucket;
+        }
+
+        if (wheelBucketSizes[bucket] == wheelBuckets[bucket].length) {
+            wheelBuckets[bucket] = Arrays.copyOf(wheelBuckets[bucket], wheelBuckets[bucket].length * 2);
+        }
+        wheelBuckets[bucket][wheelBucketSizes[bucket]++] = address;
+    }
+
+    private static void reschedule(int bucket, long now) {
+
+        int[] bucketAddresses = wheelBuckets[bucket];
+        int bucketSize = wheelBucketSizes[bucket];
+        wheelBuckets[bucket] = new int[8];
+        wheelBucketSizes[bucket] = 0;
+        for (int i = 0; i < bucketSize; i++) {
+            int slot = slotForAddress(bucketAddresses[i]);
+            if (slot >= 0) {
+                long expiration = nextExpiration(slot, now);
+                if (expiration > 0L) {
+                    schedule(bucketAddresses[i], expiration);
+                }
+            }
+        }
+    }
+
+    private static void expireBucket(int bucket, long now) {
+
+        int[] bucketAddresses = wheelBuckets[bucket];
+        int bucketSize = wheelBucketSizes[bucket];
+        wheelBucketSizes[bucket] = 0;
+        for (int i = 0; i < bucketSize; i++) {
+            int address = bucketAddresses[i];
+            int slot = slotForAddress(address);
+            if (slot >= 0) {
+                if (blacklistExpirations[slot] != 0L && blacklistExpirations[slot] <= now) {
+                    blacklistExpirations[slot] = 0L;
+                    numberOfBlacklistedAddresses--;
+                }
+                if (whitelistExpirations[slot] != 0L && whitelistExpirations[slot] <= now) {
+                    whitelistExpirations[slot] = 0L;
+                    LogUtil.println("removed %s from dynamic whitelist", IpUtil.addressAsString(address));
+                }
+                removeIfUnused(slot);
+            }
+        }
+    }
+
+    private static AddressEntry entryForInsertion(byte[] address) {
+
+        // The address is copied, so the key cannot be changed by the caller.
+        ByteBuffer key = ByteBuffer.wrap(address);
+        AddressEntry entry = otherAddresses.get(key);
+        if (entry == null) {
+            entry = new AddressEntry();
+            otherAddresses.put(ByteBuffer.wrap(Arrays.copyOf(address, address.length)), entry);
+            insertions.increment();
+        }
+
+        return entry;
+    }
+
+    private static void removeIfUnused(ByteBuffer key, AddressEntry entry) {
+
+        if (entry.isUnused()) {
+            otherAddresses.remove(key);
+            removals.increment();
+        }
+    }
+
+    private static void expireOtherAddresses(long now) {
+
+        Iterator<Map.Entry<ByteBuffer, AddressEntry>> iterator = otherAddresses.entrySet().iterator();
+        while (iterator.hasNext()) {
+            AddressEntry entry = iterator.next().getValue();
+            if (entry.blacklistExpiration != 0L && entry.blacklistExpiration <= now) {
+                entry.blacklistExpiration = 0L;
+                numberOfBlacklistedAddresses--;
+            }
+            if (entry.whitelistExpiration != 0L && entry.whitelistExpiration <= now) {
+                entry.whitelistExpiration = 0L;
+            }
+            if (entry.isUnused()) {
+                iterator.remove();
+                removals.increment();
+            }
+        }
+    }
+
+    private static long nextExpiration(int slot, long now) {
+
+        // This is the earliest expiration that has not passed, or zero if none remain. Expirations that have passed
+        // are scheduled for the next tick.
+        long blacklistExpiration = blacklistExpirations[slot];
+        long whitelistExpiration = whitelistExpirations[slot];
+        long expiration;
+        if (blacklistExpiration == 0L) {
+            expiration = whitelistExpiration;
+        } else if (whitelistExpiration == 0L) {
+            expiration = blacklistExpiration;
+        } else {
+            expiration = Math.min(blacklistExpiration, whitelistExpiration);
+        }
+
+        return expiration == 0L ? 0L : Math.max(expiration, now);
+    }
+
+    private static int hash(int address) {
+
+        // This is the finalizer of MurmurHash3, which spreads nearby addresses across the table.
+        int hash = address;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+
+        return hash;
+    }
+}
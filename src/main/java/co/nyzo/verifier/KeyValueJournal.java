@@ -0,0 +1,314 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.ThreadUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+public class KeyValueJournal {
+
+    // This is a small key-value store that is held entirely in memory. Each put updates the map immediately and is
+    // queued for the journal. A background thread appends queued puts to the journal at a regular interval, so many
+    // puts of the same key within the interval result in a single record, and each batch is synced to disk with a
+    // single call. When the journal has grown well beyond the number of keys, the data is compacted into the snapshot
+    // file and the journal is truncated. The journal file is opened when the first batch is written, so a store that
+    // is only read does not create it.
+
+    // The snapshot file uses the same key=value format as the original persistent data file, so existing files are
+    // loaded without conversion. Each journal record is a line with a CRC-32 prefix: "crc32hex key=value". On
+    // startup, the snapshot is loaded and the journal is replayed to the last complete, valid record. Anything after
+    // that record is the result of an interrupted write, and it is truncated.
+
+    private static final int minimumCompactionRecords = 1000;
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final long coalesceInterval;
+
+    private final Map<String, String> dataMap = new ConcurrentHashMap<>();
+    private final Map<String, String> pendingWrites = new LinkedHashMap<>();
+    private final Map<String, String> journaledMap = new HashMap<>();
+    private final Object writeLock = new Object();
+
+    private FileOutputStream journalStream = null;
+    private int journalRecordCount = 0;
+    private boolean closed = false;
+
+    public KeyValueJournal(File snapshotFile, File journalFile, long coalesceInterval) {
+
+        this.snapshotFile = snapshotFile;
+        this.journalFile = journalFile;
+        this.coalesceInterval = coalesceInterval;
+
+        loadSnapshot();
+        replayJournal();
+        journaledMap.putAll(dataMap);
+
+        startWriterThread();
+    }
+
+    private void loadSnapshot() {
+
+        Path path = Paths.get(snapshotFile.getAbsolutePath());
+        if (snapshotFile.exists()) {
+            try {
+                List<String> contentsOfFile = Files.readAllLines(path);
+                for (String line : contentsOfFile) {
+                    try {
+                        line = line.trim();
+                        int indexOfHash = line.indexOf("#");
+                        if (indexOfHash >= 0) {
+                            line = line.substring(0, indexOfHash).trim();
+                        }
+                        applyLine(line);
+                    } catch (Exception e) {
+                        System.out.println("issue loading line from " + snapshotFile.getName() + ": " + line);
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("issue getting " + snapshotFile.getName() + ": " + PrintUtil.printException(e));
+            }
+        } else {
+            System.out.println("skipping loading of " + snapshotFile.getName() + "; file not present");
+        }
+    }
+
+    private void replayJournal() {
+
+        if (journalFile.exists()) {
+            try {
+                byte[] bytes = Files.readAllBytes(Paths.get(journalFile.getAbsolutePath()));
+
+                // Apply records until the end of the file or the first incomplete or invalid record.
+                int validLength = 0;
+                boolean valid = true;
+                while (valid && validLength < bytes.length) {
+                    int lineEnd = validLength;
+                    while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+                        lineEnd++;
+                    }
+
+                    valid = lineEnd < bytes.length;
+                    if (valid) {
+                        String line = new String(bytes, validLength, lineEnd - validLength, StandardCharsets.UTF_8);
+                        String record = recordFromLine(line);
+                        if (record == null) {
+                            valid = false;
+                        } else {
+                            applyLine(record);
+                            journalRecordCount++;
+                            validLength = lineEnd + 1;
+                        }
+                    }
+                }
+
+                if (validLength < bytes.length) {
+                    LogUtil.println("discarding " + (bytes.length - validLength) + " bytes of incomplete records " +
+                            "from " + journalFile.getName());
+                    FileOutputStream outputStream = new FileOutputStream(journalFile, true);
+                    outputStream.getChannel().truncate(validLength);
+                    outputStream.getFD().sync();
+                    outputStream.close();
+                }
+            } catch (Exception e) {
+                System.out.println("issue replaying " + journalFile.getName() + ": " + PrintUtil.printException(e));
+            }
+        }
+    }
+
+    private void applyLine(String line) {
+
+        int splitIndex = line.indexOf("=");
+        if (splitIndex > 0) {
+            String key = line.substring(0, splitIndex).trim().toLowerCase();
+            String value = line.substring(splitIndex + 1).trim();
+            dataMap.put(key, value);
+        }
+    }
+
+    private static String recordFromLine(String line) {
+
+        String record = null;
+        int spaceIndex = line.indexOf(' ');
+        if (spaceIndex == 8) {
+            try {
+                long checksum = Long.parseLong(line.substring(0, spaceIndex), 16);
+                String candidate = line.substring(spaceIndex + 1);
+                if (checksum == checksum(candidate)) {
+                    record = candidate;
+                }
+            } catch (Exception ignored) { }
+        }
+
+        return record;
+    }
+
+    private static String lineForRecord(String key, String value) {
+
+        String record = key + "=" + value;
+        return String.format("%08x %s\n", checksum(record), record);
+    }
+
+    private static long checksum(String record) {
+
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    private void openJournal() {
+
+        try {
+            journalFile.getParentFile().mkdirs();
+            journalStream = new FileOutputStream(journalFile, true);
+        } catch (Exception e) {
+            LogUtil.println("unable to open " + journalFile.getName() + ": " + PrintUtil.printException(e));
+        }
+    }
+
+    private void startWriterThread() {
+
+        ThreadUtil.startLongRunning(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    try {
+                        synchronized (pendingWrites) {
+                            if (pendingWrites.isEmpty()) {
+                                pendingWrites.wait();
+                            }
+                        }
+
+                        // Wait for the coalescing interval to allow further puts to be combined into this batch.
+                        Thread.sleep(coalesceInterval);
+                        flush();
+                    } catch (Exception ignored) { }
+                }
+            }
+        }, "KeyValueJournal-" + journalFile.getName(), true);
+    }
+
+    public String get(String key) {
+        return dataMap.get(key.toLowerCase());
+    }
+
+    public Map<String, String> getAll() {
+        return new HashMap<>(dataMap);
+    }
+
+    public void put(String key, String value) {
+
+        dataMap.put(key, value);
+        synchronized (pendingWrites) {
+            pendingWrites.put(key, value);
+            pendingWrites.notifyAll();
+        }
+    }
+
+    public void flush() {
+
+        synchronized (writeLock) {
+
+            Map<String, String> batch;
+            synchronized (pendingWrites) {
+                batch = new LinkedHashMap<>(pendingWrites);
+                pendingWrites.clear();
+            }
+
+            if (!batch.isEmpty() && !closed && journalStream == null) {
+                openJournal();
+            }
+
+            if (!batch.isEmpty() && journalStream != null) {
+                StringBuilder lines = new StringBuilder();
+                for (Map.Entry<String, String> entry : batch.entrySet()) {
+                    lines.append(lineForRecord(entry.getKey(), entry.getValue()));
+                }
+
+                try {
+                    journalStream.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+                    journalStream.getFD().sync();
+                    journaledMap.putAll(batch);
+                    journalRecordCount += batch.size();
+                } catch (Exception e) {
+                    LogUtil.println("unable to write " + journalFile.getName() + ": " + PrintUtil.printException(e));
+                }
+
+                if (journalRecordCount >= Math.max(minimumCompactionRecords, journaledMap.size() * 4)) {
+                    compact();
+                }
+            }
+        }
+    }
+
+    private void compact() {
+
+        // The snapshot is written from the journaled state, not the in-memory map, so that a crash between writing
+        // the snapshot and truncating the journal leaves the journal consistent with the snapshot.
+        List<String> lines = new ArrayList<>();
+        for (String key : journaledMap.keySet()) {
+            lines.add(key + "=" + journaledMap.get(key));
+        }
+
+        if (journalStream == null) {
+            openJournal();
+        }
+
+        File temporaryFile = new File(snapshotFile.getAbsolutePath() + "_temp");
+        try {
+            FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+            outputStream.write((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+            outputStream.getFD().sync();
+            outputStream.close();
+            Files.move(Paths.get(temporaryFile.getAbsolutePath()), Paths.get(snapshotFile.getAbsolutePath()),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            journalStream.getChannel().truncate(0L);
+            journalStream.getFD().sync();
+            journalRecordCount = 0;
+        } catch (Exception e) {
+            LogUtil.println("unable to compact " + journalFile.getName() + ": " + PrintUtil.printException(e));
+        }
+    }
+
+    public void reset() {
+
+        synchronized (writeLock) {
+            synchronized (pendingWrites) {
+                pendingWrites.clear();
+            }
+            dataMap.clear();
+            journaledMap.clear();
+            compact();
+        }
+    }
+
+    public void close() {
+
+        flush();
+        synchronized (writeLock) {
+            closed = true;
+            try {
+                journalStream.close();
+            } catch (Exception ignored) { }
+            journalStream = null;
+        }
+        synchronized (pendingWrites) {
+            pendingWrites.notifyAll();
+        }
+    }
+
+    public int getJournalRecordCount() {
+        return journalRecordCount;
+    }
+}
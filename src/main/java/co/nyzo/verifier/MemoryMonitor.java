@@ -16,7 +16,7 @@ public class MemoryMonitor {
 
     private static void start() {
 
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
 
@@ -31,7 +31,7 @@ public class MemoryMonitor {
                     ThreadUtil.sleep(3000L);
                 }
             }
-        }).start();
+        }, "MemoryMonitor");
     }
 
     public static String getMemoryStats() {
@@ -2,6 +2,8 @@ package co.nyzo.verifier;
 
 import co.nyzo.verifier.messages.*;
 import co.nyzo.verifier.messages.debug.*;
+import co.nyzo.verifier.metrics.LatencyHistogram;
+import co.nyzo.verifier.metrics.MetricsRegistry;
 import co.nyzo.verifier.util.*;
 
 import java.net.DatagramPacket;
@@ -10,11 +12,10 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.BiFunction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class MeshListener {
 
@@ -50,9 +51,8 @@ public class MeshListener {
         return minimumConnectionThreshold;
     }
 
-    private static int ipMapSize = 0;
     public static int getIpMapSize() {
-        return ipMapSize;
+        return IpReputationTable.getNumberOfAddressesWithMeshConnections();
     }
 
     // The only messages sent via UDP right now are BlockVote19, NewVerifierVote21, and MinimalBlock_51. Of these,
@@ -74,6 +74,20 @@ public class MeshListener {
     private static int blockVoteTcpCount = 0;
     private static int blockVoteUdpCount = 0;
 
+    // Handling time is recorded for each message type. A histogram is registered on the first message of each type,
+    // and later messages of that type only read the array.
+    private static final AtomicReferenceArray<LatencyHistogram> messageHandlingTimes =
+            new AtomicReferenceArray<>(MessageType.values().length);
+    static {
+        MetricsRegistry.gauge("nyzo_mesh_messages_accepted", numberOfMessagesAccepted::get);
+        MetricsRegistry.gauge("nyzo_mesh_messages_rejected", numberOfMessagesRejected::get);
+        MetricsRegistry.gauge("nyzo_block_votes_received", "transport", "tcp", () -> blockVoteTcpCount);
+        MetricsRegistry.gauge("nyzo_block_votes_received", "transport", "udp", () -> blockVoteUdpCount);
+        MetricsRegistry.gauge("nyzo_udp_messages_rejected", StatusResponse::getUdpRejectionCount);
+        MetricsRegistry.gauge("nyzo_udp_messages_discarded", StatusResponse::getUdpDiscardCount);
+        MetricsRegistry.gauge("nyzo_pings_received", StatusResponse::getPingCount);
+    }
+
     private static final DatagramPacket[] datagramPackets = new DatagramPacket[numberOfDatagramPackets];
     static {
         for (int i = 0; i < numberOfDatagramPackets; i++) {
@@ -106,17 +120,6 @@ public class MeshListener {
         return portUdp;
     }
 
-    private static final BiFunction<Integer, Integer, Integer> mergeFunction =
-            new BiFunction<Integer, Integer, Integer>() {
-                @Override
-                public Integer apply(Integer integer0, Integer integer1) {
-                    int value0 = integer0 == null ? 0 : integer0;
-                    int value1 = integer1 == null ? 0 : integer1;
-                    int sum = value0 + value1;
-                    return sum == 0 ? null : sum;
-                }
-            };
-
     public static void start() {
 
         if (!aliveTcp.getAndSet(true)) {
@@ -130,10 +133,9 @@ public class MeshListener {
 
     public static void startSocketThreadTcp() {
 
-        Map<ByteBuffer, Integer> connectionsPerIp = new ConcurrentHashMap<>();
         AtomicInteger activeReadThreads = new AtomicInteger(0);
 
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -143,7 +145,7 @@ public class MeshListener {
                     while (!UpdateUtil.shouldTerminate()) {
                         try {
                             Socket clientSocket = serverSocketTcp.accept();
-                            processSocket(clientSocket, activeReadThreads, connectionsPerIp);
+                            processSocket(clientSocket, activeReadThreads);
                         } catch (Exception ignored) { }
                     }
 
@@ -157,12 +159,12 @@ public class MeshListener {
 
                 aliveTcp.set(false);
             }
-        }, "MeshListener-serverSocketTcp").start();
+        }, "MeshListener-serverSocketTcp");
     }
 
     private static void startSocketThreadUdp() {
 
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -197,9 +199,9 @@ public class MeshListener {
 
                 aliveUdp.set(false);
             }
-        }, "MeshListener-datagramSocketUdp").start();
+        }, "MeshListener-datagramSocketUdp");
 
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
                 while (!UpdateUtil.shouldTerminate()) {
@@ -222,9 +224,9 @@ public class MeshListener {
                                 processMinimalBlockMessage(packetData);
                             } else {
                                 // Do some simple checks to avoid reading the message if it will not be used.
-                                ByteBuffer sourceIpAddress = ByteBuffer.wrap(packet.getAddress().getAddress());
-                                if (BlacklistManager.inBlacklist(sourceIpAddress) ||
-                                        !NodeManager.ipAddressInCycle(sourceIpAddress)) {
+                                byte[] sourceIpAddress = packet.getAddress().getAddress();
+                                if (sourceIpAddress.length != 4 || BlacklistManager.inBlacklist(sourceIpAddress) ||
+                                        !NodeManager.ipAddressInCycle(IpUtil.addressAsInt(sourceIpAddress))) {
                                     numberOfMessagesRejected.incrementAndGet();
                                     StatusResponse.incrementUdpRejectionCount();
                                 } else {
@@ -238,7 +240,7 @@ public class MeshListener {
                     }
                 }
             }
-        }, "MeshListener-udpProcessingQueue").start();
+        }, "MeshListener-udpProcessingQueue");
     }
 
     private static void processMinimalBlockMessage(byte[] packetData) {
@@ -295,16 +297,15 @@ public class MeshListener {
         }
     }
 
-    private static void processSocket(Socket clientSocket, AtomicInteger activeReadThreads,
-                                      Map<ByteBuffer, Integer> connectionsPerIp) {
+    private static void processSocket(Socket clientSocket, AtomicInteger activeReadThreads) {
 
         byte[] ipAddress = clientSocket.getInetAddress().getAddress();
         if (BlacklistManager.inBlacklist(ipAddress)) {
             numberOfMessagesRejected.incrementAndGet();
             ConnectionManager.fastCloseSocket(clientSocket);
         } else {
-            ByteBuffer ipBuffer = ByteBuffer.wrap(ipAddress);
-            int connectionsForIp = connectionsPerIp.merge(ipBuffer, 1, mergeFunction);
+            int connectionsForIp = IpReputationTable.incrementConnections(ipAddress,
+                    IpReputationTable.ConnectionType.Mesh);
             int connections = activeReadThreads.get();
             int maximumConcurrentConnectionsPerIp = (int) Math.max(1.0, maximumConcurrentConnectionsPerIpAbsolute -
                     Math.max(0, (connections - concurrentConnectionThrottleThreshold) *
@@ -322,7 +323,7 @@ public class MeshListener {
                 }
 
                 // Decrement the counter and close the socket without responding.
-                connectionsPerIp.merge(ipBuffer, -1, mergeFunction);
+                IpReputationTable.decrementConnections(ipAddress, IpReputationTable.ConnectionType.Mesh);
                 ConnectionManager.fastCloseSocket(clientSocket);
 
             } else {
@@ -330,7 +331,7 @@ public class MeshListener {
                 // Read the message and respond.
                 numberOfMessagesAccepted.incrementAndGet();
                 maximumActiveReadThreads = Math.max(maximumActiveReadThreads, activeReadThreads.incrementAndGet());
-                new Thread(new Runnable() {
+                boolean accepted = ThreadUtil.execute(new Runnable() {
                     @Override
                     public void run() {
 
@@ -340,14 +341,19 @@ public class MeshListener {
                         } catch (Exception ignored) { }
 
                         // Decrement the counter for this IP and the counter of active read threads.
-                        connectionsPerIp.merge(ipBuffer, -1, mergeFunction);
+                        IpReputationTable.decrementConnections(ipAddress, IpReputationTable.ConnectionType.Mesh);
                         activeReadThreads.decrementAndGet();
                     }
-                }, "MeshListener-clientSocketTcp").start();
+                }, "MeshListener-clientSocketTcp");
+
+                // If the executor is saturated, the connection is closed without a response to shed load.
+                if (!accepted) {
+                    IpReputationTable.decrementConnections(ipAddress, IpReputationTable.ConnectionType.Mesh);
+                    activeReadThreads.decrementAndGet();
+                    ConnectionManager.fastCloseSocket(clientSocket);
+                }
             }
         }
-
-        ipMapSize = connectionsPerIp.size();
     }
 
     private static void readMessageAndRespond(Socket clientSocket) {
@@ -420,6 +426,7 @@ public class MeshListener {
 
         // This is the single point of dispatch for responding to all received messages.
 
+        long startTimestamp = System.nanoTime();
         Message response = null;
         try {
             // Many actions are taken inside this block as a result of messages. Therefore, we only want to continue if
@@ -526,6 +533,11 @@ public class MeshListener {
                     long height = ((BlockWithVotesRequest) message.getContent()).getHeight();
                     response = new Message(MessageType.BlockWithVotesResponse38, new BlockWithVotesResponse(height));
 
+                } else if (messageType == MessageType.BlockWithVotesCompactRequest55) {
+
+                    response = new Message(MessageType.BlockWithVotesCompactResponse56,
+                            new BlockWithVotesCompactResponse((BlockWithVotesCompactRequest) message.getContent()));
+
                 } else if (messageType == MessageType.VerifierRemovalVote39) {
 
                     VerifierRemovalManager.registerVote(message.getSourceNodeIdentifier(),
@@ -609,6 +621,8 @@ public class MeshListener {
                     response = new Message(MessageType.BlockDelayResponse423, BlockDelayResponse.forRequest(message));
                 } else if (messageType == MessageType.WhitelistRequest424) {
                     response = new Message(MessageType.WhitelistResponse425, WhitelistResponse.forRequest(message));
+                } else if (messageType == MessageType.MetricsRequest426) {
+                    response = new Message(MessageType.MetricsResponse427, new MetricsResponse(message));
                 } else if (messageType == MessageType.ResetRequest500) {
 
                     boolean success = ByteUtil.arraysAreEqual(message.getSourceNodeIdentifier(),
@@ -640,9 +654,24 @@ public class MeshListener {
             response = new Message(MessageType.Error65534, new ErrorMessage(errorMessage));
         }
 
+        if (message != null && message.getType() != null) {
+            messageHandlingTime(message.getType()).recordSince(startTimestamp);
+        }
+
         return response;
     }
 
+    private static LatencyHistogram messageHandlingTime(MessageType messageType) {
+
+        LatencyHistogram histogram = messageHandlingTimes.get(messageType.ordinal());
+        if (histogram == null) {
+            histogram = MetricsRegistry.histogram("nyzo_message_handling_seconds", "type", messageType.name());
+            messageHandlingTimes.set(messageType.ordinal(), histogram);
+        }
+
+        return histogram;
+    }
+
     public static long getNumberOfMessagesRejected() {
 
         return numberOfMessagesRejected.get();
@@ -3,11 +3,14 @@ package co.nyzo.verifier;
 import co.nyzo.verifier.client.ClientNodeManager;
 import co.nyzo.verifier.messages.*;
 import co.nyzo.verifier.messages.debug.*;
+import co.nyzo.verifier.metrics.MetricsCounter;
+import co.nyzo.verifier.metrics.MetricsRegistry;
 import co.nyzo.verifier.sentinel.Sentinel;
 import co.nyzo.verifier.util.IpUtil;
 import co.nyzo.verifier.util.LogUtil;
 import co.nyzo.verifier.util.PrintUtil;
 import co.nyzo.verifier.util.SignatureUtil;
+import co.nyzo.verifier.util.ThreadUtil;
 
 import java.io.BufferedInputStream;
 import java.io.InputStream;
@@ -20,23 +23,35 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Message {
 
     private static final long maximumMessageLength = 4194304;  // 4 MB
-    private static final Set<ByteBuffer> whitelist = ConcurrentHashMap.newKeySet();
     private static final Set<MessageType> disallowedNonCycleTypes = new HashSet<>(Arrays.asList(MessageType.BlockVote19,
             MessageType.NewVerifierVote21, MessageType.MissingBlockVoteRequest23, MessageType.MissingBlockRequest25));
     private static final Set<MessageType> udpTypes = new HashSet<>(Arrays.asList(MessageType.BlockVote19,
             MessageType.NewVerifierVote21));
+
+    // Hedging is only used for requests with small responses. For these types, the response may be hundreds of
+    // kilobytes to megabytes, so a second fetch after a delay measured on small messages would duplicate a large
+    // download that is still in progress.
+    private static final Set<MessageType> unhedgedTypes = new HashSet<>(Arrays.asList(MessageType.BlockRequest11,
+            MessageType.MeshRequest15, MessageType.BootstrapRequestV2_35, MessageType.FullMeshRequest41,
+            MessageType.FrozenEdgeBalanceListRequest45, MessageType.BlockWithVotesCompactRequest55));
     public static final long replayProtectionInterval = 5000L;
 
-    private static final Map<ByteBuffer, Long> dynamicWhitelist = new ConcurrentHashMap<>();
+    // The static whitelist and the dynamic whitelist are held in the IP reputation table.
     public static final long dynamicWhitelistInterval = 1000L * 60L * 10L;  // 10 minutes
 
     private static boolean allowUnsafeMessages = false;
 
+    private static final MetricsCounter hedgedFetches = MetricsRegistry.counter("nyzo_random_fetches_hedged");
+    private static final MetricsCounter hedgedFetchWins = MetricsRegistry.counter("nyzo_random_fetch_hedge_wins");
+
     private static DatagramSocket datagramSocket;
     static {
         try {
@@ -153,6 +168,7 @@ public class Message {
     public static void fetchFromRandomNode(Message message, MessageCallback messageCallback) {
 
         Node node;
+        boolean verifierMode = false;
         switch (RunMode.getRunMode()) {
             case Client:
                 node = ClientNodeManager.randomNode();
@@ -162,7 +178,8 @@ public class Message {
                 break;
             case Verifier:
             default:
-                node = randomNode(message.getType());
+                node = PeerQualityTracker.selectNode(NodeManager.getCycleSnapshot(), Verifier.getIdentifier(), null);
+                verifierMode = true;
                 break;
         }
 
@@ -171,24 +188,80 @@ public class Message {
         } else {
             LogUtil.println("trying to fetch " + message.getType() + " from " +
                     NicknameManager.get(node.getIdentifier()));
-            fetch(node, message, messageCallback);
+            if (verifierMode && messageCallback != null && !udpTypes.contains(message.getType()) &&
+                    !unhedgedTypes.contains(message.getType()) && PeerQualityTracker.isHedgingEnabled()) {
+                fetchWithHedge(node, message, messageCallback);
+            } else {
+                fetch(node, message, messageCallback);
+            }
         }
     }
 
-    private static Node randomNode(MessageType messageType) {
+    private static void fetchWithHedge(Node node, Message message, MessageCallback messageCallback) {
+
+        // The message is sent to the selected node. If that fetch fails, or if it has not completed by the 95th-
+        // percentile fetch time of the node, the message is also sent to a second node. An error response counts as a
+        // failure. The first successful response is passed to the callback, and a null or error response is only
+        // passed if both fetches fail, so the callback is called exactly once, as with fetchTcp().
+        if (isSafeToSend(message)) {
+            AtomicBoolean delivered = new AtomicBoolean(false);
+            AtomicInteger remaining = new AtomicInteger(2);
+            CountDownLatch primaryComplete = new CountDownLatch(1);
+            long hedgeDelay = PeerQualityTracker.hedgeDelay(node);
+
+            // If the executor rejects a fetch, that fetch is treated as failed.
+            if (!ThreadUtil.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Message response = fetchTcpBlocking(IpUtil.addressAsString(node.getIpAddress()),
+                            node.getPortTcp(), message);
+                    deliverHedgedResponse(response, delivered, remaining, messageCallback);
+                    primaryComplete.countDown();
+                }
+            }, "Message-fetch-" + message)) {
+                deliverHedgedResponse(null, delivered, remaining, messageCallback);
+                primaryComplete.countDown();
+            }
+
+            if (!ThreadUtil.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        primaryComplete.await(hedgeDelay, TimeUnit.MILLISECONDS);
+                    } catch (Exception ignored) { }
 
-        Node node = null;
-        List<Node> mesh = NodeManager.getCycle();
-        Random random = new Random();
-        while (node == null && !mesh.isEmpty()) {
-            Node meshNode = mesh.remove(random.nextInt(mesh.size()));
-            ByteBuffer nodeIdentifierBuffer = ByteBuffer.wrap(meshNode.getIdentifier());
-            if (!ByteUtil.arraysAreEqual(meshNode.getIdentifier(), Verifier.getIdentifier())) {
-                node = meshNode;
+                    Message response = null;
+                    if (!delivered.get()) {
+                        Node hedgeNode = PeerQualityTracker.selectNode(NodeManager.getCycleSnapshot(),
+                                Verifier.getIdentifier(), node);
+                        if (hedgeNode != null) {
+                            hedgedFetches.increment();
+                            response = fetchTcpBlocking(IpUtil.addressAsString(hedgeNode.getIpAddress()),
+                                    hedgeNode.getPortTcp(), message);
+                        }
+                    }
+                    if (deliverHedgedResponse(response, delivered, remaining, messageCallback)) {
+                        hedgedFetchWins.increment();
+                    }
+                }
+            }, "Message-hedge-" + message)) {
+                deliverHedgedResponse(null, delivered, remaining, messageCallback);
             }
         }
+    }
+
+    private static boolean deliverHedgedResponse(Message response, AtomicBoolean delivered, AtomicInteger remaining,
+                                                 MessageCallback messageCallback) {
+
+        // This returns true if a successful response was passed to the callback.
+        boolean last = remaining.decrementAndGet() == 0;
+        boolean successful = response != null && response.getType() != MessageType.Error65534;
+        boolean deliver = (successful || last) && delivered.compareAndSet(false, true);
+        if (deliver) {
+            MessageQueue.add(messageCallback, response);
+        }
 
-        return node;
+        return deliver && successful;
     }
 
     public static void fetch(Node node, Message message, MessageCallback messageCallback) {
@@ -204,59 +277,93 @@ public class Message {
 
         // Unless the option to allow unsafe messages is activated, do not send a message that might get this IP
         // blacklisted.
-        if (allowUnsafeMessages ||
-                BlockManager.verifierInOrNearCurrentCycle(ByteBuffer.wrap(message.getSourceNodeIdentifier())) ||
-                        BlockManager.inGenesisCycle() || !disallowedNonCycleTypes.contains(message.getType())) {
+        if (isSafeToSend(message)) {
 
-            new Thread(new Runnable() {
+            // If the executor rejects the fetch, the callback receives a null response, as for a failed fetch.
+            if (!ThreadUtil.execute(new Runnable() {
                 @Override
                 public void run() {
-                    Socket socket = new Socket();
-                    try {
-                        socket.connect(new InetSocketAddress(hostNameOrIp, port), 2000);
-                    } catch (Exception e) {
-                        if (socket.isConnected()) {
-                            ConnectionManager.fastCloseSocket(socket);
-                        }
-                        socket = null;
+                    Message response = fetchTcpBlocking(hostNameOrIp, port, message);
+                    if (messageCallback != null) {
+                        MessageQueue.add(messageCallback, response);
                     }
+                }
+            }, "Message-fetch-" + message) && messageCallback != null) {
+                MessageQueue.add(messageCallback, null);
+            }
+        }
+    }
 
-                    Message response = null;
-                    if (socket == null) {
-                        NodeManager.markFailedConnection(hostNameOrIp);
-                    } else {
-                        NodeManager.markSuccessfulConnection(hostNameOrIp);
-
-                        try {
-                            OutputStream outputStream = socket.getOutputStream();
-                            outputStream.write(message.getBytesForTransmission());
-
-                            socket.setSoTimeout(1000);
-                            response = readFromStream(socket.getInputStream(), socket.getInetAddress().getAddress(),
-                                    message.getType());
-                        } catch (Exception reportOnly) {
-                            System.err.println("Exception sending message " + message.getType() + " to " +
-                                    hostNameOrIp + ":" + port + ": " + PrintUtil.printException(reportOnly));
-                        }
+    public static Message fetchTcpBlocking(String hostNameOrIp, int port, Message message) {
 
-                        ConnectionManager.fastCloseSocket(socket);
-                    }
+        // This sends the message and waits for the response on the calling thread. It is for callers that manage their
+        // own threads, such as senders that pace the messages to a single node. The response is null if the message was
+        // not sent or a valid, timely response was not received. The connect time, response time, outcome, and bytes
+        // of each fetch are recorded in the peer-quality tracker.
+        Message response = null;
+        if (isSafeToSend(message)) {
+            long startTimestamp = System.currentTimeMillis();
+            long connectMilliseconds;
+            long responseMilliseconds = -1L;
+            long bytes = 0L;
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(hostNameOrIp, port), 2000);
+            } catch (Exception e) {
+                if (socket.isConnected()) {
+                    ConnectionManager.fastCloseSocket(socket);
+                }
+                socket = null;
+            }
 
-                    if (messageCallback != null) {
-                        if (response != null && response.isValid() &&
-                                ((response.getTimestamp() >= System.currentTimeMillis() - replayProtectionInterval &&
-                                        response.getTimestamp() <= System.currentTimeMillis() +
-                                                replayProtectionInterval) ||
-                                        response.getType() == MessageType.TimestampResponse28 ||
-                                        response.getType() == MessageType.Error65534)) {
-                            MessageQueue.add(messageCallback, response);
-                        } else {
-                            MessageQueue.add(messageCallback, null);
-                        }
+            connectMilliseconds = System.currentTimeMillis() - startTimestamp;
+
+            if (socket == null) {
+                NodeManager.markFailedConnection(hostNameOrIp);
+            } else {
+                NodeManager.markSuccessfulConnection(hostNameOrIp);
+
+                long requestTimestamp = System.currentTimeMillis();
+                try {
+                    OutputStream outputStream = socket.getOutputStream();
+                    byte[] messageBytes = message.getBytesForTransmission();
+                    outputStream.write(messageBytes);
+                    bytes += messageBytes.length;
+
+                    socket.setSoTimeout(1000);
+                    byte[] responseBytes = getResponse(socket.getInputStream());
+                    bytes += responseBytes.length;
+                    if (responseBytes.length > 0) {
+                        response = fromBytes(responseBytes, socket.getInetAddress().getAddress(), false);
                     }
+                } catch (Exception reportOnly) {
+                    System.err.println("Exception sending message " + message.getType() + " to " +
+                            hostNameOrIp + ":" + port + ": " + PrintUtil.printException(reportOnly));
                 }
-            }, "Message-fetch-" + message).start();
+                responseMilliseconds = System.currentTimeMillis() - requestTimestamp;
+
+                ConnectionManager.fastCloseSocket(socket);
+            }
+
+            if (response != null && !(response.isValid() &&
+                    ((response.getTimestamp() >= System.currentTimeMillis() - replayProtectionInterval &&
+                            response.getTimestamp() <= System.currentTimeMillis() + replayProtectionInterval) ||
+                            response.getType() == MessageType.TimestampResponse28 ||
+                            response.getType() == MessageType.Error65534))) {
+                response = null;
+            }
+
+            PeerQualityTracker.record(hostNameOrIp, connectMilliseconds, responseMilliseconds, response != null,
+                    bytes);
         }
+
+        return response;
+    }
+
+    private static boolean isSafeToSend(Message message) {
+        return allowUnsafeMessages ||
+                BlockManager.verifierInOrNearCurrentCycle(ByteBuffer.wrap(message.getSourceNodeIdentifier())) ||
+                BlockManager.inGenesisCycle() || !disallowedNonCycleTypes.contains(message.getType());
     }
 
     public static void sendUdp(byte[] ipAddress, int port, Message message) {
@@ -518,6 +625,10 @@ public class Message {
                 return MinimalBlock.fromByteBuffer(buffer);
             case IpAddressResponse54:
                 return IpAddressMessageObject.fromByteBuffer(buffer);
+            case BlockWithVotesCompactRequest55:
+                return BlockWithVotesCompactRequest.fromByteBuffer(buffer);
+            case BlockWithVotesCompactResponse56:
+                return BlockWithVotesCompactResponse.fromByteBuffer(buffer);
             case PingResponse201:
                 return PingResponse.fromByteBuffer(buffer);
             case UpdateResponse301:
@@ -544,6 +655,8 @@ public class Message {
                 return IpAddressMessageObject.fromByteBuffer(buffer);
             case WhitelistResponse425:
                 return WhitelistResponse.fromByteBuffer(buffer);
+            case MetricsResponse427:
+                return MetricsResponse.fromByteBuffer(buffer);
             case ResetResponse501:
                 return BooleanMessageResponse.fromByteBuffer(buffer);
             case Error65534:
@@ -634,7 +747,7 @@ public class Message {
                     }
                     byte[] address = IpUtil.addressFromString(line);
                     if (address != null) {
-                        whitelist.add(ByteBuffer.wrap(address));
+                        IpReputationTable.addStaticWhitelist(address);
                         System.out.println("added IP " + IpUtil.addressAsString(address) + " to whitelist");
                     }
                 }
@@ -647,25 +760,22 @@ public class Message {
     }
 
     public static boolean ipIsWhitelisted(byte[] ipAddress) {
-        ByteBuffer ipAddressBuffer = ByteBuffer.wrap(ipAddress);
-        return whitelist.contains(ipAddressBuffer) || dynamicWhitelist.keySet().contains(ipAddressBuffer);
+        return IpReputationTable.isWhitelisted(ipAddress);
+    }
+
+    public static boolean ipIsWhitelisted(int ipAddress) {
+        return IpReputationTable.isWhitelisted(ipAddress);
     }
 
     public static void whitelistIpAddress(byte[] ipAddress) {
-        dynamicWhitelist.put(ByteBuffer.wrap(ipAddress), System.currentTimeMillis());
+        IpReputationTable.whitelistDynamically(ipAddress, dynamicWhitelistInterval);
         LogUtil.println("added " + IpUtil.addressAsString(ipAddress) + " to dynamic whitelist");
     }
 
     public static void performMaintenance() {
-        // Remove stale entries from the dynamic whitelist.
-        Set<ByteBuffer> ipAddresses = new HashSet<>(dynamicWhitelist.keySet());
-        long threshold = System.currentTimeMillis() - dynamicWhitelistInterval;
-        for (ByteBuffer ipAddress : ipAddresses) {
-            if (dynamicWhitelist.getOrDefault(ipAddress, 0L) < threshold) {
-                dynamicWhitelist.remove(ipAddress);
-                LogUtil.println("removed " + IpUtil.addressAsString(ipAddress.array()) + " from dynamic whitelist");
-            }
-        }
+        // Remove expired entries from the dynamic whitelist and the blacklist. The table only visits the entries that
+        // are due to expire.
+        IpReputationTable.performMaintenance();
     }
 
     public static void setAllowUnsafeMessages(boolean allowUnsafeMessages) {
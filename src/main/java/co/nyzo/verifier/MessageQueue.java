@@ -1,6 +1,9 @@
 package co.nyzo.verifier;
 
+import co.nyzo.verifier.metrics.LatencyHistogram;
+import co.nyzo.verifier.metrics.MetricsRegistry;
 import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.ThreadUtil;
 import co.nyzo.verifier.util.UpdateUtil;
 
 import java.util.ArrayList;
@@ -14,13 +17,21 @@ public class MessageQueue {
 
     private MessageCallback callback;
     private Message message;
+    private long enqueueTimestamp;
 
     private MessageQueue(MessageCallback callback, Message message) {
         this.callback = callback;
         this.message = message;
+        this.enqueueTimestamp = System.nanoTime();
     }
 
     private static final List<MessageQueue> queue = new ArrayList<>();
+
+    // The wait is the time from adding a response to the queue to dispatching it to its callback.
+    private static final LatencyHistogram waitTime = MetricsRegistry.histogram("nyzo_message_queue_wait_seconds");
+    static {
+        MetricsRegistry.gauge("nyzo_message_queue_size", () -> queue.size());
+    }
     private static boolean shouldPrintZeroOnRemoval = false;
     private static String lastMessageStatus = "";
 
@@ -78,7 +89,7 @@ public class MessageQueue {
 
         LogUtil.println("starting message queue");
 
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
                 while (!UpdateUtil.shouldTerminate()) {
@@ -92,6 +103,7 @@ public class MessageQueue {
                         } catch (Exception ignored) { }
                     } else {
 
+                        waitTime.recordSince(next.enqueueTimestamp);
                         lastMessageStatus = "last message was " + next.message;
                         try {
                             lastMessageStatus += " invoking responseReceived";
@@ -105,6 +117,6 @@ public class MessageQueue {
                     MessageQueue.lastMessageStatus = lastMessageStatus;
                 }
             }
-        }, "MessageQueue-dispatchLoop").start();
+        }, "MessageQueue-dispatchLoop");
     }
 }
@@ -62,6 +62,8 @@ public enum MessageType {
     MinimalBlockResponse52(52),   // currently unused -- UDP-only message
     IpAddressRequest53(53),
     IpAddressResponse54(54),
+    BlockWithVotesCompactRequest55(55),
+    BlockWithVotesCompactResponse56(56),
 
     // test messages
     Ping200(200),
@@ -98,6 +100,8 @@ public enum MessageType {
     BlockDelayResponse423(423),
     WhitelistRequest424(424),
     WhitelistResponse425(425),
+    MetricsRequest426(426),  // gets the values of all registered metrics
+    MetricsResponse427(427),
 
     // bootstrapping messages
     ResetRequest500(500),   // resets the blockchain
@@ -0,0 +1,66 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.metrics.MetricsRegistry;
+import co.nyzo.verifier.util.PreferencesUtil;
+
+public class MissingDataRequestManager {
+
+    // The main loop asks for missing blocks, missing frozen blocks, and missing votes every 300 milliseconds. These
+    // requests are passed through a single coordinator, so a height that is still missing on the next pass does not
+    // produce another request while the first is in flight, and peers that are not answering are given progressively
+    // more time before the request is repeated. This keeps a stall from multiplying the load on the cycle.
+
+    private static final int maximumPerPeer = PreferencesUtil.getInt("missing_request_maximum_per_peer", 2);
+    private static final int maximumTotal = PreferencesUtil.getInt("missing_request_maximum_in_flight", 24);
+    private static final long initialBackOff = 500L;
+    private static final long maximumBackOff = 16000L;
+    private static final long requestTimeout = 5000L;
+
+    private static final RequestCoordinator coordinator = new RequestCoordinator(maximumPerPeer, maximumTotal,
+            initialBackOff, maximumBackOff, requestTimeout, System::currentTimeMillis,
+            new RequestCoordinator.Transport() {
+                @Override
+                public Node[] candidateNodes() {
+                    return NodeManager.getCycleSnapshot();
+                }
+
+                @Override
+                public byte[] localIdentifier() {
+                    return Verifier.getIdentifier();
+                }
+
+                @Override
+                public void fetch(Node node, MessageType type, MessageObject content, MessageCallback callback) {
+                    Message.fetch(node, new Message(type, content), callback);
+                }
+            });
+
+    static {
+        MetricsRegistry.gauge("nyzo_missing_requests_in_flight", "type", "block",
+                () -> coordinator.getNumberInFlight(MessageType.MissingBlockRequest25));
+        MetricsRegistry.gauge("nyzo_missing_requests_in_flight", "type", "frozen_blocks",
+                () -> coordinator.getNumberInFlight(MessageType.BlockRequest11));
+        MetricsRegistry.gauge("nyzo_missing_requests_in_flight", "type", "vote",
+                () -> coordinator.getNumberInFlight(MessageType.MissingBlockVoteRequest23));
+        MetricsRegistry.gauge("nyzo_missing_requests_backing_off", coordinator::getNumberBackingOff);
+        MetricsRegistry.gauge("nyzo_missing_requests_peers", coordinator::getNumberOfPeersInFlight);
+        MetricsRegistry.gauge("nyzo_missing_requests_sent", coordinator::getNumberSent);
+        MetricsRegistry.gauge("nyzo_missing_requests_deduplicated", coordinator::getNumberDeduplicated);
+        MetricsRegistry.gauge("nyzo_missing_requests_suppressed", coordinator::getNumberSuppressed);
+        MetricsRegistry.gauge("nyzo_missing_requests_deferred", coordinator::getNumberDeferred);
+        MetricsRegistry.gauge("nyzo_missing_requests_failed", coordinator::getNumberFailed);
+        MetricsRegistry.gauge("nyzo_missing_requests_cancelled", coordinator::getNumberCancelled);
+        MetricsRegistry.gauge("nyzo_missing_requests_abandoned", coordinator::getNumberAbandoned);
+    }
+
+    public static boolean request(MessageType type, long height, byte[] discriminator, Node targetNode,
+                                  MessageObject content, RequestCoordinator.ResponseHandler handler) {
+
+        return coordinator.request(type, height, discriminator, targetNode, content, handler);
+    }
+
+    public static void performMaintenance() {
+
+        coordinator.performMaintenance(BlockManager.getFrozenEdgeHeight());
+    }
+}
@@ -33,8 +33,8 @@ public class NewVerifierQueueManager {
                 lastBroadcastTimestamp < System.currentTimeMillis() - broadcastInterval)) {
 
             lastBroadcastTimestamp = System.currentTimeMillis();
-            LogUtil.println("broadcasting new-verifier vote for " + PrintUtil.compactPrintByteArray(vote.array()) +
-                    " at height " + BlockManager.getFrozenEdgeHeight());
+            LogUtil.println("broadcasting new-verifier vote for %s at height %d",
+                    PrintUtil.compactPrintByteArray(vote.array()), BlockManager.getFrozenEdgeHeight());
 
             // Wrap the vote and register it locally.
             NewVerifierVote wrappedVote = new NewVerifierVote(vote.array());
@@ -109,9 +109,9 @@ public class NewVerifierVoteManager {
             }
         } else {
             int cycleLength = BlockManager.currentCycleLength();
-            LogUtil.println(String.format("top verifier %s has %d votes with a cycle length of %d (%.1f%%)",
+            LogUtil.println("top verifier %s has %d votes with a cycle length of %d (%.1f%%)",
                     PrintUtil.compactPrintByteArray(topVerifier.array()), topVoteCount, cycleLength,
-                    topVoteCount * 100.0 / cycleLength));
+                    topVoteCount * 100.0 / cycleLength);
         }
 
         NewVerifierVoteManager.topVerifier = topVerifier;
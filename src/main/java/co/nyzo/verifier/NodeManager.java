@@ -4,12 +4,8 @@ import co.nyzo.verifier.messages.*;
 import co.nyzo.verifier.util.IpUtil;
 import co.nyzo.verifier.util.LogUtil;
 
-import java.io.*;
+import java.io.File;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -18,6 +14,7 @@ public class NodeManager {
 
     private static Set<ByteBuffer> activeCycleIdentifiers = ConcurrentHashMap.newKeySet();
     private static Set<ByteBuffer> activeCycleIpAddresses = ConcurrentHashMap.newKeySet();
+    private static int[] activeCycleIpAddressesSorted = new int[0];  // for allocation-free checks on the UDP path
     private static String missingInCycleVerifiers = "";
 
     private static final int maximumNodesPerInCycleVerifier = 6;
@@ -25,6 +22,8 @@ public class NodeManager {
     private static final Map<ByteBuffer, Integer> newNodeIpToPortMap = new ConcurrentHashMap<>();
 
     private static final Map<ByteBuffer, Node> ipAddressToNodeMap = new ConcurrentHashMap<>();
+    private static final AtomicInteger meshVersion = new AtomicInteger(0);
+    private static volatile CycleSnapshot cycleSnapshot = null;
 
     private static final int minimumMeshRequestInterval = 30;
     private static AtomicInteger meshRequestWait = new AtomicInteger(minimumMeshRequestInterval);
@@ -36,6 +35,10 @@ public class NodeManager {
     private static final String haveNodeHistoryKey = "have_node_history";
     private static boolean haveNodeHistory = PersistentData.getBoolean(haveNodeHistoryKey, false);
     public static final File nodeFile = new File(Verifier.dataRootDirectory, "nodes");
+    private static final NodeTable nodeTable = new NodeTable(new File(Verifier.dataRootDirectory, "node_table"));
+    private static final long persistenceLogInterval = 1000L * 60L * 60L;  // 1 hour
+    private static long lastPersistenceLogTimestamp = 0L;
+    private static int recordsWrittenSinceLog = 0;
 
     static {
         loadPersistedNodes();
@@ -101,6 +104,7 @@ public class NodeManager {
                 // If the existing node is not null, remove it.
                 if (existingNode != null) {
                     ipAddressToNodeMap.remove(ipAddressBuffer);
+                    meshVersion.incrementAndGet();
                 }
 
                 // Now, determine what to do with the new node.
@@ -122,6 +126,7 @@ public class NodeManager {
                                     NewVerifierQueueManager.lotteryWaitTime);
                         }
                         ipAddressToNodeMap.put(ipAddressBuffer, node);
+                        meshVersion.incrementAndGet();
                         if (!BlockManager.verifierInCurrentCycle(identifierBuffer)) {
                             LogUtil.println("added new out-of-cycle node to NodeManager: " +
                                     NicknameManager.get(identifier));
@@ -142,6 +147,7 @@ public class NodeManager {
                 if (!ByteUtil.isAllZeros(ipAddress) &&
                         ByteUtil.arraysAreEqual(identifier, Verifier.getIdentifier())) {
                     ipAddressToNodeMap.remove(ByteBuffer.wrap(new byte[4]));
+                    meshVersion.incrementAndGet();
                 }
             }
         }
@@ -171,6 +177,23 @@ public class NodeManager {
         return cycleNodes;
     }
 
+    public static Node[] getCycleSnapshot() {
+
+        // getCycle() builds a new list on each call. Random fetches only read the cycle, so they use this array, which
+        // is rebuilt only when the mesh or the cycle has changed. The array is shared and must not be modified.
+        CycleSnapshot snapshot = cycleSnapshot;
+        int version = meshVersion.get();
+        Set<ByteBuffer> cycleSet = BlockManager.verifiersInCurrentCycleSet();
+        boolean inGenesisCycle = BlockManager.inGenesisCycle();
+        if (snapshot == null || snapshot.meshVersion != version || snapshot.cycleSet != cycleSet ||
+                snapshot.inGenesisCycle != inGenesisCycle) {
+            snapshot = new CycleSnapshot(version, cycleSet, inGenesisCycle, getCycle().toArray(new Node[0]));
+            cycleSnapshot = snapshot;
+        }
+
+        return snapshot.nodes;
+    }
+
     public static List<Node> getMesh() {
         return new ArrayList<>(ipAddressToNodeMap.values());
     }
@@ -199,6 +222,11 @@ public class NodeManager {
         return activeCycleIpAddresses.isEmpty() || activeCycleIpAddresses.contains(ipAddress);
     }
 
+    public static boolean ipAddressInCycle(int ipAddress) {
+        int[] ipAddresses = activeCycleIpAddressesSorted;
+        return ipAddresses.length == 0 || Arrays.binarySearch(ipAddresses, ipAddress) >= 0;
+    }
+
     public static int getNodeJoinRequestsSent() {
         return nodeJoinRequestsSent.get();
     }
@@ -271,6 +299,7 @@ public class NodeManager {
                 }
             } else if (node.getInactiveTimestamp() < thresholdTimestamp) {
                 ipAddressToNodeMap.remove(ipAddress);
+                meshVersion.incrementAndGet();
                 LogUtil.println("removed node " + NicknameManager.get(node.getIdentifier()) + " from mesh on " +
                         Verifier.getNickname());
             }
@@ -291,7 +320,15 @@ public class NodeManager {
         }
 
         NodeManager.activeCycleIdentifiers = activeCycleIdentifiers;
+        int[] activeCycleIpAddressesSorted = new int[activeCycleIpAddresses.size()];
+        int index = 0;
+        for (ByteBuffer ipAddress : activeCycleIpAddresses) {
+            activeCycleIpAddressesSorted[index++] = IpUtil.addressAsInt(ipAddress.array());
+        }
+        Arrays.sort(activeCycleIpAddressesSorted);
+
         NodeManager.activeCycleIpAddresses = activeCycleIpAddresses;
+        NodeManager.activeCycleIpAddressesSorted = activeCycleIpAddressesSorted;
         NodeManager.missingInCycleVerifiers = missingInCycleVerifiers.toString();
     }
 
@@ -413,67 +450,51 @@ public class NodeManager {
 
     public static void persistNodes() {
 
-        // Write the file to a temporary location.
-        File temporaryFile = new File(nodeFile.getAbsolutePath() + "_temp");
-        temporaryFile.delete();
-        BufferedWriter writer = null;
-        try {
-            writer = new BufferedWriter(new FileWriter(temporaryFile));
-            String separator = "";
-            for (Node node : getMesh()) {
-                writer.write(separator + ByteUtil.arrayAsStringWithDashes(node.getIdentifier()) + ":" +
-                        IpUtil.addressAsString(node.getIpAddress()) + ":" +
-                        node.getPortTcp() + ":" +
-                        node.getPortUdp() + ":" +
-                        node.getQueueTimestamp() + ":" +
-                        "0:" +  // identifier-change timestamp; no longer used
-                        node.getInactiveTimestamp());
-                separator = "\n";
-            }
-        } catch (Exception ignored) { }
-
-        // Close the temporary file.
-        if (writer != null) {
-            try {
-                writer.close();
-            } catch (Exception ignored) { }
+        // Only the records of nodes that have changed since the last update are written. The number of records
+        // written is logged at most once per interval.
+        recordsWrittenSinceLog += nodeTable.update(getMesh());
+        if (System.currentTimeMillis() - lastPersistenceLogTimestamp >= persistenceLogInterval) {
+            LogUtil.println("NodeManager persistence: wrote " + recordsWrittenSinceLog +
+                    " node-table records since the last report");
+            lastPersistenceLogTimestamp = System.currentTimeMillis();
+            recordsWrittenSinceLog = 0;
         }
-
-        // Move the temporary file to the new location.
-        try {
-            Files.move(Paths.get(temporaryFile.getAbsolutePath()), Paths.get(nodeFile.getAbsolutePath()),
-                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-        } catch (Exception ignored) { }
     }
 
     private static void loadPersistedNodes() {
 
-        // This method is called in the class's static block. We load the persisted nodes into the mesh map.
-        Path path = Paths.get(nodeFile.getAbsolutePath());
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(nodeFile));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                try {
-                    String[] split = line.split(":");
-                    byte[] identifier = ByteUtil.byteArrayFromHexString(split[0], FieldByteSize.identifier);
-                    byte[] ipAddress = IpUtil.addressFromString(split[1]);
-                    int portTcp = Integer.parseInt(split[2]);
-                    int portUdp = Integer.parseInt(split[3]);
-                    long queueTimestamp = Long.parseLong(split[4]);
-                    // long identifierChangeTimestamp = Long.parseLong(split[5]);  no longer used
-                    long inactiveTimestamp = Long.parseLong(split[6]);
-
-                    Node node = new Node(identifier, ipAddress, portTcp, portUdp);
-                    node.setQueueTimestamp(queueTimestamp);
-                    node.setInactiveTimestamp(inactiveTimestamp);
-
-                    ipAddressToNodeMap.put(ByteBuffer.wrap(ipAddress), node);
-                } catch (Exception ignored) { }
-            }
-            reader.close();
-        } catch (Exception ignored) { }
+        // This method is called in the class's static block. We load the persisted nodes into the mesh map. If the
+        // binary node table is not yet present, the nodes are loaded from the text file written by previous versions,
+        // and the table is written from them.
+        List<Node> nodes;
+        if (nodeTable.fileExists() || !nodeFile.exists()) {
+            nodes = nodeTable.load();
+        } else {
+            nodes = NodeTable.loadTextFile(nodeFile);
+            nodeTable.update(nodes);
+            LogUtil.println("NodeManager initialization: migrated " + nodes.size() + " nodes to node table");
+        }
+
+        for (Node node : nodes) {
+            ipAddressToNodeMap.put(ByteBuffer.wrap(node.getIpAddress()), node);
+            meshVersion.incrementAndGet();
+        }
 
         LogUtil.println("NodeManager initialization: loaded " + ipAddressToNodeMap.size() + " nodes into map");
     }
+
+    private static class CycleSnapshot {
+
+        private final int meshVersion;
+        private final Set<ByteBuffer> cycleSet;
+        private final boolean inGenesisCycle;
+        private final Node[] nodes;
+
+        private CycleSnapshot(int meshVersion, Set<ByteBuffer> cycleSet, boolean inGenesisCycle, Node[] nodes) {
+            this.meshVersion = meshVersion;
+            this.cycleSet = cycleSet;
+            this.inGenesisCycle = inGenesisCycle;
+            this.nodes = nodes;
+        }
+    }
 }
@@ -0,0 +1,280 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.IpUtil;
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+public class NodeTable {
+
+    // This is a binary, memory-mapped table of nodes. The file is a 16-byte header followed by fixed-size records, one
+    // for each slot. Each record holds the identifier, IPv4 address, TCP and UDP ports, queue timestamp, and inactive
+    // timestamp of a node, followed by a CRC-32 of those fields. An empty slot is all zeros, which does not have a
+    // valid checksum, so empty slots and records damaged by an interrupted write are both skipped when loading.
+    //
+    // Each node keeps its slot for as long as it is in the table, so an update only writes the records of nodes that
+    // have changed. Loading reads the records directly from the mapped file at fixed offsets.
+
+    private static final int magicNumber = 0x4e594e54;  // NYNT
+    private static final int fileVersion = 1;
+    private static final int headerSize = 16;
+    public static final int recordSize = 64;
+    private static final int recordDataSize = recordSize - 4;
+    private static final int minimumCapacity = 1024;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile = null;
+    private MappedByteBuffer buffer = null;
+    private int capacity = 0;
+    private boolean loaded = false;
+    private final Map<ByteBuffer, Integer> slotMap = new HashMap<>();
+    private final TreeSet<Integer> freeSlots = new TreeSet<>();
+
+    public NodeTable(File file) {
+        this.file = file;
+    }
+
+    public boolean fileExists() {
+        return file.exists();
+    }
+
+    public synchronized List<Node> load() {
+
+        List<Node> nodes = new ArrayList<>();
+        slotMap.clear();
+        freeSlots.clear();
+        try {
+            capacity = 0;
+            map(readCapacity());
+            freeSlots.clear();
+
+            byte[] record = new byte[recordSize];
+            byte[] emptyRecord = new byte[recordSize];
+            for (int slot = 0; slot < capacity; slot++) {
+                buffer.position(headerSize + slot * recordSize);
+                buffer.get(record);
+                Node node = nodeForRecord(record);
+                if (node == null || slotMap.containsKey(ByteBuffer.wrap(node.getIpAddress()))) {
+                    if (Arrays.equals(record, emptyRecord)) {
+                        freeSlots.add(slot);
+                    } else {
+                        clearSlot(slot);
+                    }
+                } else {
+                    slotMap.put(ByteBuffer.wrap(node.getIpAddress()), slot);
+                    nodes.add(node);
+                }
+            }
+        } catch (Exception e) {
+            LogUtil.println("unable to load node table " + file.getName() + ": " + PrintUtil.printException(e));
+        }
+        loaded = true;
+
+        return nodes;
+    }
+
+    public synchronized int update(Collection<Node> nodes) {
+
+        // Only records that have changed are written. Slots of nodes no longer present are cleared for reuse.
+        int numberOfRecordsWritten = 0;
+        try {
+            if (!loaded) {
+                load();
+            }
+
+            Set<ByteBuffer> ipAddresses = new HashSet<>();
+            for (Node node : nodes) {
+                ipAddresses.add(ByteBuffer.wrap(node.getIpAddress()));
+            }
+            for (ByteBuffer ipAddress : new ArrayList<>(slotMap.keySet())) {
+                if (!ipAddresses.contains(ipAddress)) {
+                    clearSlot(slotMap.remove(ipAddress));
+                    numberOfRecordsWritten++;
+                }
+            }
+
+            byte[] record = new byte[recordSize];
+            byte[] existingRecord = new byte[recordSize];
+            for (Node node : nodes) {
+                ByteBuffer ipAddress = ByteBuffer.wrap(node.getIpAddress());
+                Integer slot = slotMap.get(ipAddress);
+                if (slot == null) {
+                    slot = allocateSlot();
+                    slotMap.put(ipAddress, slot);
+                }
+
+                fillRecord(node, record);
+                buffer.position(headerSize + slot * recordSize);
+                buffer.get(existingRecord);
+                if (!Arrays.equals(record, existingRecord)) {
+                    buffer.position(headerSize + slot * recordSize);
+                    buffer.put(record);
+                    numberOfRecordsWritten++;
+                }
+            }
+
+            if (numberOfRecordsWritten > 0) {
+                buffer.force();
+            }
+        } catch (Exception e) {
+            LogUtil.println("unable to update node table " + file.getName() + ": " + PrintUtil.printException(e));
+        }
+
+        return numberOfRecordsWritten;
+    }
+
+    public synchronized void close() {
+
+        try {
+            if (buffer != null) {
+                buffer.force();
+            }
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+            }
+        } catch (Exception ignored) { }
+        buffer = null;
+        randomAccessFile = null;
+        loaded = false;
+    }
+
+    private int readCapacity() {
+
+        // A file with an unrecognized header is replaced with an empty table.
+        int capacity = 0;
+        if (file.exists() && file.length() >= headerSize) {
+            try {
+                RandomAccessFile headerFile = new RandomAccessFile(file, "r");
+                int magic = headerFile.readInt();
+                int version = headerFile.readInt();
+                int storedCapacity = headerFile.readInt();
+                headerFile.close();
+                if (magic == magicNumber && version == fileVersion && storedCapacity > 0 &&
+                        file.length() >= headerSize + (long) storedCapacity * recordSize) {
+                    capacity = storedCapacity;
+                }
+            } catch (Exception ignored) { }
+        }
+
+        if (capacity == 0) {
+            file.delete();
+        }
+
+        return Math.max(capacity, minimumCapacity);
+    }
+
+    private void map(int capacity) throws Exception {
+
+        if (randomAccessFile == null) {
+            file.getParentFile().mkdirs();
+            randomAccessFile = new RandomAccessFile(file, "rw");
+        }
+
+        // Mapping a region larger than the file extends the file with zeros, which are empty slots.
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                headerSize + (long) capacity * recordSize);
+        buffer.putInt(0, magicNumber);
+        buffer.putInt(4, fileVersion);
+        buffer.putInt(8, capacity);
+
+        for (int slot = this.capacity; slot < capacity; slot++) {
+            freeSlots.add(slot);
+        }
+        this.capacity = capacity;
+    }
+
+    private int allocateSlot() throws Exception {
+
+        if (freeSlots.isEmpty()) {
+            map(capacity * 2);
+        }
+
+        return freeSlots.pollFirst();
+    }
+
+    private void clearSlot(int slot) {
+
+        buffer.position(headerSize + slot * recordSize);
+        buffer.put(new byte[recordSize]);
+        freeSlots.add(slot);
+    }
+
+    private static void fillRecord(Node node, byte[] record) {
+
+        ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+        recordBuffer.put(node.getIdentifier());
+        recordBuffer.put(node.getIpAddress());
+        recordBuffer.putInt(node.getPortTcp());
+        recordBuffer.putInt(node.getPortUdp());
+        recordBuffer.putLong(node.getQueueTimestamp());
+        recordBuffer.putLong(node.getInactiveTimestamp());
+        recordBuffer.putInt((int) checksum(record));
+    }
+
+    private static Node nodeForRecord(byte[] record) {
+
+        Node node = null;
+        ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+        if (recordBuffer.getInt(recordDataSize) == (int) checksum(record)) {
+            byte[] identifier = new byte[FieldByteSize.identifier];
+            recordBuffer.get(identifier);
+            byte[] ipAddress = new byte[FieldByteSize.ipAddress];
+            recordBuffer.get(ipAddress);
+            int portTcp = recordBuffer.getInt();
+            int portUdp = recordBuffer.getInt();
+
+            node = new Node(identifier, ipAddress, portTcp, portUdp);
+            node.setQueueTimestamp(recordBuffer.getLong());
+            node.setInactiveTimestamp(recordBuffer.getLong());
+        }
+
+        return node;
+    }
+
+    private static long checksum(byte[] record) {
+
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, recordDataSize);
+        return crc.getValue();
+    }
+
+    public static List<Node> loadTextFile(File file) {
+
+        // This reads the colon-separated text format used for node persistence before the binary table. It is used
+        // to migrate existing files.
+        List<Node> nodes = new ArrayList<>();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    String[] split = line.split(":");
+                    byte[] identifier = ByteUtil.byteArrayFromHexString(split[0], FieldByteSize.identifier);
+                    byte[] ipAddress = IpUtil.addressFromString(split[1]);
+                    int portTcp = Integer.parseInt(split[2]);
+                    int portUdp = Integer.parseInt(split[3]);
+                    long queueTimestamp = Long.parseLong(split[4]);
+                    // long identifierChangeTimestamp = Long.parseLong(split[5]);  no longer used
+                    long inactiveTimestamp = Long.parseLong(split[6]);
+
+                    Node node = new Node(identifier, ipAddress, portTcp, portUdp);
+                    node.setQueueTimestamp(queueTimestamp);
+                    node.setInactiveTimestamp(inactiveTimestamp);
+                    nodes.add(node);
+                } catch (Exception ignored) { }
+            }
+            reader.close();
+        } catch (Exception ignored) { }
+
+        return nodes;
+    }
+}
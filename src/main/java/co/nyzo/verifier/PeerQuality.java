@@ -0,0 +1,100 @@
+package co.nyzo.verifier;
+
+import java.util.Arrays;
+
+public class PeerQuality {
+
+    // This holds the observed fetch quality of one peer. The connect and response times are exponentially weighted
+    // moving averages, as is the failure rate, so a peer that recovers from a bad period is trusted again after a few
+    // fetches. The total times of the most recent fetches are kept in a small ring for the 95th percentile.
+
+    private static final double smoothingFactor = 0.2;
+    private static final int numberOfSamples = 32;
+    private static final int minimumSamplesForQuantile = 8;
+
+    private double connectTime = -1.0;
+    private double responseTime = -1.0;
+    private double failureRate = 0.0;
+    private long numberOfSuccesses = 0L;
+    private long numberOfFailures = 0L;
+    private long numberOfBytes = 0L;
+    private final int[] totalTimeSamples = new int[numberOfSamples];
+    private int sampleCount = 0;
+    private long lastUpdateTimestamp = 0L;
+
+    public synchronized void record(long connectMilliseconds, long responseMilliseconds, boolean success,
+                                    long bytes, long timestamp) {
+
+        // The connect time is recorded for every attempt. The response time is only recorded for a completed
+        // connection, and it is -1 if the connection failed.
+        connectTime = average(connectTime, connectMilliseconds);
+        if (responseMilliseconds >= 0L) {
+            responseTime = average(responseTime, responseMilliseconds);
+        }
+        failureRate += smoothingFactor * ((success ? 0.0 : 1.0) - failureRate);
+        if (success) {
+            numberOfSuccesses++;
+            totalTimeSamples[sampleCount++ % numberOfSamples] = (int) Math.min(Integer.MAX_VALUE,
+                    connectMilliseconds + responseMilliseconds);
+        } else {
+            numberOfFailures++;
+        }
+        numberOfBytes += bytes;
+        lastUpdateTimestamp = timestamp;
+    }
+
+    private static double average(double current, long value) {
+        return current < 0.0 ? value : current + smoothingFactor * (value - current);
+    }
+
+    public synchronized double expectedFetchTime(double defaultTime, double failureTime) {
+
+        // A failed fetch costs about as much as the socket timeouts, so the expected time of a fetch is the average
+        // time of a successful fetch weighted with the failure time by the failure rate.
+        double successTime = connectTime < 0.0 ? defaultTime : connectTime + Math.max(0.0, responseTime);
+        return successTime * (1.0 - failureRate) + failureTime * failureRate;
+    }
+
+    public synchronized long totalTimeAtQuantile(double quantile) {
+
+        // This is -1 until enough successful fetches have been recorded for the quantile to be meaningful.
+        long value = -1L;
+        int count = Math.min(sampleCount, numberOfSamples);
+        if (count >= minimumSamplesForQuantile) {
+            int[] samples = Arrays.copyOf(totalTimeSamples, count);
+            Arrays.sort(samples);
+            int index = Math.max(0, (int) Math.ceil(quantile * count) - 1);
+            value = samples[index];
+        }
+
+        return value;
+    }
+
+    public synchronized double getConnectTime() {
+        return connectTime;
+    }
+
+    public synchronized double getResponseTime() {
+        return responseTime;
+    }
+
+    public synchronized double getFailureRate() {
+        return failureRate;
+    }
+
+    public synchronized long getNumberOfSuccesses() {
+        return numberOfSuccesses;
+    }
+
+    public synchronized long getNumberOfFailures() {
+        return numberOfFailures;
+    }
+
+    public synchronized long getNumberOfBytes() {
+        return numberOfBytes;
+    }
+
+    public synchronized long getLastUpdateTimestamp() {
+        return lastUpdateTimestamp;
+    }
+}
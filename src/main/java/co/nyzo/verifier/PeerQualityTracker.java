@@ -0,0 +1,156 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.IpUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class PeerQualityTracker {
+
+    // Every TCP fetch records its connect time, response time, outcome, and bytes here, keyed by the host that was
+    // contacted. Random fetches use these records to choose a peer: two distinct candidates are drawn from the cycle,
+    // and the one with the lower expected fetch time is used. This "power of two choices" keeps most requests on fast,
+    // reliable peers without sending all of them to the single best peer, and peers without records are tried at a
+    // neutral default time so that they are measured. The 95th-percentile fetch time of a peer is the hedge delay for
+    // fetches from that peer. If a response has not arrived by then, the request is also sent to a second peer.
+
+    public static final int maximumNumberOfPeers = 2000;
+
+    private static final double defaultFetchTime = 250.0;  // milliseconds, for peers without records
+    private static final double failureFetchTime = 3000.0;  // milliseconds, the connect and read timeouts
+    private static final long defaultHedgeDelay = 1500L;
+    private static final long minimumHedgeDelay = 50L;
+    private static final long maximumHedgeDelay = 2500L;
+
+    private static final boolean hedgingEnabled = PreferencesUtil.getBoolean("random_fetch_hedging", true);
+
+    private static final Map<String, PeerQuality> hostToQualityMap = new ConcurrentHashMap<>();
+
+    public static void record(String host, long connectMilliseconds, long responseMilliseconds, boolean success,
+                              long bytes) {
+
+        // To bound the map, the least recently updated peer is removed when a new peer would exceed the limit. This
+        // scan only happens when a new host is contacted with the map full.
+        PeerQuality quality = hostToQualityMap.get(host);
+        if (quality == null) {
+            if (hostToQualityMap.size() >= maximumNumberOfPeers) {
+                removeLeastRecentlyUpdated();
+            }
+            quality = hostToQualityMap.computeIfAbsent(host, key -> new PeerQuality());
+        }
+        quality.record(connectMilliseconds, responseMilliseconds, success, bytes, System.currentTimeMillis());
+    }
+
+    private static void removeLeastRecentlyUpdated() {
+
+        String oldestHost = null;
+        long oldestTimestamp = Long.MAX_VALUE;
+        for (Map.Entry<String, PeerQuality> entry : hostToQualityMap.entrySet()) {
+            long timestamp = entry.getValue().getLastUpdateTimestamp();
+            if (timestamp < oldestTimestamp) {
+                oldestTimestamp = timestamp;
+                oldestHost = entry.getKey();
+            }
+        }
+
+        if (oldestHost != null) {
+            hostToQualityMap.remove(oldestHost);
+        }
+    }
+
+    public static PeerQuality qualityForNode(Node node) {
+        return hostToQualityMap.get(IpUtil.addressAsString(node.getIpAddress()));
+    }
+
+    public static double expectedFetchTime(Node node) {
+
+        PeerQuality quality = qualityForNode(node);
+        return quality == null ? defaultFetchTime : quality.expectedFetchTime(defaultFetchTime, failureFetchTime);
+    }
+
+    public static long hedgeDelay(Node node) {
+
+        PeerQuality quality = qualityForNode(node);
+        long delay = quality == null ? -1L : quality.totalTimeAtQuantile(0.95);
+        if (delay < 0L) {
+            delay = defaultHedgeDelay;
+        }
+
+        return Math.max(minimumHedgeDelay, Math.min(maximumHedgeDelay, delay));
+    }
+
+    public static boolean isHedgingEnabled() {
+        return hedgingEnabled;
+    }
+
+    public static int getNumberOfPeers() {
+        return hostToQualityMap.size();
+    }
+
+    public static Node selectNode(Node[] nodes, byte[] localIdentifier, Node excludedNode) {
+
+        // The local verifier and the verifier of the excluded node are never selected. If only one other node is
+        // available, it is returned without a comparison.
+        Node node = randomCandidate(nodes, localIdentifier, excludedNode, null);
+        if (node != null) {
+            Node otherNode = randomCandidate(nodes, localIdentifier, excludedNode, node);
+            if (otherNode != null && expectedFetchTime(otherNode) < expectedFetchTime(node)) {
+                node = otherNode;
+            }
+        }
+
+        return node;
+    }
+
+    private static Node randomCandidate(Node[] nodes, byte[] localIdentifier, Node excludedNode,
+                                        Node otherExcludedNode) {
+
+        // A few indices are drawn at random, which almost always finds a suitable node in a cycle of any size. If none
+        // of them is suitable, the search steps forward from the last index. This does not allocate.
+        Node candidate = null;
+        if (nodes.length > 0) {
+            int index = 0;
+            for (int i = 0; i < 4 && candidate == null; i++) {
+                index = ThreadLocalRandom.current().nextInt(nodes.length);
+                candidate = suitableCandidate(nodes[index], localIdentifier, excludedNode, otherExcludedNode);
+            }
+            for (int i = 1; i < nodes.length && candidate == null; i++) {
+                candidate = suitableCandidate(nodes[(index + i) % nodes.length], localIdentifier, excludedNode,
+                        otherExcludedNode);
+            }
+        }
+
+        return candidate;
+    }
+
+    private static Node suitableCandidate(Node node, byte[] localIdentifier, Node excludedNode,
+                                          Node otherExcludedNode) {
+
+        boolean suitable = node != otherExcludedNode && !ByteUtil.arraysAreEqual(node.getIdentifier(),
+                localIdentifier) && (excludedNode == null || !ByteUtil.arraysAreEqual(node.getIdentifier(),
+                excludedNode.getIdentifier()));
+
+        return suitable ? node : null;
+    }
+
+    public static String summary(Node node) {
+
+        // This is a compact summary for the debug mesh status: average connect and response times, the
+        // 95th-percentile fetch time, successes and failures, and kilobytes transferred.
+        PeerQuality quality = qualityForNode(node);
+        String summary;
+        if (quality == null) {
+            summary = "-";
+        } else {
+            long percentile95 = quality.totalTimeAtQuantile(0.95);
+            summary = String.format("c=%.0fms r=%.0fms p95=%s ok=%d fail=%d kB=%d",
+                    Math.max(0.0, quality.getConnectTime()), Math.max(0.0, quality.getResponseTime()),
+                    percentile95 < 0L ? "-" : percentile95 + "ms", quality.getNumberOfSuccesses(),
+                    quality.getNumberOfFailures(), quality.getNumberOfBytes() / 1024L);
+        }
+
+        return summary;
+    }
+}
@@ -1,86 +1,74 @@
 package co.nyzo.verifier;
 
-import co.nyzo.verifier.util.FileUtil;
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
 import co.nyzo.verifier.util.PrintUtil;
 
 import java.io.File;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class PersistentData {
 
-    private static final Map<String, String> dataMap = new ConcurrentHashMap<>();
-    private static final File file = new File(Verifier.dataRootDirectory, "persistent_data");
+    // Values are held in memory and written through an append-only journal. Puts are coalesced and synced to disk in
+    // the background, so a put is inexpensive enough to be performed in the block-freezing path. The journal is
+    // compacted into the persistent_data file, which retains its original format.
+
+    // The journal is opened on first use rather than in static initialization. In the test run mode, it is kept in a
+    // temporary directory, so tests never read or write the data of a verifier on the same machine.
+    private static final long coalesceInterval = PreferencesUtil.getLong("persistent_data_coalesce_interval", 50L);
+    private static KeyValueJournal journal = null;
+
+    private static synchronized KeyValueJournal getJournal() {
+
+        if (journal == null) {
+            File directory = Verifier.dataRootDirectory;
+            if (RunMode.getRunMode() == RunMode.Test) {
+                try {
+                    directory = Files.createTempDirectory("nyzo_persistent_data").toFile();
+                    directory.deleteOnExit();
+                    new File(directory, "persistent_data").deleteOnExit();
+                    new File(directory, "persistent_data_journal").deleteOnExit();
+                } catch (Exception e) {
+                    LogUtil.println("unable to create temporary directory for persistent data: " +
+                            PrintUtil.printException(e));
+                }
+            }
 
-    static {
-        loadFile();
-    }
+            KeyValueJournal newJournal = new KeyValueJournal(new File(directory, "persistent_data"),
+                    new File(directory, "persistent_data_journal"), coalesceInterval);
+            journal = newJournal;
 
-    private static void loadFile() {
-
-        Path path = Paths.get(file.getAbsolutePath());
-        if (path.toFile().exists()) {
-            try {
-                List<String> contentsOfFile = Files.readAllLines(path);
-                for (String line : contentsOfFile) {
-                    try {
-                        line = line.trim();
-                        int indexOfHash = line.indexOf("#");
-                        if (indexOfHash >= 0) {
-                            line = line.substring(0, indexOfHash).trim();
-                        }
-                        int splitIndex = line.indexOf("=");
-                        if (splitIndex > 0) {
-                            String key = line.substring(0, splitIndex).trim().toLowerCase();
-                            String value = line.substring(splitIndex + 1).trim();
-                            dataMap.put(key, value);
-                        }
-                    } catch (Exception e) {
-                        System.out.println("issue loading line from persistent data file: " + line);
-                    }
+            // Write any coalesced puts before the process exits.
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    newJournal.close();
                 }
-            } catch (Exception e) {
-                System.out.println("issue getting persistent data file: " + PrintUtil.printException(e));
-            }
-        } else {
-            System.out.println("skipping persistent data loading; file not present");
+            }));
         }
+
+        return journal;
     }
 
     public static void reset() {
-        dataMap.clear();
-        writeFile();
+        getJournal().reset();
     }
 
-    private static void writeFile() {
-
-        // Despite the simplicity of structure, the process of putting the data in the map and writing the file is
-        // thread-safe. Each put operation triggers a writing of the file, and the file writes are effectively atomic.
-        // Of course, as a file write is involved, and as each file write rewrites the entire file, care should be
-        // taken to only use this for small amounts of data that change infrequently.
-        List<String> lines = new ArrayList<>();
-        for (String key : dataMap.keySet()) {
-            lines.add(key + "=" + dataMap.get(key));
-        }
-
-        FileUtil.writeFile(Paths.get(file.getAbsolutePath()), lines);
+    public static void flush() {
+        getJournal().flush();
     }
 
     public static String get(String key) {
 
-        return dataMap.getOrDefault(key.toLowerCase(), "");
+        String value = getJournal().get(key);
+        return value == null ? "" : value;
     }
 
     public static boolean getBoolean(String key, boolean defaultValue) {
 
         boolean result = defaultValue;
         try {
-            String preference = dataMap.get(key.toLowerCase());
+            String preference = getJournal().get(key);
             if (preference != null && preference.equals("1")) {
                 result = true;
             } else if (preference != null && preference.equals("0")) {
@@ -95,7 +83,7 @@ public class PersistentData {
 
         int result = defaultValue;
         try {
-            String preference = dataMap.get(key.toLowerCase());
+            String preference = getJournal().get(key);
             if (preference != null && !preference.isEmpty()) {
                 result = Integer.parseInt(preference);
             }
@@ -108,7 +96,7 @@ public class PersistentData {
 
         long result = defaultValue;
         try {
-            String preference = dataMap.get(key.toLowerCase());
+            String preference = getJournal().get(key);
             if (preference != null && !preference.isEmpty()) {
                 result = Long.parseLong(preference);
             }
@@ -121,7 +109,7 @@ public class PersistentData {
 
         byte[] result = defaultValue;
         try {
-            String preference = dataMap.get(key.toLowerCase());
+            String preference = getJournal().get(key);
             if (preference != null && preference.length() >= length * 2) {
                 result = ByteUtil.byteArrayFromHexString(preference, length);
             }
@@ -132,31 +120,26 @@ public class PersistentData {
 
     public static void put(String key, String value) {
 
-        dataMap.put(key, value);
-        writeFile();
+        getJournal().put(key, value);
     }
 
     public static void put(String key, boolean value) {
 
-        dataMap.put(key, value ? "1" : "0");
-        writeFile();
+        getJournal().put(key, value ? "1" : "0");
     }
 
     public static void put(String key, int value) {
 
-        dataMap.put(key, value + "");
-        writeFile();
+        getJournal().put(key, value + "");
     }
 
     public static void put(String key, long value) {
 
-        dataMap.put(key, value + "");
-        writeFile();
+        getJournal().put(key, value + "");
     }
 
     public static void put(String key, byte[] value) {
 
-        dataMap.put(key, ByteUtil.arrayAsStringWithDashes(value));
-        writeFile();
+        getJournal().put(key, ByteUtil.arrayAsStringWithDashes(value));
     }
 }
@@ -0,0 +1,10 @@
+package co.nyzo.verifier;
+
+import java.io.File;
+
+public interface RemoteFileSource {
+
+    // Retrieves the file with the specified name to the destination. Returns true only if the complete file was
+    // written.
+    boolean fetchFile(String fileName, File destination);
+}
@@ -0,0 +1,344 @@
+package co.nyzo.verifier;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+public class RequestCoordinator {
+
+    // This coordinates requests for missing blocks and votes. A request is identified by its message type, its height,
+    // and an optional discriminator, such as a block hash or the identifier of the verifier that is asked, and only
+    // one request for each key is in flight at a time. The number of requests in flight is limited for each peer and
+    // in total. When a request fails, times out, or produces no useful response, its key backs off exponentially, with
+    // jitter, before it may be sent again, and the retry goes to a different verifier. Requests at or below the frozen
+    // edge are cancelled, and late responses to cancelled or timed-out requests are ignored.
+
+    // The limits count fetches, not keys. A timed-out or cancelled request frees its key, but its fetch holds the slot
+    // of its peer until the callback fires, as the socket may still be open. A fetch whose callback has not fired after
+    // the abandonment interval, which is far longer than any socket can stay open, was never sent, and its slot is
+    // released.
+
+    public interface Transport {
+        Node[] candidateNodes();
+        byte[] localIdentifier();
+        void fetch(Node node, MessageType type, MessageObject content, MessageCallback callback);
+    }
+
+    public interface ResponseHandler {
+        boolean handleResponse(Message response);  // true if the response satisfied the request
+    }
+
+    private static final int maximumSelectionAttempts = 3;
+    private static final int abandonmentTimeoutMultiple = 10;
+
+    private final int maximumPerPeer;
+    private final int maximumTotal;
+    private final long initialBackOff;
+    private final long maximumBackOff;
+    private final long requestTimeout;
+    private final LongSupplier clock;
+    private final Transport transport;
+
+    private final Map<RequestKey, RequestEntry> entries = new HashMap<>();
+    private final Map<Long, Fetch> fetches = new HashMap<>();
+    private final Map<ByteBuffer, Integer> peerInFlightCounts = new HashMap<>();
+    private long tokenCounter = 0L;
+
+    private long numberSent = 0L;
+    private long numberDeduplicated = 0L;
+    private long numberSuppressed = 0L;
+    private long numberDeferred = 0L;
+    private long numberFailed = 0L;
+    private long numberCancelled = 0L;
+    private long numberAbandoned = 0L;
+
+    public RequestCoordinator(int maximumPerPeer, int maximumTotal, long initialBackOff, long maximumBackOff,
+                              long requestTimeout, LongSupplier clock, Transport transport) {
+
+        this.maximumPerPeer = maximumPerPeer;
+        this.maximumTotal = maximumTotal;
+        this.initialBackOff = initialBackOff;
+        this.maximumBackOff = maximumBackOff;
+        this.requestTimeout = requestTimeout;
+        this.clock = clock;
+        this.transport = transport;
+    }
+
+    public boolean request(MessageType type, long height, byte[] discriminator, Node targetNode,
+                           MessageObject content, ResponseHandler handler) {
+
+        // The decision is made under the lock, and the fetch is started outside it, as a fetch rejected by a saturated
+        // executor calls back on this thread. If the target node is null, a peer is selected from the cycle.
+        RequestKey key = new RequestKey(type, height, discriminator);
+        Node node = null;
+        long token = 0L;
+        synchronized (this) {
+            long currentTimestamp = clock.getAsLong();
+            RequestEntry entry = entries.get(key);
+            if (entry != null && entry.inFlight) {
+                numberDeduplicated++;
+            } else if (entry != null && currentTimestamp < entry.nextAttemptTimestamp) {
+                numberSuppressed++;
+            } else if (fetches.size() >= maximumTotal) {
+                numberDeferred++;
+            } else {
+                node = targetNode == null ? selectNode(entry == null ? null : entry.lastNode) :
+                        (peerInFlightCount(targetNode) < maximumPerPeer ? targetNode : null);
+                if (node == null) {
+                    numberDeferred++;
+                } else {
+                    if (entry == null) {
+                        entry = new RequestEntry(height);
+                        entries.put(key, entry);
+                    }
+                    token = ++tokenCounter;
+                    entry.inFlight = true;
+                    entry.token = token;
+                    entry.lastNode = node;
+                    entry.sendTimestamp = currentTimestamp;
+                    ByteBuffer ipAddress = ByteBuffer.wrap(node.getIpAddress());
+                    fetches.put(token, new Fetch(ipAddress, currentTimestamp));
+                    peerInFlightCounts.merge(ipAddress, 1, Integer::sum);
+                    numberSent++;
+                }
+            }
+        }
+
+        if (node != null) {
+            long requestToken = token;
+            transport.fetch(node, type, content, new MessageCallback() {
+                @Override
+                public void responseReceived(Message message) {
+                    boolean satisfied = isCurrent(key, requestToken) && handler.handleResponse(message);
+                    complete(key, requestToken, satisfied);
+                }
+            });
+        }
+
+        return node != null;
+    }
+
+    private Node selectNode(Node previousNode) {
+
+        // A retry avoids the verifier of the previous attempt, unless it is the only verifier available. A peer that
+        // is at its limit is passed over for another selection.
+        Node[] nodes = transport.candidateNodes();
+        byte[] localIdentifier = transport.localIdentifier();
+        Node node = null;
+        for (int i = 0; i < maximumSelectionAttempts && node == null; i++) {
+            Node candidate = PeerQualityTracker.selectNode(nodes, localIdentifier, previousNode);
+            if (candidate == null && previousNode != null) {
+                candidate = PeerQualityTracker.selectNode(nodes, localIdentifier, null);
+            }
+            if (candidate == null) {
+                break;
+            } else if (peerInFlightCount(candidate) < maximumPerPeer) {
+                node = candidate;
+            }
+        }
+
+        return node;
+    }
+
+    private int peerInFlightCount(Node node) {
+        return peerInFlightCounts.getOrDefault(ByteBuffer.wrap(node.getIpAddress()), 0);
+    }
+
+    private synchronized boolean isCurrent(RequestKey key, long token) {
+
+        RequestEntry entry = entries.get(key);
+        return entry != null && entry.inFlight && entry.token == token;
+    }
+
+    private synchronized void complete(RequestKey key, long token, boolean satisfied) {
+
+        // The slot of the fetch is always released. The entry is only updated if this fetch is still its current
+        // request. A satisfied request is removed, so the key may be requested again immediately if it is still
+        // needed.
+        release(token);
+        RequestEntry entry = entries.get(key);
+        if (entry != null && entry.inFlight && entry.token == token) {
+            entry.inFlight = false;
+            if (satisfied) {
+                entries.remove(key);
+            } else {
+                fail(entry, clock.getAsLong());
+            }
+        }
+    }
+
+    private void release(long token) {
+
+        Fetch fetch = fetches.remove(token);
+        if (fetch != null) {
+            int count = peerInFlightCounts.getOrDefault(fetch.ipAddress, 1) - 1;
+            if (count <= 0) {
+                peerInFlightCounts.remove(fetch.ipAddress);
+            } else {
+                peerInFlightCounts.put(fetch.ipAddress, count);
+            }
+        }
+    }
+
+    private void fail(RequestEntry entry, long currentTimestamp) {
+
+        // The back-off doubles with each failure, up to the maximum. The delay is drawn from the upper half of the
+        // interval, so retries that failed together do not all return together.
+        entry.attempts++;
+        numberFailed++;
+        long delay = Math.min(maximumBackOff, initialBackOff << Math.min(entry.attempts - 1, 20));
+        entry.nextAttemptTimestamp = currentTimestamp + delay / 2L +
+                ThreadLocalRandom.current().nextLong(delay / 2L + 1L);
+    }
+
+    public synchronized void performMaintenance(long frozenEdgeHeight) {
+
+        // Requests at or below the frozen edge are obsolete. Requests that have been in flight longer than the timeout
+        // are treated as failures. Keys that have not been requested again for a full maximum back-off after their
+        // last back-off expired are no longer needed and are removed. In all of these cases, the fetch keeps its slot
+        // until its callback fires.
+        long currentTimestamp = clock.getAsLong();
+        Iterator<RequestEntry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            RequestEntry entry = iterator.next();
+            if (entry.height <= frozenEdgeHeight) {
+                iterator.remove();
+                numberCancelled++;
+            } else if (entry.inFlight && currentTimestamp - entry.sendTimestamp > requestTimeout) {
+                entry.inFlight = false;
+                fail(entry, currentTimestamp);
+            } else if (!entry.inFlight && currentTimestamp > entry.nextAttemptTimestamp + maximumBackOff) {
+                iterator.remove();
+            }
+        }
+
+        List<Long> abandonedTokens = new ArrayList<>();
+        for (Map.Entry<Long, Fetch> entry : fetches.entrySet()) {
+            if (currentTimestamp - entry.getValue().sendTimestamp > requestTimeout * abandonmentTimeoutMultiple) {
+                abandonedTokens.add(entry.getKey());
+            }
+        }
+        for (long token : abandonedTokens) {
+            release(token);
+            numberAbandoned++;
+        }
+    }
+
+    public synchronized int getNumberInFlight() {
+        return fetches.size();
+    }
+
+    public synchronized int getNumberInFlight(MessageType type) {
+
+        int number = 0;
+        for (Map.Entry<RequestKey, RequestEntry> entry : entries.entrySet()) {
+            if (entry.getKey().type == type && entry.getValue().inFlight) {
+                number++;
+            }
+        }
+
+        return number;
+    }
+
+    public synchronized int getNumberBackingOff() {
+
+        int number = 0;
+        for (RequestEntry entry : entries.values()) {
+            if (!entry.inFlight) {
+                number++;
+            }
+        }
+
+        return number;
+    }
+
+    public synchronized int getNumberOfPeersInFlight() {
+        return peerInFlightCounts.size();
+    }
+
+    public synchronized long getNumberSent() {
+        return numberSent;
+    }
+
+    public synchronized long getNumberDeduplicated() {
+        return numberDeduplicated;
+    }
+
+    public synchronized long getNumberSuppressed() {
+        return numberSuppressed;
+    }
+
+    public synchronized long getNumberDeferred() {
+        return numberDeferred;
+    }
+
+    public synchronized long getNumberFailed() {
+        return numberFailed;
+    }
+
+    public synchronized long getNumberCancelled() {
+        return numberCancelled;
+    }
+
+    public synchronized long getNumberAbandoned() {
+        return numberAbandoned;
+    }
+
+    private static class RequestKey {
+
+        private final MessageType type;
+        private final long height;
+        private final ByteBuffer discriminator;
+
+        private RequestKey(MessageType type, long height, byte[] discriminator) {
+            this.type = type;
+            this.height = height;
+            this.discriminator = discriminator == null ? null : ByteBuffer.wrap(discriminator);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+
+            boolean equal = false;
+            if (object instanceof RequestKey) {
+                RequestKey other = (RequestKey) object;
+                equal = type == other.type && height == other.height && Objects.equals(discriminator,
+                        other.discriminator);
+            }
+
+            return equal;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, height, discriminator);
+        }
+    }
+
+    private static class Fetch {
+
+        private final ByteBuffer ipAddress;
+        private final long sendTimestamp;
+
+        private Fetch(ByteBuffer ipAddress, long sendTimestamp) {
+            this.ipAddress = ipAddress;
+            this.sendTimestamp = sendTimestamp;
+        }
+    }
+
+    private static class RequestEntry {
+
+        private final long height;
+        private boolean inFlight = false;
+        private long token = 0L;
+        private Node lastNode = null;
+        private long sendTimestamp = 0L;
+        private long nextAttemptTimestamp = 0L;
+        private int attempts = 0;
+
+        private RequestEntry(long height) {
+            this.height = height;
+        }
+    }
+}
@@ -1,20 +1,9 @@
 package co.nyzo.verifier;
 
-import co.nyzo.verifier.util.PreferencesUtil;
-import co.nyzo.verifier.util.TestnetUtil;
-import co.nyzo.verifier.util.ThreadUtil;
-import co.nyzo.verifier.util.UpdateUtil;
+import co.nyzo.verifier.metrics.MetricsRegistry;
+import co.nyzo.verifier.util.*;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.net.URL;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SeedTransactionManager {
@@ -34,7 +23,13 @@ public class SeedTransactionManager {
     private static final String transactionFileBaseUrl = PreferencesUtil.get(transactionFileBaseUrlKey,
             "https://seed.nyzo.co/seedTransactions/");
 
-    private static final Map<Long, Transaction> transactionMap = new HashMap<>();
+    // The frozen edge is kept at least this many blocks behind the end of the prepared files, so each file is
+    // fetched and indexed well before it is needed. The default keeps the next file ready at all times.
+    private static final long prefetchBlocks = Math.max(1L, PreferencesUtil.getLong("seed_transaction_prefetch_blocks",
+            blocksPerFile));
+
+    private static SeedTransactionStore store = new SeedTransactionStore(rootDirectory, blocksPerFile,
+            new UrlFileSource(transactionFileBaseUrl));
 
     private static final AtomicBoolean alive = new AtomicBoolean(false);
 
@@ -42,57 +37,36 @@ public class SeedTransactionManager {
         return alive.get();
     }
 
+    public static void setStore(SeedTransactionStore store) {
+        SeedTransactionManager.store = store;
+    }
+
+    public static SeedTransactionStore getStore() {
+        return store;
+    }
+
     public static void start() {
 
         if (!alive.getAndSet(true)) {
 
-            new Thread(new Runnable() {
+            MetricsRegistry.gauge("nyzo_seed_transaction_files_mapped", () -> store.getNumberOfMappedFiles());
+
+            ThreadUtil.startLongRunning(new Runnable() {
                 @Override
                 public void run() {
 
                     while (!UpdateUtil.shouldTerminate() &&
                             BlockManager.getFrozenEdgeHeight() < highestSeedTransactionHeight) {
 
-                        long currentFileIndex = BlockManager.getFrozenEdgeHeight() / blocksPerFile;
-
-                        // Check if we have transactions for the next 20 blocks (100 seconds). If we do, we can skip
-                        // the rest of the process for this iteration.
-                        boolean haveBlocks = true;
-                        for (int i = 0; i < 20 && haveBlocks; i++) {
-                            long height = BlockManager.getFrozenEdgeHeight() + i + 1;
-                            if (height >= lowestSeedTransactionHeight && height <= highestSeedTransactionHeight &&
-                                    transactionMap.get(height) == null) {
-                                haveBlocks = false;
-                            }
+                        try {
+                            prepareFiles(store, BlockManager.getFrozenEdgeHeight());
+                        } catch (Exception e) {
+                            LogUtil.println("SeedTransactionManager: exception preparing files: " +
+                                    PrintUtil.printException(e));
                         }
 
-                        if (!haveBlocks) {
-
-                            // Ensure that we have both the current file and the next file and load them into memory.
-                            for (long fileIndex = currentFileIndex; fileIndex < currentFileIndex + 2; fileIndex++) {
-                                File file = fileForIndex(fileIndex);
-                                if (!file.exists()) {
-                                    fetchFile(file);
-                                }
-                                loadFile(file);
-                            }
-
-                            // If the previous file exists, delete it.
-                            File previousFile = fileForIndex(currentFileIndex - 1);
-                            if (previousFile.exists()) {
-                                previousFile.delete();
-                            }
-
-                            // Remove any items from the map below the frozen edge.
-                            Set<Long> keys = new HashSet<>(transactionMap.keySet());
-                            for (Long key : keys) {
-                                if (key < BlockManager.getFrozenEdgeHeight()) {
-                                    transactionMap.remove(key);
-                                }
-                            }
-                        }
-
-                        // Sleep for 30 seconds, checking periodically if we should allow the thread to exit.
+                        // Sleep for 30 seconds, checking periodically if we should allow the thread to exit. Files
+                        // that are already prepared are not touched, so a failed fetch is retried on each pass.
                         for (int i = 0; i < 15 && !UpdateUtil.shouldTerminate(); i++) {
                             ThreadUtil.sleep(2000L);
                         }
@@ -101,13 +75,22 @@ public class SeedTransactionManager {
                     System.out.println("exiting SeedTransactionManager thread");
                     alive.set(false);
                 }
-            }, "SeedTransactionManager").start();
+            }, "SeedTransactionManager");
         }
     }
 
-    private static File fileForIndex(long index) {
+    public static void prepareFiles(SeedTransactionStore store, long frozenEdgeHeight) {
 
-        return new File(rootDirectory, String.format("%06d.nyzotransaction", index));
+        // Prepare every file from the one containing the frozen edge through the one containing the end of the
+        // prefetch window, and release the files below the frozen edge.
+        long currentFileIndex = frozenEdgeHeight / blocksPerFile;
+        long lastFileIndex = Math.min(frozenEdgeHeight + prefetchBlocks, highestSeedTransactionHeight) /
+                blocksPerFile;
+        for (long fileIndex = currentFileIndex; fileIndex <= lastFileIndex && !UpdateUtil.shouldTerminate();
+             fileIndex++) {
+            store.prepareFile(fileIndex);
+        }
+        store.releaseFilesBelow(currentFileIndex);
     }
 
     public static String urlForFile(String filename) {
@@ -115,67 +98,17 @@ public class SeedTransactionManager {
         return transactionFileBaseUrl + filename;
     }
 
-    public static void fetchFile(File file) {
-
-        try {
-
-            file.getParentFile().mkdirs();
-
-            URL url = new URL(urlForFile(file.getName()));
-            ReadableByteChannel channel = Channels.newChannel(url.openStream());
-            FileOutputStream outputStream = new FileOutputStream(file);
-            outputStream.getChannel().transferFrom(channel, 0, Long.MAX_VALUE);
-            channel.close();
-            outputStream.close();
-
-        } catch (Exception ignored) {
-            ignored.printStackTrace();
-        }
-    }
-
-    private static void loadFile(File file) {
-
-        Path path = Paths.get(file.getAbsolutePath());
-        boolean successful;
-        try {
-            byte[] fileBytes = Files.readAllBytes(path);
-            ByteBuffer byteBuffer = ByteBuffer.wrap(fileBytes);
-            int numberOfTransactions = byteBuffer.getInt();
-
-            // Read the transactions. Only add transactions with valid heights and signatures to the map.
-            Map<Long, Transaction> transactionsInFile = new HashMap<>();
-            for (int i = 0; i < numberOfTransactions; i++) {
-                long height = byteBuffer.getLong();
-                Transaction transaction = Transaction.fromByteBuffer(byteBuffer);
-                if (height > 0 && transaction.signatureIsValid()) {
-                    transactionsInFile.put(height, transaction);
-                }
-            }
-
-            successful = transactionsInFile.size() == numberOfTransactions;
-            if (successful) {
-                transactionMap.putAll(transactionsInFile);
-            }
-        } catch (Exception e) {
-            successful = false;
-        }
-
-        if (!successful) {
-            // If we have any problems at all, delete the file so it can be downloaded again on the next pass.
-            try {
-                file.delete();
-            } catch (Exception ignored) { }
-        }
-    }
-
     public static Transaction transactionForBlock(long blockHeight) {
 
         // This method will only return one transaction per block. There is not an explicit limitation on one seed
         // transaction per block, but we are only generating one per block in the initial seed transactions. So,
         // this is only a simplification based on our data, not a limitation of the system, and other seed transactions
         // could potentially be passed around the network.
-        return transactionMap.get(blockHeight);
-    }
-
+        Transaction transaction = null;
+        if (blockHeight >= lowestSeedTransactionHeight && blockHeight <= highestSeedTransactionHeight) {
+            transaction = store.transactionForBlock(blockHeight);
+        }
 
+        return transaction;
+    }
 }
@@ -0,0 +1,259 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class SeedTransactionStore {
+
+    // Each seed file holds the transactions for one range of heights: a transaction count, followed by a height and
+    // transaction for each. When a file is prepared, a height index is written beside it with a fixed stride of one
+    // offset per height in the range (-1 for a height without a transaction), so the offset of any height is found
+    // directly. Both files are memory-mapped, and a transaction is decoded and its signature checked only when it is
+    // first requested. Decoded transactions are kept for the life of the mapped file.
+    //
+    // The store is safe for concurrent use. Mapped files are held in a concurrent map keyed on file index, decoded
+    // transactions are held in an atomic array for each file, and reads use a duplicate of the mapped buffer.
+
+    private static final int absentOffset = -1;
+
+    // This is the size of a seed transaction up to and including the sender-data length byte.
+    private static final int transactionFixedPrefixSize = FieldByteSize.transactionType + FieldByteSize.timestamp +
+            FieldByteSize.transactionAmount + FieldByteSize.identifier + FieldByteSize.blockHeight +
+            FieldByteSize.identifier + 1;
+
+    private final File directory;
+    private final long blocksPerFile;
+    private final RemoteFileSource fileSource;
+    private final ConcurrentHashMap<Long, MappedSeedFile> files = new ConcurrentHashMap<>();
+
+    public SeedTransactionStore(File directory, long blocksPerFile, RemoteFileSource fileSource) {
+        this.directory = directory;
+        this.blocksPerFile = blocksPerFile;
+        this.fileSource = fileSource;
+    }
+
+    public RemoteFileSource getFileSource() {
+        return fileSource;
+    }
+
+    public static String fileNameForIndex(long fileIndex) {
+        return String.format("%06d.nyzotransaction", fileIndex);
+    }
+
+    public File fileForIndex(long fileIndex) {
+        return new File(directory, fileNameForIndex(fileIndex));
+    }
+
+    public File indexFileForIndex(long fileIndex) {
+        return new File(directory, String.format("%06d.nyzotransactionheights", fileIndex));
+    }
+
+    public boolean isFileMapped(long fileIndex) {
+        return files.containsKey(fileIndex);
+    }
+
+    public int getNumberOfMappedFiles() {
+        return files.size();
+    }
+
+    public boolean prepareFile(long fileIndex) {
+
+        // If the file is not on disk, it is fetched from the source to a temporary file and moved into place only if
+        // the complete file was retrieved. The index is rebuilt for each new download.
+        boolean prepared = files.containsKey(fileIndex);
+        if (!prepared) {
+            File file = fileForIndex(fileIndex);
+            if (!file.exists()) {
+                directory.mkdirs();
+                File temporaryFile = new File(directory, file.getName() + "_temp");
+                if (fileSource.fetchFile(file.getName(), temporaryFile)) {
+                    try {
+                        indexFileForIndex(fileIndex).delete();
+                        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    } catch (Exception e) {
+                        LogUtil.println("SeedTransactionStore: unable to move " + temporaryFile + ": " +
+                                PrintUtil.printException(e));
+                    }
+                }
+                temporaryFile.delete();
+            }
+
+            prepared = mappedFile(fileIndex) != null;
+        }
+
+        return prepared;
+    }
+
+    public void releaseFilesBelow(long fileIndex) {
+
+        // Files below the index are no longer needed. The mappings are dropped and the files are deleted. Readers
+        // holding a duplicate of a buffer may finish their reads, as the mapping remains valid until it is collected.
+        for (Long key : files.keySet()) {
+            if (key < fileIndex) {
+                files.remove(key);
+                deleteFiles(key);
+            }
+        }
+        deleteFiles(fileIndex - 1L);
+    }
+
+    public Transaction transactionForBlock(long blockHeight) {
+
+        Transaction transaction = null;
+        long fileIndex = blockHeight / blocksPerFile;
+        MappedSeedFile seedFile = mappedFile(fileIndex);
+        if (seedFile != null) {
+            int slot = (int) (blockHeight % blocksPerFile);
+            transaction = seedFile.transactions.get(slot);
+            if (transaction == null) {
+                int offset = seedFile.index.getInt(slot * 4);
+                if (offset != absentOffset) {
+                    try {
+                        ByteBuffer buffer = seedFile.data.duplicate();
+                        buffer.position(offset);
+                        transaction = Transaction.fromByteBuffer(buffer);
+                    } catch (Exception ignored) { }
+
+                    // A transaction that cannot be read or does not have a valid signature invalidates the file. The
+                    // file is released so that it can be fetched again.
+                    if (transaction == null || !transaction.signatureIsValid()) {
+                        LogUtil.println("SeedTransactionStore: invalid transaction at height " + blockHeight +
+                                "; releasing " + fileForIndex(fileIndex).getName());
+                        transaction = null;
+                        if (files.remove(fileIndex, seedFile)) {
+                            deleteFiles(fileIndex);
+                        }
+                    } else {
+                        seedFile.transactions.compareAndSet(slot, null, transaction);
+                    }
+                }
+            }
+        }
+
+        return transaction;
+    }
+
+    private MappedSeedFile mappedFile(long fileIndex) {
+
+        // Only files already on disk are mapped here; fetching is left to prepareFile(). The mapping function runs
+        // once per index, so concurrent callers wait only for the file they need.
+        MappedSeedFile seedFile = files.get(fileIndex);
+        if (seedFile == null && fileForIndex(fileIndex).exists()) {
+            seedFile = files.computeIfAbsent(fileIndex, key -> mapFile(key));
+        }
+
+        return seedFile;
+    }
+
+    private MappedSeedFile mapFile(long fileIndex) {
+
+        MappedSeedFile seedFile = null;
+        File file = fileForIndex(fileIndex);
+        File indexFile = indexFileForIndex(fileIndex);
+        try {
+            ByteBuffer data = map(file);
+            ByteBuffer index = indexFile.exists() && indexFile.length() == blocksPerFile * 4L ? map(indexFile) : null;
+            if (index == null) {
+                index = writeIndex(fileIndex, data, indexFile);
+            }
+            if (index != null) {
+                seedFile = new MappedSeedFile(data, index, (int) blocksPerFile);
+            }
+        } catch (Exception e) {
+            LogUtil.println("SeedTransactionStore: unable to map " + file + ": " + PrintUtil.printException(e));
+        }
+
+        // If the file is not valid, it is deleted so that it can be fetched again.
+        if (seedFile == null) {
+            deleteFiles(fileIndex);
+        }
+
+        return seedFile;
+    }
+
+    private ByteBuffer writeIndex(long fileIndex, ByteBuffer data, File indexFile) throws Exception {
+
+        // The transactions are scanned without decoding. Each must be a seed transaction with a height in the range of
+        // the file, and the transactions must fill the file exactly. Otherwise, no index is written.
+        int[] offsets = new int[(int) blocksPerFile];
+        Arrays.fill(offsets, absentOffset);
+        ByteBuffer buffer = data.duplicate();
+        boolean valid = buffer.remaining() >= 4;
+        int numberOfTransactions = valid ? buffer.getInt() : 0;
+        long startHeight = fileIndex * blocksPerFile;
+        for (int i = 0; i < numberOfTransactions && valid; i++) {
+            valid = buffer.remaining() >= FieldByteSize.blockHeight + transactionFixedPrefixSize;
+            long height = valid ? buffer.getLong() : -1L;
+            valid &= height >= startHeight && height < startHeight + blocksPerFile;
+            if (valid) {
+                int offset = buffer.position();
+                valid = buffer.get(offset) == Transaction.typeSeed;
+                int senderDataLength = Math.min(buffer.get(offset + transactionFixedPrefixSize - 1), 32);
+                int length = transactionFixedPrefixSize + Math.max(0, senderDataLength) + FieldByteSize.signature;
+                valid &= buffer.remaining() >= length;
+                if (valid) {
+                    offsets[(int) (height - startHeight)] = offset;
+                    buffer.position(offset + length);
+                }
+            }
+        }
+        valid &= !buffer.hasRemaining();
+
+        ByteBuffer index = null;
+        if (valid) {
+            ByteBuffer indexBuffer = ByteBuffer.allocate(offsets.length * 4);
+            for (int offset : offsets) {
+                indexBuffer.putInt(offset);
+            }
+            File temporaryFile = new File(indexFile.getParentFile(), indexFile.getName() + "_temp");
+            Files.write(temporaryFile.toPath(), indexBuffer.array());
+            Files.move(temporaryFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            index = map(indexFile);
+        } else {
+            LogUtil.println("SeedTransactionStore: " + fileForIndex(fileIndex).getName() + " is not valid");
+        }
+
+        return index;
+    }
+
+    private static ByteBuffer map(File file) throws Exception {
+
+        // The channel may be closed once the file is mapped; the mapping remains valid.
+        MappedByteBuffer buffer;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        return buffer;
+    }
+
+    private void deleteFiles(long fileIndex) {
+        fileForIndex(fileIndex).delete();
+        indexFileForIndex(fileIndex).delete();
+    }
+
+    private static class MappedSeedFile {
+
+        private final ByteBuffer data;
+        private final ByteBuffer index;
+        private final AtomicReferenceArray<Transaction> transactions;
+
+        MappedSeedFile(ByteBuffer data, ByteBuffer index, int blocksPerFile) {
+            this.data = data;
+            this.index = index;
+            this.transactions = new AtomicReferenceArray<>(blocksPerFile);
+        }
+    }
+}
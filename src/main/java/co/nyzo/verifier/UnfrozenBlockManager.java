@@ -512,22 +512,32 @@ public class UnfrozenBlockManager {
 
     public static void fetchMissingBlock(long height, byte[] hash) {
 
-        LogUtil.println("fetching block " + height + " (" + PrintUtil.compactPrintByteArray(hash) + ") from mesh on " +
-                Verifier.getNickname());
-        Message blockRequest = new Message(MessageType.MissingBlockRequest25,
-                new MissingBlockRequest(height, hash));
-        Message.fetchFromRandomNode(blockRequest, new MessageCallback() {
-            @Override
-            public void responseReceived(Message message) {
-
-                MissingBlockResponse response = (MissingBlockResponse) message.getContent();
-                Block responseBlock = response.getBlock();
-                if (responseBlock != null && ByteUtil.arraysAreEqual(responseBlock.getHash(), hash)) {
-                    LogUtil.println("got missing block: " + response);
-                    registerBlock(responseBlock);
-                }
-            }
-        });
+        // The request is made through the missing-data coordinator, which does not send it again while a request for
+        // the same height and hash is in flight or backing off. The request is satisfied only by the requested block.
+        boolean sent = MissingDataRequestManager.request(MessageType.MissingBlockRequest25, height, hash, null,
+                new MissingBlockRequest(height, hash), new RequestCoordinator.ResponseHandler() {
+                    @Override
+                    public boolean handleResponse(Message message) {
+
+                        boolean satisfied = false;
+                        if (message != null && message.getContent() instanceof MissingBlockResponse) {
+                            MissingBlockResponse response = (MissingBlockResponse) message.getContent();
+                            Block responseBlock = response.getBlock();
+                            if (responseBlock != null && ByteUtil.arraysAreEqual(responseBlock.getHash(), hash)) {
+                                LogUtil.println("got missing block: " + response);
+                                registerBlock(responseBlock);
+                                satisfied = true;
+                            }
+                        }
+
+                        return satisfied;
+                    }
+                });
+
+        if (sent) {
+            LogUtil.println("fetching block " + height + " (" + PrintUtil.compactPrintByteArray(hash) +
+                    ") from mesh on " + Verifier.getNickname());
+        }
     }
 
     public static Set<Long> unfrozenBlockHeights() {
@@ -0,0 +1,59 @@
+package co.nyzo.verifier;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+public class UrlFileSource implements RemoteFileSource {
+
+    // This source retrieves files relative to a base URL. Any URL scheme supported by Java can be used, so a local
+    // directory (file:/path/to/files/) or a local HTTP server can stand in for the remote file host.
+
+    private static final int connectTimeout = 10000;
+    private static final int readTimeout = 30000;
+
+    private final String baseUrl;
+
+    public UrlFileSource(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    @Override
+    public boolean fetchFile(String fileName, File destination) {
+
+        boolean successful = false;
+        destination.delete();
+        try {
+            URLConnection connection = new URL(baseUrl + fileName).openConnection();
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            long expectedLength = connection.getContentLengthLong();
+
+            try (ReadableByteChannel channel = Channels.newChannel(connection.getInputStream());
+                 FileOutputStream outputStream = new FileOutputStream(destination)) {
+                long bytesTransferred = outputStream.getChannel().transferFrom(channel, 0, Long.MAX_VALUE);
+
+                // A truncated download would fail verification later, but it is cheaper to reject it here.
+                successful = bytesTransferred > 0 && (expectedLength < 0 || bytesTransferred == expectedLength);
+            }
+        } catch (Exception ignored) { }
+
+        if (!successful) {
+            destination.delete();
+        }
+
+        return successful;
+    }
+
+    @Override
+    public String toString() {
+        return "UrlFileSource(" + baseUrl + ")";
+    }
+}
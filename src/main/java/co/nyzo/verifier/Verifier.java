@@ -17,6 +17,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -57,6 +58,22 @@ public class Verifier {
 
     private static long initializationTime = 0L;
 
+    private static final BlockWithVotesPipeline.BlockProcessor pipelineProcessor =
+            new BlockWithVotesPipeline.BlockProcessor() {
+                @Override
+                public boolean processBlock(Block block, List<Message> voteMessages) {
+
+                    // Register the block and the votes as if they had been received individually, and then attempt
+                    // to freeze with the standard mechanism.
+                    UnfrozenBlockManager.registerBlock(block);
+                    for (Message voteMessage : voteMessages) {
+                        BlockVoteManager.registerVote(voteMessage);
+                    }
+
+                    return UnfrozenBlockManager.attemptToFreezeBlock();
+                }
+            };
+
     static {
         // This ensures the seed is always available, even if this class is used from a test script.
         loadPrivateSeed();
@@ -169,6 +186,9 @@ public class Verifier {
             System.out.println("starting block file consolidator");
             BlockFileConsolidator.start();
 
+            // Start the balance history indexer. This is inactive unless enabled in the preferences.
+            BalanceHistoryIndexer.start();
+
             System.out.println("starting verifier");
 
             // Load the list of trusted entry points.
@@ -247,7 +267,7 @@ public class Verifier {
 
             // Start the proactive side of the verifier, initiating the actions necessary to maintain the mesh and
             // build the blockchain.
-            new Thread(new Runnable() {
+            ThreadUtil.startLongRunning(new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -260,7 +280,7 @@ public class Verifier {
                     }
                     alive.set(false);
                 }
-            }, "Verifier-mainLoop").start();
+            }, "Verifier-mainLoop");
         }
     }
 
@@ -410,7 +430,7 @@ public class Verifier {
                     if (!transmittedBlock && nextBlock != null &&
                             nextBlock.getMinimumVoteTimestamp() <= System.currentTimeMillis() + 10000L) {
 
-                        LogUtil.println("transmitting block " + nextBlock);
+                        LogUtil.println("transmitting block %s", nextBlock);
                         Message.broadcast(new Message(MessageType.NewBlock9, new NewBlockMessage(nextBlock)));
                         numberOfBlocksTransmitted++;
                         transmittedBlock = true;
@@ -421,7 +441,7 @@ public class Verifier {
                     if (!transmittedBlockUpgrade && nextBlockUpgrade != null &&
                             nextBlockUpgrade.getMinimumVoteTimestamp() <= System.currentTimeMillis() + 10000L) {
 
-                        LogUtil.println("transmitting upgrade block " + nextBlockUpgrade);
+                        LogUtil.println("transmitting upgrade block %s", nextBlockUpgrade);
                         Message.broadcast(new Message(MessageType.NewBlock9, new NewBlockMessage(nextBlockUpgrade)));
                         numberOfBlocksTransmitted++;
                         transmittedBlockUpgrade = true;
@@ -434,6 +454,10 @@ public class Verifier {
                     // Attempt to register any blocks that were previously disconnected.
                     UnfrozenBlockManager.attemptToRegisterDisconnectedBlocks();
 
+                    // Freeze any blocks that the block-with-votes pipeline has verified. These are processed in
+                    // height order, so several blocks may be frozen in one iteration when catching up.
+                    BlockWithVotesPipeline.freezeReadyBlocks(pipelineProcessor);
+
                     // Try to freeze blocks.
                     boolean frozeBlock = UnfrozenBlockManager.attemptToFreezeBlock();
                     if (!frozeBlock) {
@@ -449,6 +473,10 @@ public class Verifier {
                     // Otherwise, other verifiers might blacklist this verifier.
                     if (inCycle() || isTopNewVerifier()) {
 
+                        // Cancel missing-data requests made obsolete by the frozen edge, and expire requests that have
+                        // not been answered.
+                        MissingDataRequestManager.performMaintenance();
+
                         // Request any frozen blocks that appear to be missing.
                         BlockVoteManager.requestMissingFrozenBlocks();
 
@@ -621,26 +649,34 @@ public class Verifier {
         long chainScore = block.chainScore(BlockManager.getFrozenEdgeHeight(), isConsensusChoice);
         String chainScoreLabel = chainScore == Long.MAX_VALUE ? "MAX" : (chainScore == Long.MAX_VALUE - 1 ? "MAX-1" :
                 chainScore + "");
-        LogUtil.println("chain score for new verifier: " + chainScoreLabel + ", block: " + block +
-                ", consensus choice=" + isConsensusChoice);
+        LogUtil.println("chain score for new verifier: %s, block: %s, consensus choice=%s", chainScoreLabel, block,
+                isConsensusChoice);
     }
 
     private static void requestMissingVotes(long height) {
 
-        // Get the votes for the current height.
-        Map<ByteBuffer, BlockVote> currentVotes = BlockVoteManager.votesForHeight(height);
-
         // Fetch from 10 random verifiers. This is not an efficient process, but it avoids a number of different
         // problems that could arise from a more targeted process. Any targeted process would have to carefully avoid
-        // requesting the same verifiers over and over.
-        for (int i = 0; i < 10; i++) {
-            Message message = new Message(MessageType.MissingBlockVoteRequest23, new MissingBlockVoteRequest(height));
-            Message.fetchFromRandomNode(message, new MessageCallback() {
-                @Override
-                public void responseReceived(Message message) {
-                    BlockVoteManager.registerVote(message);
-                }
-            });
+        // requesting the same verifiers over and over. Each request is keyed by the verifier asked, so the missing-data
+        // coordinator skips a verifier that has a request in flight or that failed to answer recently.
+        Node[] cycle = NodeManager.getCycleSnapshot();
+        byte[] identifier = Verifier.getIdentifier();
+        int start = cycle.length == 0 ? 0 : ThreadLocalRandom.current().nextInt(cycle.length);
+        int numberSent = 0;
+        for (int i = 0; i < cycle.length && numberSent < 10; i++) {
+            Node node = cycle[(start + i) % cycle.length];
+            if (!ByteUtil.arraysAreEqual(node.getIdentifier(), identifier) &&
+                    MissingDataRequestManager.request(MessageType.MissingBlockVoteRequest23, height,
+                            node.getIdentifier(), node, new MissingBlockVoteRequest(height),
+                            new RequestCoordinator.ResponseHandler() {
+                                @Override
+                                public boolean handleResponse(Message message) {
+                                    BlockVoteManager.registerVote(message);
+                                    return message != null && message.getContent() instanceof BlockVote;
+                                }
+                            })) {
+                numberSent++;
+            }
         }
     }
 
@@ -811,18 +847,22 @@ public class Verifier {
     private static void reinitializeFrozenEdge() {
 
         // The reinitialization is performed in a separate thread to avoid interfering with other verifier activities.
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
                 ChainInitializationManager.initializeFrozenEdge(getTrustedEntryPoints());
             }
-        }).start();
+        }, "Verifier-reinitializeFrozenEdge");
     }
 
     private static void requestBlockWithVotes() {
 
+        // When this verifier is far behind, several heights are requested at once through the pipeline. The verified
+        // blocks are frozen by the main loop.
         long frozenEdgeHeight = BlockManager.getFrozenEdgeHeight();
-        if (BlockManager.openEdgeHeight(false) > frozenEdgeHeight + 2 &&
+        if (BlockWithVotesPipeline.isActive()) {
+            BlockWithVotesPipeline.requestBlocks();
+        } else if (BlockManager.openEdgeHeight(false) > frozenEdgeHeight + 2 &&
                 System.currentTimeMillis() > lastBlockWithVotesRequestTimestamp + blockWithVotesRequestInterval) {
 
             long interval = System.currentTimeMillis() - lastBlockWithVotesRequestTimestamp;
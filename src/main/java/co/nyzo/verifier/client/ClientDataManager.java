@@ -75,7 +75,7 @@ public class ClientDataManager {
             // Start the script manager.
             NyzoScriptManager.start();
 
-            new Thread(new Runnable() {
+            ThreadUtil.startLongRunning(new Runnable() {
                 @Override
                 public void run() {
 
@@ -137,7 +137,7 @@ public class ClientDataManager {
                         ThreadUtil.sleep(300L);
                     }
                 }
-            }).start();
+            }, "ClientDataManager");
         }
 
         return started;
@@ -347,6 +347,7 @@ public class ClientDataManager {
             numberOfNonPreferredBlockFetches.incrementAndGet();
         }
         if (node != null) {
+            long requestTimestamp = System.currentTimeMillis();
             Message.fetch(node, message, new MessageCallback() {
                 @Override
                 public void responseReceived(Message message) {
@@ -359,7 +360,7 @@ public class ClientDataManager {
                         numberOfSuccessfulBlockFetches.incrementAndGet();
                         consecutiveSuccessfulBlockFetches.incrementAndGet();
                         consecutiveUnsuccessfulBlockFetches.set(0);
-                        ClientNodeManager.markSuccess(node);
+                        ClientNodeManager.markSuccess(node, System.currentTimeMillis() - requestTimestamp);
 
                         int voteThreshold = BlockManager.currentCycleLength() * 3 / 4;
                         int voteCount = 0;
@@ -2,58 +2,68 @@ package co.nyzo.verifier.client;
 
 import co.nyzo.verifier.Node;
 import co.nyzo.verifier.messages.MeshResponse;
+import co.nyzo.verifier.util.PreferencesUtil;
 
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.BiFunction;
+import java.util.function.LongSupplier;
 
 public class ClientNodeManager {
 
     // This is a much simpler class than the NodeManager class used by the verifier. Unlike the verifier, the client
     // will never have any voting rights in the cycle, and it will never send node joins to any other nodes.
 
-    // The scoring system is used to assign a ranking on suspected probability of responding to messages. Also, when a
-    // node reaches the minimum score, it is removed from both maps.
-    private static final int minimumScore = 0;
-    private static final int maximumScore = 40;
-    private static final int successIncrement = 4;
-    private static final int failureDecrement = -4;
-    private static final int leakDecrement = -1;
+    // The scoring system is used to assign a ranking on suspected probability of responding to messages. Scores decay
+    // with a half-life, so nodes that are no longer returned in mesh responses or used for fetches eventually fall
+    // below the minimum score and are removed. The ranking also tracks the response latency of each node, and the
+    // preferred selection favors nodes with high scores and low latencies.
+    private static final double minimumScore = 1.0;
+    private static final double maximumScore = 40.0;
+    private static final double successIncrement = 4.0;
+    private static final double failureDecrement = -4.0;
+    private static final long scoreHalfLife = Math.max(1L,
+            PreferencesUtil.getLong("client_node_score_half_life_minutes", 20L)) * 1000L * 60L;
 
     // The maximum size of the map is 10,000 nodes. This is a reasonable value that is far higher than it needs to be
     // but still a small impact on memory. It is exposed publicly for testing.
     public static final int maximumMapSize = 10000;
 
-    private static Map<ByteBuffer, Node> ipAddressToNodeMap = new ConcurrentHashMap<>();
-    private static Map<ByteBuffer, Integer> ipAddressToScoreMap = new ConcurrentHashMap<>();
-    private static List<Node> preferredNodes = new ArrayList<>();
-    private static List<Node> allNodes = new ArrayList<>();
-
-    private static final BiFunction<Integer, Integer, Integer> mergeFunction =
-            new BiFunction<Integer, Integer, Integer>() {
-                @Override
-                public Integer apply(Integer integer0, Integer integer1) {
-                    int value0 = integer0 == null ? 0 : integer0;
-                    int value1 = integer1 == null ? 0 : integer1;
-                    return Math.min(Math.max(minimumScore, value0 + value1), maximumScore);
-                }
-            };
+    private static NodeRanking ranking = createRanking(scoreHalfLife, new LongSupplier() {
+        @Override
+        public long getAsLong() {
+            return System.currentTimeMillis();
+        }
+    });
+
+    public static NodeRanking createRanking(long halfLife, LongSupplier clock) {
+        return new NodeRanking(maximumMapSize, halfLife, minimumScore, maximumScore, clock);
+    }
+
+    public static void setRanking(NodeRanking ranking) {
+        ClientNodeManager.ranking = ranking;
+    }
 
     public static void processMeshResponse(MeshResponse meshResponse) {
 
         if (meshResponse != null && meshResponse.getMesh() != null && !meshResponse.getMesh().isEmpty()) {
-            // Leak away the score for all nodes. This causes verifiers that are only returned in a single mesh response
-            // to eventually be removed, even if they are not queried.
-            for (ByteBuffer ipAddress : ipAddressToScoreMap.keySet()) {
-                ipAddressToScoreMap.merge(ipAddress, leakDecrement, mergeFunction);
+
+            // If the ranking does not have room for the new nodes, the nodes with the lowest scores are removed.
+            NodeRanking ranking = ClientNodeManager.ranking;
+            Set<ByteBuffer> newIpAddresses = new HashSet<>();
+            for (Node node : meshResponse.getMesh()) {
+                newIpAddresses.add(ByteBuffer.wrap(node.getIpAddress()));
+            }
+            for (Node node : ranking.getNodes()) {
+                newIpAddresses.remove(ByteBuffer.wrap(node.getIpAddress()));
+            }
+            int shortfall = Math.min(newIpAddresses.size(), maximumMapSize) - ranking.getNumberOfFreeSlots();
+            if (shortfall > 0) {
+                ranking.removeLowestScores(shortfall);
             }
 
             // Process the nodes in the response.
             for (Node node : meshResponse.getMesh()) {
-                ByteBuffer ipAddress = ByteBuffer.wrap(node.getIpAddress());
-                ipAddressToNodeMap.put(ipAddress, node);
-                ipAddressToScoreMap.merge(ipAddress, successIncrement, mergeFunction);  // Add to the node score.
+                ranking.addOrUpdate(node, successIncrement);  // Add to the node score.
             }
         }
 
@@ -61,94 +71,51 @@ public class ClientNodeManager {
     }
 
     public static void updateMapsAndLists() {
+        ranking.performMaintenance();
+    }
 
-        // Remove nodes until the map is under the maximum size. Also remove all nodes with a score of 0.
-        int removalScore = 0;
-        while (ipAddressToNodeMap.size() > maximumMapSize || removalScore == 0) {
-            Set<ByteBuffer> ipAddresses = new HashSet<>(ipAddressToNodeMap.keySet());
-            Iterator<ByteBuffer> ipAddressIterator = ipAddresses.iterator();
-            while (ipAddressIterator.hasNext() && (ipAddressToNodeMap.size() > maximumMapSize || removalScore == 0)) {
-                ByteBuffer ipAddress = ipAddressIterator.next();
-                if (ipAddressToScoreMap.getOrDefault(ipAddress, 0) <= removalScore) {
-                    ipAddressToNodeMap.remove(ipAddress);
-                    ipAddressToScoreMap.remove(ipAddress);
-                }
-            }
-            removalScore++;
-        }
-
-        // Remove all scores that represent nodes not present in the node map. Presence of stray scores in this map is
-        // unlikely outside contrived testing scenarios, but this operation is still prudent to ensure consistency.
-        for (ByteBuffer ipAddress : new HashSet<>(ipAddressToScoreMap.keySet())) {
-            if (!ipAddressToNodeMap.containsKey(ipAddress)) {
-                ipAddressToScoreMap.remove(ipAddress);
-            }
-        }
-
-        // Calculate the sum of all scores.
-        int[] scoreSums = new int[maximumScore - minimumScore + 1];
-        int scoreSum = 0;
-        for (Integer score : ipAddressToScoreMap.values()) {
-            scoreSums[score - minimumScore] += score;
-            scoreSum += score;
-        }
+    public static void markSuccess(Node node) {
+        ranking.changeScore(node, successIncrement);  // Add to the node score.
+    }
 
-        // Now, calculate the cutoff score for preferred nodes. The cutoff score is the highest score for
-        // which the all scores greater than or equal have a sum that is at least 50% of the sum of all scores.
-        int cutoffScore = maximumScore;
-        int aboveCutoffSum = scoreSums[cutoffScore - minimumScore];
-        while (aboveCutoffSum < scoreSum / 2) {
-            cutoffScore--;
-            aboveCutoffSum += scoreSums[cutoffScore - minimumScore];
-        }
+    public static void markSuccess(Node node, long latency) {
+        ranking.changeScore(node, successIncrement);
+        ranking.recordLatency(node, latency);
+    }
 
-        // Build the lists of all and preferred nodes. These are lists to allow easy selection of a random element.
-        // Build new lists and swap references to provide atomic swaps.
-        List<Node> preferredNodes = new ArrayList<>();
-        List<Node> allNodes = new ArrayList<>();
-        for (ByteBuffer ipAddress : ipAddressToNodeMap.keySet()) {
-            int score = ipAddressToScoreMap.getOrDefault(ipAddress, 0);
-            Node node = ipAddressToNodeMap.get(ipAddress);
-            if (node != null) {  // check to ensure thread safety
-                if (score >= cutoffScore) {
-                    preferredNodes.add(node);
-                }
-                allNodes.add(node);
-            }
-        }
-        ClientNodeManager.preferredNodes = preferredNodes;
-        ClientNodeManager.allNodes = allNodes;
+    public static void markFailure(Node node) {
+        ranking.changeScore(node, failureDecrement);  // Subtract from the node score.
     }
 
-    public static void markSuccess(Node node) {
-        ByteBuffer ipAddress = ByteBuffer.wrap(node.getIpAddress());
-        ipAddressToScoreMap.merge(ipAddress, successIncrement, mergeFunction);  // Add to the node score.
+    public static double getLatency(Node node) {
+        return ranking.getLatency(node);
     }
 
-    public static void markFailure(Node node) {
-        ByteBuffer ipAddress = ByteBuffer.wrap(node.getIpAddress());
-        ipAddressToScoreMap.merge(ipAddress, failureDecrement, mergeFunction);  // Subtract from the node score.
+    public static double getScore(Node node) {
+        return ranking.getScore(node);
     }
 
     public static Node randomNode() {
-        List<Node> allNodes = ClientNodeManager.allNodes;  // Get a local reference for thread safety.
-        return allNodes.isEmpty() ? null : allNodes.get(new Random().nextInt(allNodes.size()));
+        return ranking.uniformRandomNode();
     }
 
     public static Node randomPreferredNode() {
-        List<Node> preferredNodes = ClientNodeManager.preferredNodes;  // Get a local reference for thread safety.
-        return preferredNodes.isEmpty() ? null : preferredNodes.get(new Random().nextInt(preferredNodes.size()));
+        return ranking.weightedRandomNode();
+    }
+
+    public static Node nodeForIdentifier(ByteBuffer identifier) {
+        return ranking.nodeForIdentifier(identifier);
     }
 
     public static Collection<Node> getMesh() {
-        return ipAddressToNodeMap.values();
+        return ranking.getNodes();
     }
 
     public static int getNumberOfNodesInMesh() {
-        return allNodes.size();
+        return ranking.getNumberOfNodes();
     }
 
     public static int getNumberOfPreferredNodesInMesh() {
-        return preferredNodes.size();
+        return ranking.getNumberOfPreferredNodes();
     }
 }
@@ -105,29 +105,17 @@ public class ClientTransactionUtil {
     public static ByteBuffer[] sendTransactionToLikelyBlockVerifiers(Transaction transaction, boolean waitForBlock,
                                                                      CommandOutput output) {
 
-        // This is an array of size 3. The first position is the verifier one ahead of the expected verifier (block
-        // height = n - 1). The second position is the expected verifier (block height = n). The third position is one
-        // behind the expected verifier (block height = n + 1).
-        ByteBuffer[] verifiers = new ByteBuffer[3];
-
-        // Determine the height at which the transaction will be included.
+        // Determine the height at which the transaction will be included and the verifiers likely to include it.
         long transactionHeight = BlockManager.heightForTimestamp(transaction.getTimestamp());
+        ByteBuffer[] verifiers = likelyVerifiersForHeight(transactionHeight);
 
-        // Get the current frozen edge and the current cycle. Using the frozen edge as a reference, the verifier that
-        // should be expected to verify this block can be determined based on its position in the cycle.
-        Block frozenEdge = BlockManager.getFrozenEdge();
-        List<ByteBuffer> currentCycle = BlockManager.verifiersInCurrentCycleList();
-        int frozenEdgeVerifierIndex = currentCycle.indexOf(ByteBuffer.wrap(frozenEdge.getVerifierIdentifier()));
-
-        // Send the transaction to the expected verifier, the previous verifier, and the next verifier.
+        // Send the transaction to the expected verifier, the previous verifier, and the next verifier. The transaction
+        // is sent to every node in the mesh with one of these identifiers, as the mesh may list a verifier at more
+        // than one IP address.
         Set<ByteBuffer> likelyVerifiers = new HashSet<>();
-        for (int i = -1; i < 2; i++) {
-            int indexOfVerifier = (int) ((transactionHeight - frozenEdge.getBlockHeight() +
-                    frozenEdgeVerifierIndex + i) % currentCycle.size());
-            if (indexOfVerifier >= 0 && indexOfVerifier < currentCycle.size()) {
-                ByteBuffer identifier = currentCycle.get(indexOfVerifier);
+        for (ByteBuffer identifier : verifiers) {
+            if (identifier != null) {
                 likelyVerifiers.add(identifier);
-                verifiers[i + 1] = identifier;
             }
         }
 
@@ -206,6 +194,29 @@ public class ClientTransactionUtil {
         return verifiers;
     }
 
+    public static ByteBuffer[] likelyVerifiersForHeight(long transactionHeight) {
+
+        // This is an array of size 3. The first position is the verifier one ahead of the expected verifier (block
+        // height = n - 1). The second position is the expected verifier (block height = n). The third position is one
+        // behind the expected verifier (block height = n + 1).
+        ByteBuffer[] verifiers = new ByteBuffer[3];
+
+        // Get the current frozen edge and the current cycle. Using the frozen edge as a reference, the verifier that
+        // should be expected to verify this block can be determined based on its position in the cycle.
+        Block frozenEdge = BlockManager.getFrozenEdge();
+        List<ByteBuffer> currentCycle = BlockManager.verifiersInCurrentCycleList();
+        int frozenEdgeVerifierIndex = currentCycle.indexOf(ByteBuffer.wrap(frozenEdge.getVerifierIdentifier()));
+        for (int i = -1; i < 2 && !currentCycle.isEmpty(); i++) {
+            int indexOfVerifier = (int) ((transactionHeight - frozenEdge.getBlockHeight() +
+                    frozenEdgeVerifierIndex + i) % currentCycle.size());
+            if (indexOfVerifier >= 0 && indexOfVerifier < currentCycle.size()) {
+                verifiers[i + 1] = currentCycle.get(indexOfVerifier);
+            }
+        }
+
+        return verifiers;
+    }
+
     public static String senderDataForDisplay(byte[] senderData) {
 
         // Sender data is stored and handled as a raw array of bytes. Often, this byte array represents a character
@@ -1,6 +1,7 @@
 package co.nyzo.verifier.client;
 
 import co.nyzo.verifier.client.commands.Command;
+import co.nyzo.verifier.util.ThreadUtil;
 import co.nyzo.verifier.web.*;
 import co.nyzo.verifier.web.elements.*;
 
@@ -218,7 +219,7 @@ public class CommandEndpointWeb implements EndpointResponseProvider {
             body.add(progressUpdateScript(progress.getAttr("id"), commandOutput.getIdentifier()));
 
             // Run the command asynchronously.
-            new Thread(new Runnable() {
+            ThreadUtil.startLongRunning(new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -232,7 +233,7 @@ public class CommandEndpointWeb implements EndpointResponseProvider {
                     }
                     commandOutput.setComplete();
                 }
-            }).start();
+            }, "CommandEndpointWeb-command");
         } else {
             // For commands that complete immediately, run the command synchronously and render the results.
             CommandOutputWeb commandOutput = new CommandOutputWeb();
@@ -8,8 +8,10 @@ public class CommandManager {
 
     private static final Command[] commands = {
             new BalanceDisplayCommand(),
+            new BalanceHistoryCommand(),
             new ClientHealthCommand(),
             new TransactionSendCommand(),
+            new TransactionBatchSendCommand(),
             new PrivateNyzoStringCommand(),
             new PublicNyzoStringCommand(),
             new PrefilledDataCreateCommand(),
@@ -0,0 +1,395 @@
+package co.nyzo.verifier.client;
+
+import co.nyzo.verifier.Node;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongSupplier;
+
+public class NodeRanking {
+
+    // This ranks nodes by the likelihood that they will respond to messages. Each node has a score that rises with
+    // successes and mesh appearances, falls with failures, and decays with a fixed half-life. Each node also has an
+    // exponentially weighted moving average of its response latency. A node's selection weight is its score scaled by
+    // a latency factor, so fast responders are preferred.
+    //
+    // Decay is lazy. All scores decay at the same rate, so their ratios do not change with time. Scores are stored in
+    // the units of a reference time: a stored value is the score multiplied by 2^((now - reference) / halfLife). A
+    // change to a score at time t is scaled by the same factor. The current score is the stored value divided by the
+    // factor for the current time. When the factor becomes large, the reference time is moved forward and all stored
+    // values are rescaled.
+    //
+    // Each node has a slot in a Fenwick tree of weights, held in an atomic array, which provides weighted random
+    // selection in O(log n). The stored value and latency of a node are updated with compare-and-set, and the change
+    // in weight is added to the tree. Because each weight change is applied with getAndSet, the deltas added to the
+    // tree always sum to the weights that were set.
+
+    // Score and latency updates hold the read side of a stamped lock, so they do not block each other. The rescale
+    // and the rebuild of the tree hold the write side. An update therefore always applies the factor for the same
+    // reference time as the stored value it changes, and no delta is lost when the tree is overwritten.
+
+    private static final double weightPrecision = 1000.0;
+    private static final double rescaleThreshold = 1024.0 * 1024.0;
+    private static final double latencyAlpha = 0.2;
+    private static final double referenceLatency = 200.0;
+
+    private final int capacity;
+    private final double halfLife;
+    private final double minimumScore;
+    private final double maximumScore;
+    private final LongSupplier clock;
+
+    private final Map<ByteBuffer, Entry> ipAddressToEntryMap = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Integer> freeSlots = new ConcurrentLinkedQueue<>();
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLongArray tree;
+    private final StampedLock lock = new StampedLock();
+    private volatile long referenceTimestamp;
+
+    // These are rebuilt during maintenance and swapped atomically.
+    private volatile List<Node> allNodes = new ArrayList<>();
+    private volatile Map<ByteBuffer, Node> identifierToNodeMap = new HashMap<>();
+    private volatile int numberOfPreferredNodes = 0;
+
+    public NodeRanking(int capacity, long halfLife, double minimumScore, double maximumScore, LongSupplier clock) {
+
+        this.capacity = capacity;
+        this.halfLife = halfLife;
+        this.minimumScore = minimumScore;
+        this.maximumScore = maximumScore;
+        this.clock = clock;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.tree = new AtomicLongArray(capacity + 1);
+        this.referenceTimestamp = clock.getAsLong();
+        for (int i = 0; i < capacity; i++) {
+            freeSlots.add(i);
+        }
+    }
+
+    public boolean addOrUpdate(Node node, double scoreChange) {
+
+        // The node object is replaced for an existing IP address, so changes to the identifier or ports are used.
+        ByteBuffer ipAddress = ByteBuffer.wrap(node.getIpAddress());
+        Entry entry = ipAddressToEntryMap.get(ipAddress);
+        if (entry == null) {
+            Integer slot = freeSlots.poll();
+            if (slot != null) {
+                entry = new Entry(node, slot);
+                Entry existingEntry = ipAddressToEntryMap.putIfAbsent(ipAddress, entry);
+                if (existingEntry == null) {
+                    slots.set(slot, entry);
+                } else {
+                    freeSlots.add(slot);
+                    entry = existingEntry;
+                }
+            }
+        } else {
+            entry.node = node;
+        }
+
+        if (entry != null) {
+            changeScore(entry, scoreChange);
+        }
+
+        return entry != null;
+    }
+
+    public void changeScore(Node node, double scoreChange) {
+
+        Entry entry = ipAddressToEntryMap.get(ByteBuffer.wrap(node.getIpAddress()));
+        if (entry != null) {
+            changeScore(entry, scoreChange);
+        }
+    }
+
+    public void recordLatency(Node node, long latency) {
+
+        Entry entry = ipAddressToEntryMap.get(ByteBuffer.wrap(node.getIpAddress()));
+        if (entry != null) {
+            long stamp = lock.readLock();
+            try {
+                long previousBits;
+                long newBits;
+                do {
+                    previousBits = entry.latency.get();
+                    double previousLatency = Double.longBitsToDouble(previousBits);
+                    double newLatency = Double.isNaN(previousLatency) ? latency :
+                            previousLatency + latencyAlpha * (latency - previousLatency);
+                    newBits = Double.doubleToLongBits(newLatency);
+                } while (!entry.latency.compareAndSet(previousBits, newBits));
+                updateWeight(entry);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    public double getScore(Node node) {
+
+        double score = 0.0;
+        Entry entry = ipAddressToEntryMap.get(ByteBuffer.wrap(node.getIpAddress()));
+        if (entry != null) {
+            long stamp = lock.readLock();
+            try {
+                score = Double.longBitsToDouble(entry.storedScore.get()) / growth(clock.getAsLong());
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        return score;
+    }
+
+    public double getLatency(Node node) {
+
+        // This is NaN for an unknown node or a node without a latency measurement.
+        Entry entry = ipAddressToEntryMap.get(ByteBuffer.wrap(node.getIpAddress()));
+        return entry == null ? Double.NaN : Double.longBitsToDouble(entry.latency.get());
+    }
+
+    public Node weightedRandomNode() {
+
+        // A random target in the total weight is found by descending the tree. A concurrent update may make the total
+        // stale, in which case the search may end past the last occupied slot; the search is then repeated.
+        Node node = null;
+        for (int attempt = 0; attempt < 3 && node == null; attempt++) {
+            long total = prefixSum(capacity);
+            if (total > 0L) {
+                long target = ThreadLocalRandom.current().nextLong(total);
+                int index = 0;
+                for (int step = Integer.highestOneBit(capacity); step > 0; step >>= 1) {
+                    int next = index + step;
+                    if (next <= capacity) {
+                        long value = tree.get(next);
+                        if (value <= target) {
+                            index = next;
+                            target -= value;
+                        }
+                    }
+                }
+                Entry entry = index < capacity ? slots.get(index) : null;
+                node = entry == null ? null : entry.node;
+            }
+        }
+
+        return node;
+    }
+
+    public Node uniformRandomNode() {
+        List<Node> allNodes = this.allNodes;  // Get a local reference for thread safety.
+        return allNodes.isEmpty() ? null : allNodes.get(ThreadLocalRandom.current().nextInt(allNodes.size()));
+    }
+
+    public Node nodeForIdentifier(ByteBuffer identifier) {
+        return identifierToNodeMap.get(identifier);
+    }
+
+    public Collection<Node> getNodes() {
+        return allNodes;
+    }
+
+    public int getNumberOfNodes() {
+        return allNodes.size();
+    }
+
+    public int getNumberOfPreferredNodes() {
+        return numberOfPreferredNodes;
+    }
+
+    public synchronized void performMaintenance() {
+
+        // Move the reference time forward if the growth factor is large. The write lock is held through the rebuild
+        // of the tree, so no update is scaled with the old reference time or applied to a weight that is then
+        // overwritten.
+        List<Entry> entries = new ArrayList<>();
+        long stamp = lock.writeLock();
+        try {
+            long timestamp = clock.getAsLong();
+            double growth = growth(timestamp);
+            if (growth > rescaleThreshold) {
+                for (Entry entry : ipAddressToEntryMap.values()) {
+                    entry.storedScore.set(Double.doubleToLongBits(Double.longBitsToDouble(entry.storedScore.get()) /
+                            growth));
+                }
+                referenceTimestamp = timestamp;
+                growth = 1.0;
+            }
+
+            // Remove nodes below the minimum score. If the map is over capacity, which can only happen if the
+            // capacity was reduced, the lowest scores are also removed.
+            for (Entry entry : ipAddressToEntryMap.values()) {
+                if (Double.longBitsToDouble(entry.storedScore.get()) / growth < minimumScore) {
+                    remove(entry);
+                } else {
+                    entries.add(entry);
+                }
+            }
+
+            // Rebuild the weights and the tree.
+            long[] weights = new long[capacity + 1];
+            for (Entry entry : entries) {
+                updateWeight(entry);
+                weights[entry.slot + 1] = entry.weight.get();
+            }
+            for (int i = 1; i <= capacity; i++) {
+                int parent = i + (i & -i);
+                if (parent <= capacity) {
+                    weights[parent] += weights[i];
+                }
+            }
+            for (int i = 1; i <= capacity; i++) {
+                tree.set(i, weights[i]);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        // Sort by descending score. The preferred nodes are those with scores at or above the highest cutoff for
+        // which the scores at or above the cutoff are at least half of the sum of all scores.
+        entries.sort(new Comparator<Entry>() {
+            @Override
+            public int compare(Entry entry1, Entry entry2) {
+                return Double.compare(Double.longBitsToDouble(entry2.storedScore.get()),
+                        Double.longBitsToDouble(entry1.storedScore.get()));
+            }
+        });
+        double scoreSum = 0.0;
+        double[] scores = new double[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            scores[i] = Double.longBitsToDouble(entries.get(i).storedScore.get());
+            scoreSum += scores[i];
+        }
+        int numberOfPreferredNodes = 0;
+        double aboveCutoffSum = 0.0;
+        while (numberOfPreferredNodes < scores.length && (aboveCutoffSum < scoreSum / 2.0 ||
+                (numberOfPreferredNodes > 0 &&
+                        scores[numberOfPreferredNodes] == scores[numberOfPreferredNodes - 1]))) {
+            aboveCutoffSum += scores[numberOfPreferredNodes];
+            numberOfPreferredNodes++;
+        }
+
+        // Build the node list and identifier map. If an identifier is at more than one IP address, the node with the
+        // highest score is used.
+        List<Node> allNodes = new ArrayList<>();
+        Map<ByteBuffer, Node> identifierToNodeMap = new HashMap<>();
+        for (Entry entry : entries) {
+            allNodes.add(entry.node);
+            identifierToNodeMap.putIfAbsent(ByteBuffer.wrap(entry.node.getIdentifier()), entry.node);
+        }
+        this.allNodes = allNodes;
+        this.identifierToNodeMap = identifierToNodeMap;
+        this.numberOfPreferredNodes = numberOfPreferredNodes;
+    }
+
+    public synchronized void removeLowestScores(int numberToRemove) {
+
+        // This makes room for new nodes when the ranking is at capacity. As in maintenance, the write lock is held
+        // through the removals, so no score update is applied to a weight as it is being removed from the tree.
+        long stamp = lock.writeLock();
+        try {
+            List<Entry> entries = new ArrayList<>(ipAddressToEntryMap.values());
+            entries.sort(new Comparator<Entry>() {
+                @Override
+                public int compare(Entry entry1, Entry entry2) {
+                    return Double.compare(Double.longBitsToDouble(entry1.storedScore.get()),
+                            Double.longBitsToDouble(entry2.storedScore.get()));
+                }
+            });
+            for (int i = 0; i < numberToRemove && i < entries.size(); i++) {
+                remove(entries.get(i));
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int getNumberOfFreeSlots() {
+        return freeSlots.size();
+    }
+
+    private void remove(Entry entry) {
+
+        if (ipAddressToEntryMap.remove(ByteBuffer.wrap(entry.node.getIpAddress()), entry)) {
+            long weight = entry.weight.getAndSet(0L);
+            add(entry.slot, -weight);
+            slots.compareAndSet(entry.slot, entry, null);
+            freeSlots.add(entry.slot);
+        }
+    }
+
+    private void changeScore(Entry entry, double scoreChange) {
+
+        // The change and the cap are scaled to the reference time. The score does not fall below zero. The read lock
+        // keeps the reference time from moving between the calculation of the factor and the compare-and-set.
+        long stamp = lock.readLock();
+        try {
+            double growth = growth(clock.getAsLong());
+            long previousBits;
+            long newBits;
+            do {
+                previousBits = entry.storedScore.get();
+                double storedScore = Double.longBitsToDouble(previousBits) + scoreChange * growth;
+                storedScore = Math.max(0.0, Math.min(storedScore, maximumScore * growth));
+                newBits = Double.doubleToLongBits(storedScore);
+            } while (!entry.storedScore.compareAndSet(previousBits, newBits));
+            updateWeight(entry);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void updateWeight(Entry entry) {
+
+        // A node without a latency measurement is weighted as if it had the reference latency.
+        double latency = Double.longBitsToDouble(entry.latency.get());
+        double latencyFactor = referenceLatency / (referenceLatency + (Double.isNaN(latency) ? referenceLatency :
+                Math.max(0.0, latency)));
+        long weight = (long) (Double.longBitsToDouble(entry.storedScore.get()) * latencyFactor * weightPrecision);
+        long previousWeight = entry.weight.getAndSet(weight);
+        add(entry.slot, weight - previousWeight);
+    }
+
+    private double growth(long timestamp) {
+        return Math.pow(2.0, (timestamp - referenceTimestamp) / halfLife);
+    }
+
+    private void add(int slot, long delta) {
+
+        if (delta != 0L) {
+            for (int i = slot + 1; i <= capacity; i += i & -i) {
+                tree.addAndGet(i, delta);
+            }
+        }
+    }
+
+    private long prefixSum(int index) {
+
+        long sum = 0L;
+        for (int i = index; i > 0; i -= i & -i) {
+            sum += tree.get(i);
+        }
+
+        return sum;
+    }
+
+    private static class Entry {
+
+        private volatile Node node;
+        private final int slot;
+        private final AtomicLong storedScore = new AtomicLong(Double.doubleToLongBits(0.0));
+        private final AtomicLong latency = new AtomicLong(Double.doubleToLongBits(Double.NaN));
+        private final AtomicLong weight = new AtomicLong(0L);
+
+        private Entry(Node node, int slot) {
+            this.node = node;
+            this.slot = slot;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package co.nyzo.verifier.client;
+
+import co.nyzo.verifier.BlockManager;
+import co.nyzo.verifier.Transaction;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class TransactionForwardStore {
+
+    // This holds recently forwarded transactions, indexed by key (the transaction's Nyzo string), by target block
+    // height, and by sender and receiver. Expiring the transactions behind the frozen edge removes whole height
+    // buckets from the front of the height index, so the cost is proportional to the number of transactions removed,
+    // not the size of the store. Queries by account and height range use the account indexes, so they visit only the
+    // matching heights of that account.
+
+    // Each entry records its position in the bucket of each index that holds it. An entry is removed from a bucket by
+    // moving the last entry of the bucket into its place, so removal is constant-time regardless of the bucket size.
+    // The order of the entries in a bucket is not significant.
+
+    // The store is bounded. When it is full, transactions with the highest target heights are removed first, as those
+    // are the furthest from being incorporated and the most likely to be unwanted.
+
+    private static final int heightIndexNumber = 0;
+    private static final int senderIndexNumber = 1;
+    private static final int receiverIndexNumber = 2;
+
+    private static class Entry {
+
+        private final String key;
+        private final Transaction transaction;
+        private final long height;
+        private final ByteBuffer sender;
+        private final ByteBuffer receiver;
+        private final int[] positions = new int[3];
+
+        private Entry(String key, Transaction transaction) {
+            this.key = key;
+            this.transaction = transaction;
+            this.height = BlockManager.heightForTimestamp(transaction.getTimestamp());
+            this.sender = ByteBuffer.wrap(transaction.getSenderIdentifier());
+            this.receiver = transaction.getReceiverIdentifier() == null ? null :
+                    ByteBuffer.wrap(transaction.getReceiverIdentifier());
+        }
+    }
+
+    private final int maximumSize;
+    private final Map<String, Entry> keyIndex = new HashMap<>();
+    private final TreeMap<Long, List<Entry>> heightIndex = new TreeMap<>();
+    private final Map<ByteBuffer, TreeMap<Long, List<Entry>>> senderIndex = new HashMap<>();
+    private final Map<ByteBuffer, TreeMap<Long, List<Entry>>> receiverIndex = new HashMap<>();
+
+    public TransactionForwardStore(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    public synchronized int size() {
+        return keyIndex.size();
+    }
+
+    public synchronized boolean contains(String key) {
+        return keyIndex.containsKey(key);
+    }
+
+    public synchronized void put(String key, Transaction transaction) {
+
+        remove(key);
+        Entry entry = new Entry(key, transaction);
+        keyIndex.put(key, entry);
+        addToIndex(heightIndex, entry, heightIndexNumber);
+        addToIndex(accountIndex(senderIndex, entry.sender, true), entry, senderIndexNumber);
+        if (entry.receiver != null) {
+            addToIndex(accountIndex(receiverIndex, entry.receiver, true), entry, receiverIndexNumber);
+        }
+
+        // Remove transactions with the highest target heights until the store is within its limit.
+        while (keyIndex.size() > maximumSize) {
+            List<Entry> highestBucket = heightIndex.lastEntry().getValue();
+            remove(highestBucket.get(highestBucket.size() - 1).key);
+        }
+    }
+
+    public synchronized boolean remove(String key) {
+
+        Entry entry = keyIndex.remove(key);
+        if (entry != null) {
+            removeFromIndex(heightIndex, entry, heightIndexNumber);
+            removeFromAccountIndexes(entry);
+        }
+
+        return entry != null;
+    }
+
+    public synchronized int removeThroughHeight(long height) {
+
+        // Whole buckets are removed from the front of the height index, and then their entries are removed from the
+        // other indexes.
+        int numberRemoved = 0;
+        while (!heightIndex.isEmpty() && heightIndex.firstKey() <= height) {
+            for (Entry entry : heightIndex.pollFirstEntry().getValue()) {
+                keyIndex.remove(entry.key);
+                removeFromAccountIndexes(entry);
+                numberRemoved++;
+            }
+        }
+
+        return numberRemoved;
+    }
+
+    public synchronized List<Transaction> transactionsForReceiver(byte[] receiver, long minimumHeight,
+                                                                  long maximumHeight) {
+        return transactionsInRange(accountIndex(receiverIndex, ByteBuffer.wrap(receiver), false), minimumHeight,
+                maximumHeight);
+    }
+
+    public synchronized List<Transaction> transactionsForSender(byte[] sender, long minimumHeight,
+                                                                long maximumHeight) {
+        return transactionsInRange(accountIndex(senderIndex, ByteBuffer.wrap(sender), false), minimumHeight,
+                maximumHeight);
+    }
+
+    public synchronized List<Transaction> transactionsInRange(long minimumHeight, long maximumHeight) {
+        return transactionsInRange(heightIndex, minimumHeight, maximumHeight);
+    }
+
+    public synchronized List<Transaction> allTransactions() {
+        return transactionsInRange(heightIndex, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private static List<Transaction> transactionsInRange(TreeMap<Long, List<Entry>> index, long minimumHeight,
+                                                         long maximumHeight) {
+
+        List<Transaction> transactions = new ArrayList<>();
+        if (index != null && minimumHeight <= maximumHeight) {
+            for (List<Entry> bucket : index.subMap(minimumHeight, true, maximumHeight, true).values()) {
+                for (Entry entry : bucket) {
+                    transactions.add(entry.transaction);
+                }
+            }
+        }
+
+        return transactions;
+    }
+
+    private static TreeMap<Long, List<Entry>> accountIndex(Map<ByteBuffer, TreeMap<Long, List<Entry>>> indexMap,
+                                                           ByteBuffer account, boolean create) {
+        return create ? indexMap.computeIfAbsent(account, key -> new TreeMap<>()) : indexMap.get(account);
+    }
+
+    private static void addToIndex(TreeMap<Long, List<Entry>> index, Entry entry, int indexNumber) {
+
+        List<Entry> bucket = index.computeIfAbsent(entry.height, key -> new ArrayList<>());
+        entry.positions[indexNumber] = bucket.size();
+        bucket.add(entry);
+    }
+
+    private static void removeFromIndex(TreeMap<Long, List<Entry>> index, Entry entry, int indexNumber) {
+
+        List<Entry> bucket = index.get(entry.height);
+        if (bucket != null) {
+            int position = entry.positions[indexNumber];
+            Entry lastEntry = bucket.remove(bucket.size() - 1);
+            if (lastEntry != entry) {
+                bucket.set(position, lastEntry);
+                lastEntry.positions[indexNumber] = position;
+            }
+            if (bucket.isEmpty()) {
+                index.remove(entry.height);
+            }
+        }
+    }
+
+    private void removeFromAccountIndexes(Entry entry) {
+
+        removeFromAccountIndex(senderIndex, entry.sender, entry, senderIndexNumber);
+        if (entry.receiver != null) {
+            removeFromAccountIndex(receiverIndex, entry.receiver, entry, receiverIndexNumber);
+        }
+    }
+
+    private static void removeFromAccountIndex(Map<ByteBuffer, TreeMap<Long, List<Entry>>> indexMap,
+                                               ByteBuffer account, Entry entry, int indexNumber) {
+
+        TreeMap<Long, List<Entry>> index = indexMap.get(account);
+        if (index != null) {
+            removeFromIndex(index, entry, indexNumber);
+            if (index.isEmpty()) {
+                indexMap.remove(account);
+            }
+        }
+    }
+}
@@ -32,7 +32,7 @@ public class TransactionIndexer {
         // Start the thread if indexing is active.
         if (indexingActive && !alive.getAndSet(true)) {
 
-            new Thread(new Runnable() {
+            ThreadUtil.startLongRunning(new Runnable() {
                 @Override
                 public void run() {
 
@@ -74,7 +74,7 @@ public class TransactionIndexer {
 
                     alive.set(false);
                 }
-            }).start();
+            }, "TransactionIndexer");
         } else {
             LogUtil.println("TransactionIndexer: not starting");
         }
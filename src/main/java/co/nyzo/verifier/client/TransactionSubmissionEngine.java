@@ -0,0 +1,460 @@
+package co.nyzo.verifier.client;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.messages.TransactionResponse;
+import co.nyzo.verifier.metrics.MetricsCounter;
+import co.nyzo.verifier.metrics.MetricsRegistry;
+import co.nyzo.verifier.util.IpUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.ThreadUtil;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TransactionSubmissionEngine {
+
+    // The submission engine sends many transactions to the verifiers likely to include them, and it follows each
+    // transaction until its block is frozen. It works as a pipeline:
+    // - Entries are signed only when they are released. Each gets a timestamp that keeps any one block from receiving
+    //   more than the configured number of transactions. No sender has more than the configured number of
+    //   transactions in flight, because the transaction pool of a verifier holds at most 100 per sender.
+    // - Each target verifier has its own queue, drained by one sender at a time. Transactions to a verifier are sent
+    //   back to back without a thread for each transaction and without opening many simultaneous connections to the
+    //   same IP, which the mesh listener treats as abuse. The mesh listener answers one message per connection, so
+    //   each transaction still uses its own connection.
+    // - A send that receives no response is retried after a delay that grows with each failure, up to the maximum
+    //   number of attempts for each target. Retries are released by the update pass, so a verifier that is not
+    //   responding does not hold a thread while it waits.
+    // - Responses are recorded as they arrive. Each update pass re-targets transactions whose likely verifiers have
+    //   changed and checks frozen blocks for inclusion.
+    //
+    // A transaction that was not included in its frozen block can never be included later, as the block height is
+    // determined by the timestamp. An entry whose transaction was not included is signed again with a new timestamp,
+    // up to the maximum number of resubmissions.
+
+    public enum State {
+        Sent,
+        Accepted,
+        Included,
+        NotIncluded,
+        Unknown
+    }
+
+    private static final int transactionsPerBlock = Math.max(1,
+            PreferencesUtil.getInt("client_batch_transactions_per_block", 20));
+    private static final int maximumInFlightPerSender = Math.max(1,
+            PreferencesUtil.getInt("client_batch_maximum_in_flight", 80));
+    private static final int maximumResubmissions = Math.max(0,
+            PreferencesUtil.getInt("client_batch_maximum_resubmissions", 2));
+    private static final int maximumSendAttempts = Math.max(1,
+            PreferencesUtil.getInt("client_batch_maximum_send_attempts", 3));
+    private static final long defaultRetryDelay = Math.max(0L,
+            PreferencesUtil.getLong("client_batch_retry_delay_ms", 1000L));
+
+    // Transactions are released this many blocks past the open edge so that they reach the verifiers before their
+    // block is assembled. If the frozen edge passes a transaction's height by this many blocks and the block is still
+    // not available to the client, the outcome of the transaction is reported as unknown.
+    private static final long blocksPastOpenEdge = 2L;
+    private static final long blocksUntilUnknown = 20L;
+
+    private static final MetricsCounter submittedCounter =
+            MetricsRegistry.counter("nyzo_client_transactions_submitted");
+    private static final MetricsCounter acceptedCounter = MetricsRegistry.counter("nyzo_client_transactions_accepted");
+    private static final MetricsCounter includedCounter = MetricsRegistry.counter("nyzo_client_transactions_included");
+
+    // The default transport sends each transaction over TCP. Tests provide their own transport to the constructor.
+    private static final Transport tcpTransport = new Transport() {
+        @Override
+        public TransactionResponse send(Node node, Transaction transaction) {
+            Message response = Message.fetchTcpBlocking(IpUtil.addressAsString(node.getIpAddress()),
+                    node.getPortTcp(), new Message(MessageType.Transaction5, transaction));
+            return response != null && response.getContent() instanceof TransactionResponse ?
+                    (TransactionResponse) response.getContent() : null;
+        }
+    };
+
+    private final Transport transport;
+    private final long retryDelay;
+    private final ConcurrentLinkedDeque<Entry> waitingEntries = new ConcurrentLinkedDeque<>();
+    private final ConcurrentLinkedQueue<Submission> activeSubmissions = new ConcurrentLinkedQueue<>();
+    private final List<Submission> unsuccessfulSubmissions = Collections.synchronizedList(new ArrayList<>());
+    private final Map<ByteBuffer, TargetQueue> targetQueues = new ConcurrentHashMap<>();
+    private final Map<ByteBuffer, AtomicInteger> inFlightPerSender = new ConcurrentHashMap<>();
+
+    private final AtomicInteger numberSubmitted = new AtomicInteger(0);
+    private final AtomicInteger numberAccepted = new AtomicInteger(0);
+    private final AtomicInteger numberIncluded = new AtomicInteger(0);
+    private final AtomicInteger numberNotIncluded = new AtomicInteger(0);
+    private final AtomicInteger numberUnknown = new AtomicInteger(0);
+    private final AtomicInteger numberResubmitted = new AtomicInteger(0);
+    private final AtomicInteger numberRetargeted = new AtomicInteger(0);
+    private final long startTimestamp = System.currentTimeMillis();
+
+    // These are only accessed in update(), which is synchronized.
+    private long nextHeight = -1L;
+    private int transactionsAtNextHeight = 0;
+
+    public TransactionSubmissionEngine() {
+        this(tcpTransport, defaultRetryDelay);
+    }
+
+    public TransactionSubmissionEngine(Transport transport, long retryDelay) {
+        this.transport = transport;
+        this.retryDelay = retryDelay;
+    }
+
+    public void addEntries(List<Entry> entries) {
+        waitingEntries.addAll(entries);
+    }
+
+    public void submit(Transaction transaction) {
+        submit(transaction, null);
+    }
+
+    public synchronized void update() {
+
+        // Finish submissions whose blocks are frozen, and re-target the others. The likely verifiers are computed once
+        // per height in each pass.
+        long frozenEdgeHeight = BlockManager.getFrozenEdgeHeight();
+        Map<Long, ByteBuffer[]> verifiersForHeight = new HashMap<>();
+        Iterator<Submission> iterator = activeSubmissions.iterator();
+        while (iterator.hasNext()) {
+            Submission submission = iterator.next();
+            if (submission.height <= frozenEdgeHeight) {
+                Block block = BlockManager.frozenBlockForHeight(submission.height);
+                State finalState = null;
+                if (block != null) {
+                    finalState = blockContainsTransaction(block, submission.transaction) ? State.Included :
+                            State.NotIncluded;
+                } else if (frozenEdgeHeight > submission.height + blocksUntilUnknown) {
+                    finalState = State.Unknown;
+                }
+
+                if (finalState != null) {
+                    iterator.remove();
+                    finish(submission, finalState);
+                }
+            } else {
+                ByteBuffer[] verifiers = verifiersForHeight.get(submission.height);
+                if (verifiers == null) {
+                    verifiers = ClientTransactionUtil.likelyVerifiersForHeight(submission.height);
+                    verifiersForHeight.put(submission.height, verifiers);
+                }
+                if (addTargets(submission, verifiers)) {
+                    numberRetargeted.incrementAndGet();
+                }
+            }
+        }
+
+        // Return failed sends to their queues when their delays have passed.
+        long currentTimestamp = System.currentTimeMillis();
+        for (TargetQueue queue : targetQueues.values()) {
+            queue.releaseRetries(currentTimestamp);
+        }
+
+        releaseWaitingEntries();
+    }
+
+    public boolean isComplete() {
+        return waitingEntries.isEmpty() && activeSubmissions.isEmpty();
+    }
+
+    public List<Submission> getUnsuccessfulSubmissions() {
+        return new ArrayList<>(unsuccessfulSubmissions);
+    }
+
+    public int getNumberSubmitted() {
+        return numberSubmitted.get();
+    }
+
+    public int getNumberAccepted() {
+        return numberAccepted.get();
+    }
+
+    public int getNumberIncluded() {
+        return numberIncluded.get();
+    }
+
+    public String getStatus() {
+
+        double elapsedSeconds = Math.max(0.001, (System.currentTimeMillis() - startTimestamp) / 1000.0);
+        return String.format("submitted: %d (%.1f/s), accepted: %d (%.1f/s), included: %d (%.1f/s), not included: " +
+                        "%d, unknown: %d, resubmitted: %d, re-targeted: %d, waiting: %d, in flight: %d",
+                numberSubmitted.get(), numberSubmitted.get() / elapsedSeconds, numberAccepted.get(),
+                numberAccepted.get() / elapsedSeconds, numberIncluded.get(), numberIncluded.get() / elapsedSeconds,
+                numberNotIncluded.get(), numberUnknown.get(), numberResubmitted.get(), numberRetargeted.get(),
+                waitingEntries.size(), activeSubmissions.size());
+    }
+
+    private void releaseWaitingEntries() {
+
+        // Heights are filled in order from just past the open edge. The peek and poll are not atomic, but entries are
+        // only removed here, and this method is only called from the synchronized update() method.
+        long minimumHeight = BlockManager.openEdgeHeight(false) + blocksPastOpenEdge;
+        if (nextHeight < minimumHeight) {
+            nextHeight = minimumHeight;
+            transactionsAtNextHeight = 0;
+        }
+
+        Block frozenEdge = BlockManager.getFrozenEdge();
+        Entry entry;
+        while (frozenEdge != null && (entry = waitingEntries.peek()) != null &&
+                inFlightForSender(entry.senderIdentifier).get() < maximumInFlightPerSender) {
+            waitingEntries.poll();
+            if (transactionsAtNextHeight >= transactionsPerBlock) {
+                nextHeight++;
+                transactionsAtNextHeight = 0;
+            }
+
+            // The timestamps are spaced evenly through the block.
+            long timestamp = BlockManager.startTimestampForHeight(nextHeight) + Block.blockDuration *
+                    (transactionsAtNextHeight + 1) / (transactionsPerBlock + 1);
+            transactionsAtNextHeight++;
+            Transaction transaction = Transaction.standardTransaction(timestamp, entry.amount,
+                    entry.receiverIdentifier, frozenEdge.getBlockHeight(), frozenEdge.getHash(), entry.senderData,
+                    entry.signerSeed);
+            submit(transaction, entry);
+        }
+    }
+
+    private void submit(Transaction transaction, Entry entry) {
+
+        Submission submission = new Submission(transaction, entry);
+        inFlightForSender(ByteBuffer.wrap(transaction.getSenderIdentifier())).incrementAndGet();
+        activeSubmissions.add(submission);
+        numberSubmitted.incrementAndGet();
+        submittedCounter.increment();
+        addTargets(submission, ClientTransactionUtil.likelyVerifiersForHeight(submission.height));
+    }
+
+    private boolean addTargets(Submission submission, ByteBuffer[] verifiers) {
+
+        boolean addedTarget = false;
+        for (ByteBuffer identifier : verifiers) {
+            if (identifier != null && submission.targets.add(identifier)) {
+                addedTarget = true;
+                TargetQueue queue = targetQueues.get(identifier);
+                if (queue == null) {
+                    queue = new TargetQueue(identifier);
+                    TargetQueue existingQueue = targetQueues.putIfAbsent(identifier, queue);
+                    queue = existingQueue == null ? queue : existingQueue;
+                }
+                queue.add(submission);
+            }
+        }
+
+        return addedTarget;
+    }
+
+    private void send(TargetQueue queue, Submission submission) {
+
+        // Transactions for frozen heights are not sent. If the verifier is not in the mesh, the target is removed so
+        // that the next update pass can add it again.
+        State state = submission.state.get();
+        Node node = ClientNodeManager.nodeForIdentifier(queue.identifier);
+        if ((state == State.Sent || state == State.Accepted) &&
+                submission.height > BlockManager.getFrozenEdgeHeight()) {
+            if (node == null) {
+                submission.targets.remove(queue.identifier);
+            } else {
+                long requestTimestamp = System.currentTimeMillis();
+                TransactionResponse transactionResponse = transport.send(node, submission.transaction);
+                if (transactionResponse != null) {
+                    ClientNodeManager.markSuccess(node, System.currentTimeMillis() - requestTimestamp);
+                    if (transactionResponse.isAccepted()) {
+                        if (submission.state.compareAndSet(State.Sent, State.Accepted)) {
+                            numberAccepted.incrementAndGet();
+                            acceptedCounter.increment();
+                        }
+                    } else {
+                        submission.lastMessage = transactionResponse.getMessage();
+                    }
+                } else {
+                    ClientNodeManager.markFailure(node);
+                    int failedAttempts = submission.failedAttempts.merge(queue.identifier, 1, Integer::sum);
+                    if (failedAttempts < maximumSendAttempts) {
+                        queue.retryTimestamps.put(submission, System.currentTimeMillis() + retryDelay *
+                                failedAttempts);
+                    } else {
+                        submission.lastMessage = "no response from " + NicknameManager.get(node.getIdentifier());
+                    }
+                }
+            }
+        }
+    }
+
+    private void finish(Submission submission, State finalState) {
+
+        submission.state.set(finalState);
+        inFlightForSender(ByteBuffer.wrap(submission.transaction.getSenderIdentifier())).decrementAndGet();
+        if (finalState == State.Included) {
+            numberIncluded.incrementAndGet();
+            includedCounter.increment();
+        } else {
+            if (finalState == State.NotIncluded) {
+                numberNotIncluded.incrementAndGet();
+            } else {
+                numberUnknown.incrementAndGet();
+            }
+
+            Entry entry = submission.entry;
+            if (finalState == State.NotIncluded && entry != null && entry.resubmissions < maximumResubmissions) {
+                entry.resubmissions++;
+                numberResubmitted.incrementAndGet();
+                waitingEntries.addFirst(entry);
+            } else {
+                unsuccessfulSubmissions.add(submission);
+            }
+        }
+    }
+
+    private AtomicInteger inFlightForSender(ByteBuffer senderIdentifier) {
+
+        AtomicInteger count = inFlightPerSender.get(senderIdentifier);
+        if (count == null) {
+            count = new AtomicInteger(0);
+            AtomicInteger existingCount = inFlightPerSender.putIfAbsent(senderIdentifier, count);
+            count = existingCount == null ? count : existingCount;
+        }
+
+        return count;
+    }
+
+    private static boolean blockContainsTransaction(Block block, Transaction transaction) {
+
+        boolean containsTransaction = false;
+        for (Transaction blockTransaction : block.getTransactions()) {
+            if (ByteUtil.arraysAreEqual(blockTransaction.getSignature(), transaction.getSignature())) {
+                containsTransaction = true;
+            }
+        }
+
+        return containsTransaction;
+    }
+
+    public interface Transport {
+
+        // This returns null if a valid response was not received.
+        TransactionResponse send(Node node, Transaction transaction);
+    }
+
+    public static class Entry {
+
+        private final byte[] signerSeed;
+        private final ByteBuffer senderIdentifier;
+        private final byte[] receiverIdentifier;
+        private final long amount;
+        private final byte[] senderData;
+        private int resubmissions = 0;
+
+        public Entry(byte[] signerSeed, byte[] receiverIdentifier, long amount, byte[] senderData) {
+            this.signerSeed = signerSeed;
+            this.senderIdentifier = ByteBuffer.wrap(KeyUtil.identifierForSeed(signerSeed));
+            this.receiverIdentifier = receiverIdentifier;
+            this.amount = amount;
+            this.senderData = senderData;
+        }
+
+        public byte[] getReceiverIdentifier() {
+            return receiverIdentifier;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+
+        public byte[] getSenderData() {
+            return senderData;
+        }
+    }
+
+    public static class Submission {
+
+        private final Transaction transaction;
+        private final Entry entry;
+        private final long height;
+        private final Set<ByteBuffer> targets = ConcurrentHashMap.newKeySet();
+        private final AtomicReference<State> state = new AtomicReference<>(State.Sent);
+        private final Map<ByteBuffer, Integer> failedAttempts = new ConcurrentHashMap<>();
+        private volatile String lastMessage = null;
+
+        private Submission(Transaction transaction, Entry entry) {
+            this.transaction = transaction;
+            this.entry = entry;
+            this.height = BlockManager.heightForTimestamp(transaction.getTimestamp());
+        }
+
+        public Transaction getTransaction() {
+            return transaction;
+        }
+
+        public long getHeight() {
+            return height;
+        }
+
+        public State getState() {
+            return state.get();
+        }
+
+        public String getLastMessage() {
+            return lastMessage;
+        }
+    }
+
+    private class TargetQueue {
+
+        private final ByteBuffer identifier;
+        private final ConcurrentLinkedQueue<Submission> submissions = new ConcurrentLinkedQueue<>();
+        private final Map<Submission, Long> retryTimestamps = new ConcurrentHashMap<>();
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+
+        private TargetQueue(ByteBuffer identifier) {
+            this.identifier = identifier;
+        }
+
+        private void add(Submission submission) {
+
+            submissions.add(submission);
+            if (!draining.getAndSet(true)) {
+                // If the executor rejects the drain, the flag is cleared, and the queue is drained after the next
+                // submission for this target.
+                if (!ThreadUtil.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                }, "TransactionSubmissionEngine-" + NicknameManager.get(identifier.array()))) {
+                    draining.set(false);
+                }
+            }
+        }
+
+        private void releaseRetries(long currentTimestamp) {
+
+            for (Map.Entry<Submission, Long> entry : retryTimestamps.entrySet()) {
+                if (entry.getValue() <= currentTimestamp && retryTimestamps.remove(entry.getKey(), entry.getValue())) {
+                    add(entry.getKey());
+                }
+            }
+        }
+
+        private void drain() {
+
+            // After the queue is empty, the flag is cleared and the queue is checked again. This ensures that a
+            // submission added while the flag was being cleared is not left in the queue.
+            do {
+                Submission submission;
+                while ((submission = submissions.poll()) != null) {
+                    send(this, submission);
+                }
+                draining.set(false);
+            } while (!submissions.isEmpty() && !draining.getAndSet(true));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package co.nyzo.verifier.client.commands;
+
+import co.nyzo.verifier.BalanceHistoryIndexer;
+import co.nyzo.verifier.BalanceHistoryStore;
+import co.nyzo.verifier.BlockManager;
+import co.nyzo.verifier.ByteUtil;
+import co.nyzo.verifier.client.*;
+import co.nyzo.verifier.nyzoString.NyzoStringEncoder;
+import co.nyzo.verifier.nyzoString.NyzoStringPublicIdentifier;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BalanceHistoryCommand implements Command {
+
+    @Override
+    public String getShortCommand() {
+        return "BH";
+    }
+
+    @Override
+    public String getLongCommand() {
+        return "balanceHistory";
+    }
+
+    @Override
+    public String getDescription() {
+        return "display the balance history of an account";
+    }
+
+    @Override
+    public String[] getArgumentNames() {
+        return new String[] { "account ID", "minimum block height (optional)", "maximum block height (optional)" };
+    }
+
+    @Override
+    public String[] getArgumentIdentifiers() {
+        return new String[] { "accountIdentifier", "minimumBlockHeight", "maximumBlockHeight" };
+    }
+
+    @Override
+    public boolean requiresValidation() {
+        return false;
+    }
+
+    @Override
+    public boolean requiresConfirmation() {
+        return false;
+    }
+
+    @Override
+    public boolean isLongRunning() {
+        return false;
+    }
+
+    @Override
+    public ValidationResult validate(List<String> argumentValues, CommandOutput output) {
+        return null;
+    }
+
+    @Override
+    public ExecutionResult run(List<String> argumentValues, CommandOutput output) {
+
+        // Make lists for notices and errors.
+        List<String> notices = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+
+        // Get the argument values. The default range is the full coverage of the index.
+        BalanceHistoryStore store = BalanceHistoryIndexer.getStore();
+        NyzoStringPublicIdentifier accountIdentifier = ClientArgumentUtil.getPublicIdentifier(argumentValues.get(0));
+        long minimumBlockHeight = ClientArgumentUtil.getLong(argumentValues.get(1), store.getCoverageStartHeight());
+        long maximumBlockHeight = ClientArgumentUtil.getLong(argumentValues.get(2), store.getCoverageEndHeight());
+
+        notices.add("balance history is indexed from height " + store.getCoverageStartHeight() + " to height " +
+                store.getCoverageEndHeight());
+
+        // The first row is the balance at the minimum height, followed by each change in the range.
+        CommandTable table = new CommandTable(new CommandTableHeader("block height", "blockHeight"),
+                new CommandTableHeader("balance", "balance"),
+                new CommandTableHeader("balance (micronyzos)", "balanceMicronyzos", true));
+        Long startBalance = BalanceHistoryIndexer.balanceForAccount(accountIdentifier.getIdentifier(),
+                minimumBlockHeight);
+        if (startBalance == null) {
+            errors.add("height " + minimumBlockHeight + " is not in the balance history index");
+        } else {
+            table.addRow(minimumBlockHeight, PrintUtil.printAmount(startBalance), startBalance);
+            List<BalanceHistoryStore.Change> changes = BalanceHistoryIndexer.changesForAccount(
+                    accountIdentifier.getIdentifier(), minimumBlockHeight + 1L, maximumBlockHeight);
+            for (BalanceHistoryStore.Change change : changes) {
+                table.addRow(change.getHeight(), PrintUtil.printAmount(change.getBalance()), change.getBalance());
+            }
+            if (changes.size() == BalanceHistoryIndexer.maximumChangesPerQuery) {
+                notices.add("search is returning maximum number of changes (" +
+                        BalanceHistoryIndexer.maximumChangesPerQuery + "); more changes may be available above " +
+                        "height " + changes.get(changes.size() - 1).getHeight());
+            }
+        }
+
+        // Build the supplemental table.
+        CommandTable supplementalTable = new CommandTable(
+                new CommandTableHeader("account ID (raw)", "accountIdentifierRaw", true),
+                new CommandTableHeader("account ID (Nyzo string)", "accountIdentifierNyzoString", true),
+                new CommandTableHeader("frozen edge", "frozenEdgeHeight"));
+        supplementalTable.setInvertedRowsColumns(true);
+        supplementalTable.addRow(ByteUtil.arrayAsStringWithDashes(accountIdentifier.getIdentifier()),
+                NyzoStringEncoder.encode(accountIdentifier), BlockManager.getFrozenEdgeHeight());
+
+        return new SimpleExecutionResult(notices, errors, table, supplementalTable);
+    }
+}
@@ -64,12 +64,7 @@ public class PublicNyzoStringCommand implements Command {
         List<String> notices = new ArrayList<>();
         BalanceList frozenEdgeList = BalanceListManager.getFrozenEdgeList();
         if (frozenEdgeList != null) {
-            List<BalanceListItem> balanceListItems = frozenEdgeList.getItems();
-            boolean foundInBalanceList = false;
-            for (int i = 0; i < balanceListItems.size() && !foundInBalanceList; i++) {
-                foundInBalanceList = ByteUtil.arraysAreEqual(balanceListItems.get(i).getIdentifier(), publicIdentifier);
-            }
-            if (!foundInBalanceList) {
+            if (!frozenEdgeList.containsIdentifier(publicIdentifier)) {
                 notices.add("This account was not found in the balance list at height " +
                         frozenEdgeList.getBlockHeight() + ". If the ID you provided is incorrect, and you send coins " +
                         "to it, those coins will likely be unrecoverable. Please ensure that this address is valid " +
@@ -0,0 +1,234 @@
+package co.nyzo.verifier.client.commands;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.client.*;
+import co.nyzo.verifier.nyzoString.NyzoString;
+import co.nyzo.verifier.nyzoString.NyzoStringEncoder;
+import co.nyzo.verifier.nyzoString.NyzoStringPrivateSeed;
+import co.nyzo.verifier.nyzoString.NyzoStringPublicIdentifier;
+import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.ThreadUtil;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+public class TransactionBatchSendCommand implements Command {
+
+    // A batch is either the path of a file or the batch text itself, which allows a batch to be posted to the API
+    // endpoint. Each line, or each entry separated by a semicolon, is "receiver ID,amount in Nyzos,sender data". The
+    // sender data is optional and may contain commas. File paths are only accepted from the interactive console;
+    // commands from the API must pass the batch text, so a remote caller cannot read local files.
+
+    private static final long maximumTimeWithoutProgress = 300000L;  // 5 minutes
+
+    @Override
+    public String getShortCommand() {
+        return "SB";
+    }
+
+    @Override
+    public String getLongCommand() {
+        return "sendBatch";
+    }
+
+    @Override
+    public String getDescription() {
+        return "send a batch of standard transactions from a file or list";
+    }
+
+    @Override
+    public String[] getArgumentNames() {
+        return new String[] { "sender key", "batch file or list (receiver ID,amount,sender data; ...)" };
+    }
+
+    @Override
+    public String[] getArgumentIdentifiers() {
+        return new String[] { "senderKey", "batch" };
+    }
+
+    @Override
+    public boolean requiresValidation() {
+        return true;
+    }
+
+    @Override
+    public boolean requiresConfirmation() {
+        return true;
+    }
+
+    @Override
+    public boolean isLongRunning() {
+        return true;
+    }
+
+    @Override
+    public ValidationResult validate(List<String> argumentValues, CommandOutput output) {
+
+        ValidationResult result = null;
+        try {
+            // Make a list for the argument result items.
+            List<ArgumentResult> argumentResults = new ArrayList<>();
+
+            // Check the sender key.
+            NyzoString senderKey = NyzoStringEncoder.decode(argumentValues.get(0));
+            if (senderKey instanceof NyzoStringPrivateSeed) {
+                argumentResults.add(new ArgumentResult(true, NyzoStringEncoder.encode(senderKey)));
+            } else {
+                String message = argumentValues.get(0).trim().isEmpty() ? "missing Nyzo string private key" :
+                        "not a valid Nyzo string private key";
+                argumentResults.add(new ArgumentResult(false, argumentValues.get(0), message));
+
+                if (argumentValues.get(0).length() >= 64) {
+                    PrivateNyzoStringCommand.printHexWarning(output);
+                }
+            }
+
+            // Check the batch. Errors are printed with their line numbers, as they do not fit in the argument result.
+            List<String> errors = new ArrayList<>();
+            List<BatchLine> lines = parseBatch(argumentValues.get(1), output instanceof CommandOutputConsole, errors);
+            for (String error : errors) {
+                output.println(ConsoleColor.Red + error + ConsoleColor.reset);
+            }
+            long totalAmount = 0L;
+            for (BatchLine line : lines) {
+                totalAmount += line.amount;
+            }
+            if (errors.isEmpty() && !lines.isEmpty()) {
+                argumentResults.add(new ArgumentResult(true, argumentValues.get(1), lines.size() +
+                        " transactions, total " + PrintUtil.printAmount(totalAmount)));
+            } else {
+                String message = lines.isEmpty() && errors.isEmpty() ? "batch is empty" : errors.size() +
+                        " invalid entries";
+                argumentResults.add(new ArgumentResult(false, argumentValues.get(1), message));
+            }
+
+            // Produce the result.
+            result = new ValidationResult(argumentResults);
+
+        } catch (Exception ignored) { }
+
+        // If the confirmation result is null, create an exception result. This will only happen if an exception is not
+        // handled properly by the validation code.
+        if (result == null) {
+            result = ValidationResult.exceptionResult(getArgumentNames().length);
+        }
+
+        return result;
+    }
+
+    @Override
+    public ExecutionResult run(List<String> argumentValues, CommandOutput output) {
+
+        try {
+            // Get the arguments and build the entries.
+            NyzoStringPrivateSeed signerSeed = (NyzoStringPrivateSeed) NyzoStringEncoder.decode(argumentValues.get(0));
+            List<String> errors = new ArrayList<>();
+            List<TransactionSubmissionEngine.Entry> entries = new ArrayList<>();
+            for (BatchLine line : parseBatch(argumentValues.get(1), output instanceof CommandOutputConsole, errors)) {
+                entries.add(new TransactionSubmissionEngine.Entry(signerSeed.getSeed(), line.receiverIdentifier,
+                        line.amount, line.senderData));
+            }
+
+            // Run the engine until all transactions are in frozen blocks or the engine stops making progress. The
+            // status is printed every 5 seconds.
+            TransactionSubmissionEngine engine = new TransactionSubmissionEngine();
+            engine.addEntries(entries);
+            long progress = -1L;
+            long progressTimestamp = System.currentTimeMillis();
+            int iteration = 0;
+            while (!engine.isComplete() &&
+                    System.currentTimeMillis() < progressTimestamp + maximumTimeWithoutProgress) {
+                engine.update();
+                long currentProgress = engine.getNumberSubmitted() + engine.getNumberAccepted() +
+                        engine.getNumberIncluded();
+                if (currentProgress != progress) {
+                    progress = currentProgress;
+                    progressTimestamp = System.currentTimeMillis();
+                }
+                if (iteration++ % 5 == 0) {
+                    output.println(engine.getStatus());
+                }
+                ThreadUtil.sleep(1000L);
+            }
+            engine.update();
+            output.println(engine.getStatus());
+
+            // Report the transactions that were not included.
+            for (TransactionSubmissionEngine.Submission submission : engine.getUnsuccessfulSubmissions()) {
+                Transaction transaction = submission.getTransaction();
+                output.println(ConsoleColor.Red + "transaction to " +
+                        NyzoStringEncoder.encode(new NyzoStringPublicIdentifier(transaction.getReceiverIdentifier())) +
+                        " for " + PrintUtil.printAmount(transaction.getAmount()) + " at height " +
+                        submission.getHeight() + ": " + submission.getState() +
+                        (submission.getLastMessage() == null ? "" : " (" + submission.getLastMessage() + ")") +
+                        ConsoleColor.reset);
+            }
+            if (!engine.isComplete()) {
+                output.println(ConsoleColor.Red + "batch stopped after " + maximumTimeWithoutProgress / 60000L +
+                        " minutes without progress" + ConsoleColor.reset);
+            }
+        } catch (Exception e) {
+            output.println(ConsoleColor.Red + "unexpected issue sending batch: " + PrintUtil.printException(e) +
+                    ConsoleColor.reset);
+        }
+
+        // ExecutionResult objects are not yet implemented for long-running commands.
+        return null;
+    }
+
+    private static List<BatchLine> parseBatch(String batch, boolean allowFile, List<String> errors) {
+
+        // If files are allowed and the argument is the path of a file, the lines of the file are read. Otherwise, the
+        // argument is the batch.
+        List<String> lines;
+        File file = new File(batch.trim());
+        try {
+            lines = allowFile && file.isFile() ? Files.readAllLines(file.toPath(), StandardCharsets.UTF_8) :
+                    Arrays.asList(batch.split("[;\n]"));
+        } catch (Exception e) {
+            lines = new ArrayList<>();
+            errors.add("unable to read batch file: " + PrintUtil.printException(e));
+        }
+
+        List<BatchLine> result = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                String[] split = line.split(",", 3);
+                NyzoString receiverIdentifier = NyzoStringEncoder.decode(split[0].trim());
+                long amount = -1L;
+                try {
+                    amount = (long) (Double.parseDouble(split[1].trim()) * Transaction.micronyzoMultiplierRatio);
+                } catch (Exception ignored) { }
+
+                if (!(receiverIdentifier instanceof NyzoStringPublicIdentifier)) {
+                    errors.add("entry " + (i + 1) + ": not a valid Nyzo string public ID");
+                } else if (amount <= 0L) {
+                    errors.add("entry " + (i + 1) + ": invalid amount");
+                } else {
+                    byte[] senderData = split.length > 2 ? ClientArgumentUtil.getSenderData(split[2].trim()) :
+                            new byte[0];
+                    result.add(new BatchLine(((NyzoStringPublicIdentifier) receiverIdentifier).getIdentifier(),
+                            amount, senderData));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static class BatchLine {
+
+        private final byte[] receiverIdentifier;
+        private final long amount;
+        private final byte[] senderData;
+
+        private BatchLine(byte[] receiverIdentifier, long amount, byte[] senderData) {
+            this.receiverIdentifier = receiverIdentifier;
+            this.amount = amount;
+            this.senderData = senderData;
+        }
+    }
+}
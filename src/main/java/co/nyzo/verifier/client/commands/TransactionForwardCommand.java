@@ -8,16 +8,16 @@ import co.nyzo.verifier.util.PrintUtil;
 
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class TransactionForwardCommand implements Command {
 
     private static final AtomicInteger requestsSinceMaintenance = new AtomicInteger(0);
     private static final int maintenanceInterval = 10;
-    private static final Map<String, Transaction> recentlyForwardedTransactions = new ConcurrentHashMap<>();
     private static final int maximumMapSize = PreferencesUtil.getInt("transaction_forward_command_maximum_map_size",
             1000);
+    private static final TransactionForwardStore recentlyForwardedTransactions =
+            new TransactionForwardStore(maximumMapSize);
 
     @Override
     public String getShortCommand() {
@@ -140,7 +140,7 @@ public class TransactionForwardCommand implements Command {
                 }
 
                 // Check if the transaction was already forwarded.
-                boolean previouslyForwarded = recentlyForwardedTransactions.containsKey(transactionString);
+                boolean previouslyForwarded = recentlyForwardedTransactions.contains(transactionString);
 
                 // Check if the transaction is already in the blockchain.
                 boolean inBlockchain = false;
@@ -233,23 +233,9 @@ public class TransactionForwardCommand implements Command {
         // Mark that maintenance has been performed.
         requestsSinceMaintenance.set(0);
 
-        // Remove any transactions behind the frozen edge.
-        long frozenEdgeHeight = BlockManager.getFrozenEdgeHeight();
-        for (String key : new HashSet<>(recentlyForwardedTransactions.keySet())) {
-            Transaction transaction = recentlyForwardedTransactions.get(key);
-            long transactionHeight = BlockManager.heightForTimestamp(transaction.getTimestamp());
-            if (transactionHeight <= frozenEdgeHeight) {
-                recentlyForwardedTransactions.remove(key);
-            }
-        }
-
-        // If the map is still too large, remove arbitrary transactions.
-        if (recentlyForwardedTransactions.size() > maximumMapSize) {
-            Iterator<String> iterator = new HashSet<>(recentlyForwardedTransactions.keySet()).iterator();
-            while (recentlyForwardedTransactions.size() > maximumMapSize) {
-                recentlyForwardedTransactions.remove(iterator.next());
-            }
-        }
+        // Remove any transactions behind the frozen edge. The size limit is enforced by the store as transactions are
+        // added.
+        recentlyForwardedTransactions.removeThroughHeight(BlockManager.getFrozenEdgeHeight());
     }
 
     public static List<Transaction> transactionsForAccount(byte[] accountIdentifier, byte[] searchPrefix,
@@ -289,30 +275,38 @@ public class TransactionForwardCommand implements Command {
                     BlockManager.startTimestampForHeight(maximumBlockHeight + 1L) - 1L);  // end of the block
         }
 
-        // Find all transactions in the recently-forwarded set that match the given parameters.
-        List<Transaction> transactions = new ArrayList<>();
-        for (Transaction transaction : recentlyForwardedTransactions.values()) {
-
-            boolean isSender = ByteUtil.arraysAreEqual(transaction.getSenderIdentifier(), accountIdentifier);
-            boolean isReceiver = ByteUtil.arraysAreEqual(transaction.getReceiverIdentifier(), accountIdentifier);
+        // Get the candidate transactions from the account indexes of the recently-forwarded store. The height range
+        // is widened by one block on each side, and the timestamps are checked exactly below.
+        long minimumHeight = BlockManager.heightForTimestamp(minimumTimestamp) - 1L;
+        long maximumHeight = maximumTimestamp == Long.MAX_VALUE ? Long.MAX_VALUE :
+                BlockManager.heightForTimestamp(maximumTimestamp) + 1L;
+        Set<Transaction> candidates = new LinkedHashSet<>();
+        if (acceptSender) {
+            candidates.addAll(recentlyForwardedTransactions.transactionsForSender(accountIdentifier, minimumHeight,
+                    maximumHeight));
+        }
+        if (acceptReceiver) {
+            candidates.addAll(recentlyForwardedTransactions.transactionsForReceiver(accountIdentifier, minimumHeight,
+                    maximumHeight));
+        }
 
-            // Check the sender/receiver value.
-            if ((acceptSender && isSender) || (acceptReceiver && isReceiver)) {
+        // Find all candidate transactions that match the given parameters.
+        List<Transaction> transactions = new ArrayList<>();
+        for (Transaction transaction : candidates) {
 
-                // Check the timestamp.
-                if (transaction.getTimestamp() >= minimumTimestamp && transaction.getTimestamp() <= maximumTimestamp) {
+            // Check the timestamp.
+            if (transaction.getTimestamp() >= minimumTimestamp && transaction.getTimestamp() <= maximumTimestamp) {
 
-                    // Check the sender-data prefix.
-                    boolean isPrefixMatch = true;
-                    byte[] senderData = transaction.getSenderData();
-                    for (int i = 0; i < Math.min(searchPrefix.length, senderData.length) && isPrefixMatch; i++) {
-                        isPrefixMatch = searchPrefix[i] == senderData[i];
-                    }
+                // Check the sender-data prefix.
+                boolean isPrefixMatch = true;
+                byte[] senderData = transaction.getSenderData();
+                for (int i = 0; i < Math.min(searchPrefix.length, senderData.length) && isPrefixMatch; i++) {
+                    isPrefixMatch = searchPrefix[i] == senderData[i];
+                }
 
-                    // If the prefix matches, add the transaction to the list.
-                    if (isPrefixMatch) {
-                        transactions.add(transaction);
-                    }
+                // If the prefix matches, add the transaction to the list.
+                if (isPrefixMatch) {
+                    transactions.add(transaction);
                 }
             }
         }
@@ -320,7 +314,13 @@ public class TransactionForwardCommand implements Command {
         return transactions;
     }
 
-    public static Collection<Transaction> allTransactions() {
-        return recentlyForwardedTransactions.values();
+    public static List<Transaction> transactionsForReceiver(byte[] receiverIdentifier, long minimumHeight,
+                                                            long maximumHeight) {
+        return recentlyForwardedTransactions.transactionsForReceiver(receiverIdentifier, minimumHeight,
+                maximumHeight);
+    }
+
+    public static List<Transaction> allTransactions() {
+        return recentlyForwardedTransactions.allTransactions();
     }
 }
@@ -1,229 +1,85 @@
 package co.nyzo.verifier.json;
 
 import co.nyzo.verifier.util.PreferencesUtil;
-import co.nyzo.verifier.util.PrintUtil;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Json {
 
     // Like everything Nyzo, this is class is purpose-built to do the job it is supposed to do, minimally and
     // efficiently. We have no reason, at this time, to parse long JSON strings. If you wish to use a higher value,
-    // though, it can be set in your preferences file.
+    // though, it can be set in your preferences file. The limit applies only to strings; the byte-array, buffer, and
+    // stream methods are intended for large documents and parse incrementally with JsonReader.
     private static final String maximumJsonStringLengthKey = "json_maximum_string_length";
     public static int maximumJsonStringLength = PreferencesUtil.getInt(maximumJsonStringLengthKey, 10000);
 
-    // Instances of this class are used to store state for parsing.
-    private String jsonString;
-    private int braceLevel;
-    private int bracketLevel;
-    private boolean inQuotes;
-    private int keyStart;
-    private int valueStart;
-    private int index;
-    private String key;
-
-    private Json(String jsonString) {
-        this.jsonString = jsonString;
-        this.braceLevel = 0;
-        this.bracketLevel = 0;
-        this.inQuotes = false;
-        this.keyStart = -1;
-        this.valueStart = -1;
-        this.index = 0;
-        this.key = null;
-    }
-
-
-    private boolean atObjectRoot() {
-        return braceLevel == 1 && bracketLevel == 0;
-    }
-
-    private boolean atArrayRoot() {
-        return braceLevel == 0 && bracketLevel == 1;
-    }
+    public static Object parse(String jsonString) {
 
-    private void markKeyStart() {
-        keyStart = index + 1;
-    }
+        Object result = null;
+        if (jsonString.length() <= maximumJsonStringLength) {
+            result = parse(jsonString.getBytes(StandardCharsets.UTF_8));
+        }
 
-    private void pushKey() {
-        key = jsonString.substring(keyStart, index);
+        return result;
     }
 
-    private void markValueStart() {
-        valueStart = index;
+    public static Object parse(byte[] jsonBytes) {
+        return parse(new JsonReader(jsonBytes));
     }
 
-    private void processValue(Map<String, Object> map) {
-        String value = jsonString.substring(valueStart, index + 1);
-        map.put(key, parse(value));
-
-        keyStart = -1;
-        key = null;
+    public static Object parse(ByteBuffer jsonBuffer) {
+        return parse(new JsonReader(jsonBuffer));
     }
 
-    private void processValue(List<Object> list) {
-        String value = jsonString.substring(valueStart, index + 1);
-        list.add(parse(value));
-
-        valueStart = -1;
+    public static Object parse(InputStream jsonStream) {
+        return parse(new JsonReader(jsonStream));
     }
 
-    public static Object parse(String jsonString) {
+    public static Object parse(JsonReader reader) {
 
-        // Replace escaped quotes with the null character.
-        jsonString = jsonString.trim().replace("\\\"", "\0");
-
-        Object result = null;
-        if (jsonString.length() <= maximumJsonStringLength) {
-            jsonString = jsonString.trim();
-            if (jsonString.startsWith("{")) {
-                result = parseJsonObject(jsonString);
-            } else if (jsonString.startsWith("[")) {
-                result = parseJsonArray(jsonString);
-            } else {
-                // Remove JSON markers from the string.
-                if (jsonString.startsWith(":")) {
-                    jsonString = jsonString.substring(1);
-                }
-                if (jsonString.endsWith("}") || jsonString.endsWith("]") || jsonString.endsWith(",")) {
-                    jsonString = jsonString.substring(0, jsonString.length() - 1);
-                }
-                if (jsonString.startsWith("\"") && jsonString.endsWith("\"")) {
-                    jsonString = jsonString.substring(1, jsonString.length() - 1);
-                }
-
-                // Replace the null character with quotes.
-                result = jsonString.replace('\0', '"');
-            }
+        // Objects are returned as JsonObject instances, arrays as JsonArray instances, and all other values as
+        // strings. Null is returned for malformed input.
+        Object result;
+        try {
+            result = readValue(reader, reader.next());
+        } catch (Exception e) {
+            result = null;
         }
 
         return result;
     }
 
-    private static JsonObject parseJsonObject(String jsonString) {
-
-        Map<String, Object> map = new HashMap<>();
-        char[] characters = jsonString.toCharArray();
-        Json state = new Json(jsonString);
-        for (char character : characters) {
-            if (character == '"') {
-                state.inQuotes = !state.inQuotes;
-
-                // Extract strings at the root level.
-                if (state.atObjectRoot()) {
-                    if (state.key == null) {
-                        if (state.inQuotes) {
-                            state.markKeyStart();
-                        } else {
-                            state.pushKey();
-                        }
-                    } else {
-                        if (state.inQuotes) {
-                            state.markValueStart();
-                        } else {
-                            state.processValue(map);
-                        }
-                    }
-                }
-            } else if (!state.inQuotes) {
-                // Ascend and descend braces and brackets.
-                if (character == '{') {
-                    if (state.atObjectRoot() && state.key != null) {
-                        state.markValueStart();
-                    }
-                    state.braceLevel++;
-                } else if (character == '[') {
-                    if (state.atObjectRoot() && state.key != null) {
-                        state.markValueStart();
-                    }
-                    state.bracketLevel++;
-                } else if (character == '}') {
-                    if (state.atObjectRoot() && state.key != null && state.valueStart > 0) {
-                        state.processValue(map);
-                    }
-                    state.braceLevel--;
-                } else if (character == ']') {
-                    state.bracketLevel--;
-                    if (state.atObjectRoot() && state.key != null && state.valueStart > 0) {
-                        state.processValue(map);
-                    }
-                } else if (character == ':' && state.atObjectRoot() && state.key != null) {
-                    state.markValueStart();
-                } else if (character == ',' && state.atObjectRoot() && state.key != null && state.valueStart > 0) {
-                    state.processValue(map);
-                }
-            }
-
-            // Increment the index.
-            state.index++;
-        }
-
-        return new JsonObject(map);
-    }
+    private static Object readValue(JsonReader reader, JsonReader.Token token) throws IOException {
 
-    private static JsonArray parseJsonArray(String jsonString) {
-
-        List<Object> list = new ArrayList<>();
-        char[] characters = jsonString.toCharArray();
-        Json state = new Json(jsonString);
-        for (char character : characters) {
-            if (character == '"') {
-                state.inQuotes = !state.inQuotes;
-
-                // Extract strings at the bottom level.
-                if (state.atArrayRoot()) {
-                    if (state.inQuotes) {
-                        state.markValueStart();
-                    } else {
-                        state.processValue(list);
-                    }
-                }
-            } else if (!state.inQuotes) {
-                // Ascend and descend braces and brackets.
-                if (character == '{') {
-                    if (state.atArrayRoot()) {
-                        state.markValueStart();
-                    }
-                    state.braceLevel++;
-                } else if (character == '[') {
-                    if (state.atArrayRoot()) {
-                        state.markValueStart();
-                    }
-                    state.bracketLevel++;
-                } else if (character == '}') {
-                    state.braceLevel--;
-                    if (state.atArrayRoot() && state.valueStart > 0) {
-                        state.processValue(list);
-                    }
-                } else if (character == ']') {
-                    if (state.atArrayRoot() && state.valueStart > 0 && jsonString.charAt(state.valueStart) != '[') {
-                        state.processValue(list);
-                    }
-                    state.bracketLevel--;
-                    if (state.atArrayRoot() && state.valueStart > 0 && jsonString.charAt(state.valueStart) == '[') {
-                        state.processValue(list);
-                    }
-                } else if (character == ',') {
-                    if (state.atArrayRoot() && state.valueStart > 0) {
-                        state.processValue(list);
-                    }
-                } else if ((character >= '0' && character <= '9') || character == '-') {
-                    if (state.atArrayRoot() && state.valueStart < 0) {
-                        state.markValueStart();
-                    }
-                }
+        Object result;
+        if (token == JsonReader.Token.BeginObject) {
+            ConcurrentHashMap<String, Object> map = new ConcurrentHashMap<>();
+            while ((token = reader.next()) == JsonReader.Token.Name) {
+                String key = reader.getString();
+                map.put(key, readValue(reader, reader.next()));
             }
-
-            // Increment the index.
-            state.index++;
+            if (token != JsonReader.Token.EndObject) {
+                throw new IllegalStateException("unterminated JSON object");
+            }
+            result = JsonObject.wrap(map);
+        } else if (token == JsonReader.Token.BeginArray) {
+            ArrayList<Object> list = new ArrayList<>();
+            while ((token = reader.next()) != JsonReader.Token.EndArray) {
+                list.add(readValue(reader, token));
+            }
+            result = JsonArray.wrap(list);
+        } else if (token == JsonReader.Token.EndDocument || token == JsonReader.Token.EndObject) {
+            throw new IllegalStateException("unexpected JSON token: " + token);
+        } else {
+            result = reader.getString();
         }
 
-        return new JsonArray(list);
+        return result;
     }
 
     public static Object traverse(Object json, Object... keys) {
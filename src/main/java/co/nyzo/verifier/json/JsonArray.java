@@ -11,6 +11,15 @@ public class JsonArray implements JsonRenderable {
         this.objects = new ArrayList<>(objects);
     }
 
+    private JsonArray(ArrayList<Object> objects, boolean unused) {
+        this.objects = objects;
+    }
+
+    static JsonArray wrap(ArrayList<Object> objects) {
+        // This is used by the parser to avoid copying a list that it has just built.
+        return new JsonArray(objects, true);
+    }
+
     public int length() {
         return objects.size();
     }
@@ -72,14 +81,19 @@ public class JsonArray implements JsonRenderable {
     @Override
     public String renderJson() {
 
-        StringBuilder result = new StringBuilder("[");
-        String separator = "";
+        JsonWriter writer = new JsonWriter();
+        renderJson(writer);
+
+        return writer.toString();
+    }
+
+    @Override
+    public void renderJson(JsonWriter writer) {
+
+        writer.beginArray();
         for (int i = 0; i < objects.size(); i++) {
-            result.append(separator).append(JsonRenderer.toJson(objects.get(i)));
-            separator = ",";
+            writer.value(objects.get(i));
         }
-        result.append("]");
-
-        return result.toString();
+        writer.endArray();
     }
 }
@@ -14,6 +14,15 @@ public class JsonObject implements JsonRenderable {
         this.objects = new ConcurrentHashMap<>(objects);
     }
 
+    private JsonObject(ConcurrentHashMap<String, Object> objects, boolean unused) {
+        this.objects = objects;
+    }
+
+    static JsonObject wrap(ConcurrentHashMap<String, Object> objects) {
+        // This is used by the parser to avoid copying a map that it has just built.
+        return new JsonObject(objects, true);
+    }
+
     public Set<String> getKeys() {
         return objects.keySet();
     }
@@ -77,15 +86,19 @@ public class JsonObject implements JsonRenderable {
     @Override
     public String renderJson() {
 
-        StringBuilder result = new StringBuilder("{");
-        String separator = "";
+        JsonWriter writer = new JsonWriter();
+        renderJson(writer);
+
+        return writer.toString();
+    }
+
+    @Override
+    public void renderJson(JsonWriter writer) {
+
+        writer.beginObject();
         for (String key : objects.keySet()) {
-            result.append(separator).append("\"").append(key).append("\":")
-                    .append(JsonRenderer.toJson(objects.get(key)));
-            separator = ",";
+            writer.name(key).value(objects.get(key));
         }
-        result.append("}");
-
-        return result.toString();
+        writer.endObject();
     }
 }
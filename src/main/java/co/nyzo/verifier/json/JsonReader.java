@@ -0,0 +1,396 @@
+package co.nyzo.verifier.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class JsonReader {
+
+    // This is a pull parser that reads UTF-8 JSON directly from bytes. Each call to next() returns the next token, and
+    // the text of a name or scalar value is available from getString() until the following call. Strings without
+    // escapes are decoded directly from the input buffer, and no intermediate strings are created for structure.
+    //
+    // Input can be a byte array, a ByteBuffer, or an InputStream. For a stream, the buffer is refilled as needed, and
+    // it is only enlarged when a single token does not fit.
+    //
+    // The parser is lenient in the same ways as the original Json class: unquoted values other than true, false, and
+    // null are returned as numbers without validation, and trailing content after the root value is ignored.
+
+    public enum Token {
+        BeginObject, EndObject, BeginArray, EndArray, Name, StringValue, NumberValue, BooleanValue, NullValue,
+        EndDocument
+    }
+
+    private static final int contextDocumentStart = 0;
+    private static final int contextDocumentEnd = 1;
+    private static final int contextEmptyObject = 2;
+    private static final int contextDanglingName = 3;
+    private static final int contextNonEmptyObject = 4;
+    private static final int contextEmptyArray = 5;
+    private static final int contextNonEmptyArray = 6;
+
+    private static final int defaultStreamBufferSize = 8192;
+
+    private final InputStream stream;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private long bytesDiscarded = 0L;
+
+    private int[] contextStack = new int[32];
+    private int depth = 0;
+    private String string = null;
+    private StringBuilder builder = null;
+
+    public JsonReader(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    public JsonReader(byte[] bytes, int offset, int length) {
+        this.stream = null;
+        this.buffer = bytes;
+        this.position = offset;
+        this.limit = offset + length;
+        contextStack[depth++] = contextDocumentStart;
+    }
+
+    public JsonReader(ByteBuffer byteBuffer) {
+        this.stream = null;
+        if (byteBuffer.hasArray()) {
+            this.buffer = byteBuffer.array();
+            this.position = byteBuffer.arrayOffset() + byteBuffer.position();
+            this.limit = byteBuffer.arrayOffset() + byteBuffer.limit();
+        } else {
+            this.buffer = new byte[byteBuffer.remaining()];
+            byteBuffer.duplicate().get(buffer);
+            this.position = 0;
+            this.limit = buffer.length;
+        }
+        contextStack[depth++] = contextDocumentStart;
+    }
+
+    public JsonReader(InputStream stream) {
+        this.stream = stream;
+        this.buffer = new byte[defaultStreamBufferSize];
+        this.position = 0;
+        this.limit = 0;
+        contextStack[depth++] = contextDocumentStart;
+    }
+
+    public String getString() {
+        return string;
+    }
+
+    public int getDepth() {
+        return depth - 1;
+    }
+
+    public Token next() throws IOException {
+
+        string = null;
+        int character = skipWhitespace();
+        Token token;
+        switch (contextStack[depth - 1]) {
+            case contextDocumentStart:
+                contextStack[depth - 1] = contextDocumentEnd;
+                token = readValue(character);
+                break;
+            case contextDocumentEnd:
+                token = Token.EndDocument;
+                break;
+            case contextEmptyObject:
+            case contextNonEmptyObject:
+                if (character == '}') {
+                    position++;
+                    depth--;
+                    token = Token.EndObject;
+                } else {
+                    if (contextStack[depth - 1] == contextNonEmptyObject) {
+                        expect(character, ',');
+                        character = skipWhitespace();
+                    }
+                    if (character != '"') {
+                        throw error("expected '\"'");
+                    }
+                    string = readString();
+                    contextStack[depth - 1] = contextDanglingName;
+                    token = Token.Name;
+                }
+                break;
+            case contextDanglingName:
+                expect(character, ':');
+                contextStack[depth - 1] = contextNonEmptyObject;
+                token = readValue(skipWhitespace());
+                break;
+            default:  // contextEmptyArray or contextNonEmptyArray
+                if (character == ']') {
+                    position++;
+                    depth--;
+                    token = Token.EndArray;
+                } else {
+                    if (contextStack[depth - 1] == contextNonEmptyArray) {
+                        expect(character, ',');
+                        character = skipWhitespace();
+                    }
+                    contextStack[depth - 1] = contextNonEmptyArray;
+                    token = readValue(character);
+                }
+                break;
+        }
+
+        return token;
+    }
+
+    public void skipValue(Token token) throws IOException {
+
+        // Skips the remainder of the value that started with the provided token.
+        if (token == Token.BeginObject || token == Token.BeginArray) {
+            int targetDepth = depth - 1;
+            while (depth > targetDepth) {
+                if (next() == Token.EndDocument) {
+                    throw error("unexpected end of input");
+                }
+            }
+        }
+    }
+
+    private Token readValue(int character) throws IOException {
+
+        Token token;
+        if (character == '{') {
+            position++;
+            push(contextEmptyObject);
+            token = Token.BeginObject;
+        } else if (character == '[') {
+            position++;
+            push(contextEmptyArray);
+            token = Token.BeginArray;
+        } else if (character == '"') {
+            string = readString();
+            token = Token.StringValue;
+        } else if (character < 0) {
+            throw error("unexpected end of input");
+        } else {
+            string = readBareValue();
+            if (string.equals("true") || string.equals("false")) {
+                token = Token.BooleanValue;
+            } else if (string.equals("null")) {
+                token = Token.NullValue;
+            } else {
+                token = Token.NumberValue;
+            }
+        }
+
+        return token;
+    }
+
+    private void push(int context) {
+
+        if (depth == contextStack.length) {
+            contextStack = Arrays.copyOf(contextStack, depth * 2);
+        }
+        contextStack[depth++] = context;
+    }
+
+    private int skipWhitespace() throws IOException {
+
+        int character = -1;
+        boolean done = false;
+        while (!done) {
+            if (position == limit && !fill(position)) {
+                done = true;
+            } else {
+                byte value = buffer[position];
+                if (value == ' ' || value == '\n' || value == '\r' || value == '\t') {
+                    position++;
+                } else {
+                    character = value & 0xff;
+                    done = true;
+                }
+            }
+        }
+
+        return character;
+    }
+
+    private void expect(int character, char expected) throws IOException {
+
+        if (character != expected) {
+            throw error("expected '" + expected + "'");
+        }
+        position++;
+    }
+
+    private String readString() throws IOException {
+
+        // The position is at the opening quote. The fast path handles strings with no escapes, which are decoded
+        // directly from the buffer.
+        position++;
+        int start = position;
+        String result = null;
+        while (result == null) {
+            if (position == limit) {
+                int shift = fillKeeping(start);
+                start -= shift;
+            }
+
+            byte value = buffer[position];
+            if (value == '"') {
+                result = new String(buffer, start, position - start, StandardCharsets.UTF_8);
+                position++;
+            } else if (value == '\\') {
+                result = readEscapedString(start);
+            } else {
+                position++;
+            }
+        }
+
+        return result;
+    }
+
+    private String readEscapedString(int start) throws IOException {
+
+        if (builder == null) {
+            builder = new StringBuilder();
+        }
+        builder.setLength(0);
+
+        String result = null;
+        while (result == null) {
+            if (position == limit) {
+                int shift = fillKeeping(start);
+                start -= shift;
+            }
+
+            byte value = buffer[position];
+            if (value == '"' || value == '\\') {
+                builder.append(new String(buffer, start, position - start, StandardCharsets.UTF_8));
+                position++;
+                if (value == '"') {
+                    result = builder.toString();
+                } else {
+                    builder.append(readEscape());
+                    start = position;
+                }
+            } else {
+                position++;
+            }
+        }
+
+        return result;
+    }
+
+    private char readEscape() throws IOException {
+
+        if (position == limit) {
+            fillKeeping(position);
+        }
+
+        char result;
+        byte value = buffer[position++];
+        switch (value) {
+            case 'b':
+                result = '\b';
+                break;
+            case 'f':
+                result = '\f';
+                break;
+            case 'n':
+                result = '\n';
+                break;
+            case 'r':
+                result = '\r';
+                break;
+            case 't':
+                result = '\t';
+                break;
+            case 'u':
+                result = 0;
+                for (int i = 0; i < 4; i++) {
+                    if (position == limit) {
+                        fillKeeping(position);
+                    }
+                    int digit = Character.digit(buffer[position++], 16);
+                    if (digit < 0) {
+                        throw error("invalid unicode escape");
+                    }
+                    result = (char) (result * 16 + digit);
+                }
+                break;
+            default:
+                result = (char) (value & 0xff);
+        }
+
+        return result;
+    }
+
+    private String readBareValue() throws IOException {
+
+        int start = position;
+        boolean done = false;
+        while (!done) {
+            if (position == limit) {
+                if (stream == null || !fill(start)) {
+                    done = true;
+                } else {
+                    start = 0;
+                }
+            }
+
+            if (!done) {
+                byte value = buffer[position];
+                if (value == ',' || value == '}' || value == ']' || value == ':' || value == ' ' || value == '\n' ||
+                        value == '\r' || value == '\t') {
+                    done = true;
+                } else {
+                    position++;
+                }
+            }
+        }
+
+        return new String(buffer, start, position - start, StandardCharsets.UTF_8);
+    }
+
+    private int fillKeeping(int keepFrom) throws IOException {
+
+        // Refill, retaining the bytes of the current token. An error is thrown if the input has ended.
+        int shift = keepFrom;
+        if (!fill(keepFrom)) {
+            throw error("unexpected end of input");
+        }
+
+        return shift;
+    }
+
+    private boolean fill(int keepFrom) throws IOException {
+
+        // Moves the bytes from keepFrom to the beginning of the buffer, then reads more bytes from the stream. The
+        // buffer is enlarged if the retained bytes fill it. Returns false if no more bytes are available.
+        boolean filled = false;
+        if (stream != null) {
+            int retained = limit - keepFrom;
+            if (retained == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            } else if (keepFrom > 0) {
+                System.arraycopy(buffer, keepFrom, buffer, 0, retained);
+            }
+            bytesDiscarded += keepFrom;
+            position -= keepFrom;
+            limit = retained;
+
+            int bytesRead = stream.read(buffer, limit, buffer.length - limit);
+            if (bytesRead > 0) {
+                limit += bytesRead;
+                filled = true;
+            }
+        }
+
+        return filled;
+    }
+
+    private IllegalStateException error(String message) {
+        return new IllegalStateException("JSON " + message + " at byte " + (bytesDiscarded + position));
+    }
+}
@@ -3,4 +3,9 @@ package co.nyzo.verifier.json;
 public interface JsonRenderable {
 
     String renderJson();
+
+    // Classes that can write their JSON incrementally should override this to avoid building an intermediate string.
+    default void renderJson(JsonWriter writer) {
+        writer.rawValue(renderJson());
+    }
 }
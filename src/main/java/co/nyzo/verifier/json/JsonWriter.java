@@ -0,0 +1,370 @@
+package co.nyzo.verifier.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+public class JsonWriter {
+
+    // This writes JSON as UTF-8 bytes directly into a buffer, with no intermediate strings for nested values. When
+    // constructed with an output stream, the buffer is written to the stream each time it fills, so the size of the
+    // document is not limited by memory. Otherwise, the buffer grows as needed, and the result is available from
+    // toString() or toByteArray().
+    //
+    // Values are rendered exactly as JsonRenderer has always rendered them, including numeric strings written without
+    // quotes, so the two can be used interchangeably.
+
+    private static final int defaultBufferSize = 8192;
+
+    private static final byte[] nullBytes = "null".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream stream;
+    private byte[] buffer;
+    private int count = 0;
+
+    // For each level of nesting, this indicates whether a separator is needed before the next element.
+    private boolean[] separatorNeeded = new boolean[32];
+    private int depth = 0;
+    private boolean afterName = false;
+
+    public JsonWriter() {
+        this.stream = null;
+        this.buffer = new byte[256];
+    }
+
+    public JsonWriter(OutputStream stream) {
+        this.stream = stream;
+        this.buffer = new byte[defaultBufferSize];
+    }
+
+    public JsonWriter beginObject() {
+        beforeValue();
+        writeByte('{');
+        push();
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        depth--;
+        writeByte('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        beforeValue();
+        writeByte('[');
+        push();
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        depth--;
+        writeByte(']');
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+
+        if (depth > 0 && separatorNeeded[depth - 1]) {
+            writeByte(',');
+        }
+        if (depth > 0) {
+            separatorNeeded[depth - 1] = true;
+        }
+        writeQuotedString(name);
+        writeByte(':');
+        afterName = true;
+
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+
+        beforeValue();
+        if (value == Long.MIN_VALUE) {
+            writeString(Long.toString(value));
+        } else {
+            if (value < 0) {
+                writeByte('-');
+                value = -value;
+            }
+            writeDigits(value);
+        }
+
+        return this;
+    }
+
+    public JsonWriter rawValue(String json) {
+        beforeValue();
+        writeString(json);
+        return this;
+    }
+
+    public JsonWriter value(Object object) {
+
+        if (object == null) {
+            beforeValue();
+            writeBytes(nullBytes);
+        } else if (object instanceof String) {
+            beforeValue();
+            if (isNumeric((String) object)) {
+                writeString((String) object);
+            } else {
+                writeQuotedString((String) object);
+            }
+        } else if (object instanceof Integer || object instanceof Long || object instanceof Short ||
+                object instanceof Byte) {
+            value(((Number) object).longValue());
+        } else if (object instanceof Number || object instanceof Boolean) {
+            beforeValue();
+            writeString(object.toString());
+        } else if (object instanceof Collection) {
+            beginArray();
+            for (Object item : (Collection) object) {
+                value(item);
+            }
+            endArray();
+        } else if (object instanceof int[]) {
+            beginArray();
+            for (int item : (int[]) object) {
+                value(item);
+            }
+            endArray();
+        } else if (object instanceof long[]) {
+            beginArray();
+            for (long item : (long[]) object) {
+                value(item);
+            }
+            endArray();
+        } else if (object instanceof JsonRenderable) {
+            ((JsonRenderable) object).renderJson(this);
+        } else if (object instanceof JsonRenderable[]) {
+            // Arrays of renderable objects have always been written without brackets when they have fewer than two
+            // elements.
+            JsonRenderable[] array = (JsonRenderable[]) object;
+            if (array.length == 0) {
+                rawValue("");
+            } else if (array.length == 1) {
+                array[0].renderJson(this);
+            } else {
+                beginArray();
+                for (JsonRenderable renderable : array) {
+                    renderable.renderJson(this);
+                }
+                endArray();
+            }
+        } else {
+            beginObject();
+            for (Method method : object.getClass().getMethods()) {
+                String methodName = method.getName();
+                if (method.getParameterCount() == 0 && methodName.startsWith("get") && !methodName.equals("getClass") &&
+                        methodName.length() >= 4) {
+                    try {
+                        Object value = method.invoke(object);
+                        if (value != null) {
+                            name((methodName.charAt(3) + "").toLowerCase() + methodName.substring(4));
+                            value(value);
+                        }
+                    } catch (Exception ignored) { }
+                }
+            }
+            endObject();
+        }
+
+        return this;
+    }
+
+    public void flush() {
+
+        if (stream != null) {
+            try {
+                stream.write(buffer, 0, count);
+                stream.flush();
+                count = 0;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count, StandardCharsets.UTF_8);
+    }
+
+    private void beforeValue() {
+
+        if (afterName) {
+            afterName = false;
+        } else if (depth > 0) {
+            if (separatorNeeded[depth - 1]) {
+                writeByte(',');
+            }
+            separatorNeeded[depth - 1] = true;
+        }
+    }
+
+    private void push() {
+
+        if (depth == separatorNeeded.length) {
+            separatorNeeded = Arrays.copyOf(separatorNeeded, depth * 2);
+        }
+        separatorNeeded[depth++] = false;
+    }
+
+    private void writeDigits(long value) {
+
+        // The value is non-negative. Digits are written from the end of the reserved space to the beginning.
+        int numberOfDigits = 1;
+        for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+            numberOfDigits++;
+        }
+        ensureCapacity(numberOfDigits);
+        for (int i = count + numberOfDigits - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += numberOfDigits;
+    }
+
+    private void writeQuotedString(String value) {
+
+        // Only the characters below are escaped, matching JsonRenderer. According to the JSON spec
+        // (https://www.json.org/json-en.html), few characters need to be escaped in JSON strings.
+        writeByte('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char character = value.charAt(i);
+            switch (character) {
+                case '"':
+                case '\\':
+                case '/':
+                    writeByte('\\');
+                    writeByte(character);
+                    break;
+                case '\b':
+                    writeByte('\\');
+                    writeByte('b');
+                    break;
+                case '\f':
+                    writeByte('\\');
+                    writeByte('f');
+                    break;
+                case '\n':
+                    writeByte('\\');
+                    writeByte('n');
+                    break;
+                case '\r':
+                    writeByte('\\');
+                    writeByte('r');
+                    break;
+                case '\t':
+                    writeByte('\\');
+                    writeByte('t');
+                    break;
+                default:
+                    i = writeCharacter(value, i);
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeString(String value) {
+
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            i = writeCharacter(value, i);
+        }
+    }
+
+    private int writeCharacter(String value, int index) {
+
+        // Writes the character at the index as UTF-8 and returns the index of the last character consumed, which is
+        // the following index for a surrogate pair.
+        char character = value.charAt(index);
+        if (character < 0x80) {
+            writeByte(character);
+        } else if (character < 0x800) {
+            writeByte(0xc0 | (character >> 6));
+            writeByte(0x80 | (character & 0x3f));
+        } else if (Character.isHighSurrogate(character) && index + 1 < value.length() &&
+                Character.isLowSurrogate(value.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(character, value.charAt(++index));
+            writeByte(0xf0 | (codePoint >> 18));
+            writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+            writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+            writeByte(0x80 | (codePoint & 0x3f));
+        } else if (Character.isSurrogate(character)) {
+            // An unpaired surrogate cannot be encoded. It is replaced, as String.getBytes() would replace it.
+            writeByte('?');
+        } else {
+            writeByte(0xe0 | (character >> 12));
+            writeByte(0x80 | ((character >> 6) & 0x3f));
+            writeByte(0x80 | (character & 0x3f));
+        }
+
+        return index;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void writeByte(int value) {
+
+        if (count == buffer.length) {
+            ensureCapacity(1);
+        }
+        buffer[count++] = (byte) value;
+    }
+
+    private void ensureCapacity(int additionalBytes) {
+
+        if (count + additionalBytes > buffer.length) {
+            if (stream != null && count > 0) {
+                try {
+                    stream.write(buffer, 0, count);
+                    count = 0;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            if (additionalBytes > buffer.length - count) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + additionalBytes));
+            }
+        }
+    }
+
+    public static boolean isNumeric(String value) {
+
+        // Double.parseDouble() accepts leading whitespace, a sign, a digit, a decimal point, NaN, or Infinity at the
+        // start of a value. Other values are rejected here to avoid the cost of the exception.
+        boolean isNumeric = false;
+        int index = 0;
+        while (index < value.length() && value.charAt(index) <= ' ') {
+            index++;
+        }
+        if (index < value.length()) {
+            char character = value.charAt(index);
+            if ((character >= '0' && character <= '9') || character == '-' || character == '+' || character == '.' ||
+                    character == 'N' || character == 'I') {
+                try {
+                    Double.parseDouble(value);
+                    isNumeric = true;
+                } catch (Exception ignored) { }
+            }
+        }
+
+        return isNumeric;
+    }
+}
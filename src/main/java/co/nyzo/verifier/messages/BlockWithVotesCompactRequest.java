@@ -0,0 +1,76 @@
+package co.nyzo.verifier.messages;
+
+import co.nyzo.verifier.FieldByteSize;
+import co.nyzo.verifier.Message;
+import co.nyzo.verifier.MessageObject;
+
+import java.nio.ByteBuffer;
+
+public class BlockWithVotesCompactRequest implements MessageObject {
+
+    // This requests blocks with votes for consecutive heights in a compact form. The cycle hash is the hash of the
+    // requester's current cycle list. If it matches the responder's, voters are referenced by their index in that list.
+    // Otherwise, the response carries a table of the voter identifiers.
+
+    public static final int maximumNumberOfHeights = 10;
+
+    private long startHeight;
+    private int numberOfHeights;
+    private byte[] cycleHash;
+
+    public BlockWithVotesCompactRequest(long startHeight, int numberOfHeights, byte[] cycleHash) {
+
+        this.startHeight = startHeight;
+        this.numberOfHeights = Math.max(1, Math.min(numberOfHeights, maximumNumberOfHeights));
+        this.cycleHash = cycleHash;
+    }
+
+    public long getStartHeight() {
+        return startHeight;
+    }
+
+    public int getNumberOfHeights() {
+        return numberOfHeights;
+    }
+
+    public byte[] getCycleHash() {
+        return cycleHash;
+    }
+
+    @Override
+    public int getByteSize() {
+        return FieldByteSize.blockHeight + FieldByteSize.unnamedByte + FieldByteSize.hash;
+    }
+
+    @Override
+    public byte[] getBytes() {
+
+        byte[] array = new byte[getByteSize()];
+        ByteBuffer buffer = ByteBuffer.wrap(array);
+        buffer.putLong(startHeight);
+        buffer.put((byte) numberOfHeights);
+        buffer.put(cycleHash);
+
+        return array;
+    }
+
+    public static BlockWithVotesCompactRequest fromByteBuffer(ByteBuffer buffer) {
+
+        BlockWithVotesCompactRequest result = null;
+
+        try {
+            long startHeight = buffer.getLong();
+            int numberOfHeights = buffer.get() & 0xff;
+            byte[] cycleHash = Message.getByteArray(buffer, FieldByteSize.hash);
+            result = new BlockWithVotesCompactRequest(startHeight, numberOfHeights, cycleHash);
+        } catch (Exception ignored) { }
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "[BlockWithVotesCompactRequest(startHeight=" + startHeight + ", numberOfHeights=" + numberOfHeights +
+                ")]";
+    }
+}
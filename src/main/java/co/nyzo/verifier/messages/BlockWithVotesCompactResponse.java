@@ -0,0 +1,327 @@
+package co.nyzo.verifier.messages;
+
+import co.nyzo.verifier.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class BlockWithVotesCompactResponse implements MessageObject {
+
+    // This is the compact counterpart of BlockWithVotesResponse for consecutive heights. Each vote in the standard
+    // response carries the 32-byte identifier of the voter and two 8-byte timestamps in addition to the signature. Here,
+    // a voter is a 2-byte index, either into the cycle list, if the requester's cycle hash matched, or into a table of
+    // identifiers that is sent once for all heights. The message timestamp is encoded as a variable-length offset from
+    // the verification timestamp of the block, and the vote timestamp as an offset from the message timestamp; both
+    // are usually within a few seconds, so they typically take 3 bytes and 1 byte. Only votes for the hash of the
+    // frozen block are included, as the others cannot be verified against the block. The signatures are unchanged, so
+    // the requester reconstructs and verifies each vote message exactly as with the standard response.
+
+    private static final int maximumResponseSize = 1000000;
+    private static final int explicitIdentifierIndex = 0xffff;
+
+    private static volatile CycleIndex lastCycleIndex = null;
+
+    private List<BlockWithVotesResponse> entries;
+    private byte[] cycleHash;  // null if the identifier table is used
+    private List<ByteBuffer> identifierTable;
+    private int[][] voterIndices;  // for each vote, the index of the voter, or the explicit-identifier index
+    private int byteSize;
+
+    public BlockWithVotesCompactResponse(BlockWithVotesCompactRequest request) {
+
+        // Heights are added until a height is missing a block or votes, or until the response reaches its size limit.
+        List<BlockWithVotesResponse> entries = new ArrayList<>();
+        int estimatedSize = 0;
+        long endHeight = request.getStartHeight() + request.getNumberOfHeights();
+        for (long height = request.getStartHeight(); height < endHeight && estimatedSize < maximumResponseSize;
+             height++) {
+            BlockWithVotesResponse entry = new BlockWithVotesResponse(height);
+            if (entry.getBlock() == null || entry.getVotes() == null || entry.getVotes().isEmpty()) {
+                break;
+            }
+            entries.add(entry);
+            estimatedSize += entry.getBlock().getByteSize() + entry.getVotes().size() *
+                    (FieldByteSize.signature + 8);
+        }
+
+        List<ByteBuffer> cycleList = BlockManager.verifiersInCurrentCycleList();
+        boolean useCycleIndex = Arrays.equals(request.getCycleHash(), cycleHash(cycleList));
+        initialize(entries, useCycleIndex ? cycleList : null);
+    }
+
+    public BlockWithVotesCompactResponse(List<BlockWithVotesResponse> entries, List<ByteBuffer> cycleList) {
+
+        // If the cycle list is null, voters are referenced through an identifier table.
+        initialize(entries, cycleList);
+    }
+
+    private BlockWithVotesCompactResponse(List<BlockWithVotesResponse> entries, byte[] cycleHash,
+                                          List<ByteBuffer> identifierTable, int[][] voterIndices, int byteSize) {
+
+        // This is the constructor for a parsed response, for which the indices and the size are already known.
+        this.entries = entries;
+        this.cycleHash = cycleHash;
+        this.identifierTable = identifierTable;
+        this.voterIndices = voterIndices;
+        this.byteSize = byteSize;
+    }
+
+    private void initialize(List<BlockWithVotesResponse> entries, List<ByteBuffer> cycleList) {
+
+        // Keep only the votes that can be verified and transmitted: votes for the block's hash with message
+        // information.
+        this.entries = new ArrayList<>();
+        for (BlockWithVotesResponse entry : entries) {
+            List<BlockVote> votes = new ArrayList<>();
+            for (BlockVote vote : entry.getVotes()) {
+                if (vote.getSenderIdentifier() != null && vote.getMessageSignature() != null &&
+                        ByteUtil.arraysAreEqual(vote.getHash(), entry.getBlock().getHash())) {
+                    votes.add(vote);
+                }
+            }
+            this.entries.add(new BlockWithVotesResponse(entry.getBlock(), votes));
+        }
+
+        // The index map of the cycle is kept with the cycle hash, so it is only built once for each cycle. The
+        // identifier table is built from the votes.
+        Map<ByteBuffer, Integer> indexMap;
+        if (cycleList != null) {
+            CycleIndex cycleIndex = cycleIndex(cycleList);
+            cycleHash = cycleIndex.hash;
+            identifierTable = cycleList;
+            indexMap = cycleIndex.indices;
+        } else {
+            cycleHash = null;
+            identifierTable = new ArrayList<>();
+            indexMap = new HashMap<>();
+            for (BlockWithVotesResponse entry : this.entries) {
+                for (BlockVote vote : entry.getVotes()) {
+                    ByteBuffer identifier = ByteBuffer.wrap(vote.getSenderIdentifier());
+                    if (!indexMap.containsKey(identifier) && identifierTable.size() < explicitIdentifierIndex) {
+                        indexMap.put(identifier, identifierTable.size());
+                        identifierTable.add(identifier);
+                    }
+                }
+            }
+        }
+
+        voterIndices = new int[this.entries.size()][];
+        byteSize = FieldByteSize.booleanField + FieldByteSize.unnamedByte;  // cycle-index flag and number of blocks
+        if (cycleHash != null) {
+            byteSize += FieldByteSize.hash;
+        } else {
+            byteSize += FieldByteSize.unnamedShort + identifierTable.size() * FieldByteSize.identifier;
+        }
+        for (int i = 0; i < this.entries.size(); i++) {
+            Block block = this.entries.get(i).getBlock();
+            List<BlockVote> votes = this.entries.get(i).getVotes();
+            voterIndices[i] = new int[votes.size()];
+            byteSize += block.getByteSize() + FieldByteSize.unnamedShort;
+            for (int j = 0; j < votes.size(); j++) {
+                BlockVote vote = votes.get(j);
+                Integer index = indexMap.get(ByteBuffer.wrap(vote.getSenderIdentifier()));
+                voterIndices[i][j] = index == null ? explicitIdentifierIndex : index;
+                byteSize += FieldByteSize.unnamedShort + FieldByteSize.signature +
+                        variableLengthSize(vote.getMessageTimestamp() - block.getVerificationTimestamp()) +
+                        variableLengthSize(vote.getTimestamp() - vote.getMessageTimestamp()) +
+                        (index == null ? FieldByteSize.identifier : 0);
+            }
+        }
+    }
+
+    public List<BlockWithVotesResponse> getEntries() {
+        return entries;
+    }
+
+    public boolean usesCycleIndex() {
+        return cycleHash != null;
+    }
+
+    public static byte[] currentCycleHash() {
+        return cycleHash(BlockManager.verifiersInCurrentCycleList());
+    }
+
+    public static byte[] cycleHash(List<ByteBuffer> cycleList) {
+        return cycleIndex(cycleList).hash;
+    }
+
+    private static CycleIndex cycleIndex(List<ByteBuffer> cycleList) {
+
+        // The cycle list is replaced, not modified, when the cycle changes, so the hash and indices of the last list
+        // are kept.
+        CycleIndex cycleIndex = lastCycleIndex;
+        if (cycleIndex == null || cycleIndex.cycleList != cycleList) {
+            byte[] identifiers = new byte[cycleList.size() * FieldByteSize.identifier];
+            ByteBuffer buffer = ByteBuffer.wrap(identifiers);
+            Map<ByteBuffer, Integer> indices = new HashMap<>();
+            for (int i = 0; i < cycleList.size(); i++) {
+                buffer.put(cycleList.get(i).array());
+                if (i < explicitIdentifierIndex) {
+                    indices.put(cycleList.get(i), i);
+                }
+            }
+            cycleIndex = new CycleIndex(cycleList, HashUtil.doubleSHA256(identifiers), indices);
+            lastCycleIndex = cycleIndex;
+        }
+
+        return cycleIndex;
+    }
+
+    @Override
+    public int getByteSize() {
+        return byteSize;
+    }
+
+    @Override
+    public byte[] getBytes() {
+
+        byte[] array = new byte[byteSize];
+        ByteBuffer buffer = ByteBuffer.wrap(array);
+        if (cycleHash != null) {
+            buffer.put((byte) 1);
+            buffer.put(cycleHash);
+        } else {
+            buffer.put((byte) 0);
+            buffer.putShort((short) identifierTable.size());
+            for (ByteBuffer identifier : identifierTable) {
+                buffer.put(identifier.array());
+            }
+        }
+
+        buffer.put((byte) entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            Block block = entries.get(i).getBlock();
+            List<BlockVote> votes = entries.get(i).getVotes();
+            buffer.put(block.getBytes());
+            buffer.putShort((short) votes.size());
+            for (int j = 0; j < votes.size(); j++) {
+                BlockVote vote = votes.get(j);
+                buffer.putShort((short) voterIndices[i][j]);
+                if (voterIndices[i][j] == explicitIdentifierIndex) {
+                    buffer.put(vote.getSenderIdentifier());
+                }
+                putVariableLength(buffer, vote.getMessageTimestamp() - block.getVerificationTimestamp());
+                putVariableLength(buffer, vote.getTimestamp() - vote.getMessageTimestamp());
+                buffer.put(vote.getMessageSignature());
+            }
+        }
+
+        return array;
+    }
+
+    public static BlockWithVotesCompactResponse fromByteBuffer(ByteBuffer buffer) {
+        return fromByteBuffer(buffer, BlockManager.verifiersInCurrentCycleList());
+    }
+
+    public static BlockWithVotesCompactResponse fromByteBuffer(ByteBuffer buffer, List<ByteBuffer> cycleList) {
+
+        // If the response references the cycle list, the local cycle list must still have the hash that was sent with
+        // the request. Otherwise, the indices cannot be resolved, and the response is discarded.
+        BlockWithVotesCompactResponse result = null;
+
+        try {
+            int startPosition = buffer.position();
+            boolean useCycleIndex = buffer.get() == 1;
+            byte[] cycleHash = null;
+            List<ByteBuffer> identifierTable;
+            if (useCycleIndex) {
+                cycleHash = Message.getByteArray(buffer, FieldByteSize.hash);
+                identifierTable = Arrays.equals(cycleHash, cycleHash(cycleList)) ? cycleList : null;
+            } else {
+                int tableSize = buffer.getShort() & 0xffff;
+                identifierTable = new ArrayList<>();
+                for (int i = 0; i < tableSize; i++) {
+                    identifierTable.add(ByteBuffer.wrap(Message.getByteArray(buffer, FieldByteSize.identifier)));
+                }
+            }
+
+            if (identifierTable != null) {
+                int numberOfBlocks = buffer.get() & 0xff;
+                List<BlockWithVotesResponse> entries = new ArrayList<>();
+                int[][] voterIndices = new int[numberOfBlocks][];
+                for (int i = 0; i < numberOfBlocks; i++) {
+                    Block block = Block.fromByteBuffer(buffer);
+                    int numberOfVotes = buffer.getShort() & 0xffff;
+                    List<BlockVote> votes = new ArrayList<>(numberOfVotes);
+                    voterIndices[i] = new int[numberOfVotes];
+                    for (int j = 0; j < numberOfVotes; j++) {
+                        int index = buffer.getShort() & 0xffff;
+                        byte[] senderIdentifier = index == explicitIdentifierIndex ?
+                                Message.getByteArray(buffer, FieldByteSize.identifier) :
+                                identifierTable.get(index).array();
+                        long messageTimestamp = block.getVerificationTimestamp() + getVariableLength(buffer);
+                        long timestamp = messageTimestamp + getVariableLength(buffer);
+                        byte[] messageSignature = Message.getByteArray(buffer, FieldByteSize.signature);
+
+                        BlockVote vote = new BlockVote(block.getBlockHeight(), block.getHash(), timestamp);
+                        vote.setSenderIdentifier(senderIdentifier);
+                        vote.setMessageTimestamp(messageTimestamp);
+                        vote.setMessageSignature(messageSignature);
+                        votes.add(vote);
+                        voterIndices[i][j] = index;
+                    }
+                    entries.add(new BlockWithVotesResponse(block, votes));
+                }
+
+                result = new BlockWithVotesCompactResponse(entries, cycleHash, identifierTable, voterIndices,
+                        buffer.position() - startPosition);
+            }
+        } catch (Exception ignored) { }
+
+        return result;
+    }
+
+    private static int variableLengthSize(long value) {
+
+        // Values are zigzag-encoded, so small negative values are also short, and written 7 bits per byte.
+        long encoded = (value << 1) ^ (value >> 63);
+        int size = 1;
+        while ((encoded >>>= 7) != 0L) {
+            size++;
+        }
+
+        return size;
+    }
+
+    private static void putVariableLength(ByteBuffer buffer, long value) {
+
+        long encoded = (value << 1) ^ (value >> 63);
+        while ((encoded & ~0x7fL) != 0L) {
+            buffer.put((byte) ((encoded & 0x7f) | 0x80));
+            encoded >>>= 7;
+        }
+        buffer.put((byte) encoded);
+    }
+
+    private static long getVariableLength(ByteBuffer buffer) {
+
+        long encoded = 0L;
+        int shift = 0;
+        byte value;
+        do {
+            value = buffer.get();
+            encoded |= (long) (value & 0x7f) << shift;
+            shift += 7;
+        } while ((value & 0x80) != 0 && shift < 64);
+
+        return (encoded >>> 1) ^ -(encoded & 1L);
+    }
+
+    private static class CycleIndex {
+
+        private final List<ByteBuffer> cycleList;
+        private final byte[] hash;
+        private final Map<ByteBuffer, Integer> indices;
+
+        private CycleIndex(List<ByteBuffer> cycleList, byte[] hash, Map<ByteBuffer, Integer> indices) {
+            this.cycleList = cycleList;
+            this.hash = hash;
+            this.indices = indices;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[BlockWithVotesCompactResponse(blocks=" + entries.size() + ", cycleIndex=" + usesCycleIndex() + ")]";
+    }
+}
@@ -69,7 +69,13 @@ public class StatusResponse implements MessageObject {
             lines.add("node-joins sent: " + NodeManager.getNodeJoinRequestsSent());
             lines.add("memory (min/max/avg): " + MemoryMonitor.getMemoryStats());
             lines.add("initialization time: " + String.format("%.1f", Verifier.getInitializationTime() / 1000.0f));
+            lines.add("bootstrap time: " + String.format("%.1f",
+                    ChainInitializationManager.getLastBootstrapTime() / 1000.0f));
             lines.add("sentinel test height: " + Block.getBlockDelayHeight());
+            lines.add("catch-up throughput: " + BlockWithVotesPipeline.getThroughputDescription());
+            for (String description : BlockchainMetricsManager.metricsDescriptions()) {
+                lines.add("block metrics, " + description);
+            }
 
             Map<Long, Integer> thresholdOverrides = UnfrozenBlockManager.getThresholdOverrides();
             for (Long height : thresholdOverrides.keySet()) {
@@ -1,6 +1,7 @@
 package co.nyzo.verifier.messages;
 
 import co.nyzo.verifier.*;
+import co.nyzo.verifier.util.ThreadUtil;
 import co.nyzo.verifier.util.UpdateUtil;
 
 import java.io.*;
@@ -106,7 +107,7 @@ public class UpdateResponse implements MessageObject {
 
     private static void update() {
 
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
                 // Flag that the system should terminate and close the MeshListener socket.
@@ -127,7 +128,7 @@ public class UpdateResponse implements MessageObject {
                 runProcess(new ProcessBuilder("git", "pull", "origin", "master"));
                 runProcess(new ProcessBuilder("./gradlew", "build"));
             }
-        }).start();
+        }, "UpdateResponse-update");
     }
 
     @Override
@@ -156,7 +157,7 @@ public class UpdateResponse implements MessageObject {
 
         BufferedReader outputReader = new BufferedReader(new InputStreamReader(inputStream));
 
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -168,6 +169,6 @@ public class UpdateResponse implements MessageObject {
                     e.printStackTrace();
                 }
             }
-        }).start();
+        }, "UpdateResponse-processOutput");
     }
 }
@@ -44,8 +44,8 @@ public class MeshStatusResponse implements MessageObject, MultilineTextResponse
 
                 lines.add((BlockManager.verifierInCurrentCycle(ByteBuffer.wrap(identifier)) ? "C, " : " , ") +
                         PrintUtil.compactPrintByteArray(identifier) + ", " + node.getQueueTimestamp() + ", " +
-                        (isTopVerifier ? "*" : "-") + ", " + (isCurrentVote ? "*" : "-") +
-                        ", " + NicknameManager.get(identifier));
+                        (isTopVerifier ? "*" : "-") + ", " + (isCurrentVote ? "*" : "-") + ", " +
+                        PeerQualityTracker.summary(node) + ", " + NicknameManager.get(identifier));
             }
 
             this.lines = lines;
@@ -0,0 +1,110 @@
+package co.nyzo.verifier.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+
+    // This is a log-linear histogram of durations in nanoseconds, in the style of HdrHistogram. Each power of two is
+    // divided into 32 linear sub-buckets, so a recorded value is known to within about 3%. Values below 32 ns have
+    // their own buckets, and values above about 18 minutes are recorded in the last bucket. Recording computes the
+    // bucket index with a few bit operations and increments an array element, so it does not allocate.
+
+    private static final int subBucketBits = 5;
+    private static final int subBucketCount = 1 << subBucketBits;
+    private static final int maximumExponent = 40;
+    private static final int numberOfBuckets = subBucketCount + (maximumExponent - subBucketBits + 1) *
+            subBucketCount;
+
+    private final AtomicLongArray counts = new AtomicLongArray(numberOfBuckets);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong maximum = new AtomicLong(0L);
+
+    LatencyHistogram() {
+    }
+
+    public void record(long nanoseconds) {
+
+        long value = Math.max(0L, nanoseconds);
+        counts.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+
+        long currentMaximum;
+        while (value > (currentMaximum = maximum.get()) && !maximum.compareAndSet(currentMaximum, value)) { }
+    }
+
+    public void recordSince(long startNanoseconds) {
+        record(System.nanoTime() - startNanoseconds);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMaximum() {
+        return maximum.get();
+    }
+
+    public long valueAtQuantile(double quantile) {
+
+        // The upper bound of the bucket containing the quantile is returned, capped at the maximum recorded value. The
+        // counts are read without a lock, so the result is approximate while values are being recorded.
+        long totalCount = 0L;
+        for (int i = 0; i < numberOfBuckets; i++) {
+            totalCount += counts.get(i);
+        }
+
+        long value = 0L;
+        if (totalCount > 0L) {
+            long targetCount = Math.max(1L, (long) Math.ceil(quantile * totalCount));
+            long cumulativeCount = 0L;
+            for (int i = 0; i < numberOfBuckets && value == 0L; i++) {
+                cumulativeCount += counts.get(i);
+                if (cumulativeCount >= targetCount) {
+                    value = Math.min(bucketUpperBound(i), getMaximum());
+                }
+            }
+        }
+
+        return value;
+    }
+
+    static int bucketIndex(long value) {
+
+        int index;
+        if (value < subBucketCount) {
+            index = (int) value;
+        } else {
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent > maximumExponent) {
+                index = numberOfBuckets - 1;
+            } else {
+                int shift = exponent - subBucketBits;
+                index = subBucketCount + shift * subBucketCount + (int) (value >>> shift) - subBucketCount;
+            }
+        }
+
+        return index;
+    }
+
+    static long bucketUpperBound(int index) {
+
+        long upperBound;
+        if (index < subBucketCount) {
+            upperBound = index;
+        } else {
+            int shift = (index - subBucketCount) / subBucketCount;
+            long subBucket = subBucketCount + (index - subBucketCount) % subBucketCount;
+            upperBound = ((subBucket + 1L) << shift) - 1L;
+        }
+
+        return upperBound;
+    }
+}
@@ -0,0 +1,26 @@
+package co.nyzo.verifier.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class MetricsCounter {
+
+    // The count is striped across cells under contention, so threads incrementing the same counter do not contend on
+    // a single value. Reading the count sums the cells.
+
+    private final LongAdder count = new LongAdder();
+
+    MetricsCounter() {
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long value) {
+        count.add(value);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+}
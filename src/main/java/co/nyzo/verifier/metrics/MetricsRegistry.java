@@ -0,0 +1,119 @@
+package co.nyzo.verifier.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+public class MetricsRegistry {
+
+    // This is the single place where counters, gauges, and latency histograms are registered. Metrics are looked up by
+    // name and label when they are registered, and the caller keeps the returned object, so recording on the hot path
+    // is a method call on a field with no lookup and no allocation. Existing counters elsewhere in the code are
+    // registered as gauges, so all values are available from one scrape.
+    //
+    // The scrape is in the Prometheus text format. Histograms are written as summaries, with durations in seconds. The
+    // maximum recorded value is written as the 1.0 quantile.
+
+    private static final double[] quantiles = { 0.5, 0.9, 0.99 };
+
+    private static final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+    private static final Map<String, String> types = new ConcurrentSkipListMap<>();
+
+    public static MetricsCounter counter(String name) {
+        return counter(name, null, null);
+    }
+
+    public static MetricsCounter counter(String name, String labelName, String labelValue) {
+        return (MetricsCounter) register(name, labelName, labelValue, "counter", new MetricsCounter());
+    }
+
+    public static void gauge(String name, LongSupplier supplier) {
+        gauge(name, null, null, supplier);
+    }
+
+    public static void gauge(String name, String labelName, String labelValue, LongSupplier supplier) {
+        register(name, labelName, labelValue, "gauge", supplier);
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        return histogram(name, null, null);
+    }
+
+    public static LatencyHistogram histogram(String name, String labelName, String labelValue) {
+        return (LatencyHistogram) register(name, labelName, labelValue, "summary", new LatencyHistogram());
+    }
+
+    private static synchronized Object register(String name, String labelName, String labelValue, String type,
+                                                Object metric) {
+
+        // If the metric is already registered, the existing object is returned, so all callers share one value.
+        String key = name + (labelName == null ? "" : "{" + labelName + "=\"" + labelValue + "\"}");
+        Object existingMetric = metrics.get(key);
+        if (existingMetric == null) {
+            metrics.put(key, metric);
+            types.put(name, type);
+        } else if (existingMetric.getClass() == metric.getClass()) {
+            metric = existingMetric;
+        }
+
+        return metric;
+    }
+
+    public static List<String> scrapeLines() {
+
+        List<String> lines = new ArrayList<>();
+        String previousName = "";
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            String key = entry.getKey();
+            int labelIndex = key.indexOf('{');
+            String name = labelIndex < 0 ? key : key.substring(0, labelIndex);
+            String labels = labelIndex < 0 ? "" : key.substring(labelIndex + 1, key.length() - 1);
+            Object metric = entry.getValue();
+
+            // Histograms without any values are omitted, as there is one for each message type.
+            if (!(metric instanceof LatencyHistogram) || ((LatencyHistogram) metric).getCount() > 0) {
+                if (!name.equals(previousName)) {
+                    lines.add("# TYPE " + name + " " + types.get(name));
+                    previousName = name;
+                }
+
+                if (metric instanceof MetricsCounter) {
+                    lines.add(key + " " + ((MetricsCounter) metric).get());
+                } else if (metric instanceof LongSupplier) {
+                    lines.add(key + " " + ((LongSupplier) metric).getAsLong());
+                } else if (metric instanceof LatencyHistogram) {
+                    LatencyHistogram histogram = (LatencyHistogram) metric;
+                    String separator = labels.isEmpty() ? "" : ",";
+                    for (double quantile : quantiles) {
+                        lines.add(name + "{" + labels + separator + "quantile=\"" + quantile + "\"} " +
+                                seconds(histogram.valueAtQuantile(quantile)));
+                    }
+                    lines.add(name + "{" + labels + separator + "quantile=\"1.0\"} " +
+                            seconds(histogram.getMaximum()));
+                    String suffixLabels = labels.isEmpty() ? "" : "{" + labels + "}";
+                    lines.add(name + "_sum" + suffixLabels + " " + seconds(histogram.getSum()));
+                    lines.add(name + "_count" + suffixLabels + " " + histogram.getCount());
+                }
+            }
+        }
+
+        return lines;
+    }
+
+    public static String scrape() {
+
+        StringBuilder result = new StringBuilder();
+        for (String line : scrapeLines()) {
+            result.append(line).append('\n');
+        }
+
+        return result.toString();
+    }
+
+    private static String seconds(long nanoseconds) {
+        return String.format(Locale.ROOT, "%.9f", nanoseconds / 1000000000.0);
+    }
+}
@@ -0,0 +1,384 @@
+package co.nyzo.verifier.nyzoScript;
+
+import co.nyzo.verifier.ByteUtil;
+import co.nyzo.verifier.Transaction;
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NyzoScriptExecutor {
+
+    // This runs script updates for different accounts concurrently on a bounded pool. If the executor has budgets,
+    // the calling thread acts as a watchdog while a batch is running: it samples the CPU time and allocated bytes of
+    // each running update, and it cancels any update that exceeds its budget or runs longer than the wall-clock limit.
+    // The wall clock starts when the update starts to run, so time spent waiting for a thread under load does not count
+    // against the update. The result of a cancelled update is discarded, so the
+    // account's state is unchanged, as it would be if the script had thrown an exception. Without budgets, every
+    // update runs to completion, so the result does not depend on the load of the system.
+
+    // Java cannot stop a thread that ignores interruption. An update that keeps running after cancellation holds its
+    // pool thread until it finishes, but it does not hold the batch, so the remaining accounts are not delayed. If
+    // every pool thread is held by a cancelled update, the updates still waiting for a thread are cancelled as well,
+    // as they could not start until the runaway updates finish.
+
+    public static class Task {
+
+        private final ByteBuffer account;
+        private final NyzoScript script;
+        private final NyzoScriptState inputState;
+        private final List<Transaction> transactions;
+
+        public Task(ByteBuffer account, NyzoScript script, NyzoScriptState inputState, List<Transaction> transactions) {
+            this.account = account;
+            this.script = script;
+            this.inputState = inputState;
+            this.transactions = transactions;
+        }
+
+        public ByteBuffer getAccount() {
+            return account;
+        }
+    }
+
+    public static class ScriptMetrics {
+
+        private long numberOfExecutions = 0L;
+        private long totalNanoseconds = 0L;
+        private long maximumNanoseconds = 0L;
+        private long totalCpuNanoseconds = 0L;
+        private long totalAllocatedBytes = 0L;
+        private long numberOfBudgetViolations = 0L;
+        private long numberOfExceptions = 0L;
+
+        private synchronized void record(long nanoseconds, long cpuNanoseconds, long allocatedBytes,
+                                         boolean budgetExceeded, boolean exceptionThrown) {
+            numberOfExecutions++;
+            totalNanoseconds += nanoseconds;
+            maximumNanoseconds = Math.max(maximumNanoseconds, nanoseconds);
+            totalCpuNanoseconds += Math.max(0L, cpuNanoseconds);
+            totalAllocatedBytes += Math.max(0L, allocatedBytes);
+            if (budgetExceeded) {
+                numberOfBudgetViolations++;
+            }
+            if (exceptionThrown) {
+                numberOfExceptions++;
+            }
+        }
+
+        public synchronized long getNumberOfExecutions() {
+            return numberOfExecutions;
+        }
+
+        public synchronized long getAverageNanoseconds() {
+            return numberOfExecutions == 0 ? 0L : totalNanoseconds / numberOfExecutions;
+        }
+
+        public synchronized long getMaximumNanoseconds() {
+            return maximumNanoseconds;
+        }
+
+        public synchronized long getTotalCpuNanoseconds() {
+            return totalCpuNanoseconds;
+        }
+
+        public synchronized long getTotalAllocatedBytes() {
+            return totalAllocatedBytes;
+        }
+
+        public synchronized long getNumberOfBudgetViolations() {
+            return numberOfBudgetViolations;
+        }
+
+        public synchronized long getNumberOfExceptions() {
+            return numberOfExceptions;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("[executions=%d,averageMs=%.3f,maximumMs=%.3f,cpuMs=%.1f,allocatedBytes=%d," +
+                            "budgetViolations=%d,exceptions=%d]", numberOfExecutions, getAverageNanoseconds() / 1000000.0,
+                    maximumNanoseconds / 1000000.0, totalCpuNanoseconds / 1000000.0, totalAllocatedBytes,
+                    numberOfBudgetViolations, numberOfExceptions);
+        }
+    }
+
+    private class Execution implements Callable<NyzoScriptState> {
+
+        private final Task task;
+        private volatile boolean started = false;
+        private volatile long startTimestamp = 0L;
+        private volatile long startCpuTime = 0L;
+        private volatile long startAllocatedBytes = 0L;
+        private volatile Thread thread = null;
+        private volatile boolean budgetExceeded = false;
+        private final AtomicInteger runState = new AtomicInteger(runStateRunning);
+
+        private Execution(Task task) {
+            this.task = task;
+        }
+
+        @Override
+        public NyzoScriptState call() {
+
+            // The start values are set before the thread is published, so the watchdog always sees them.
+            Thread currentThread = Thread.currentThread();
+            startAllocatedBytes = allocatedBytes(currentThread);
+            startCpuTime = cpuTime(currentThread);
+            startTimestamp = System.nanoTime();
+            thread = currentThread;
+            started = true;
+
+            NyzoScriptState result = null;
+            boolean exceptionThrown = false;
+            try {
+                result = task.script.update(task.inputState, task.transactions);
+            } catch (Exception e) {
+                exceptionThrown = true;
+                if (!budgetExceeded) {
+                    LogUtil.println("exception executing script for account " +
+                            ByteUtil.arrayAsStringWithDashes(task.account.array()) + ": " +
+                            PrintUtil.printException(e));
+                }
+            } finally {
+                thread = null;
+                if (!runState.compareAndSet(runStateRunning, runStateFinished)) {
+                    numberOfAbandonedThreads.decrementAndGet();
+                }
+                long cpuNanoseconds = cpuTime(currentThread) - startCpuTime;
+                long allocatedBytes = allocatedBytes(currentThread) - startAllocatedBytes;
+                metricsForAccount(task.account).record(System.nanoTime() - startTimestamp, cpuNanoseconds,
+                        allocatedBytes, budgetExceeded, exceptionThrown);
+            }
+
+            return budgetExceeded ? null : result;
+        }
+    }
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static final boolean cpuTimeSupported = enableCpuTime();
+    private static final boolean allocationSupported = enableAllocation();
+
+    private static final long watchdogInterval = 2L;
+
+    private static final int runStateRunning = 0;
+    private static final int runStateFinished = 1;
+    private static final int runStateAbandoned = 2;
+
+    private final int numberOfThreads;
+    private final ExecutorService service;
+    private final boolean budgetsEnforced;
+    private final long cpuTimeBudget;
+    private final long allocationBudget;
+    private final long wallTimeBudget;
+    private final Map<ByteBuffer, ScriptMetrics> metricsMap = new ConcurrentHashMap<>();
+    private final AtomicInteger numberOfAbandonedThreads = new AtomicInteger(0);
+
+    public NyzoScriptExecutor(int numberOfThreads) {
+
+        // This executor has no budgets. It is used for confirmed states, which must be the same on all systems.
+        this(numberOfThreads, false, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    public NyzoScriptExecutor(int numberOfThreads, long cpuTimeBudgetMilliseconds, long allocationBudgetBytes,
+                              long wallTimeBudgetMilliseconds) {
+
+        this(numberOfThreads, true, cpuTimeBudgetMilliseconds, allocationBudgetBytes, wallTimeBudgetMilliseconds);
+    }
+
+    private NyzoScriptExecutor(int numberOfThreads, boolean budgetsEnforced, long cpuTimeBudgetMilliseconds,
+                               long allocationBudgetBytes, long wallTimeBudgetMilliseconds) {
+
+        this.numberOfThreads = numberOfThreads;
+        this.budgetsEnforced = budgetsEnforced;
+        this.cpuTimeBudget = budgetsEnforced ? cpuTimeBudgetMilliseconds * 1000000L : Long.MAX_VALUE;
+        this.allocationBudget = allocationBudgetBytes;
+        this.wallTimeBudget = budgetsEnforced ? wallTimeBudgetMilliseconds * 1000000L : Long.MAX_VALUE;
+        this.service = Executors.newFixedThreadPool(numberOfThreads, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "NyzoScriptExecutor-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public Map<ByteBuffer, NyzoScriptState> execute(List<Task> tasks) {
+
+        // Submit all tasks, then watch them until all have completed or been cancelled.
+        List<Execution> executions = new ArrayList<>();
+        List<Future<NyzoScriptState>> futures = new ArrayList<>();
+        for (Task task : tasks) {
+            Execution execution = new Execution(task);
+            executions.add(execution);
+            futures.add(service.submit(execution));
+        }
+
+        Set<Integer> pendingIndices = new HashSet<>();
+        for (int i = 0; i < futures.size(); i++) {
+            pendingIndices.add(i);
+        }
+        while (!pendingIndices.isEmpty()) {
+            for (Iterator<Integer> iterator = pendingIndices.iterator(); iterator.hasNext(); ) {
+                int index = iterator.next();
+                Future<NyzoScriptState> future = futures.get(index);
+                if (future.isDone()) {
+                    iterator.remove();
+                } else if (isOverBudget(executions.get(index))) {
+                    Execution execution = executions.get(index);
+                    execution.budgetExceeded = true;
+                    if (execution.started && execution.runState.compareAndSet(runStateRunning, runStateAbandoned)) {
+                        numberOfAbandonedThreads.incrementAndGet();
+                    }
+                    future.cancel(true);
+                    iterator.remove();
+                    LogUtil.println("cancelled script for account " +
+                            ByteUtil.arrayAsStringWithDashes(executions.get(index).task.account.array()) +
+                            " for exceeding its execution budget");
+                }
+            }
+
+            if (!pendingIndices.isEmpty()) {
+                try {
+                    futures.get(pendingIndices.iterator().next()).get(watchdogInterval, TimeUnit.MILLISECONDS);
+                } catch (Exception ignored) { }
+            }
+        }
+
+        // Collect the results of the updates that completed within their budgets.
+        Map<ByteBuffer, NyzoScriptState> results = new HashMap<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                NyzoScriptState result = futures.get(i).isCancelled() ? null : futures.get(i).get();
+                if (result != null) {
+                    results.put(executions.get(i).task.account, result);
+                }
+            } catch (Exception ignored) { }
+        }
+
+        return results;
+    }
+
+    public ScriptMetrics metricsForAccount(ByteBuffer account) {
+        return metricsMap.computeIfAbsent(account, key -> new ScriptMetrics());
+    }
+
+    public Map<ByteBuffer, ScriptMetrics> getMetrics() {
+        return new HashMap<>(metricsMap);
+    }
+
+    public long getNumberOfExecutions() {
+
+        long numberOfExecutions = 0L;
+        for (ScriptMetrics metrics : metricsMap.values()) {
+            numberOfExecutions += metrics.getNumberOfExecutions();
+        }
+
+        return numberOfExecutions;
+    }
+
+    public long getNumberOfBudgetViolations() {
+
+        long numberOfBudgetViolations = 0L;
+        for (ScriptMetrics metrics : metricsMap.values()) {
+            numberOfBudgetViolations += metrics.getNumberOfBudgetViolations();
+        }
+
+        return numberOfBudgetViolations;
+    }
+
+    public long getNumberOfExceptions() {
+
+        long numberOfExceptions = 0L;
+        for (ScriptMetrics metrics : metricsMap.values()) {
+            numberOfExceptions += metrics.getNumberOfExceptions();
+        }
+
+        return numberOfExceptions;
+    }
+
+    public int getNumberOfAbandonedThreads() {
+        return numberOfAbandonedThreads.get();
+    }
+
+    public void shutdown() {
+        service.shutdownNow();
+    }
+
+    private boolean isOverBudget(Execution execution) {
+
+        // The wall-clock limit is measured from the start of the update. An update that has not started is only over
+        // budget if every pool thread is held by a cancelled update, as it could not start until one of those ends.
+        boolean overBudget = false;
+        Thread thread = execution.thread;
+        if (budgetsEnforced && !execution.started) {
+            overBudget = numberOfAbandonedThreads.get() >= numberOfThreads;
+        } else if (budgetsEnforced && thread != null) {
+            overBudget = System.nanoTime() - execution.startTimestamp > wallTimeBudget ||
+                    cpuTime(thread) - execution.startCpuTime > cpuTimeBudget ||
+                    allocatedBytes(thread) - execution.startAllocatedBytes > allocationBudget;
+        }
+
+        return overBudget;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long cpuTime(Thread thread) {
+
+        // When CPU time is not available, the wall-clock limit alone bounds the update.
+        long cpuTime = 0L;
+        if (cpuTimeSupported) {
+            cpuTime = Math.max(0L, threadBean.getThreadCpuTime(thread.getId()));
+        }
+
+        return cpuTime;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long allocatedBytes(Thread thread) {
+
+        long allocatedBytes = 0L;
+        if (allocationSupported) {
+            allocatedBytes = Math.max(0L,
+                    ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(thread.getId()));
+        }
+
+        return allocatedBytes;
+    }
+
+    private static boolean enableCpuTime() {
+
+        boolean supported = false;
+        try {
+            if (threadBean.isThreadCpuTimeSupported()) {
+                threadBean.setThreadCpuTimeEnabled(true);
+                supported = true;
+            }
+        } catch (Exception ignored) { }
+
+        return supported;
+    }
+
+    private static boolean enableAllocation() {
+
+        boolean supported = false;
+        try {
+            if (threadBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+                if (bean.isThreadAllocatedMemorySupported()) {
+                    bean.setThreadAllocatedMemoryEnabled(true);
+                    supported = true;
+                }
+            }
+        } catch (Exception ignored) { }
+
+        return supported;
+    }
+}
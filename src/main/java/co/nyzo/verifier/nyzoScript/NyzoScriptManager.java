@@ -2,15 +2,13 @@ package co.nyzo.verifier.nyzoScript;
 
 import co.nyzo.verifier.*;
 import co.nyzo.verifier.client.commands.TransactionForwardCommand;
+import co.nyzo.verifier.metrics.MetricsRegistry;
 import co.nyzo.verifier.nyzoScript.scripts.*;
 import co.nyzo.verifier.nyzoString.*;
 import co.nyzo.verifier.util.*;
 
 import java.io.File;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -20,15 +18,80 @@ public class NyzoScriptManager {
     // This class is currently a minimal implementation to support the graffiti script. It will need to evolve
     // significantly to support scripts from all accounts.
 
+    // Confirmed states are held in a bounded cache and written to files in batches as the frozen edge advances. The
+    // highest block processed is only stored when the states are written, so the stored value never gets ahead of
+    // the files. Each state records its last update height, so a block is never applied twice to a state.
+
+    // States that include unconfirmed transactions are overlays on the confirmed states. Each overlay records the
+    // confirmed state it was built on and the transactions it includes, so only new transactions need to be applied
+    // in the next pass. An overlay is rebuilt from the confirmed state if the confirmed state changes or if a
+    // transaction is inserted before the transactions already applied.
+
     public static final File directory = new File(Verifier.dataRootDirectory, "script_states");
     private static final String highestBlockProcessedKey = "nyzo_script_manager_highest_block_processed";
     private static final Map<ByteBuffer, NyzoScript> scriptMap = new ConcurrentHashMap<>();
-    private static Map<ByteBuffer, NyzoScriptState> unconfirmedStateMap = new ConcurrentHashMap<>();
+    private static Map<ByteBuffer, UnconfirmedOverlay> unconfirmedOverlayMap = new ConcurrentHashMap<>();
     private static final AtomicBoolean alive = new AtomicBoolean(false);
 
+    private static final int stateCacheSize = PreferencesUtil.getInt("nyzo_script_state_cache_size", 1000);
+    private static final long persistInterval = PreferencesUtil.getLong("nyzo_script_state_persist_interval", 10L);
+    private static final NyzoScriptStateCache stateCache = new NyzoScriptStateCache(directory, stateCacheSize);
+
+    // Scripts for different accounts run concurrently. Updates for frozen blocks always run to completion, so the
+    // confirmed states do not depend on the load of the system. Updates with unconfirmed transactions run on a
+    // separate pool and are limited in CPU time, allocation, and wall-clock time, so one slow script cannot delay the
+    // others, and a runaway script cannot hold the threads used for frozen blocks.
+    private static final int numberOfExecutionThreads = PreferencesUtil.getInt("nyzo_script_execution_threads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private static final NyzoScriptExecutor confirmedExecutor = new NyzoScriptExecutor(numberOfExecutionThreads);
+    private static final NyzoScriptExecutor unconfirmedExecutor = new NyzoScriptExecutor(numberOfExecutionThreads,
+            PreferencesUtil.getLong("nyzo_script_cpu_time_budget_ms", 500L),
+            PreferencesUtil.getLong("nyzo_script_allocation_budget_bytes", 256L * 1024L * 1024L),
+            PreferencesUtil.getLong("nyzo_script_wall_time_budget_ms", 2000L));
+    private static volatile long highestBlockProcessed = PersistentData.getLong(highestBlockProcessedKey, -1L);
+    private static long lastPersistedHeight = highestBlockProcessed;
+
+    private static class UnconfirmedOverlay {
+        private final NyzoScriptState confirmedState;
+        private final List<ByteBuffer> transactionSignatures;
+        private final NyzoScriptState state;
+
+        private UnconfirmedOverlay(NyzoScriptState confirmedState, List<ByteBuffer> transactionSignatures,
+                                   NyzoScriptState state) {
+            this.confirmedState = confirmedState;
+            this.transactionSignatures = transactionSignatures;
+            this.state = state;
+        }
+
+        private boolean isPrefixOf(List<ByteBuffer> signatures) {
+
+            boolean isPrefix = transactionSignatures.size() <= signatures.size();
+            for (int i = 0; i < transactionSignatures.size() && isPrefix; i++) {
+                isPrefix = transactionSignatures.get(i).equals(signatures.get(i));
+            }
+
+            return isPrefix;
+        }
+    }
+
+    static {
+        // The execution counts of both executors are reported as metrics. Budget violations and abandoned threads
+        // only occur for the unconfirmed executor, which is the only one with budgets.
+        registerExecutorMetrics("confirmed", confirmedExecutor);
+        registerExecutorMetrics("unconfirmed", unconfirmedExecutor);
+
+        // Write any states that have not yet been persisted before the process exits.
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stateCache.persistDirtyStates();
+            }
+        }));
+    }
+
     public static void start() {
         if (!alive.getAndSet(true)) {
-            new Thread(() -> {
+            ThreadUtil.startLongRunning(() -> {
                 while (!UpdateUtil.shouldTerminate()) {
                     // Sleep for 3 seconds to keep the loop from running too tightly.
                     ThreadUtil.sleep(3000L);
@@ -37,7 +100,7 @@ public class NyzoScriptManager {
                 }
 
                 alive.set(false);
-            }).start();
+            }, "NyzoScriptManager");
         }
     }
 
@@ -63,9 +126,9 @@ public class NyzoScriptManager {
             NyzoScriptState managedState = new NyzoScriptState(frozenEdgeHeight, frozenEdgeHeight,
                     outputState.getContentType(), false, outputState.getData());
 
-            // Write the managed state to a file.
-            FileUtil.writeFile(Paths.get(stateFileForAccount(account).getAbsolutePath()),
-                    managedState.renderJson().getBytes(StandardCharsets.UTF_8));
+            // Store the managed state and write it to a file.
+            stateCache.put(ByteBuffer.wrap(account), managedState);
+            stateCache.persistDirtyStates();
         }
     }
 
@@ -91,21 +154,9 @@ public class NyzoScriptManager {
 
     public static String stateJsonStringForAccount(ByteBuffer account) {
 
-        // Read the state from the file. For simplicity, states are always read from files. If caching would be helpful
-        // to improve performance for frequently updated or frequently queried scripts, such caching can be added later
-        // and consideration of threading issues will be considered at that time.
-
-        // Get the bytes from the file.
-        File stateFile = stateFileForAccount(account.array());
-        byte[] fileContents = new byte[0];
-        if (stateFile.exists()) {
-            try {
-                fileContents = Files.readAllBytes(Paths.get(stateFile.getAbsolutePath()));
-            } catch (Exception ignored) { }
-        }
-
-        // Make a JSON string from the bytes. All states are stored as JSON, even those with binary data.
-        return new String(fileContents, StandardCharsets.UTF_8);
+        // All states are stored as JSON, even those with binary data. An empty string is returned if no state exists.
+        NyzoScriptState state = stateCache.get(account);
+        return state == null ? "" : state.renderJson();
     }
 
     public static NyzoScriptState stateForAccount(ByteBuffer account, boolean includeUnconfirmedTransactions) {
@@ -113,12 +164,15 @@ public class NyzoScriptManager {
         // First, look for a state that includes unconfirmed transactions if requested.
         NyzoScriptState state = null;
         if (includeUnconfirmedTransactions) {
-            state = unconfirmedStateMap.get(account);
+            UnconfirmedOverlay overlay = unconfirmedOverlayMap.get(account);
+            if (overlay != null) {
+                state = overlay.state;
+            }
         }
 
-        // If the state is not yet set, build it from the file.
+        // If the state is not yet set, get the confirmed state.
         if (state == null) {
-            state = NyzoScriptState.fromJsonString(stateJsonStringForAccount(account));
+            state = stateCache.get(account);
         }
 
         return state;
@@ -126,84 +180,124 @@ public class NyzoScriptManager {
 
     private static void processUnconfirmedTransactions() {
 
-        // Get all unconfirmed transactions up to one block beyond the open edge.
-        Collection<Transaction> allTransactions = TransactionForwardCommand.allTransactions();
-        List<Transaction> transactionsInRange = new ArrayList<>();
-        long thresholdHeight = BlockManager.openEdgeHeight(true) + 1L;
-        for (Transaction transaction : allTransactions) {
-            if (BlockManager.heightForTimestamp(transaction.getTimestamp()) <= thresholdHeight) {
-                transactionsInRange.add(transaction);
-            }
+        // Get the unconfirmed transactions up to one block beyond the open edge for each account with a script. A
+        // script for an account is provided with all transactions received by that account. The forward store is
+        // indexed by receiver and height, so only the transactions for these accounts are visited.
+        if (scriptMap.isEmpty()) {
+            registerScripts();
         }
-
-        // Build a list for each recipient account. A script for an account is provided with all transactions received
-        // by that account.
         Map<ByteBuffer, List<Transaction>> receiverToTransactionListMap = new HashMap<>();
-        for (Transaction transaction : transactionsInRange) {
-            ByteBuffer receiver = ByteBuffer.wrap(transaction.getReceiverIdentifier());
-            List<Transaction> transactionsForAccount = receiverToTransactionListMap.computeIfAbsent(receiver,
-                    key -> new ArrayList<>());
-            transactionsForAccount.add(transaction);
+        long thresholdHeight = BlockManager.openEdgeHeight(true) + 1L;
+        for (ByteBuffer receiver : scriptMap.keySet()) {
+            List<Transaction> transactions = TransactionForwardCommand.transactionsForReceiver(receiver.array(),
+                    Long.MIN_VALUE, thresholdHeight);
+            if (!transactions.isEmpty()) {
+                receiverToTransactionListMap.put(receiver, transactions);
+            }
         }
 
-        // Create states with the unconfirmed transactions.
-        Map<ByteBuffer, NyzoScriptState> newUnconfirmedStateMap = new ConcurrentHashMap<>();
+        // Determine the transactions that must be applied for each account. When the previous overlay can be
+        // extended, only the new transactions are applied.
+        long highestBlockProcessed = NyzoScriptManager.highestBlockProcessed < 0 ?
+                BlockManager.getFrozenEdgeHeight() - 1L : NyzoScriptManager.highestBlockProcessed;
+        Map<ByteBuffer, UnconfirmedOverlay> newUnconfirmedOverlayMap = new ConcurrentHashMap<>();
+        Map<ByteBuffer, UnconfirmedOverlay> partialOverlayMap = new HashMap<>();
+        Map<ByteBuffer, List<Transaction>> transactionListMap = new HashMap<>();
+        List<NyzoScriptExecutor.Task> tasks = new ArrayList<>();
         for (ByteBuffer receiver : receiverToTransactionListMap.keySet()) {
-            try {
-                long highestBlockProcessed = PersistentData.getLong(highestBlockProcessedKey,
-                        BlockManager.getFrozenEdgeHeight() - 1L);
-                NyzoScript script = scriptForAccount(receiver);
-                if (script != null) {
-                    // Get the current state for the account.
-                    NyzoScriptState inputState = stateForAccount(receiver, false);
-
-                    // Get the transactions for the account and sort in block order.
-                    List<Transaction> transactions = receiverToTransactionListMap.get(receiver);
-                    BalanceManager.sortTransactions(transactions);
-
-                    // Remove transactions that are at or behind the highest block processed or have already been
-                    // incorporated into the state.
-                    if (inputState != null) {
-                        while (!transactions.isEmpty() &&
-                                BlockManager.heightForTimestamp(transactions.get(0).getTimestamp()) <=
-                                        Math.max(highestBlockProcessed, inputState.getLastUpdateHeight())) {
-                            transactions.remove(0);
-                        }
-                    }
-
-                    // Process the transactions and store the state in the map.
-                    if (!transactions.isEmpty()) {
-                        // Process the transactions.
-                        NyzoScriptState outputState = script.update(inputState, transactions);
-
-                        // Create a new output state to ensure the managed fields are properly set.
-                        long creationHeight = inputState == null ?
-                                BlockManager.heightForTimestamp(transactions.get(0).getTimestamp()) :
-                                inputState.getCreationHeight();
-                        long lastUpdateHeight = BlockManager.heightForTimestamp(transactions.get(transactions.size() -
-                                1).getTimestamp());
-                        NyzoScriptState managedState = new NyzoScriptState(creationHeight, lastUpdateHeight,
-                                outputState.getContentType(), true, outputState.getData());
-
-                        // Store the managed state in the map.
-                        newUnconfirmedStateMap.put(receiver, managedState);
-                    }
+            // Get the current confirmed state for the account.
+            NyzoScriptState confirmedState = stateCache.get(receiver);
+
+            // Get the transactions for the account and sort in block order.
+            List<Transaction> transactions = receiverToTransactionListMap.get(receiver);
+            BalanceManager.sortTransactions(transactions);
+
+            // Remove transactions that are at or behind the highest block processed or have already been
+            // incorporated into the state.
+            if (confirmedState != null) {
+                while (!transactions.isEmpty() &&
+                        BlockManager.heightForTimestamp(transactions.get(0).getTimestamp()) <=
+                                Math.max(highestBlockProcessed, confirmedState.getLastUpdateHeight())) {
+                    transactions.remove(0);
+                }
+            }
+
+            if (!transactions.isEmpty()) {
+                List<ByteBuffer> signatures = new ArrayList<>();
+                for (Transaction transaction : transactions) {
+                    signatures.add(ByteBuffer.wrap(transaction.getSignature()));
+                }
+
+                // Continue from the previous overlay if it was built on the same confirmed state and all of its
+                // transactions are still at the beginning of the list.
+                UnconfirmedOverlay previousOverlay = unconfirmedOverlayMap.get(receiver);
+                NyzoScriptState inputState = confirmedState;
+                int numberOfTransactionsApplied = 0;
+                if (previousOverlay != null && previousOverlay.confirmedState == confirmedState &&
+                        previousOverlay.isPrefixOf(signatures)) {
+                    inputState = previousOverlay.state;
+                    numberOfTransactionsApplied = previousOverlay.transactionSignatures.size();
+                }
+
+                // Queue the new transactions for processing, or keep the overlay if there are none.
+                UnconfirmedOverlay overlay = new UnconfirmedOverlay(confirmedState, signatures, inputState);
+                if (numberOfTransactionsApplied < transactions.size()) {
+                    tasks.add(new NyzoScriptExecutor.Task(receiver, scriptForAccount(receiver), inputState,
+                            new ArrayList<>(transactions.subList(numberOfTransactionsApplied, transactions.size()))));
+                    partialOverlayMap.put(receiver, overlay);
+                    transactionListMap.put(receiver, transactions);
+                } else {
+                    newUnconfirmedOverlayMap.put(receiver, overlay);
                 }
-            } catch (Exception e) {
-                LogUtil.println("exception processing script for receiver " +
-                        ByteUtil.arrayAsStringWithDashes(receiver.array()) + " for pending transactions");
             }
         }
 
+        // Run the scripts and create the overlays with the results. An account whose script failed or exceeded its
+        // budget has no overlay for this pass.
+        Map<ByteBuffer, NyzoScriptState> outputStates = unconfirmedExecutor.execute(tasks);
+        for (ByteBuffer receiver : outputStates.keySet()) {
+            UnconfirmedOverlay partialOverlay = partialOverlayMap.get(receiver);
+            List<Transaction> transactions = transactionListMap.get(receiver);
+            NyzoScriptState outputState = outputStates.get(receiver);
+
+            // Create a new output state to ensure the managed fields are properly set.
+            long creationHeight = partialOverlay.confirmedState == null ?
+                    BlockManager.heightForTimestamp(transactions.get(0).getTimestamp()) :
+                    partialOverlay.confirmedState.getCreationHeight();
+            long lastUpdateHeight = BlockManager.heightForTimestamp(transactions.get(transactions.size() -
+                    1).getTimestamp());
+            NyzoScriptState state = new NyzoScriptState(creationHeight, lastUpdateHeight, outputState.getContentType(),
+                    true, outputState.getData());
+
+            // Store the overlay in the map.
+            newUnconfirmedOverlayMap.put(receiver, new UnconfirmedOverlay(partialOverlay.confirmedState,
+                    partialOverlay.transactionSignatures, state));
+        }
+
         // Set the map for an atomic update of states.
-        unconfirmedStateMap = newUnconfirmedStateMap;
+        unconfirmedOverlayMap = newUnconfirmedOverlayMap;
     }
 
-    public static void processBlock(Block block) {
-        if (block != null && block.getBlockHeight() > PersistentData.getLong(highestBlockProcessedKey, -1L)) {
+    public static synchronized void processBlock(Block block) {
+        if (block != null && block.getBlockHeight() > highestBlockProcessed) {
             processBlockInternal(block);
-            PersistentData.put(highestBlockProcessedKey, block.getBlockHeight());
+            highestBlockProcessed = block.getBlockHeight();
+
+            // Write states in batches. When no states are waiting to be written, the height can be stored freely.
+            if (stateCache.getNumberOfDirtyStates() == 0 ||
+                    highestBlockProcessed >= lastPersistedHeight + persistInterval) {
+                persistStates();
+            }
+        }
+    }
+
+    public static synchronized void persistStates() {
+
+        stateCache.persistDirtyStates();
+        if (highestBlockProcessed >= 0) {
+            PersistentData.put(highestBlockProcessedKey, highestBlockProcessed);
         }
+        lastPersistedHeight = highestBlockProcessed;
     }
 
     public static void processBlockInternal(Block block) {
@@ -217,40 +311,50 @@ public class NyzoScriptManager {
             transactionsForAccount.add(transaction);
         }
 
-        // Process each transaction list for which a script is available.
+        // Queue each transaction list for which a script is available. Do not process a block that has already been
+        // processed for a script.
+        Map<ByteBuffer, NyzoScriptState> inputStates = new HashMap<>();
+        List<NyzoScriptExecutor.Task> tasks = new ArrayList<>();
         for (ByteBuffer receiver : receiverToTransactionListMap.keySet()) {
-            try {
-                NyzoScript script = scriptForAccount(receiver);
-                if (script != null) {
-                    // Get the current state for the account.
-                    NyzoScriptState inputState = stateForAccount(receiver, false);
-
-                    // Do not process a block that has already been processed for this script.
-                    if (inputState == null || inputState.getLastUpdateHeight() < block.getBlockHeight()) {
-                        // Process the transactions.
-                        NyzoScriptState outputState = script.update(inputState,
-                                receiverToTransactionListMap.get(receiver));
-
-                        // Create a new output state to ensure the managed fields are properly set.
-                        long creationHeight = inputState == null ? block.getBlockHeight() :
-                                inputState.getCreationHeight();
-                        long lastUpdateHeight = block.getBlockHeight();
-                        NyzoScriptState managedState = new NyzoScriptState(creationHeight, lastUpdateHeight,
-                                outputState.getContentType(), false, outputState.getData());
-
-                        // Write the managed state to a file.
-                        FileUtil.writeFile(Paths.get(stateFileForAccount(receiver.array()).getAbsolutePath()),
-                                managedState.renderJson().getBytes(StandardCharsets.UTF_8));
-                    }
+            NyzoScript script = scriptForAccount(receiver);
+            if (script != null) {
+                NyzoScriptState inputState = stateForAccount(receiver, false);
+                if (inputState == null || inputState.getLastUpdateHeight() < block.getBlockHeight()) {
+                    tasks.add(new NyzoScriptExecutor.Task(receiver, script, inputState,
+                            receiverToTransactionListMap.get(receiver)));
+                    inputStates.put(receiver, inputState);
                 }
-            } catch (Exception e) {
-                LogUtil.println("exception processing script for receiver " +
+            }
+        }
+
+        // Run the scripts to completion. A script that throws an exception leaves the state unchanged.
+        Map<ByteBuffer, NyzoScriptState> outputStates = confirmedExecutor.execute(tasks);
+        for (NyzoScriptExecutor.Task task : tasks) {
+            ByteBuffer receiver = task.getAccount();
+            NyzoScriptState inputState = inputStates.get(receiver);
+            NyzoScriptState outputState = outputStates.get(receiver);
+            if (outputState == null) {
+                LogUtil.println("unable to process script for receiver " +
                         ByteUtil.arrayAsStringWithDashes(receiver.array()) + " at height " + block.getBlockHeight());
+            } else {
+                // Create a new output state to ensure the managed fields are properly set.
+                long creationHeight = inputState == null ? block.getBlockHeight() : inputState.getCreationHeight();
+                long lastUpdateHeight = block.getBlockHeight();
+                NyzoScriptState managedState = new NyzoScriptState(creationHeight, lastUpdateHeight,
+                        outputState.getContentType(), false, outputState.getData());
+
+                // Store the managed state. It will be written to a file with the next batch.
+                stateCache.put(receiver, managedState);
             }
         }
     }
 
-    private static File stateFileForAccount(byte[] account) {
-        return new File(directory, ByteUtil.arrayAsStringWithDashes(account) + ".nyzoscriptstate");
+    private static void registerExecutorMetrics(String executorName, NyzoScriptExecutor executor) {
+        MetricsRegistry.gauge("nyzo_script_executions", "executor", executorName, executor::getNumberOfExecutions);
+        MetricsRegistry.gauge("nyzo_script_budget_violations", "executor", executorName,
+                executor::getNumberOfBudgetViolations);
+        MetricsRegistry.gauge("nyzo_script_exceptions", "executor", executorName, executor::getNumberOfExceptions);
+        MetricsRegistry.gauge("nyzo_script_abandoned_threads", "executor", executorName,
+                executor::getNumberOfAbandonedThreads);
     }
 }
@@ -91,8 +91,15 @@ public class NyzoScriptState implements JsonRenderable {
     }
 
     public static NyzoScriptState fromJsonString(String jsonString) {
+        return fromJsonObject(Json.parse(jsonString));
+    }
+
+    public static NyzoScriptState fromJsonBytes(byte[] jsonBytes) {
+        return fromJsonObject(Json.parse(jsonBytes));
+    }
+
+    private static NyzoScriptState fromJsonObject(Object object) {
 
-        Object object = Json.parse(jsonString);
         NyzoScriptState state = null;
         if (object instanceof JsonObject) {
             JsonObject jsonObject = (JsonObject) object;
@@ -0,0 +1,128 @@
+package co.nyzo.verifier.nyzoScript;
+
+import co.nyzo.verifier.ByteUtil;
+import co.nyzo.verifier.util.FileUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+public class NyzoScriptStateCache {
+
+    // This holds confirmed script states in memory, so queries and unconfirmed-transaction processing do not read and
+    // parse state files. The cache is bounded with least-recently-used eviction. The absence of a state is also
+    // cached, as accounts without scripts are queried as well.
+    //
+    // Updated states are marked dirty and written to their files in batches by persistDirtyStates(). A dirty state
+    // that is evicted before a batch is written immediately, so no update is lost to eviction.
+
+    private static class Entry {
+        private final NyzoScriptState state;
+        private boolean dirty;
+
+        private Entry(NyzoScriptState state, boolean dirty) {
+            this.state = state;
+            this.dirty = dirty;
+        }
+    }
+
+    private final File directory;
+    private final LinkedHashMap<ByteBuffer, Entry> entries;
+    private int numberOfDirtyStates = 0;
+    private long numberOfFileReads = 0L;
+    private long numberOfFileWrites = 0L;
+
+    public NyzoScriptStateCache(File directory, int capacity) {
+        this.directory = directory;
+        this.entries = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+                boolean remove = size() > capacity;
+                if (remove && eldest.getValue().dirty) {
+                    writeState(eldest.getKey(), eldest.getValue().state);
+                    numberOfDirtyStates--;
+                }
+
+                return remove;
+            }
+        };
+    }
+
+    public synchronized NyzoScriptState get(ByteBuffer account) {
+
+        Entry entry = entries.get(account);
+        if (entry == null) {
+            entry = new Entry(readState(account), false);
+            entries.put(account, entry);
+        }
+
+        return entry.state;
+    }
+
+    public synchronized void put(ByteBuffer account, NyzoScriptState state) {
+
+        Entry previousEntry = entries.put(account, new Entry(state, true));
+        if (previousEntry == null || !previousEntry.dirty) {
+            numberOfDirtyStates++;
+        }
+    }
+
+    public synchronized int getNumberOfDirtyStates() {
+        return numberOfDirtyStates;
+    }
+
+    public synchronized long getNumberOfFileReads() {
+        return numberOfFileReads;
+    }
+
+    public synchronized long getNumberOfFileWrites() {
+        return numberOfFileWrites;
+    }
+
+    public synchronized int persistDirtyStates() {
+
+        int numberOfStatesWritten = 0;
+        for (Map.Entry<ByteBuffer, Entry> mapEntry : entries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (entry.dirty) {
+                writeState(mapEntry.getKey(), entry.state);
+                entry.dirty = false;
+                numberOfStatesWritten++;
+            }
+        }
+        numberOfDirtyStates = 0;
+
+        return numberOfStatesWritten;
+    }
+
+    private NyzoScriptState readState(ByteBuffer account) {
+
+        NyzoScriptState state = null;
+        File stateFile = fileForAccount(account.array());
+        if (stateFile.exists()) {
+            try {
+                numberOfFileReads++;
+                state = NyzoScriptState.fromJsonBytes(Files.readAllBytes(Paths.get(stateFile.getAbsolutePath())));
+            } catch (Exception ignored) { }
+        }
+
+        return state;
+    }
+
+    private void writeState(ByteBuffer account, NyzoScriptState state) {
+
+        if (state != null) {
+            directory.mkdirs();
+            FileUtil.writeFile(Paths.get(fileForAccount(account.array()).getAbsolutePath()),
+                    state.renderJson().getBytes(StandardCharsets.UTF_8));
+            numberOfFileWrites++;
+        }
+    }
+
+    public File fileForAccount(byte[] account) {
+        return new File(directory, ByteUtil.arrayAsStringWithDashes(account) + ".nyzoscriptstate");
+    }
+}
@@ -35,8 +35,8 @@ public class GraffitiScript implements NyzoScript {
         long[] amounts = new long[0];
         if (inputState != null) {
             try {
-                JsonObject inputData = (JsonObject) Json.parse(new String(inputState.getData(),
-                        StandardCharsets.UTF_8));
+                // The data is parsed from bytes, as the state of a full image exceeds the length limit for strings.
+                JsonObject inputData = (JsonObject) Json.parse(inputState.getData());
                 colors = ((JsonArray) inputData.get(colorsJsonKey)).toIntegerArray();
                 amounts = ((JsonArray) inputData.get(amountsJsonKey)).toLongArray();
             } catch (Exception e) {
@@ -27,7 +27,7 @@ public class RelayEndpointManager {
         if (!alive.getAndSet(true)) {
             LogUtil.println("starting RelayEndpointManager");
 
-            new Thread(new Runnable() {
+            ThreadUtil.startLongRunning(new Runnable() {
                 @Override
                 public void run() {
                     while (!UpdateUtil.shouldTerminate()) {
@@ -51,7 +51,7 @@ public class RelayEndpointManager {
 
                     alive.set(false);
                 }
-            }).start();
+            }, "RelayEndpointManager");
         }
     }
 }
@@ -0,0 +1,52 @@
+package co.nyzo.verifier.scripts;
+
+import co.nyzo.verifier.BalanceHistoryIndexer;
+import co.nyzo.verifier.BalanceHistoryStore;
+import co.nyzo.verifier.BlockManager;
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+public class BalanceHistoryRebuildScript {
+
+    public static void main(String[] args) {
+        // Check the length of the argument array. Return if insufficient arguments are provided.
+        if (args.length < 1) {
+            LogUtil.println("\n\n\n");
+            LogUtil.println("***********************************************************************");
+            LogUtil.println("arguments:");
+            LogUtil.println("- start height, or a range of heights (first-last); the default end height is the last");
+            LogUtil.println("  consolidated block");
+            LogUtil.println("This clears and rebuilds the balance history index in " +
+                    BalanceHistoryIndexer.directory + ".");
+            LogUtil.println("Stop any verifier or client using the index before running this script.");
+            LogUtil.println("***********************************************************************\n\n\n");
+            return;
+        }
+
+        // Get the heights.
+        long startHeight;
+        long endHeight;
+        try {
+            String[] split = args[0].split("-");
+            startHeight = Long.parseLong(split[0]);
+            endHeight = split.length > 1 ? Long.parseLong(split[1]) : Long.MAX_VALUE;
+        } catch (Exception e) {
+            LogUtil.println("unable to parse height: " + args[0]);
+            return;
+        }
+
+        // The block manager is initialized so that the frozen edge is set. Balance lists at or below the frozen edge
+        // are derived without re-validating their transactions.
+        BlockManager.initialize();
+        endHeight = Math.min(endHeight, BlockManager.getFrozenEdgeHeight());
+
+        BalanceHistoryStore store = BalanceHistoryIndexer.getStore();
+        long lastHeight = BalanceHistoryIndexer.rebuild(store, startHeight, endHeight);
+        LogUtil.println("balance history is indexed from height " + store.getCoverageStartHeight() + " to height " +
+                lastHeight);
+        store.close();
+
+        LogUtil.flush();
+        UpdateUtil.terminate();
+    }
+}
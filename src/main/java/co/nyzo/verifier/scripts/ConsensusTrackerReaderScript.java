@@ -0,0 +1,72 @@
+package co.nyzo.verifier.scripts;
+
+import co.nyzo.verifier.util.ConsensusEventLog;
+import co.nyzo.verifier.util.ConsensusTracker;
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class ConsensusTrackerReaderScript {
+
+    public static void main(String[] args) {
+        // Check the length of the argument array. Return if insufficient arguments are provided.
+        if (args.length < 1) {
+            LogUtil.println("\n\n\n");
+            LogUtil.println("***********************************************************************");
+            LogUtil.println("arguments:");
+            LogUtil.println("- block height, or a range of heights (first-last)");
+            LogUtil.println("- (optional) consensus tracker directory; default is " +
+                    ConsensusTracker.getRootDirectory());
+            LogUtil.println("***********************************************************************\n\n\n");
+            return;
+        }
+
+        // Get the heights and the directory.
+        long startHeight;
+        long endHeight;
+        try {
+            String[] split = args[0].split("-");
+            startHeight = Long.parseLong(split[0]);
+            endHeight = split.length > 1 ? Long.parseLong(split[1]) : startHeight;
+        } catch (Exception e) {
+            LogUtil.println("unable to parse height: " + args[0]);
+            return;
+        }
+        File directory = args.length > 1 ? new File(args[1]) : ConsensusTracker.getRootDirectory();
+
+        for (long height = startHeight; height <= endHeight; height++) {
+            long startTimestamp = System.currentTimeMillis();
+            List<ConsensusEventLog.ConsensusLogRecord> records = ConsensusEventLog.recordsForHeight(directory,
+                    height);
+            long readTime = System.currentTimeMillis() - startTimestamp;
+
+            // Print the events in the order they were received.
+            records.sort(new Comparator<ConsensusEventLog.ConsensusLogRecord>() {
+                @Override
+                public int compare(ConsensusEventLog.ConsensusLogRecord record1,
+                                   ConsensusEventLog.ConsensusLogRecord record2) {
+                    return Long.compare(record1.getTimestamp(), record2.getTimestamp());
+                }
+            });
+
+            LogUtil.println("height " + height + ": " + records.size() + " events, read in " + readTime + " ms");
+            Map<ByteBuffer, Integer> voteCounts = new HashMap<>();
+            for (ConsensusEventLog.ConsensusLogRecord record : records) {
+                LogUtil.println(record.toString());
+                if (record.getType() == ConsensusEventLog.typeVote) {
+                    ByteBuffer hash = ByteBuffer.wrap(record.getHash());
+                    voteCounts.put(hash, voteCounts.getOrDefault(hash, 0) + 1);
+                }
+            }
+
+            // Print the raw vote counts.
+            for (ByteBuffer hash : voteCounts.keySet()) {
+                LogUtil.println("hash=" + PrintUtil.compactPrintByteArray(hash.array()) + ",count=" +
+                        voteCounts.get(hash));
+            }
+        }
+    }
+}
@@ -64,21 +64,29 @@ public class MeshListenerStressScript {
 
         // Send the requests.
         if (whitelistingSuccessful) {
+            // The requests are run through the executor of ThreadUtil, so the thread_execution_mode preference
+            // applies to this script as it does to the verifier. Compare the results with the verifier in each mode.
             AtomicInteger activeThreads = new AtomicInteger(numberOfRequests);
+            AtomicInteger successfulRequests = new AtomicInteger(0);
+            long startTimestamp = System.currentTimeMillis();
             for (int i = 0; i < numberOfRequests; i++) {
-                int index = i;
-                new Thread(new Runnable() {
+                if (!ThreadUtil.execute(new Runnable() {
                     @Override
                     public void run() {
                         Message message = new Message(MessageType.FrozenEdgeBalanceListRequest45, null);
                         Message.fetchTcp(hostNameOrIp, port, message, new MessageCallback() {
                             @Override
                             public void responseReceived(Message message) {
+                                if (message != null) {
+                                    successfulRequests.incrementAndGet();
+                                }
                                 activeThreads.decrementAndGet();
                             }
                         });
                     }
-                }).start();
+                }, "MeshListenerStressScript-request")) {
+                    activeThreads.decrementAndGet();
+                }
             }
 
             // Wait for all threads to complete.
@@ -86,6 +94,10 @@ public class MeshListenerStressScript {
                 ThreadUtil.sleep(300L);
                 LogUtil.println("waiting for " + activeThreads.get() + " threads to complete");
             }
+
+            long elapsed = System.currentTimeMillis() - startTimestamp;
+            LogUtil.println("%d of %d requests successful in %.1f seconds (%s mode)", successfulRequests.get(),
+                    numberOfRequests, elapsed / 1000.0, ThreadUtil.getExecutionMode());
         }
 
         UpdateUtil.terminate();
@@ -0,0 +1,11 @@
+package co.nyzo.verifier.scripts;
+
+import co.nyzo.verifier.MessageType;
+
+public class MetricsRequestScript {
+
+    public static void main(String[] args) {
+
+        ScriptUtil.fetchMultilineStatus(MessageType.MetricsRequest426, args);
+    }
+}
@@ -0,0 +1,165 @@
+package co.nyzo.verifier.scripts;
+
+import co.nyzo.verifier.metrics.LatencyHistogram;
+import co.nyzo.verifier.metrics.MetricsRegistry;
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.ThreadUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ThreadExecutionStressScript {
+
+    // This compares the execution modes of ThreadUtil on the connection pattern of the mesh listener: each inbound
+    // connection is handled by a task that blocks while the request is processed. A local listener is started for each
+    // mode, and a number of concurrent connections are opened to it. Unlike MeshListenerStressScript, this does not
+    // need a running verifier, so the modes can be compared side by side on one machine.
+
+    private static final int defaultNumberOfConnections = 2000;
+    private static final long defaultHoldTime = 200L;
+    private static final int poolSize = 256;
+
+    public static void main(String[] args) {
+
+        int numberOfConnections = defaultNumberOfConnections;
+        long holdTime = defaultHoldTime;
+        try {
+            if (args.length > 0) {
+                numberOfConnections = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                holdTime = Long.parseLong(args[1]);
+            }
+        } catch (Exception ignored) {
+            LogUtil.println("arguments: [number of connections (default " + defaultNumberOfConnections + ")] " +
+                    "[time each connection is held, ms (default " + defaultHoldTime + ")]");
+            return;
+        }
+
+        LogUtil.println("%d connections, each held for %d ms", numberOfConnections, holdTime);
+        for (ThreadUtil.ExecutionMode mode : ThreadUtil.ExecutionMode.values()) {
+            Executor executor = ThreadUtil.createExecutor(mode, poolSize);
+            Executor clientExecutor = ThreadUtil.createExecutor(mode, poolSize);
+            if (executor == null) {
+                LogUtil.println("%s: not available on this JDK", mode);
+            } else {
+                runMode(mode, executor, clientExecutor, numberOfConnections, holdTime);
+            }
+        }
+
+        LogUtil.flush();
+        UpdateUtil.terminate();
+    }
+
+    private static void runMode(ThreadUtil.ExecutionMode mode, Executor executor, Executor clientExecutor,
+                                int numberOfConnections, long holdTime) {
+
+        LatencyHistogram schedulingLatency = MetricsRegistry.histogram("nyzo_stress_scheduling_seconds", "mode",
+                mode.toString().toLowerCase());
+        AtomicInteger successfulConnections = new AtomicInteger(0);
+        AtomicInteger failedConnections = new AtomicInteger(0);
+        AtomicInteger activeHandlers = new AtomicInteger(0);
+        AtomicInteger maximumActiveHandlers = new AtomicInteger(0);
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch completion = new CountDownLatch(numberOfConnections);
+
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.bind(new InetSocketAddress("127.0.0.1", 0), numberOfConnections);
+            int port = serverSocket.getLocalPort();
+
+            // The accept loop dispatches each connection to the executor, as the mesh listener does.
+            ThreadUtil.startLongRunning(new Runnable() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        try {
+                            Socket socket = serverSocket.accept();
+                            long submissionTimestamp = System.nanoTime();
+                            try {
+                                executor.execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        schedulingLatency.recordSince(submissionTimestamp);
+                                        int active = activeHandlers.incrementAndGet();
+                                        maximumActiveHandlers.accumulateAndGet(active, Math::max);
+                                        try {
+                                            socket.getInputStream().read();
+                                            ThreadUtil.sleep(holdTime);
+                                            socket.getOutputStream().write(1);
+                                        } catch (Exception ignored) { }
+                                        activeHandlers.decrementAndGet();
+                                        try {
+                                            socket.close();
+                                        } catch (Exception ignored) { }
+                                    }
+                                });
+                            } catch (RejectedExecutionException e) {
+                                // The pool sheds load by rejecting the connection.
+                                socket.close();
+                            }
+                        } catch (Exception ignored) { }
+                    }
+                }
+            }, "ThreadExecutionStressScript-accept");
+
+            // The clients stand in for other verifiers. They are run on a separate executor of the same kind, as the
+            // clients would not share the threads of the listener.
+            long startTimestamp = System.nanoTime();
+            for (int i = 0; i < numberOfConnections; i++) {
+                try {
+                    clientExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try (Socket socket = new Socket()) {
+                                socket.connect(new InetSocketAddress("127.0.0.1", port), 5000);
+                                socket.setSoTimeout(30000);
+                                socket.getOutputStream().write(1);
+                                InputStream inputStream = socket.getInputStream();
+                                if (inputStream.read() == 1) {
+                                    successfulConnections.incrementAndGet();
+                                } else {
+                                    failedConnections.incrementAndGet();
+                                }
+                            } catch (Exception e) {
+                                failedConnections.incrementAndGet();
+                            }
+                            completion.countDown();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    failedConnections.incrementAndGet();
+                    completion.countDown();
+                }
+            }
+
+            // The platform thread count is sampled while waiting for the connections to complete.
+            int maximumPlatformThreads = 0;
+            while (!completion.await(20L, TimeUnit.MILLISECONDS)) {
+                maximumPlatformThreads = Math.max(maximumPlatformThreads,
+                        ManagementFactory.getThreadMXBean().getThreadCount());
+            }
+            double elapsedSeconds = (System.nanoTime() - startTimestamp) / 1000000000.0;
+
+            LogUtil.println("%s: %d successful, %d failed, %.2f s, %.0f connections/s, %d concurrent handlers, " +
+                            "%d platform threads, scheduling p50=%.3f ms p99=%.3f ms max=%.3f ms", mode,
+                    successfulConnections.get(), failedConnections.get(), elapsedSeconds,
+                    successfulConnections.get() / elapsedSeconds, maximumActiveHandlers.get(), maximumPlatformThreads,
+                    schedulingLatency.valueAtQuantile(0.5) / 1000000.0,
+                    schedulingLatency.valueAtQuantile(0.99) / 1000000.0, schedulingLatency.getMaximum() / 1000000.0);
+        } catch (Exception e) {
+            LogUtil.println("%s: exception: %s", mode, e);
+        }
+
+        running.set(false);
+    }
+}
@@ -62,6 +62,34 @@ public class Sentinel {
 
     private static Block frozenEdge = null;
 
+    private static final BlockWithVotesPipeline.BlockProcessor pipelineProcessor =
+            new BlockWithVotesPipeline.BlockProcessor() {
+                @Override
+                public boolean processBlock(Block block, List<Message> voteMessages) {
+
+                    // The signatures have already been verified by the pipeline. Count the votes from in-cycle
+                    // verifiers, and freeze the block if the count exceeds the threshold.
+                    int voteThreshold = BlockManager.currentCycleLength() * 3 / 4;
+                    Set<ByteBuffer> voteIdentifiers = new HashSet<>();
+                    for (Message voteMessage : voteMessages) {
+                        ByteBuffer senderIdentifier = ByteBuffer.wrap(voteMessage.getSourceNodeIdentifier());
+                        if (BlockManager.verifierInCurrentCycle(senderIdentifier)) {
+                            voteIdentifiers.add(senderIdentifier);
+                        }
+                    }
+
+                    System.out.println("pipeline block with votes: count=" + voteIdentifiers.size() + ", threshold=" +
+                            voteThreshold);
+                    boolean frozeBlock = false;
+                    if (voteIdentifiers.size() > voteThreshold) {
+                        freezeBlock(block);
+                        frozeBlock = frozenEdge.getBlockHeight() == block.getBlockHeight();
+                    }
+
+                    return frozeBlock;
+                }
+            };
+
 
     public static void main(String[] args) {
 
@@ -128,7 +156,7 @@ public class Sentinel {
         // Start the thread for transmitting blocks. While a separate thread is needed for fetching data from each
         // managed verifier, only one thread is required for transmitting blocks, as only a single block at each height
         // will protect all verifiers, regardless of how many are down at that time.
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
                 // Set the last-block received timestamp so we do not immediately transmit a block.
@@ -140,12 +168,12 @@ public class Sentinel {
                     ThreadUtil.sleep(1000L);
                 }
             }
-        }).start();
+        }, "Sentinel-blockTransmission");
     }
 
     private static void startThreadForVerifier(ManagedVerifier verifier, int querySlot) {
 
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
 
@@ -206,12 +234,12 @@ public class Sentinel {
                     }
                 }
             }
-        }).start();
+        }, "Sentinel-verifier-" + querySlot);
     }
 
     private static void startFullCycleThread() {
 
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
 
@@ -232,8 +260,16 @@ public class Sentinel {
                                 (frozenEdge.getVerificationTimestamp() < System.currentTimeMillis() - 35000L)) {
                             lastBlockRequestedTimestamp = System.currentTimeMillis();
 
-                            requestBlockWithVotes();
+                            // If the sentinel is far behind, use the pipeline to request several heights at once.
+                            if (BlockWithVotesPipeline.isActive()) {
+                                BlockWithVotesPipeline.requestBlocks();
+                            } else {
+                                requestBlockWithVotes();
+                            }
                         }
+
+                        // Freeze any blocks that the pipeline has verified since the last iteration.
+                        BlockWithVotesPipeline.freezeReadyBlocks(pipelineProcessor);
                     } catch (Exception e) {
                         System.out.println("exception in full-mesh thread main loop: " + PrintUtil.printException(e));
                     }
@@ -245,7 +281,7 @@ public class Sentinel {
                     }
                 }
             }
-        }).start();
+        }, "Sentinel-fullCycle");
     }
 
     private static void requestBlockWithVotes() {
@@ -317,7 +353,7 @@ public class Sentinel {
 
     private static void startNewVerifierThread() {
 
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
 
@@ -358,7 +394,7 @@ public class Sentinel {
                     }
                 }
             }
-        }).start();
+        }, "Sentinel-newVerifier");
     }
 
     private static void broadcastUdpBlockForNewVerifier(ManagedVerifier verifier) {
@@ -0,0 +1,332 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+
+public class BalanceHistoryStoreTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        BalanceHistoryStoreTest test = new BalanceHistoryStoreTest();
+        boolean successful = test.run() && test.benchmark(20000, 100000);
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        File directory = null;
+        try {
+            // Random balance changes for a small set of accounts are added in ascending height and compared to maps
+            // of the expected history. The compaction threshold is low, so most records are read from the sorted files.
+            directory = Files.createTempDirectory("nyzo_balance_history").toFile();
+            BalanceHistoryStore store = new BalanceHistoryStore(directory, 20);
+            Random random = new Random(44);
+            List<byte[]> accounts = randomIdentifiers(random, 300);
+            Map<ByteBuffer, TreeMap<Long, Long>> expected = new HashMap<>();
+            long height = 1000L;
+            for (; height < 3000L; height++) {
+                for (int i = 0; i < 5; i++) {
+                    byte[] identifier = accounts.get(random.nextInt(accounts.size()));
+                    TreeMap<Long, Long> history = expected.computeIfAbsent(ByteBuffer.wrap(identifier),
+                            key -> new TreeMap<>());
+                    if (!history.containsKey(height)) {
+                        long balance = random.nextInt(1000000);
+                        history.put(height, balance);
+                        store.add(identifier, height, balance);
+                    }
+                }
+                if (height % 50 == 0) {
+                    store.flush(1000L, height);
+                }
+            }
+            store.flush(1000L, height - 1L);
+            successful = checkStore(store, accounts, expected, random, 1000L, height - 1L);
+
+            // The same history must be found after the store is reopened, including records still in the logs.
+            store.close();
+            store = new BalanceHistoryStore(directory, 20);
+            if (successful) {
+                successful = checkStore(store, accounts, expected, random, 1000L, height - 1L);
+            }
+
+            // Records above the coverage are discarded when the store is opened. A write interrupted after the log
+            // was written and before the coverage was updated leaves such records, which is simulated here with a
+            // store that does not compact.
+            store.close();
+            store = new BalanceHistoryStore(directory, Integer.MAX_VALUE);
+            byte[] identifier = accounts.get(0);
+            store.add(identifier, height + 10L, 1L);
+            store.flush(1000L, height - 1L);
+            store.close();
+            store = new BalanceHistoryStore(directory, 20);
+            BalanceHistoryStore.Change change = store.changeAtOrBelow(identifier, height + 10L);
+            if (successful && change != null && change.getHeight() == height + 10L) {
+                successful = false;
+                failureCause = "record above the coverage was not discarded";
+            }
+            store.close();
+
+            // The changes between two balance lists must include additions, removals, and balance changes, but not
+            // accounts with unchanged balances.
+            List<BalanceListItem> items1 = new ArrayList<>();
+            List<BalanceListItem> items2 = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                items1.add(new BalanceListItem(accounts.get(i), 1000L + i));
+                if (i % 3 == 0) {
+                    items2.add(new BalanceListItem(accounts.get(i), 1000L + i));
+                } else if (i % 3 == 1) {
+                    items2.add(new BalanceListItem(accounts.get(i), 5L));
+                }
+            }
+            for (int i = 100; i < 110; i++) {
+                items2.add(new BalanceListItem(accounts.get(i), 7L));
+            }
+            File diffDirectory = new File(directory, "diff");
+            BalanceHistoryStore diffStore = new BalanceHistoryStore(diffDirectory, 1000);
+            int numberOfChanges = BalanceHistoryIndexer.recordChanges(diffStore, balanceList(items1, 10L),
+                    balanceList(items2, 11L));
+            diffStore.flush(11L, 11L);
+            if (successful && numberOfChanges != 66 + 10) {
+                successful = false;
+                failureCause = "expected 76 changes, actual=" + numberOfChanges;
+            }
+            for (int i = 0; i < 110 && successful; i++) {
+                BalanceHistoryStore.Change diffChange = diffStore.changeAtOrBelow(accounts.get(i), 11L);
+                long expectedBalance = i >= 100 ? 7L : i % 3 == 1 ? 5L : 0L;
+                if ((i < 100 && i % 3 == 0) != (diffChange == null) ||
+                        (diffChange != null && diffChange.getBalance() != expectedBalance)) {
+                    successful = false;
+                    failureCause = "incorrect change for account " + i + ": " + diffChange;
+                }
+            }
+            diffStore.close();
+            deleteDirectory(diffDirectory);
+
+            // A new baseline must record a balance of zero for accounts that are in the store but not in the new list.
+            // Below the baseline, the earlier balances remain.
+            File baselineDirectory = new File(directory, "baseline");
+            BalanceHistoryStore baselineStore = new BalanceHistoryStore(baselineDirectory, 1000);
+            BalanceHistoryIndexer.recordBaseline(baselineStore, balanceList(items1, 10L));
+            baselineStore.flush(10L, 10L);
+            numberOfChanges = BalanceHistoryIndexer.recordBaseline(baselineStore, balanceList(items2, 20L));
+            baselineStore.flush(20L, 20L);
+            if (successful && numberOfChanges != items2.size() + 33) {
+                successful = false;
+                failureCause = "expected " + (items2.size() + 33) + " baseline changes, actual=" + numberOfChanges;
+            }
+            for (int i = 0; i < 100 && successful; i++) {
+                BalanceHistoryStore.Change baselineChange = baselineStore.changeAtOrBelow(accounts.get(i), 20L);
+                BalanceHistoryStore.Change earlierChange = baselineStore.changeAtOrBelow(accounts.get(i), 15L);
+                long expectedBalance = i % 3 == 0 ? 1000L + i : i % 3 == 1 ? 5L : 0L;
+                if (baselineChange == null || baselineChange.getBalance() != expectedBalance ||
+                        earlierChange == null || earlierChange.getBalance() != 1000L + i) {
+                    successful = false;
+                    failureCause = "incorrect baseline for account " + i + ": " + baselineChange + ", earlier " +
+                            earlierChange;
+                }
+            }
+            baselineStore.close();
+
+            // The records of many compactions in one shard must be merged into a logarithmic number of runs.
+            if (successful) {
+                successful = checkTieredCompaction(new File(directory, "tiered"), random);
+            }
+        } catch (Exception e) {
+            failureCause = "exception in BalanceHistoryStoreTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        deleteDirectory(directory);
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    private boolean checkTieredCompaction(File directory, Random random) {
+
+        // All identifiers are in the first shard. With a threshold of 10, the 20,000 records below are written in
+        // 2,000 compactions. Adjacent runs differ in size by at least a factor of 4, so no more than about 6 runs
+        // should remain.
+        BalanceHistoryStore store = new BalanceHistoryStore(directory, 10);
+        List<byte[]> accounts = randomIdentifiers(random, 100);
+        for (byte[] account : accounts) {
+            account[0] = 0;
+        }
+        Map<ByteBuffer, TreeMap<Long, Long>> expected = new HashMap<>();
+        for (long height = 0L; height < 4000L; height++) {
+            for (int i = 0; i < 5; i++) {
+                byte[] identifier = accounts.get(random.nextInt(accounts.size()));
+                TreeMap<Long, Long> history = expected.computeIfAbsent(ByteBuffer.wrap(identifier),
+                        key -> new TreeMap<>());
+                if (!history.containsKey(height)) {
+                    long balance = random.nextInt(1000000);
+                    history.put(height, balance);
+                    store.add(identifier, height, balance);
+                }
+            }
+            store.flush(0L, height);
+        }
+
+        boolean successful = true;
+        int numberOfRuns = store.numberOfRuns();
+        if (numberOfRuns > 8) {
+            successful = false;
+            failureCause = "expected no more than 8 runs, actual=" + numberOfRuns;
+        }
+        if (successful) {
+            successful = checkStore(store, accounts, expected, random, 0L, 3999L);
+        }
+
+        store.compactAll();
+        if (successful && store.numberOfRuns() != 1) {
+            successful = false;
+            failureCause = "expected 1 run after full compaction, actual=" + store.numberOfRuns();
+        }
+        if (successful) {
+            successful = checkStore(store, accounts, expected, random, 0L, 3999L);
+        }
+        store.close();
+
+        return successful;
+    }
+
+    private boolean checkStore(BalanceHistoryStore store, List<byte[]> accounts,
+                               Map<ByteBuffer, TreeMap<Long, Long>> expected, Random random, long startHeight,
+                               long endHeight) {
+
+        boolean successful = true;
+        for (int i = 0; i < 5000 && successful; i++) {
+            byte[] identifier = accounts.get(random.nextInt(accounts.size()));
+            long height = startHeight + random.nextInt((int) (endHeight - startHeight + 1));
+            TreeMap<Long, Long> history = expected.getOrDefault(ByteBuffer.wrap(identifier), new TreeMap<>());
+            Map.Entry<Long, Long> expectedEntry = history.floorEntry(height);
+            BalanceHistoryStore.Change change = store.changeAtOrBelow(identifier, height);
+            if ((expectedEntry == null) != (change == null) || (change != null &&
+                    (change.getHeight() != expectedEntry.getKey() || change.getBalance() !=
+                            expectedEntry.getValue()))) {
+                successful = false;
+                failureCause = "point query at height " + height + " expected=" + expectedEntry + ", actual=" +
+                        change;
+            }
+
+            long rangeEnd = height + random.nextInt(200);
+            List<BalanceHistoryStore.Change> changes = store.changesInRange(identifier, height, rangeEnd, 1000);
+            SortedMap<Long, Long> expectedRange = history.subMap(height, true, rangeEnd, true);
+            if (successful && changes.size() != expectedRange.size()) {
+                successful = false;
+                failureCause = "range query from " + height + " to " + rangeEnd + " expected " +
+                        expectedRange.size() + " changes, actual=" + changes.size();
+            }
+            int index = 0;
+            for (Map.Entry<Long, Long> entry : expectedRange.entrySet()) {
+                if (successful && (changes.get(index).getHeight() != entry.getKey() ||
+                        changes.get(index).getBalance() != entry.getValue())) {
+                    successful = false;
+                    failureCause = "range query change " + index + " expected=" + entry + ", actual=" +
+                            changes.get(index);
+                }
+                index++;
+            }
+        }
+
+        return successful;
+    }
+
+    public boolean benchmark(int numberOfAccounts, int numberOfBlocks) {
+
+        // About 10 balances change in each block on the current chain: the fees are divided among the verifier of the
+        // block and the previous 9 verifiers. This adds 10 changes per block and measures random point queries.
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("nyzo_balance_history").toFile();
+            BalanceHistoryStore store = new BalanceHistoryStore(directory, 4096);
+            Random random = new Random(45);
+            List<byte[]> accounts = randomIdentifiers(random, numberOfAccounts);
+            long startTimestamp = System.nanoTime();
+            for (long height = 0; height < numberOfBlocks; height++) {
+                for (int i = 0; i < 10; i++) {
+                    store.add(accounts.get(random.nextInt(numberOfAccounts)), height, random.nextInt(1000000000));
+                }
+                if (height % 1000 == 999) {
+                    store.flush(0L, height);
+                }
+            }
+            store.flush(0L, numberOfBlocks - 1L);
+            double indexSeconds = (System.nanoTime() - startTimestamp) / 1000000000.0;
+
+            int numberOfQueries = 100000;
+            long found = 0;
+            startTimestamp = System.nanoTime();
+            for (int i = 0; i < numberOfQueries; i++) {
+                if (store.changeAtOrBelow(accounts.get(random.nextInt(numberOfAccounts)),
+                        random.nextInt(numberOfBlocks)) != null) {
+                    found++;
+                }
+            }
+            double queryMicroseconds = (System.nanoTime() - startTimestamp) / 1000.0 / numberOfQueries;
+            int numberOfRuns = store.numberOfRuns();
+            store.close();
+
+            System.out.println(String.format("%d changes for %d accounts indexed in %.1f s (%.0f blocks/s); point " +
+                            "query %.1f us (%d found); %d runs", numberOfBlocks * 10, numberOfAccounts, indexSeconds,
+                    numberOfBlocks / indexSeconds, queryMicroseconds, found, numberOfRuns));
+        } catch (Exception e) {
+            failureCause = "exception in BalanceHistoryStoreTest benchmark: " + PrintUtil.printException(e);
+        }
+
+        deleteDirectory(directory);
+
+        return failureCause == null;
+    }
+
+    private static List<byte[]> randomIdentifiers(Random random, int number) {
+
+        List<byte[]> identifiers = new ArrayList<>();
+        for (int i = 0; i < number; i++) {
+            byte[] identifier = new byte[FieldByteSize.identifier];
+            random.nextBytes(identifier);
+            identifiers.add(identifier);
+        }
+
+        return identifiers;
+    }
+
+    private static BalanceList balanceList(List<BalanceListItem> items, long height) {
+        return new BalanceList(1, height, (byte) 0, new ArrayList<>(), items, 0L, 0L, new HashMap<>(),
+                new ArrayList<>());
+    }
+
+    private static void deleteDirectory(File directory) {
+
+        if (directory != null) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isDirectory()) {
+                        deleteDirectory(file);
+                    } else {
+                        file.delete();
+                    }
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
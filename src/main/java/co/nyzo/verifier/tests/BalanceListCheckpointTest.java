@@ -0,0 +1,228 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+
+public class BalanceListCheckpointTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        BalanceListCheckpointTest test = new BalanceListCheckpointTest();
+        boolean successful = test.run() && test.benchmark(50000, 20);
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        File directory = null;
+        try {
+            // A consolidated file is written with a balance list only for its first block. Every balance list in the
+            // file must be derived correctly, both with and without a checkpoint.
+            directory = Files.createTempDirectory("nyzo_balance_checkpoint").toFile();
+            long startHeight = 7L * BlockManager.blocksPerFile;
+            List<BalanceList> balanceLists = new ArrayList<>();
+            File file = writeChain(directory, startHeight, 300, 2000, 1, balanceLists);
+            BalanceList checkpoint = balanceLists.get(200);
+            for (int i = 0; i < balanceLists.size() && successful; i += 37) {
+                long height = startHeight + i;
+                byte[] expectedHash = balanceLists.get(i).getHash();
+                BalanceList fromFile = BalanceListCheckpointManager.deriveBalanceList(file, height, null);
+                BalanceList fromCheckpoint = BalanceListCheckpointManager.deriveBalanceList(file, height,
+                        height >= checkpoint.getBlockHeight() ? checkpoint : null);
+                if (fromFile == null || fromCheckpoint == null || !Arrays.equals(fromFile.getHash(), expectedHash) ||
+                        !Arrays.equals(fromCheckpoint.getHash(), expectedHash)) {
+                    successful = false;
+                    failureCause = "incorrect balance list derived for height " + height;
+                }
+            }
+
+            // A checkpoint that does not match its block must not produce a balance list.
+            BalanceList incorrectCheckpoint = balanceLists.get(100);
+            incorrectCheckpoint = new BalanceList(incorrectCheckpoint.getBlockchainVersion(),
+                    checkpoint.getBlockHeight(), incorrectCheckpoint.getRolloverFees(),
+                    incorrectCheckpoint.getPreviousVerifiers(), incorrectCheckpoint.getItems(),
+                    incorrectCheckpoint.getUnlockThreshold(), incorrectCheckpoint.getUnlockTransferSum(),
+                    incorrectCheckpoint.getPendingCycleTransactions(),
+                    incorrectCheckpoint.getRecentlyApprovedCycleTransactions());
+            if (successful && BalanceListCheckpointManager.deriveBalanceList(file, startHeight + 250L,
+                    incorrectCheckpoint) != null) {
+                successful = false;
+                failureCause = "balance list derived from an incorrect checkpoint";
+            }
+
+            // A delta checkpoint must reproduce its balance list from the base, and it must be much smaller than the
+            // full list when few accounts change. An account is added and one is removed to cover both cases.
+            BalanceList base = balanceLists.get(0);
+            BalanceList target = balanceLists.get(299);
+            List<BalanceListItem> targetItems = new ArrayList<>(target.getItems());
+            targetItems.remove(0);
+            targetItems.add(new BalanceListItem(new byte[FieldByteSize.identifier], 5000000L));
+            target = new BalanceList(target.getBlockchainVersion(), target.getBlockHeight(), target.getRolloverFees(),
+                    target.getPreviousVerifiers(), targetItems, target.getUnlockThreshold(),
+                    target.getUnlockTransferSum(), target.getPendingCycleTransactions(),
+                    target.getRecentlyApprovedCycleTransactions());
+            byte[] delta = BalanceListCheckpointManager.encodeDelta(base, target);
+            BalanceList decoded = BalanceListCheckpointManager.decodeDelta(base, ByteBuffer.wrap(delta));
+            if (successful && (decoded == null || !Arrays.equals(decoded.getHash(), target.getHash()))) {
+                successful = false;
+                failureCause = "delta checkpoint did not reproduce its balance list";
+            } else if (successful && delta.length * 10 > target.getByteSize()) {
+                successful = false;
+                failureCause = "delta checkpoint is too large: " + delta.length + " bytes, full list " +
+                        target.getByteSize() + " bytes";
+            }
+
+            // A height that is not in the file must not produce a balance list.
+            if (successful && BalanceListCheckpointManager.deriveBalanceList(file, startHeight + 400L, null) != null) {
+                successful = false;
+                failureCause = "balance list derived for a height that is not in the file";
+            }
+        } catch (Exception e) {
+            failureCause = "exception in BalanceListCheckpointTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        deleteDirectory(directory);
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    public boolean benchmark(int numberOfAccounts, int numberOfLookups) {
+
+        // Lookups at random heights in a full consolidated file are compared with and without checkpoints. Without a
+        // checkpoint, the list is rolled forward from the start of the file, which is the derivation that extraction
+        // of the file performed for every block, before writing each block to its own file.
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("nyzo_balance_checkpoint").toFile();
+            long startHeight = 11L * BlockManager.blocksPerFile;
+            List<BalanceList> balanceLists = new ArrayList<>();
+            long interval = 100L;
+            File file = writeChain(directory, startHeight, (int) BlockManager.blocksPerFile, numberOfAccounts,
+                    (int) interval, balanceLists);
+
+            Random random = new Random(43);
+            long fileNanoseconds = 0L;
+            long checkpointNanoseconds = 0L;
+            for (int i = 0; i < numberOfLookups; i++) {
+                long height = startHeight + random.nextInt((int) BlockManager.blocksPerFile);
+                BalanceList checkpoint = balanceLists.get((int) ((height - startHeight) / interval * interval));
+
+                long startTimestamp = System.nanoTime();
+                BalanceListCheckpointManager.deriveBalanceList(file, height, null);
+                fileNanoseconds += System.nanoTime() - startTimestamp;
+
+                startTimestamp = System.nanoTime();
+                BalanceListCheckpointManager.deriveBalanceList(file, height, checkpoint);
+                checkpointNanoseconds += System.nanoTime() - startTimestamp;
+            }
+
+            int deltaSize = BalanceListCheckpointManager.encodeDelta(balanceLists.get(0),
+                    balanceLists.get((int) interval)).length;
+            System.out.println(String.format("%d accounts: full checkpoint %d bytes, delta checkpoint %d bytes",
+                    numberOfAccounts, balanceLists.get(0).getByteSize(), deltaSize));
+            System.out.println(String.format("%d accounts, %d random heights: from start of file %.1f ms/lookup, " +
+                            "from checkpoint (interval %d) %.1f ms/lookup", numberOfAccounts, numberOfLookups,
+                    fileNanoseconds / 1000000.0 / numberOfLookups, interval,
+                    checkpointNanoseconds / 1000000.0 / numberOfLookups));
+        } catch (Exception e) {
+            failureCause = "exception in BalanceListCheckpointTest benchmark: " + PrintUtil.printException(e);
+        }
+
+        deleteDirectory(directory);
+
+        return failureCause == null;
+    }
+
+    private static File writeChain(File directory, long startHeight, int numberOfBlocks, int numberOfAccounts,
+                                   int retentionInterval, List<BalanceList> balanceLists) {
+
+        // The blocks have no transactions, so each balance list differs from the previous by fees, the previous
+        // verifiers, and the blocks-until-fee values. Balance lists are only derived for frozen blocks, so the frozen
+        // edge is moved past the chain to derive them the same way. A derived list must account for all coins in the
+        // system, so the last account holds the remainder. Only the lists at multiples of the retention interval are
+        // kept in the list that is returned.
+        Random random = new Random(startHeight);
+        List<BalanceListItem> items = new ArrayList<>();
+        long remainingBalance = Transaction.micronyzosInSystem;
+        for (int i = 0; i < numberOfAccounts; i++) {
+            byte[] identifier = new byte[FieldByteSize.identifier];
+            random.nextBytes(identifier);
+            long balance = i == numberOfAccounts - 1 ? remainingBalance : 1000000L + random.nextInt(1000000000);
+            items.add(new BalanceListItem(identifier, balance, (short) random.nextInt(501)));
+            remainingBalance -= balance;
+        }
+        List<byte[]> previousVerifiers = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            byte[] identifier = new byte[FieldByteSize.identifier];
+            random.nextBytes(identifier);
+            previousVerifiers.add(identifier);
+        }
+        BalanceList balanceList = new BalanceList(1, startHeight, (byte) 0, previousVerifiers, items, 0L, 0L,
+                new HashMap<>(), new ArrayList<>());
+
+        long endHeight = startHeight + numberOfBlocks - 1L;
+        if (BlockManager.getFrozenEdgeHeight() < endHeight) {
+            BlockManager.setFrozenEdge(new Block(1, endHeight, new byte[FieldByteSize.hash],
+                    BlockManager.startTimestampForHeight(endHeight), new ArrayList<>(), new byte[FieldByteSize.hash]),
+                    null);
+        }
+
+        List<Block> blocks = new ArrayList<>();
+        byte[] previousHash = new byte[FieldByteSize.hash];
+        Block previousBlock = null;
+        for (long height = startHeight; height <= endHeight; height++) {
+            if (previousBlock != null) {
+                balanceList = Block.balanceListForNextBlock(previousBlock, balanceList, new ArrayList<>(),
+                        previousBlock.getVerifierIdentifier(), 1);
+            }
+            balanceLists.add((height - startHeight) % retentionInterval == 0 ? balanceList : null);
+
+            byte[] verifierIdentifier = new byte[FieldByteSize.identifier];
+            random.nextBytes(verifierIdentifier);
+            long startTimestamp = BlockManager.startTimestampForHeight(height);
+            Block block = new Block(1, height, previousHash, startTimestamp, startTimestamp + 1000L,
+                    new ArrayList<>(), balanceList.getHash(), verifierIdentifier, new byte[FieldByteSize.signature],
+                    false);
+            blocks.add(block);
+            previousHash = block.getHash();
+            previousBlock = block;
+        }
+
+        File file = new File(directory, BlockManager.consolidatedFileForBlockHeight(startHeight).getName());
+        BlockManager.writeBlocksToFile(blocks, Collections.singletonList(balanceLists.get(0)), file);
+
+        return file;
+    }
+
+    private static void deleteDirectory(File directory) {
+
+        if (directory != null) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
@@ -0,0 +1,272 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class BalanceListTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        BalanceListTest test = new BalanceListTest();
+        boolean successful = test.run() && test.benchmark(500000);
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        try {
+            // Items with duplicate identifiers, zero balances, and negative balances are provided in random order. The
+            // serialized list must match the serialization of the item list after sorting, filtering, and removal of
+            // duplicates, which is how the list was normalized before it was stored in columns.
+            Random random = new Random(41);
+            List<BalanceListItem> items = new ArrayList<>();
+            for (int i = 0; i < 5000; i++) {
+                byte[] identifier = new byte[FieldByteSize.identifier];
+                random.nextBytes(identifier);
+                if (i > 0 && random.nextInt(20) == 0) {
+                    identifier = items.get(random.nextInt(items.size())).getIdentifier().clone();
+                }
+                long balance = random.nextInt(30) == 0 ? -random.nextInt(3) : random.nextInt(1000000000);
+                items.add(new BalanceListItem(identifier, balance, (short) random.nextInt(501)));
+            }
+            BalanceList balanceList = balanceList(items);
+            List<BalanceListItem> expectedItems = referenceNormalize(items);
+            byte[] expectedBytes = referenceBytes(expectedItems);
+            if (!Arrays.equals(balanceList.getBytes(), expectedBytes)) {
+                successful = false;
+                failureCause = "serialized balance list does not match the item serialization";
+            }
+
+            // The list read from bytes must be identical, and the item view must match the expected items.
+            BalanceList readList = BalanceList.fromByteBuffer(ByteBuffer.wrap(expectedBytes));
+            if (successful && !Arrays.equals(readList.getHash(), balanceList.getHash())) {
+                successful = false;
+                failureCause = "hash of list read from bytes does not match";
+            }
+            List<BalanceListItem> view = readList.getItems();
+            for (int i = 0; i < expectedItems.size() && successful; i++) {
+                BalanceListItem expected = expectedItems.get(i);
+                BalanceListItem actual = view.get(i);
+                if (!Arrays.equals(expected.getIdentifier(), actual.getIdentifier()) ||
+                        expected.getBalance() != actual.getBalance() ||
+                        expected.getBlocksUntilFee() != actual.getBlocksUntilFee()) {
+                    successful = false;
+                    failureCause = "item " + i + " expected=" + expected + ", actual=" + actual;
+                }
+            }
+            if (successful && view.size() != expectedItems.size()) {
+                successful = false;
+                failureCause = "view size expected=" + expectedItems.size() + ", actual=" + view.size();
+            }
+
+            // Unsorted bytes, which a valid list never has, must be normalized when read.
+            List<BalanceListItem> reversedItems = new ArrayList<>(expectedItems);
+            Collections.reverse(reversedItems);
+            BalanceList unsortedList = BalanceList.fromByteBuffer(ByteBuffer.wrap(referenceBytes(reversedItems)));
+            if (successful && !Arrays.equals(unsortedList.getBytes(), expectedBytes)) {
+                successful = false;
+                failureCause = "unsorted bytes were not normalized";
+            }
+
+            // Every identifier in the list must be found, and random identifiers must not be.
+            for (int i = 0; i < expectedItems.size() && successful; i++) {
+                BalanceListItem item = expectedItems.get(i);
+                if (balanceList.indexOfIdentifier(item.getIdentifier()) != i ||
+                        balanceList.balanceForIdentifier(item.getIdentifier()) != item.getBalance()) {
+                    successful = false;
+                    failureCause = "lookup failed for item " + i;
+                }
+            }
+            for (int i = 0; i < 1000 && successful; i++) {
+                byte[] identifier = new byte[FieldByteSize.identifier];
+                random.nextBytes(identifier);
+                if (balanceList.containsIdentifier(identifier) || balanceList.balanceForIdentifier(identifier) != 0L) {
+                    successful = false;
+                    failureCause = "random identifier was found in the list";
+                }
+            }
+
+            // A list with a single item must also be searchable.
+            BalanceList singleItemList = balanceList(Collections.singletonList(expectedItems.get(0)));
+            if (successful && singleItemList.balanceForIdentifier(expectedItems.get(0).getIdentifier()) !=
+                    expectedItems.get(0).getBalance()) {
+                successful = false;
+                failureCause = "lookup failed for a list with one item";
+            }
+
+            // A count of items that is negative, larger than the remaining bytes, or large enough to overflow the
+            // column size must be rejected as an underflow before the columns are allocated.
+            int countOffset = FieldByteSize.blockHeight + FieldByteSize.rolloverTransactionFees +
+                    FieldByteSize.identifier * (int) Math.min(balanceList.getBlockHeight(), 9);
+            int[] invalidCounts = { -1, expectedItems.size() * 2, Integer.MAX_VALUE, Integer.MAX_VALUE / 2 };
+            for (int i = 0; i < invalidCounts.length && successful; i++) {
+                ByteBuffer buffer = ByteBuffer.wrap(expectedBytes.clone());
+                buffer.putInt(countOffset, invalidCounts[i]);
+                try {
+                    BalanceList.fromByteBuffer(buffer);
+                    successful = false;
+                    failureCause = "item count " + invalidCounts[i] + " was accepted";
+                } catch (BufferUnderflowException ignored) { }
+            }
+        } catch (Exception e) {
+            failureCause = "exception in BalanceListTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    public boolean benchmark(int numberOfAccounts) {
+
+        Random random = new Random(7);
+        List<BalanceListItem> items = new ArrayList<>();
+        for (int i = 0; i < numberOfAccounts; i++) {
+            byte[] identifier = new byte[FieldByteSize.identifier];
+            random.nextBytes(identifier);
+            items.add(new BalanceListItem(identifier, 1L + random.nextInt(1000000000), (short) random.nextInt(501)));
+        }
+        byte[] bytes = referenceBytes(referenceNormalize(items));
+        items = null;
+
+        // The retained memory of each representation is measured with a single list held.
+        long baseline = usedMemory();
+        List<BalanceListItem> itemList = referenceNormalize(referenceItemsFromBytes(bytes));
+        long itemListMemory = usedMemory() - baseline;
+        itemList.size();
+        itemList = null;
+
+        baseline = usedMemory();
+        BalanceList columnarList = BalanceList.fromByteBuffer(ByteBuffer.wrap(bytes));
+        long columnarMemory = usedMemory() - baseline;
+
+        // The time to read and hash a list is compared.
+        long itemNanoseconds = 0L;
+        long columnarNanoseconds = 0L;
+        for (int pass = 0; pass < 4; pass++) {
+            long startTimestamp = System.nanoTime();
+            HashUtil.doubleSHA256(referenceBytes(referenceItemsFromBytes(bytes)));
+            itemNanoseconds = System.nanoTime() - startTimestamp;
+
+            startTimestamp = System.nanoTime();
+            BalanceList.fromByteBuffer(ByteBuffer.wrap(bytes)).getHash();
+            columnarNanoseconds = System.nanoTime() - startTimestamp;
+        }
+
+        System.out.println(String.format("%d accounts: item list %.1f MB (%.0f bytes/account), columns %.1f MB " +
+                        "(%.0f bytes/account)", columnarList.getNumberOfItems(), itemListMemory / 1048576.0,
+                itemListMemory / (double) numberOfAccounts, columnarMemory / 1048576.0,
+                columnarMemory / (double) numberOfAccounts));
+        System.out.println(String.format("read and hash: item list %.1f ms, columns %.1f ms",
+                itemNanoseconds / 1000000.0, columnarNanoseconds / 1000000.0));
+
+        return true;
+    }
+
+    private static BalanceList balanceList(List<BalanceListItem> items) {
+        return new BalanceList(1, 100L, (byte) 0, previousVerifiers(), items, 5L, 6L, new ConcurrentHashMap<>(),
+                new ArrayList<>());
+    }
+
+    private static List<byte[]> previousVerifiers() {
+
+        List<byte[]> previousVerifiers = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            byte[] identifier = new byte[FieldByteSize.identifier];
+            identifier[0] = (byte) i;
+            previousVerifiers.add(identifier);
+        }
+
+        return previousVerifiers;
+    }
+
+    private static List<BalanceListItem> referenceNormalize(List<BalanceListItem> items) {
+
+        Map<ByteBuffer, BalanceListItem> map = new TreeMap<>(new Comparator<ByteBuffer>() {
+            @Override
+            public int compare(ByteBuffer buffer1, ByteBuffer buffer2) {
+                int result = 0;
+                for (int i = 0; i < FieldByteSize.identifier && result == 0; i++) {
+                    result = Integer.compare(buffer1.get(i) & 0xff, buffer2.get(i) & 0xff);
+                }
+                return result;
+            }
+        });
+        for (BalanceListItem item : items) {
+            if (item.getBalance() > 0L) {
+                map.putIfAbsent(ByteBuffer.wrap(item.getIdentifier()), item);
+            }
+        }
+
+        return new ArrayList<>(map.values());
+    }
+
+    private static List<BalanceListItem> referenceItemsFromBytes(byte[] bytes) {
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.position(FieldByteSize.blockHeight + FieldByteSize.rolloverTransactionFees +
+                FieldByteSize.identifier * 9);
+        int numberOfItems = buffer.getInt();
+        List<BalanceListItem> items = new ArrayList<>();
+        for (int i = 0; i < numberOfItems; i++) {
+            byte[] identifier = new byte[FieldByteSize.identifier];
+            buffer.get(identifier);
+            items.add(new BalanceListItem(identifier, buffer.getLong(), buffer.getShort()));
+        }
+
+        return items;
+    }
+
+    private static byte[] referenceBytes(List<BalanceListItem> items) {
+
+        // This is the serialization of a version-1 list from item objects.
+        ByteBuffer buffer = ByteBuffer.allocate(FieldByteSize.blockHeight + FieldByteSize.rolloverTransactionFees +
+                FieldByteSize.identifier * 9 + FieldByteSize.balanceListLength + items.size() *
+                (FieldByteSize.identifier + FieldByteSize.transactionAmount + FieldByteSize.blocksUntilFee) +
+                FieldByteSize.transactionAmount * 2);
+        buffer.putLong(ShortLong.combinedValue(1, 100L));
+        buffer.put((byte) 0);
+        for (byte[] identifier : previousVerifiers()) {
+            buffer.put(identifier);
+        }
+        buffer.putInt(items.size());
+        for (BalanceListItem item : items) {
+            buffer.put(item.getIdentifier());
+            buffer.putLong(item.getBalance());
+            buffer.putShort(item.getBlocksUntilFee());
+        }
+        buffer.putLong(5L);
+        buffer.putLong(6L);
+
+        return buffer.array();
+    }
+
+    private static long usedMemory() {
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50L);
+            } catch (Exception ignored) { }
+        }
+
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
@@ -0,0 +1,242 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+public class BlockFileConsolidatorTest implements NyzoTest {
+
+    private static final long fileIndex = 5L;
+    private static final long startHeight = fileIndex * BlockManager.blocksPerFile;
+
+    // The verifier identifier of each block marks the file it came from.
+    private static final byte consolidatedMarker = 1;
+    private static final byte firstIndividualMarker = 2;
+    private static final byte secondIndividualMarker = 3;
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        BlockFileConsolidatorTest test = new BlockFileConsolidatorTest();
+        boolean successful = test.run();
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        File directory = null;
+        try {
+            // An empty offset array marks every block as absent.
+            int[] emptyOffsets = HistoricalBlockManager.emptyOffsets();
+            if (emptyOffsets.length != BlockManager.blocksPerFile * 2) {
+                successful = false;
+                failureCause = "expected " + BlockManager.blocksPerFile * 2 + " empty offsets, actual=" +
+                        emptyOffsets.length;
+            }
+            for (int i = 0; i < emptyOffsets.length && successful; i++) {
+                if (emptyOffsets[i] != -1) {
+                    successful = false;
+                    failureCause = "empty offset " + i + " is " + emptyOffsets[i] + ", expected -1";
+                }
+            }
+
+            // The existing consolidated file has heights 0-4 of the file. The first individual file has heights 3-7,
+            // and the second has heights 6-9 and 12-13, so the files overlap, and heights 10 and 11 are a gap. The
+            // consolidated file takes precedence over the individual files, and the earlier individual file takes
+            // precedence over the later one. Get the consolidation method and the offset method by reflection, which
+            // allows testing without unnecessary additions to the interfaces of these classes.
+            directory = Files.createTempDirectory("nyzo_block_consolidator").toFile();
+            File consolidatedFile = new File(directory, BlockManager.consolidatedFileForBlockHeight(startHeight)
+                    .getName());
+            File offsetFile = new File(directory, "offsets");
+            File firstIndividualFile = new File(directory, "i_first.nyzoblock");
+            File secondIndividualFile = new File(directory, "i_second.nyzoblock");
+            writeBlocks(consolidatedFile, consolidatedMarker, 0, 1, 2, 3, 4);
+            writeBlocks(firstIndividualFile, firstIndividualMarker, 3, 4, 5, 6, 7);
+            writeBlocks(secondIndividualFile, secondIndividualMarker, 6, 7, 8, 9, 12, 13);
+            Files.write(offsetFile.toPath(), new byte[] { 1 });
+
+            Method consolidateMethod = BlockFileConsolidator.class.getDeclaredMethod("consolidateFiles", long.class,
+                    List.class, File.class, File.class);
+            consolidateMethod.setAccessible(true);
+            Method offsetMethod = HistoricalBlockManager.class.getDeclaredMethod("blockOffsetsForConsolidatedFile",
+                    File.class);
+            offsetMethod.setAccessible(true);
+
+            int[] offsets = null;
+            if (successful) {
+                offsets = (int[]) consolidateMethod.invoke(null, fileIndex, Arrays.asList(firstIndividualFile,
+                        secondIndividualFile), consolidatedFile, offsetFile);
+                if (offsets == null) {
+                    successful = false;
+                    failureCause = "consolidation failed";
+                } else if (offsetFile.exists()) {
+                    successful = false;
+                    failureCause = "stale offset file was not deleted";
+                }
+            }
+
+            // Check the source of each block.
+            if (successful) {
+                byte[] expectedMarkers = { 1, 1, 1, 1, 1, 2, 2, 2, 3, 3, 0, 0, 3, 3 };
+                List<Block> blocks = BlockManager.loadBlocksInFile(consolidatedFile, startHeight,
+                        startHeight + BlockManager.blocksPerFile - 1L);
+                List<Long> heights = new ArrayList<>();
+                for (Block block : blocks) {
+                    heights.add(block.getBlockHeight() - startHeight);
+                }
+                if (!heights.equals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 12L, 13L))) {
+                    successful = false;
+                    failureCause = "unexpected heights in consolidated file: " + heights;
+                }
+                for (int i = 0; i < blocks.size() && successful; i++) {
+                    int relativeHeight = (int) (blocks.get(i).getBlockHeight() - startHeight);
+                    byte marker = blocks.get(i).getVerifierIdentifier()[0];
+                    if (marker != expectedMarkers[relativeHeight]) {
+                        successful = false;
+                        failureCause = "block at relative height " + relativeHeight + " is from file " + marker +
+                                ", expected file " + expectedMarkers[relativeHeight];
+                    }
+                }
+            }
+
+            // Check that the balance lists are exactly those at the first height and the first height after the gap.
+            if (successful) {
+                successful = checkBalanceLists(consolidatedFile, Arrays.asList(0L, 12L));
+            }
+
+            // The offsets recorded while writing must match the offsets computed from the file, and the heights not
+            // in the file must have offsets of -1.
+            if (successful) {
+                int[] computedOffsets = (int[]) offsetMethod.invoke(null, consolidatedFile);
+                if (!Arrays.equals(offsets, computedOffsets)) {
+                    successful = false;
+                    failureCause = "offsets recorded while writing do not match offsets computed from the file";
+                }
+                for (int height : new int[] { 10, 11, 14, (int) BlockManager.blocksPerFile - 1 }) {
+                    if (successful && (offsets[height * 2] != -1 || offsets[height * 2 + 1] != -1)) {
+                        successful = false;
+                        failureCause = "offsets for missing relative height " + height + " are " +
+                                offsets[height * 2] + ", " + offsets[height * 2 + 1];
+                    }
+                }
+            }
+        } catch (Exception e) {
+            failureCause = "exception in BlockFileConsolidatorTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        deleteDirectory(directory);
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    private boolean checkBalanceLists(File file, List<Long> expectedRelativeHeights) throws Exception {
+
+        // This follows the file format read by BlockManager.loadBlocksInFile(). Each balance list must match the
+        // balance-list hash of its block.
+        boolean successful = true;
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file.getAbsolutePath())));
+        int numberOfBlocks = buffer.getShort();
+        List<Long> relativeHeights = new ArrayList<>();
+        Block previousBlock = null;
+        for (int i = 0; i < numberOfBlocks && successful; i++) {
+            Block block = Block.fromByteBuffer(buffer, false);
+            if (previousBlock == null || previousBlock.getBlockHeight() != block.getBlockHeight() - 1L) {
+                BalanceList balanceList = BalanceList.fromByteBuffer(buffer);
+                relativeHeights.add(block.getBlockHeight() - startHeight);
+                if (balanceList.getBlockHeight() != block.getBlockHeight() ||
+                        !ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+                    successful = false;
+                    failureCause = "balance list does not match block at relative height " +
+                            (block.getBlockHeight() - startHeight);
+                }
+            }
+            previousBlock = block;
+        }
+
+        if (successful && buffer.hasRemaining()) {
+            successful = false;
+            failureCause = buffer.remaining() + " unexpected bytes at end of consolidated file";
+        } else if (successful && !relativeHeights.equals(expectedRelativeHeights)) {
+            successful = false;
+            failureCause = "expected balance lists at relative heights " + expectedRelativeHeights + ", actual=" +
+                    relativeHeights;
+        }
+
+        return successful;
+    }
+
+    private static void writeBlocks(File file, byte marker, int... relativeHeights) {
+
+        // Each block has its own artificial balance list, which is the same in every file. The blocks are only linked
+        // by height, which is all that the consolidator needs.
+        List<Block> blocks = new ArrayList<>();
+        List<BalanceList> balanceLists = new ArrayList<>();
+        for (int relativeHeight : relativeHeights) {
+            long height = startHeight + relativeHeight;
+            BalanceList balanceList = balanceList(height);
+            balanceLists.add(balanceList);
+
+            byte[] verifierIdentifier = new byte[FieldByteSize.identifier];
+            verifierIdentifier[0] = marker;
+            long startTimestamp = BlockManager.startTimestampForHeight(height);
+            blocks.add(new Block(1, height, new byte[FieldByteSize.hash], startTimestamp, startTimestamp + 1000L,
+                    new ArrayList<>(), balanceList.getHash(), verifierIdentifier, new byte[FieldByteSize.signature],
+                    false));
+        }
+
+        BlockManager.writeBlocksToFile(blocks, balanceLists, file);
+    }
+
+    private static BalanceList balanceList(long height) {
+
+        Random random = new Random(height);
+        List<BalanceListItem> items = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            byte[] identifier = new byte[FieldByteSize.identifier];
+            random.nextBytes(identifier);
+            items.add(new BalanceListItem(identifier, 1000000L + random.nextInt(1000000), (short) 0));
+        }
+        List<byte[]> previousVerifiers = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            byte[] identifier = new byte[FieldByteSize.identifier];
+            random.nextBytes(identifier);
+            previousVerifiers.add(identifier);
+        }
+
+        return new BalanceList(1, height, (byte) 0, previousVerifiers, items, 0L, 0L, new HashMap<>(),
+                new ArrayList<>());
+    }
+
+    private static void deleteDirectory(File directory) {
+
+        if (directory != null) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
@@ -0,0 +1,247 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.messages.BlockVote;
+import co.nyzo.verifier.messages.BlockWithVotesCompactResponse;
+import co.nyzo.verifier.messages.BlockWithVotesResponse;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class BlockWithVotesCompactResponseTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        BlockWithVotesCompactResponseTest test = new BlockWithVotesCompactResponseTest();
+        boolean successful = test.run() && test.benchmark(2400, 4, 200);
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        // Twenty verifiers in the cycle vote for three consecutive blocks. At the second height, a verifier outside the
+        // cycle also votes, and one cycle verifier has a vote for a different hash, which is not transmitted.
+        boolean successful = true;
+        Random random = new Random(50);
+        List<byte[]> seeds = new ArrayList<>();
+        List<ByteBuffer> cycleList = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] seed = randomBytes(random, FieldByteSize.seed);
+            seeds.add(seed);
+            cycleList.add(ByteBuffer.wrap(KeyUtil.identifierForSeed(seed)));
+        }
+        byte[] outsideSeed = randomBytes(random, FieldByteSize.seed);
+
+        List<BlockWithVotesResponse> entries = createEntries(random, 100L, 3, seeds, true);
+        BlockWithVotesResponse middleEntry = entries.get(1);
+        middleEntry.getVotes().add(signedVote(random, middleEntry.getBlock(), outsideSeed));
+        middleEntry.getVotes().add(signedVote(random, new Block(1, 101L, new byte[FieldByteSize.hash], 0L,
+                new ArrayList<>(), new byte[FieldByteSize.hash], seeds.get(0)), seeds.get(0)));
+
+        // Both forms must reproduce the blocks and the votes, and each reconstructed vote message must be valid. The
+        // cycle-index form references the cycle by its hash instead of sending the identifiers.
+        byte[] tableBytes = new BlockWithVotesCompactResponse(entries, null).getBytes();
+        byte[] cycleBytes = new BlockWithVotesCompactResponse(entries, cycleList).getBytes();
+        for (int i = 0; i < 2 && successful; i++) {
+            boolean useCycleIndex = i == 1;
+            ByteBuffer buffer = ByteBuffer.wrap(useCycleIndex ? cycleBytes : tableBytes);
+            BlockWithVotesCompactResponse response = BlockWithVotesCompactResponse.fromByteBuffer(buffer, cycleList);
+            String problem = response == null ? "response was not parsed" : roundTripProblem(entries, response);
+            if (problem == null && (buffer.hasRemaining() || response.usesCycleIndex() != useCycleIndex)) {
+                problem = "unexpected format: remaining=" + buffer.remaining() + ", cycleIndex=" +
+                        response.usesCycleIndex();
+            }
+            if (problem != null) {
+                successful = false;
+                failureCause = (useCycleIndex ? "cycle-index" : "table") + " round trip: " + problem;
+            }
+        }
+
+        if (successful && cycleBytes.length >= tableBytes.length - 19 * FieldByteSize.identifier) {
+            successful = false;
+            failureCause = "cycle-index form is not smaller: table=" + tableBytes.length + ", cycle=" +
+                    cycleBytes.length;
+        }
+
+        // If the local cycle has changed since the request, the indices cannot be resolved, and the response is
+        // discarded.
+        if (successful) {
+            List<ByteBuffer> changedCycleList = new ArrayList<>(cycleList.subList(1, cycleList.size()));
+            if (BlockWithVotesCompactResponse.fromByteBuffer(ByteBuffer.wrap(cycleBytes), changedCycleList) != null) {
+                successful = false;
+                failureCause = "response with a mismatched cycle hash was accepted";
+            }
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    public boolean benchmark(int numberOfVerifiers, int numberOfHeights, int numberOfIterations) {
+
+        // This compares the bytes on the wire for one standard response per height to one compact response for all
+        // heights. The signatures are random, as the sizes and the parsing work do not depend on their validity.
+        Random random = new Random(4);
+        List<byte[]> identifiers = new ArrayList<>();
+        List<ByteBuffer> cycleList = new ArrayList<>();
+        for (int i = 0; i < numberOfVerifiers; i++) {
+            byte[] identifier = randomBytes(random, FieldByteSize.identifier);
+            identifiers.add(identifier);
+            cycleList.add(ByteBuffer.wrap(identifier));
+        }
+        List<BlockWithVotesResponse> entries = createEntries(random, 1000000L, numberOfHeights, identifiers, false);
+
+        byte[] seed = randomBytes(random, FieldByteSize.seed);
+        int standardBytes = 0;
+        for (BlockWithVotesResponse entry : entries) {
+            standardBytes += new Message(MessageType.BlockWithVotesResponse38, entry, seed)
+                    .getBytesForTransmission().length;
+        }
+        BlockWithVotesCompactResponse tableResponse = new BlockWithVotesCompactResponse(entries, null);
+        BlockWithVotesCompactResponse cycleResponse = new BlockWithVotesCompactResponse(entries, cycleList);
+        int tableBytes = new Message(MessageType.BlockWithVotesCompactResponse56, tableResponse, seed)
+                .getBytesForTransmission().length;
+        int cycleBytes = new Message(MessageType.BlockWithVotesCompactResponse56, cycleResponse, seed)
+                .getBytesForTransmission().length;
+
+        long startTimestamp = System.nanoTime();
+        for (int i = 0; i < numberOfIterations; i++) {
+            for (BlockWithVotesResponse entry : entries) {
+                BlockWithVotesResponse.fromByteBuffer(ByteBuffer.wrap(entry.getBytes()));
+            }
+        }
+        double standardMicroseconds = (System.nanoTime() - startTimestamp) / 1000.0 / numberOfIterations;
+
+        startTimestamp = System.nanoTime();
+        for (int i = 0; i < numberOfIterations; i++) {
+            BlockWithVotesCompactResponse.fromByteBuffer(ByteBuffer.wrap(cycleResponse.getBytes()), cycleList);
+        }
+        double compactMicroseconds = (System.nanoTime() - startTimestamp) / 1000.0 / numberOfIterations;
+
+        System.out.println(String.format("%d verifiers, %d heights: standard %d bytes, compact with table %d bytes " +
+                        "(%.1f%%), compact with cycle index %d bytes (%.1f%%)", numberOfVerifiers, numberOfHeights,
+                standardBytes, tableBytes, tableBytes * 100.0 / standardBytes, cycleBytes,
+                cycleBytes * 100.0 / standardBytes));
+        System.out.println(String.format("serialize and parse: standard %.1f us, compact %.1f us",
+                standardMicroseconds, compactMicroseconds));
+
+        return cycleBytes < tableBytes && tableBytes < standardBytes;
+    }
+
+    private static List<BlockWithVotesResponse> createEntries(Random random, long startHeight, int numberOfHeights,
+                                                              List<byte[]> keys, boolean keysAreSeeds) {
+
+        // If the keys are seeds, the blocks and votes are signed. Otherwise, the keys are identifiers, and random
+        // signatures are used.
+        List<BlockWithVotesResponse> entries = new ArrayList<>();
+        byte[] previousHash = randomBytes(random, FieldByteSize.hash);
+        for (long height = startHeight; height < startHeight + numberOfHeights; height++) {
+            long startTimestamp = BlockManager.startTimestampForHeight(height);
+            Block block = keysAreSeeds ?
+                    new Block(1, height, previousHash, startTimestamp, new ArrayList<>(),
+                            new byte[FieldByteSize.hash], keys.get(0)) :
+                    new Block(1, height, previousHash, startTimestamp, startTimestamp + 1000L, new ArrayList<>(),
+                            new byte[FieldByteSize.hash], keys.get(0), randomBytes(random, FieldByteSize.signature),
+                            false);
+            List<BlockVote> votes = new ArrayList<>();
+            for (byte[] key : keys) {
+                if (keysAreSeeds) {
+                    votes.add(signedVote(random, block, key));
+                } else {
+                    BlockVote vote = vote(random, block);
+                    vote.setSenderIdentifier(key);
+                    vote.setMessageSignature(randomBytes(random, FieldByteSize.signature));
+                    votes.add(vote);
+                }
+            }
+            entries.add(new BlockWithVotesResponse(block, votes));
+            previousHash = block.getHash();
+        }
+
+        return entries;
+    }
+
+    private static BlockVote vote(Random random, Block block) {
+
+        // Votes are sent a few seconds after verification, and the message is created right after the vote.
+        long messageTimestamp = block.getVerificationTimestamp() + 500L + random.nextInt(6000);
+        BlockVote vote = new BlockVote(block.getBlockHeight(), block.getHash(), messageTimestamp - random.nextInt(5));
+        vote.setMessageTimestamp(messageTimestamp);
+
+        return vote;
+    }
+
+    private static BlockVote signedVote(Random random, Block block, byte[] seed) {
+
+        BlockVote vote = vote(random, block);
+        byte[] identifier = KeyUtil.identifierForSeed(seed);
+        Message message = new Message(vote.getMessageTimestamp(), MessageType.BlockVote19, vote, identifier, null,
+                new byte[FieldByteSize.ipAddress], true);
+        message.sign(seed);
+        vote.setSenderIdentifier(identifier);
+        vote.setMessageSignature(message.getSourceNodeSignature());
+
+        return vote;
+    }
+
+    private static String roundTripProblem(List<BlockWithVotesResponse> expectedEntries,
+                                           BlockWithVotesCompactResponse response) {
+
+        // Only votes for the hash of the block are expected.
+        String problem = null;
+        List<BlockWithVotesResponse> entries = response.getEntries();
+        if (entries.size() != expectedEntries.size()) {
+            problem = "expected " + expectedEntries.size() + " blocks, got " + entries.size();
+        }
+        for (int i = 0; i < entries.size() && problem == null; i++) {
+            Block block = entries.get(i).getBlock();
+            Block expectedBlock = expectedEntries.get(i).getBlock();
+            List<BlockVote> expectedVotes = new ArrayList<>();
+            for (BlockVote vote : expectedEntries.get(i).getVotes()) {
+                if (ByteUtil.arraysAreEqual(vote.getHash(), expectedBlock.getHash())) {
+                    expectedVotes.add(vote);
+                }
+            }
+
+            List<BlockVote> votes = entries.get(i).getVotes();
+            if (!ByteUtil.arraysAreEqual(block.getHash(), expectedBlock.getHash()) || !block.signatureIsValid()) {
+                problem = "block mismatch at height " + expectedBlock.getBlockHeight();
+            } else if (votes.size() != expectedVotes.size()) {
+                problem = "expected " + expectedVotes.size() + " votes at height " + block.getBlockHeight() +
+                        ", got " + votes.size();
+            }
+            for (int j = 0; j < votes.size() && problem == null; j++) {
+                BlockVote vote = votes.get(j);
+                BlockVote expectedVote = expectedVotes.get(j);
+                Message message = new Message(vote.getMessageTimestamp(), MessageType.BlockVote19, vote,
+                        vote.getSenderIdentifier(), vote.getMessageSignature(), new byte[FieldByteSize.ipAddress]);
+                if (!message.isValid() || vote.getTimestamp() != expectedVote.getTimestamp() ||
+                        vote.getHeight() != expectedVote.getHeight() ||
+                        !ByteUtil.arraysAreEqual(vote.getSenderIdentifier(), expectedVote.getSenderIdentifier())) {
+                    problem = "vote " + j + " at height " + block.getBlockHeight() + " was not reproduced";
+                }
+            }
+        }
+
+        return problem;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+
+        return bytes;
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
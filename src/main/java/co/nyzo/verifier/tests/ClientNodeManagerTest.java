@@ -4,21 +4,34 @@ import co.nyzo.verifier.MeshListener;
 import co.nyzo.verifier.Node;
 import co.nyzo.verifier.RunMode;
 import co.nyzo.verifier.client.ClientNodeManager;
+import co.nyzo.verifier.client.NodeRanking;
 import co.nyzo.verifier.messages.MeshResponse;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 public class ClientNodeManagerTest implements NyzoTest {
 
+    private static final long halfLife = 60000L;
+
     private String failureCause = null;
     private static int batchSize = 1000;
-    private static int numberOfBatches = 5;
+
+    private final AtomicLong clockTimestamp = new AtomicLong(1000000L);
+    private final LongSupplier clock = new LongSupplier() {
+        @Override
+        public long getAsLong() {
+            return clockTimestamp.get();
+        }
+    };
 
     public static void main(String[] args) {
 
         RunMode.setRunMode(RunMode.Test);
         ClientNodeManagerTest test = new ClientNodeManagerTest();
-        boolean successful = test.run();
+        boolean successful = test.run() && test.benchmark(ClientNodeManager.maximumMapSize, 1000000);
 
         if (!successful) {
             System.out.println(TestUtil.failureCause(test.getFailureCause()));
@@ -27,138 +40,223 @@ public class ClientNodeManagerTest implements NyzoTest {
 
     public boolean run() {
 
-        // Perform the initial round of adding nodes. The first batch falls out after four iterations. Recent batches
-        // have higher scores and cluster as preferred.
+        // The test uses a ranking with a manual clock, so decay is controlled by advancing the clock.
         boolean successful = true;
-        for (int i = 0; i < numberOfBatches && successful; i++) {
-            int expectedTotal = Math.min(batchSize * Math.min(i + 1, 4), ClientNodeManager.maximumMapSize);
-            int expectedPreferred = i < 2 ? batchSize : batchSize * 2;
-            successful = addNodes(i, batchSize, expectedTotal, expectedPreferred, "initial round");
+        ClientNodeManager.setRanking(ClientNodeManager.createRanking(halfLife, clock));
+
+        // The first batch is preferred, as there are no score differences to separate the nodes.
+        successful = addNodes(0, batchSize, batchSize, batchSize, "first batch");
+
+        // After one half-life, the first batch has half the score of a new batch, and only the new batch is preferred.
+        if (successful) {
+            clockTimestamp.addAndGet(halfLife);
+            successful = addNodes(1, batchSize, batchSize * 2, batchSize, "second batch");
+        }
+
+        // Scores decay lazily. After two more half-lives, the first batch is below the minimum score and is removed
+        // when the next mesh response is processed.
+        if (successful) {
+            clockTimestamp.addAndGet(halfLife * 2L);
+            Node node = nodeWithTagAndIndex(0, 5);
+            double score = ClientNodeManager.getScore(node);
+            if (Math.abs(score - 0.5) > 0.001) {
+                successful = false;
+                failureCause = "expected decayed score of 0.5, actual=" + score;
+            }
+        }
+        if (successful) {
+            successful = addNodes(2, batchSize, batchSize * 2, batchSize, "third batch");
         }
 
-        // Perform the next round of adding nodes. The preferred list always contains two recent batches.
-        for (int i = 0; i < numberOfBatches && successful; i++) {
-            int expectedTotal = Math.min(batchSize * Math.min(numberOfBatches, 4), ClientNodeManager.maximumMapSize);
-            int expectedPreferred = batchSize * 2;
-            successful = addNodes(i, batchSize, expectedTotal, expectedPreferred, "second round");
+        // Mark successes on the second batch to make it the only preferred batch, then mark failures on the third batch
+        // to have it removed.
+        if (successful) {
+            successful = markScores(1, true, batchSize * 2, batchSize, "second batch success");
+        }
+        if (successful) {
+            successful = markScores(2, false, batchSize, batchSize, "third batch failure");
         }
 
-        // Mark successes on the lowest-scored batch to cause it to first become preferred then to cause it to be the
-        // only preferred batch.
-        for (int i = 0; i < 2 && successful; i++) {
-            int expectedTotal = Math.min(batchSize * Math.min(numberOfBatches, 4), ClientNodeManager.maximumMapSize);
-            int expectedPreferred = i == 0 ? batchSize * 2 : batchSize;
-            successful = markSuccesses(numberOfBatches - 4, expectedTotal, expectedPreferred,
-                    "marking batch success, iteration " + i);
+        // Nodes are found by identifier. The removed batch must not be found.
+        if (successful) {
+            Node expectedNode = nodeWithTagAndIndex(1, 5);
+            Node node = ClientNodeManager.nodeForIdentifier(ByteBuffer.wrap(expectedNode.getIdentifier()));
+            if (node == null || !Arrays.equals(node.getIpAddress(), expectedNode.getIpAddress())) {
+                successful = false;
+                failureCause = "node not found by identifier";
+            } else if (ClientNodeManager.nodeForIdentifier(ByteBuffer.wrap(nodeWithTagAndIndex(2,
+                    5).getIdentifier())) != null) {
+                successful = false;
+                failureCause = "removed node found by identifier";
+            }
         }
 
-        // Mark failures on the last batch to have it removed.
+        // Add a single large batch to fill the map. The lowest-scored nodes are removed to make room.
         if (successful) {
-            int expectedTotal = Math.min(batchSize * Math.min(numberOfBatches, 3), ClientNodeManager.maximumMapSize);
-            int expectedPreferred = Math.min(batchSize, ClientNodeManager.maximumMapSize);
-            successful = markFailures(numberOfBatches - 1, expectedTotal, expectedPreferred, "last batch failure");
+            successful = addNodes(3, ClientNodeManager.maximumMapSize, ClientNodeManager.maximumMapSize,
+                    ClientNodeManager.maximumMapSize, "filling map to maximum");
         }
 
-        // Add a single large batch to fill the map. Adding small batches would never reach the maximum due to score
-        // leakage.
+        // Weighted selection follows the scores and latencies.
         if (successful) {
-            int expectedTotal = ClientNodeManager.maximumMapSize;
-            int expectedPreferred = ClientNodeManager.maximumMapSize;
-            successful = addNodes(0, ClientNodeManager.maximumMapSize, expectedTotal, expectedPreferred,
-                    "filling map to maximum");
+            successful = checkWeightedSelection();
         }
 
+        ClientNodeManager.setRanking(ClientNodeManager.createRanking(halfLife, System::currentTimeMillis));
+
         System.out.println(TestUtil.passFail(successful));
 
         return successful;
     }
 
-    private boolean addNodes(int tag, int batchSize, int expectedTotal, int expectedPreferred, String label) {
-
-        // Make and process a mesh response.
-        List<Node> mesh = new ArrayList<>();
-        for (int i = 0; i < batchSize; i++) {
-            mesh.add(nodeWithTagAndIndex(tag, i));
-        }
-        ClientNodeManager.processMeshResponse(new MeshResponse(mesh));
+    private boolean checkWeightedSelection() {
 
-        // Check the number of nodes.
+        // Node 1 has three times the score of node 0, so it should be selected about three times as often. Then, node
+        // 0 is given a low latency and node 1 a high latency, which reverses the preference.
         boolean successful = true;
-        if (ClientNodeManager.getNumberOfNodesInMesh() != expectedTotal) {
+        NodeRanking ranking = new NodeRanking(16, halfLife, 1.0, 40.0, clock);
+        Node node0 = nodeWithTagAndIndex(10, 0);
+        Node node1 = nodeWithTagAndIndex(10, 1);
+        ranking.addOrUpdate(node0, 4.0);
+        ranking.addOrUpdate(node1, 12.0);
+        double ratio = selectionRatio(ranking, node0, node1);
+        if (ratio < 2.7 || ratio > 3.3) {
             successful = false;
-            failureCause = "adding nodes with tag " + tag + " (" + label + "), expected total=" +
-                    expectedTotal + ", actual=" + ClientNodeManager.getNumberOfNodesInMesh();
+            failureCause = "expected selection ratio of about 3 for score, actual=" + ratio;
         }
 
-        // Check the number of preferred nodes. This should be all nodes, as there are no score differences to
-        // separate the nodes.
-        if (successful && ClientNodeManager.getNumberOfPreferredNodesInMesh() != expectedPreferred) {
-            successful = false;
-            failureCause = "adding nodes with tag " + tag + " (" + label + "), expected preferred=" +
-                    expectedPreferred + ", actual=" + ClientNodeManager.getNumberOfPreferredNodesInMesh();
+        if (successful) {
+            for (int i = 0; i < 20; i++) {
+                ranking.recordLatency(node0, 20L);
+                ranking.recordLatency(node1, 2000L);
+            }
+            ratio = selectionRatio(ranking, node0, node1);
+            if (ratio > 0.4 || Math.abs(ranking.getLatency(node0) - 20.0) > 0.001) {
+                successful = false;
+                failureCause = "expected fast node to be preferred, selection ratio=" + ratio;
+            }
+        }
+
+        // A removed node must not be selected.
+        if (successful) {
+            ranking.changeScore(node1, -40.0);
+            ranking.performMaintenance();
+            for (int i = 0; i < 1000 && successful; i++) {
+                if (ranking.weightedRandomNode() != node0) {
+                    successful = false;
+                    failureCause = "removed node was selected";
+                }
+            }
         }
 
         return successful;
     }
 
-    private boolean markSuccesses(int tag, int expectedTotal, int expectedPreferred, String label) {
-
-        // Mark successes for each node in the first batch.
-        for (int i = 0; i < batchSize; i++) {
-            ClientNodeManager.markSuccess(nodeWithTagAndIndex(tag, i));
+    private static double selectionRatio(NodeRanking ranking, Node node0, Node node1) {
+
+        int count0 = 0;
+        int count1 = 0;
+        for (int i = 0; i < 40000; i++) {
+            Node node = ranking.weightedRandomNode();
+            if (node == node0) {
+                count0++;
+            } else if (node == node1) {
+                count1++;
+            }
         }
 
-        // Update the maps and the lists. This happens automatically when a mesh response is processed, but it must be
-        // done manually here to reflect the effects of the successes.
-        ClientNodeManager.updateMapsAndLists();
+        return count1 / (double) Math.max(1, count0);
+    }
 
-        // Check the number of nodes.
-        boolean successful = true;
-        if (ClientNodeManager.getNumberOfNodesInMesh() != expectedTotal) {
-            successful = false;
-            failureCause = "marking successes with tag " + tag + " (" + label + "), expected total=" + expectedTotal +
-                    ", actual=" + ClientNodeManager.getNumberOfNodesInMesh();
-        }
+    private boolean addNodes(int tag, int batchSize, int expectedTotal, int expectedPreferred, String label) {
 
-        // Check the number of preferred nodes.
-        if (successful && ClientNodeManager.getNumberOfPreferredNodesInMesh() != expectedPreferred) {
-            successful = false;
-            failureCause = "marking successes with tag " + tag + " (" + label + "), expected preferred=" +
-                    expectedPreferred + ", actual=" + ClientNodeManager.getNumberOfPreferredNodesInMesh();
+        // Make and process a mesh response.
+        List<Node> mesh = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            mesh.add(nodeWithTagAndIndex(tag, i));
         }
+        ClientNodeManager.processMeshResponse(new MeshResponse(mesh));
 
-        return successful;
+        return checkCounts(expectedTotal, expectedPreferred, "adding nodes with tag " + tag + " (" + label + ")");
     }
 
-    private boolean markFailures(int tag, int expectedTotal, int expectedPreferred, String label) {
+    private boolean markScores(int tag, boolean success, int expectedTotal, int expectedPreferred, String label) {
 
-        // Mark failures for each node in the last batch.
+        // Mark successes or failures for each node in the batch.
         for (int i = 0; i < batchSize; i++) {
-            ClientNodeManager.markFailure(nodeWithTagAndIndex(tag, i));
+            if (success) {
+                ClientNodeManager.markSuccess(nodeWithTagAndIndex(tag, i));
+            } else {
+                ClientNodeManager.markFailure(nodeWithTagAndIndex(tag, i));
+            }
         }
 
         // Update the maps and the lists. This happens automatically when a mesh response is processed, but it must be
-        // done manually here to reflect the effects of the failures.
+        // done manually here to reflect the effects of the changes.
         ClientNodeManager.updateMapsAndLists();
 
+        return checkCounts(expectedTotal, expectedPreferred, "marking scores with tag " + tag + " (" + label + ")");
+    }
+
+    private boolean checkCounts(int expectedTotal, int expectedPreferred, String label) {
+
         // Check the number of nodes.
         boolean successful = true;
         if (ClientNodeManager.getNumberOfNodesInMesh() != expectedTotal) {
             successful = false;
-            failureCause = "marking failures (" + label + "), expected total=" + expectedTotal + ", actual=" +
+            failureCause = label + ", expected total=" + expectedTotal + ", actual=" +
                     ClientNodeManager.getNumberOfNodesInMesh();
         }
 
         // Check the number of preferred nodes.
         if (successful && ClientNodeManager.getNumberOfPreferredNodesInMesh() != expectedPreferred) {
             successful = false;
-            failureCause = "marking failures (" + label + "), expected preferred=" + expectedPreferred + ", actual=" +
+            failureCause = label + ", expected preferred=" + expectedPreferred + ", actual=" +
                     ClientNodeManager.getNumberOfPreferredNodesInMesh();
         }
 
         return successful;
     }
 
+    public boolean benchmark(int numberOfNodes, int numberOfOperations) {
+
+        // Score updates and weighted selections are timed on a full ranking.
+        NodeRanking ranking = new NodeRanking(numberOfNodes, halfLife, 1.0, 40.0, clock);
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < numberOfNodes; i++) {
+            Node node = nodeWithTagAndIndex(20 + i / 10000, i % 10000);
+            nodes.add(node);
+            ranking.addOrUpdate(node, 4.0);
+        }
+        ranking.performMaintenance();
+
+        Random random = new Random(47);
+        long startTimestamp = System.nanoTime();
+        for (int i = 0; i < numberOfOperations; i++) {
+            Node node = nodes.get(random.nextInt(numberOfNodes));
+            if (i % 2 == 0) {
+                ranking.changeScore(node, 4.0);
+            } else {
+                ranking.recordLatency(node, random.nextInt(500));
+            }
+        }
+        double updateNanoseconds = (System.nanoTime() - startTimestamp) / (double) numberOfOperations;
+
+        int found = 0;
+        startTimestamp = System.nanoTime();
+        for (int i = 0; i < numberOfOperations; i++) {
+            if (ranking.weightedRandomNode() != null) {
+                found++;
+            }
+        }
+        double selectionNanoseconds = (System.nanoTime() - startTimestamp) / (double) numberOfOperations;
+
+        System.out.println(String.format("%d nodes: update %.0f ns, weighted selection %.0f ns (%d found)",
+                numberOfNodes, updateNanoseconds, selectionNanoseconds, found));
+
+        return found == numberOfOperations;
+    }
+
     private static Node nodeWithTagAndIndex(int tag, int index) {
         byte[] identifier = new byte[] { (byte) tag, (byte) (index / 100), (byte) (index % 100) };
         byte[] ipAddress = new byte[] { (byte) tag, 0, (byte) (index / 100), (byte) (index % 100) };
@@ -0,0 +1,172 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.RunMode;
+import co.nyzo.verifier.util.HeightWindowAccumulator;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+public class HeightWindowAccumulatorTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        HeightWindowAccumulatorTest test = new HeightWindowAccumulatorTest();
+        boolean successful = test.run() && test.benchmark(2000, 1000000);
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        // The accumulator is compared to the map-based calculation it replaced in BlockchainMetricsManager. The
+        // sequence includes consecutive heights, gaps, large jumps, repeated heights, blocks without cycle
+        // information, and changes in the cycle length in both directions.
+        boolean successful = true;
+        try {
+            Random random = new Random(1618);
+            HeightWindowAccumulator accumulator = new HeightWindowAccumulator(4, 4096);
+            Map<Long, Long> referenceMap = new HashMap<>();
+            long height = 1000L;
+            int cycleLength = 20;
+            for (int i = 0; i < 20000 && successful; i++) {
+                int step = random.nextInt(100);
+                if (step < 85) {
+                    height++;
+                } else if (step < 92) {
+                    height += 1 + random.nextInt(cycleLength * 2);
+                } else if (step < 93) {
+                    height += 10000L;
+                } else if (step < 96) {
+                    height -= random.nextInt(3);
+                }
+                if (random.nextInt(50) == 0) {
+                    cycleLength = Math.max(1, cycleLength + random.nextInt(21) - 10);
+                }
+                boolean cycleInformationAvailable = random.nextInt(20) != 0;
+                long value = random.nextInt(1000000);
+
+                referenceMap.put(height, value);
+                long referenceSum = 0L;
+                if (cycleInformationAvailable) {
+                    long thresholdHeight = height - cycleLength;
+                    for (Long mapHeight : new HashSet<>(referenceMap.keySet())) {
+                        if (mapHeight < thresholdHeight) {
+                            referenceMap.remove(mapHeight);
+                        } else {
+                            referenceSum += referenceMap.get(mapHeight);
+                        }
+                    }
+                }
+
+                accumulator.put(height, value);
+                long sum = 0L;
+                if (cycleInformationAvailable) {
+                    accumulator.removeBelow(height - cycleLength);
+                    sum = accumulator.getSum();
+                }
+
+                if (sum != referenceSum) {
+                    successful = false;
+                    failureCause = "sum mismatch at step " + i + ", height " + height + ": expected=" +
+                            referenceSum + ", actual=" + sum;
+                } else if (cycleInformationAvailable && accumulator.getNumberOfValues() != referenceMap.size()) {
+                    successful = false;
+                    failureCause = "count mismatch at step " + i + ", height " + height + ": expected=" +
+                            referenceMap.size() + ", actual=" + accumulator.getNumberOfValues();
+                } else if (accumulator.getCapacity() > 4096) {
+                    successful = false;
+                    failureCause = "capacity exceeded the maximum span at step " + i + ": " +
+                            accumulator.getCapacity();
+                }
+            }
+
+            // A jump far above the window must not grow the ring. The values pushed out of the span are removed
+            // before the new value is stored.
+            if (successful) {
+                HeightWindowAccumulator windowAccumulator = new HeightWindowAccumulator(16, 100);
+                for (long windowHeight = 0L; windowHeight < 100L; windowHeight++) {
+                    windowAccumulator.put(windowHeight, 1L);
+                }
+                windowAccumulator.put(1000000L, 5L);
+                windowAccumulator.put(1000000L - 99L, 7L);
+                windowAccumulator.put(1000000L - 100L, 11L);
+                if (windowAccumulator.getSum() != 12L || windowAccumulator.getNumberOfValues() != 2 ||
+                        windowAccumulator.getCapacity() > 100) {
+                    successful = false;
+                    failureCause = "after jump: sum=" + windowAccumulator.getSum() + ", values=" +
+                            windowAccumulator.getNumberOfValues() + ", capacity=" + windowAccumulator.getCapacity();
+                }
+            }
+
+            // A ring that grew for a wide span must shrink when the window narrows.
+            if (successful) {
+                HeightWindowAccumulator wideAccumulator = new HeightWindowAccumulator(16, 100000);
+                for (long wideHeight = 0L; wideHeight < 10000L; wideHeight++) {
+                    wideAccumulator.put(wideHeight, 1L);
+                }
+                int grownCapacity = wideAccumulator.getCapacity();
+                wideAccumulator.removeBelow(9990L);
+                if (grownCapacity < 10000 || wideAccumulator.getCapacity() > 64 || wideAccumulator.getSum() != 10L) {
+                    successful = false;
+                    failureCause = "ring did not shrink: grown=" + grownCapacity + ", after=" +
+                            wideAccumulator.getCapacity() + ", sum=" + wideAccumulator.getSum();
+                }
+            }
+        } catch (Exception e) {
+            failureCause = "exception in HeightWindowAccumulatorTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    public boolean benchmark(int cycleLength, int numberOfBlocks) {
+
+        // This measures the per-block cost of the cycle sum with the previous map-based calculation and with the
+        // accumulator.
+        Map<Long, Long> map = new HashMap<>();
+        long startTimestamp = System.nanoTime();
+        long mapSum = 0L;
+        int mapBlocks = numberOfBlocks / 100;
+        for (long height = 0; height < mapBlocks; height++) {
+            map.put(height, height);
+            long thresholdHeight = height - cycleLength;
+            mapSum = 0L;
+            for (Long mapHeight : new HashSet<>(map.keySet())) {
+                if (mapHeight < thresholdHeight) {
+                    map.remove(mapHeight);
+                } else {
+                    mapSum += map.get(mapHeight);
+                }
+            }
+        }
+        double mapNanoseconds = (System.nanoTime() - startTimestamp) / (double) mapBlocks;
+
+        HeightWindowAccumulator accumulator = new HeightWindowAccumulator(cycleLength, cycleLength + 1);
+        startTimestamp = System.nanoTime();
+        for (long height = 0; height < numberOfBlocks; height++) {
+            accumulator.put(height, height);
+            accumulator.removeBelow(height - cycleLength);
+        }
+        double accumulatorNanoseconds = (System.nanoTime() - startTimestamp) / (double) numberOfBlocks;
+
+        System.out.println(String.format("cycle length %d: map %.0f ns/block (sum %d), accumulator %.1f ns/block " +
+                "(sum %d)", cycleLength, mapNanoseconds, mapSum, accumulatorNanoseconds, accumulator.getSum()));
+
+        return true;
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
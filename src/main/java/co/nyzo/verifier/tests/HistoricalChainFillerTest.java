@@ -0,0 +1,265 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HistoricalChainFillerTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        HistoricalChainFillerTest test = new HistoricalChainFillerTest();
+        boolean successful = test.run();
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        File hostDirectory = null;
+        File destinationDirectory = null;
+        try {
+            // A local directory stands in for the block-file host. The blocks are artificial, linked only by their
+            // hashes, which is all that the filler checks when verifying a downloaded file.
+            hostDirectory = Files.createTempDirectory("nyzo_block_host").toFile();
+            destinationDirectory = Files.createTempDirectory("nyzo_block_destination").toFile();
+            long fileIndex = 3L;
+            byte[] anchorHash = writeHostFile(hostDirectory, fileIndex, randomHash(fileIndex));
+            String fileName = BlockManager.consolidatedFileForBlockHeight(fileIndex * BlockManager.blocksPerFile)
+                    .getName();
+
+            // Fetch the file through the URL source and verify it against the anchor.
+            RemoteFileSource source = new UrlFileSource(hostDirectory.toURI().toString());
+            File destination = new File(destinationDirectory, fileName);
+            if (!source.fetchFile(fileName, destination)) {
+                successful = false;
+                failureCause = "unable to fetch file " + fileName + " from " + source;
+            }
+
+            if (successful) {
+                List<Block> verifiedBlocks = HistoricalChainFiller.verifiedBlocksInFile(fileIndex, destination,
+                        new ArrayList<>(), anchorHash);
+                if (verifiedBlocks.size() != BlockManager.blocksPerFile) {
+                    successful = false;
+                    failureCause = "expected " + BlockManager.blocksPerFile + " verified blocks, actual=" +
+                            verifiedBlocks.size();
+                }
+            }
+
+            // A file that does not link to the anchor must be rejected.
+            if (successful) {
+                List<Block> verifiedBlocks = HistoricalChainFiller.verifiedBlocksInFile(fileIndex, destination,
+                        new ArrayList<>(), new byte[FieldByteSize.hash]);
+                if (!verifiedBlocks.isEmpty()) {
+                    successful = false;
+                    failureCause = "file verified against an incorrect anchor hash";
+                }
+            }
+
+            // A truncated file must also be rejected.
+            if (successful) {
+                RandomAccessFile file = new RandomAccessFile(destination, "rw");
+                file.setLength(file.length() / 2);
+                file.close();
+                List<Block> verifiedBlocks = HistoricalChainFiller.verifiedBlocksInFile(fileIndex, destination,
+                        new ArrayList<>(), anchorHash);
+                if (!verifiedBlocks.isEmpty()) {
+                    successful = false;
+                    failureCause = "truncated file verified, number of blocks=" + verifiedBlocks.size();
+                }
+            }
+
+            // A file that is not on the host cannot be fetched.
+            if (successful && source.fetchFile("missing.nyzoblock", new File(destinationDirectory, "missing"))) {
+                successful = false;
+                failureCause = "fetch of missing file reported success";
+            }
+
+            // Store three linked files through the concurrent path. The newest file is already present locally, so it
+            // must be verified in place rather than downloaded again.
+            if (successful) {
+                successful = storeFilesIsCorrect(hostDirectory, destinationDirectory);
+            }
+
+        } catch (Exception e) {
+            failureCause = "exception in HistoricalChainFillerTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        deleteDirectory(hostDirectory);
+        deleteDirectory(destinationDirectory);
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    private boolean storeFilesIsCorrect(File hostDirectory, File destinationDirectory) throws Exception {
+
+        boolean successful = true;
+        RemoteFileSource originalSource = HistoricalChainFiller.getFileSource();
+        File originalDirectory = HistoricalChainFiller.getBlockDirectory();
+        try {
+            byte[] previousHash = randomHash(10L);
+            byte[] anchorHash = null;
+            List<Long> fileIndices = new ArrayList<>();
+            for (long fileIndex = 10L; fileIndex <= 12L; fileIndex++) {
+                anchorHash = writeHostFile(hostDirectory, fileIndex, previousHash);
+                previousHash = anchorHash;
+                fileIndices.add(0, fileIndex);
+            }
+
+            final RemoteFileSource hostSource = new UrlFileSource(hostDirectory.toURI().toString());
+            final AtomicInteger numberOfFetches = new AtomicInteger(0);
+            final AtomicBoolean sourceAvailable = new AtomicBoolean(true);
+            HistoricalChainFiller.setFileSource(new RemoteFileSource() {
+                @Override
+                public boolean fetchFile(String fileName, File destination) {
+                    numberOfFetches.incrementAndGet();
+                    return sourceAvailable.get() && hostSource.fetchFile(fileName, destination);
+                }
+            });
+            HistoricalChainFiller.setBlockDirectory(destinationDirectory);
+
+            File newestFile = destinationFile(destinationDirectory, 12L);
+            newestFile.getParentFile().mkdirs();
+            Files.copy(hostFile(hostDirectory, 12L).toPath(), newestFile.toPath());
+            int numberOfFilesStored = HistoricalChainFiller.storeFiles(fileIndices, new ArrayList<>(), anchorHash);
+            if (numberOfFilesStored != 3 || numberOfFetches.get() != 2 || !destinationFile(destinationDirectory,
+                    10L).exists()) {
+                successful = false;
+                failureCause = "first store: expected 3 files stored with 2 fetches, actual=" + numberOfFilesStored +
+                        " stored with " + numberOfFetches.get() + " fetches";
+            }
+
+            // A local file that no longer verifies is replaced by a download. If the download fails, the local file
+            // is kept, and the files behind it are not stored.
+            File damagedFile = destinationFile(destinationDirectory, 11L);
+            long damagedLength = 0L;
+            if (successful) {
+                RandomAccessFile file = new RandomAccessFile(damagedFile, "rw");
+                file.setLength(file.length() - 1);
+                damagedLength = file.length();
+                file.close();
+                numberOfFetches.set(0);
+                sourceAvailable.set(false);
+                numberOfFilesStored = HistoricalChainFiller.storeFiles(fileIndices, new ArrayList<>(), anchorHash);
+                if (numberOfFilesStored != 1 || numberOfFetches.get() != 1 || damagedFile.length() != damagedLength ||
+                        downloadFile(damagedFile).exists()) {
+                    successful = false;
+                    failureCause = "failed replacement: expected 1 file stored and the local file kept, actual=" +
+                            numberOfFilesStored + " stored with " + numberOfFetches.get() + " fetches";
+                }
+            }
+
+            // When the download succeeds, the verified replacement is moved over the damaged file.
+            if (successful) {
+                numberOfFetches.set(0);
+                sourceAvailable.set(true);
+                numberOfFilesStored = HistoricalChainFiller.storeFiles(fileIndices, new ArrayList<>(), anchorHash);
+                if (numberOfFilesStored != 3 || numberOfFetches.get() != 1 ||
+                        damagedFile.length() != hostFile(hostDirectory, 11L).length() ||
+                        downloadFile(damagedFile).exists()) {
+                    successful = false;
+                    failureCause = "repair: expected 3 files stored with 1 fetch, actual=" + numberOfFilesStored +
+                            " stored with " + numberOfFetches.get() + " fetches";
+                }
+            }
+        } finally {
+            HistoricalChainFiller.setFileSource(originalSource);
+            HistoricalChainFiller.setBlockDirectory(originalDirectory);
+        }
+
+        return successful;
+    }
+
+    private static byte[] writeHostFile(File hostDirectory, long fileIndex, byte[] previousHash) {
+
+        // This writes a consolidated file of linked blocks to the host directory and returns the hash of its last
+        // block.
+        List<Block> blocks = createBlocks(fileIndex * BlockManager.blocksPerFile, BlockManager.blocksPerFile,
+                previousHash);
+        Block firstBlock = blocks.get(0);
+        BalanceList balanceList = new BalanceList(firstBlock.getBlockchainVersion(), firstBlock.getBlockHeight(),
+                (byte) 0, new ArrayList<>(), new ArrayList<>(), 0L, 0L, new HashMap<>(), new ArrayList<>());
+        BlockManager.writeBlocksToFile(new ArrayList<>(blocks), Collections.singletonList(balanceList),
+                hostFile(hostDirectory, fileIndex));
+
+        return blocks.get(blocks.size() - 1).getHash();
+    }
+
+    private static File hostFile(File hostDirectory, long fileIndex) {
+
+        return new File(hostDirectory, BlockManager.consolidatedFileForBlockHeight(fileIndex *
+                BlockManager.blocksPerFile).getName());
+    }
+
+    private static File downloadFile(File file) {
+        return new File(file.getAbsolutePath() + "_download");
+    }
+
+    private static File destinationFile(File destinationDirectory, long fileIndex) {
+
+        File file = BlockManager.consolidatedFileForBlockHeight(fileIndex * BlockManager.blocksPerFile);
+        return new File(new File(destinationDirectory, file.getParentFile().getName()), file.getName());
+    }
+
+    private static byte[] randomHash(long seed) {
+
+        byte[] hash = new byte[FieldByteSize.hash];
+        new Random(seed).nextBytes(hash);
+
+        return hash;
+    }
+
+    private static List<Block> createBlocks(long startHeight, long numberOfBlocks, byte[] previousHash) {
+
+        Random random = new Random(startHeight);
+        List<Block> blocks = new ArrayList<>();
+        for (long height = startHeight; height < startHeight + numberOfBlocks; height++) {
+            byte[] signature = new byte[FieldByteSize.signature];
+            random.nextBytes(signature);
+            long startTimestamp = BlockManager.startTimestampForHeight(height);
+            Block block = new Block(1, height, previousHash, startTimestamp, startTimestamp + 1000L,
+                    new ArrayList<>(), new byte[FieldByteSize.hash], new byte[FieldByteSize.identifier], signature,
+                    false);
+            blocks.add(block);
+            previousHash = block.getHash();
+        }
+
+        return blocks;
+    }
+
+    private static void deleteDirectory(File directory) {
+
+        if (directory != null) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isDirectory()) {
+                        deleteDirectory(file);
+                    } else {
+                        file.delete();
+                    }
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
@@ -0,0 +1,227 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.IpReputationTable;
+import co.nyzo.verifier.RunMode;
+import co.nyzo.verifier.util.IpUtil;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class IpReputationTableTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        IpReputationTableTest test = new IpReputationTableTest();
+        boolean successful = test.run() && test.benchmark(10000000);
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        try {
+            // The integer form of an address must match its bytes, and an address must be the same entry whether it
+            // is given as an integer or as bytes.
+            byte[] addressBytes = InetAddress.getByName("203.0.113.7").getAddress();
+            int address = IpUtil.addressAsInt(addressBytes);
+            IpReputationTable.incrementConnections(addressBytes, IpReputationTable.ConnectionType.Web);
+            int combinedConnections = IpReputationTable.incrementConnections(address,
+                    IpReputationTable.ConnectionType.Web);
+            IpReputationTable.decrementConnections(address, IpReputationTable.ConnectionType.Web);
+            IpReputationTable.decrementConnections(addressBytes, IpReputationTable.ConnectionType.Web);
+            if (combinedConnections != 2 || IpReputationTable.size() != 0 ||
+                    !IpUtil.addressAsString(address).equals("203.0.113.7") ||
+                    !IpUtil.addressAsString(addressBytes).equals("203.0.113.7")) {
+                successful = false;
+                failureCause = "address conversion is inconsistent: " + IpUtil.addressAsString(address);
+            }
+
+            // Random connection increments and decrements are compared to a map. Addresses are drawn from a small
+            // range so that probe sequences collide and entries are removed and reinserted many times.
+            Random random = new Random(39);
+            Map<Integer, Integer> expected = new HashMap<>();
+            for (int i = 0; i < 200000 && successful; i++) {
+                int ipAddress = 0x0a000000 + random.nextInt(3000);
+                if (random.nextBoolean()) {
+                    int connections = IpReputationTable.incrementConnections(ipAddress,
+                            IpReputationTable.ConnectionType.Web);
+                    int expectedConnections = expected.merge(ipAddress, 1, Integer::sum);
+                    if (connections != expectedConnections) {
+                        successful = false;
+                        failureCause = "connections for " + IpUtil.addressAsString(ipAddress) + " expected=" +
+                                expectedConnections + ", actual=" + connections;
+                    }
+                } else {
+                    IpReputationTable.decrementConnections(ipAddress, IpReputationTable.ConnectionType.Web);
+                    expected.computeIfPresent(ipAddress, (key, value) -> value == 1 ? null : value - 1);
+                }
+            }
+            if (successful && IpReputationTable.size() != expected.size()) {
+                successful = false;
+                failureCause = "table size expected=" + expected.size() + ", actual=" + IpReputationTable.size();
+            }
+            for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+                for (int i = 0; i < entry.getValue(); i++) {
+                    IpReputationTable.decrementConnections(entry.getKey(), IpReputationTable.ConnectionType.Web);
+                }
+            }
+            if (successful && IpReputationTable.size() != 0) {
+                successful = false;
+                failureCause = "table not empty after all connections closed: " + IpReputationTable.size();
+            }
+
+            // Lookups check expiration directly, so a short blacklisting ends on time regardless of the wheel.
+            IpReputationTable.blacklist(address, 50L);
+            boolean blacklistedBefore = IpReputationTable.isBlacklisted(address);
+            Thread.sleep(60L);
+            if (successful && (!blacklistedBefore || IpReputationTable.isBlacklisted(address))) {
+                successful = false;
+                failureCause = "short blacklisting did not start and end as expected";
+            }
+
+            // Entries on each level of the wheel must be removed when the wheel passes their expiration, and not
+            // before.
+            long now = System.currentTimeMillis();
+            int whitelisted = address + 1;
+            IpReputationTable.blacklist(address, 3000L);                        // first level
+            IpReputationTable.blacklist(address + 2, 1000L * 60L * 10L);        // second level
+            IpReputationTable.whitelistDynamically(whitelisted, 1000L * 60L * 60L * 3L);  // overflow
+            IpReputationTable.advance(now + 5000L);
+            if (successful && (IpReputationTable.size() != 2 || IpReputationTable.getNumberOfBlacklistedAddresses()
+                    != 1)) {
+                successful = false;
+                failureCause = "after first-level expiration, size=" + IpReputationTable.size() + ", blacklisted=" +
+                        IpReputationTable.getNumberOfBlacklistedAddresses();
+            }
+            IpReputationTable.advance(now + 1000L * 60L * 11L);
+            if (successful && (IpReputationTable.size() != 1 || IpReputationTable.getNumberOfBlacklistedAddresses()
+                    != 0 || !IpReputationTable.isWhitelisted(whitelisted))) {
+                successful = false;
+                failureCause = "after second-level expiration, size=" + IpReputationTable.size();
+            }
+            IpReputationTable.advance(now + 1000L * 60L * 60L * 4L);
+            if (successful && IpReputationTable.size() != 0) {
+                successful = false;
+                failureCause = "overflow entry was not removed, size=" + IpReputationTable.size();
+            }
+
+            // IPv6 addresses are tracked separately from each other. Blacklisting one must not affect another, and
+            // each has its own connection count.
+            byte[] ipv6Address1 = InetAddress.getByName("2001:db8::1").getAddress();
+            byte[] ipv6Address2 = InetAddress.getByName("2001:db8::2").getAddress();
+            IpReputationTable.blacklist(ipv6Address1, 50L);
+            int connections1 = IpReputationTable.incrementConnections(ipv6Address1,
+                    IpReputationTable.ConnectionType.Mesh);
+            int connections2 = IpReputationTable.incrementConnections(ipv6Address2,
+                    IpReputationTable.ConnectionType.Mesh);
+            if (successful && (!IpReputationTable.isBlacklisted(ipv6Address1) ||
+                    IpReputationTable.isBlacklisted(ipv6Address2) || connections1 != 1 || connections2 != 1 ||
+                    IpReputationTable.size() != 2 || IpReputationTable.isBlacklisted(0))) {
+                successful = false;
+                failureCause = "IPv6 addresses share state: connections=" + connections1 + "/" + connections2 +
+                        ", size=" + IpReputationTable.size();
+            }
+            IpReputationTable.decrementConnections(ipv6Address1, IpReputationTable.ConnectionType.Mesh);
+            IpReputationTable.decrementConnections(ipv6Address2, IpReputationTable.ConnectionType.Mesh);
+            IpReputationTable.advance(System.currentTimeMillis() + 100L);
+            if (successful && (IpReputationTable.size() != 0 || IpReputationTable.isBlacklisted(ipv6Address1) ||
+                    IpReputationTable.getNumberOfBlacklistedAddresses() != 0)) {
+                successful = false;
+                failureCause = "IPv6 entries were not removed, size=" + IpReputationTable.size();
+            }
+
+            // Lookups must not allocate. The allocation of the measurement itself is subtracted.
+            IpReputationTable.addStaticWhitelist(address);
+            long allocatedBytes = 0L;
+            boolean result = false;
+            for (int pass = 0; pass < 5; pass++) {
+                long measurementBytes = -allocatedBytes() + allocatedBytes();
+                allocatedBytes = allocatedBytes();
+                for (int i = 0; i < 50000; i++) {
+                    result ^= IpReputationTable.isBlacklisted(address + i);
+                    result ^= IpReputationTable.isWhitelisted(address - i);
+                }
+                allocatedBytes = allocatedBytes() - allocatedBytes - measurementBytes;
+            }
+            if (successful && allocatedBytes > 1024L) {
+                successful = false;
+                failureCause = "lookups allocated " + allocatedBytes + " bytes (" + result + ")";
+            }
+        } catch (Exception e) {
+            failureCause = "exception in IpReputationTableTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    public boolean benchmark(int numberOfLookups) {
+
+        // This compares the table to the previous map of wrapped byte arrays, with 1000 blacklisted addresses.
+        Map<ByteBuffer, Long> map = new HashMap<>();
+        byte[][] addresses = new byte[4096][];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = ByteBuffer.allocate(4).putInt(0x0b000000 + i * 7).array();
+            if (i % 4 == 0) {
+                map.put(ByteBuffer.wrap(addresses[i]), System.currentTimeMillis());
+                IpReputationTable.blacklist(IpUtil.addressAsInt(addresses[i]), 1000L * 60L * 10L);
+            }
+        }
+
+        for (int pass = 0; pass < 2; pass++) {
+            int count = 0;
+            long startTimestamp = System.nanoTime();
+            for (int i = 0; i < numberOfLookups; i++) {
+                long timestamp = map.getOrDefault(ByteBuffer.wrap(addresses[i & 4095]), 0L);
+                if (System.currentTimeMillis() < timestamp + 600000L) {
+                    count++;
+                }
+            }
+            long mapElapsed = System.nanoTime() - startTimestamp;
+
+            startTimestamp = System.nanoTime();
+            for (int i = 0; i < numberOfLookups; i++) {
+                if (IpReputationTable.isBlacklisted(IpUtil.addressAsInt(addresses[i & 4095]))) {
+                    count--;
+                }
+            }
+            long tableElapsed = System.nanoTime() - startTimestamp;
+
+            if (pass > 0) {
+                System.out.println(String.format("map: %.1f ns per lookup, table: %.1f ns per lookup (%d)",
+                        mapElapsed / (double) numberOfLookups, tableElapsed / (double) numberOfLookups, count));
+            }
+        }
+
+        return true;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long allocatedBytes() {
+
+        long allocatedBytes = 0L;
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            allocatedBytes = ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return allocatedBytes;
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
@@ -7,10 +7,13 @@ import co.nyzo.verifier.client.commands.FrozenEdgeCommand;
 import co.nyzo.verifier.json.*;
 import co.nyzo.verifier.util.PrintUtil;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 public class JsonTest implements NyzoTest {
     private String failureCause = null;
@@ -19,7 +22,8 @@ public class JsonTest implements NyzoTest {
 
         RunMode.setRunMode(RunMode.Test);
         JsonTest test = new JsonTest();
-        boolean successful = test.run();
+        boolean successful = test.run() && test.benchmark(1000) && test.benchmark(100000) &&
+                test.benchmark(10000000);
 
         if (!successful) {
             System.out.println(TestUtil.failureCause(test.getFailureCause()));
@@ -38,6 +42,9 @@ public class JsonTest implements NyzoTest {
             if (successful) {
                 successful = testNumericalArrays();
             }
+            if (successful) {
+                successful = testStreaming();
+            }
         } catch (Exception e) {
             failureCause = "exception in " + getClass().getSimpleName() + ": " + PrintUtil.printException(e);
             successful = false;
@@ -378,4 +385,143 @@ public class JsonTest implements NyzoTest {
 
         return successful;
     }
+
+    private boolean testStreaming() {
+
+        // Build a document with nesting, escapes, and multi-byte characters, and render it to bytes.
+        Map<String, Object> innerMap = new HashMap<>();
+        innerMap.put("quote", "a \"quoted\" value with a \\ and a / and\ttabs\nand newlines");
+        innerMap.put("unicode", "∩1.5 \uD83D\uDE00");
+        innerMap.put("empty", "");
+        List<Object> list = new ArrayList<>(Arrays.asList("1", "-2.5", "three", new JsonObject(innerMap),
+                new JsonArray(new ArrayList<>())));
+        Map<String, Object> map = new HashMap<>();
+        map.put("list", new JsonArray(list));
+        map.put("name with \"quotes\"", "value");
+        JsonObject document = new JsonObject(map);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        JsonRenderer.writeJson(document, outputStream);
+        byte[] bytes = outputStream.toByteArray();
+        String expectedJson = document.renderJson();
+
+        boolean successful = true;
+        if (!expectedJson.equals(new String(bytes, StandardCharsets.UTF_8))) {
+            successful = false;
+            failureCause = "testStreaming(): stream rendering does not match string rendering";
+        }
+
+        // Parse from a stream that returns one byte per read, so that every token crosses a buffer boundary, and
+        // from a buffer. Both must render back to the same JSON.
+        if (successful) {
+            InputStream slowStream = new ByteArrayInputStream(bytes) {
+                @Override
+                public synchronized int read(byte[] buffer, int offset, int length) {
+                    return super.read(buffer, offset, Math.min(length, 1));
+                }
+            };
+            Object[] parsed = { Json.parse(slowStream), Json.parse(ByteBuffer.wrap(bytes)), Json.parse(expectedJson) };
+            for (int i = 0; i < parsed.length && successful; i++) {
+                String actualJson = parsed[i] instanceof JsonObject ? ((JsonObject) parsed[i]).renderJson() : null;
+                if (!expectedJson.equals(actualJson)) {
+                    successful = false;
+                    failureCause = "testStreaming(): parse " + i + " rendered incorrectly, expected: " +
+                            expectedJson + ", actual: " + actualJson;
+                }
+            }
+        }
+
+        // Check the decoded values directly.
+        if (successful) {
+            JsonObject parsedInner = Json.traverseGetObject(Json.parse(bytes), "list", 3);
+            if (parsedInner == null || !innerMap.get("quote").equals(parsedInner.get("quote")) ||
+                    !innerMap.get("unicode").equals(parsedInner.get("unicode"))) {
+                successful = false;
+                failureCause = "testStreaming(): escaped strings were not decoded correctly: " + parsedInner;
+            }
+        }
+
+        // Malformed input must produce null rather than a partial result.
+        if (successful && (Json.parse("{\"key\":") != null || Json.parse("[1, 2") != null)) {
+            successful = false;
+            failureCause = "testStreaming(): malformed input did not produce null";
+        }
+
+        return successful;
+    }
+
+    public boolean benchmark(int documentSize) {
+
+        // This measures parsing and rendering throughput for a document of approximately the specified size. Each
+        // operation is repeated, and the best time is kept, to reduce the effect of class loading and JIT
+        // compilation.
+        boolean successful = true;
+        try {
+            List<Object> records = new ArrayList<>();
+            Random random = new Random(documentSize);
+            int length = 0;
+            while (length < documentSize) {
+                Map<String, Object> record = new HashMap<>();
+                record.put("height", random.nextInt(Integer.MAX_VALUE) + "");
+                record.put("identifier", PrintUtil.compactPrintByteArray(randomBytes(random, 32)));
+                record.put("amount", "∩" + random.nextInt(1000000) / 1000.0);
+                record.put("forwarded", random.nextBoolean() + "");
+                record.put("data", Arrays.asList(random.nextLong() + "", random.nextLong() + ""));
+                JsonObject recordObject = new JsonObject(record);
+                records.add(recordObject);
+                length += recordObject.renderJson().length() + 1;
+            }
+            JsonArray document = new JsonArray(records);
+            String json = document.renderJson();
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+
+            int iterations = Math.max(3, 20000000 / documentSize);
+            int maximumStringLength = Json.maximumJsonStringLength;
+            Json.maximumJsonStringLength = Integer.MAX_VALUE;
+            long stringParseNanoseconds = Long.MAX_VALUE;
+            long byteParseNanoseconds = Long.MAX_VALUE;
+            long streamParseNanoseconds = Long.MAX_VALUE;
+            long renderNanoseconds = Long.MAX_VALUE;
+            for (int i = 0; i < iterations && successful; i++) {
+                long startTimestamp = System.nanoTime();
+                Object stringResult = Json.parse(json);
+                stringParseNanoseconds = Math.min(stringParseNanoseconds, System.nanoTime() - startTimestamp);
+
+                startTimestamp = System.nanoTime();
+                Object byteResult = Json.parse(bytes);
+                byteParseNanoseconds = Math.min(byteParseNanoseconds, System.nanoTime() - startTimestamp);
+
+                startTimestamp = System.nanoTime();
+                Json.parse(new ByteArrayInputStream(bytes));
+                streamParseNanoseconds = Math.min(streamParseNanoseconds, System.nanoTime() - startTimestamp);
+
+                startTimestamp = System.nanoTime();
+                JsonRenderer.writeJson(document, new ByteArrayOutputStream(bytes.length));
+                renderNanoseconds = Math.min(renderNanoseconds, System.nanoTime() - startTimestamp);
+
+                if (!(stringResult instanceof JsonArray) || ((JsonArray) stringResult).length() != records.size() ||
+                        !(byteResult instanceof JsonArray) || ((JsonArray) byteResult).length() != records.size()) {
+                    successful = false;
+                    failureCause = "benchmark parse of " + bytes.length + "-byte document was incorrect";
+                }
+            }
+            Json.maximumJsonStringLength = maximumStringLength;
+
+            System.out.println(String.format("%d-byte document: parse string %.3f ms, parse bytes %.3f ms, parse " +
+                    "stream %.3f ms, render %.3f ms", bytes.length, stringParseNanoseconds / 1000000.0,
+                    byteParseNanoseconds / 1000000.0, streamParseNanoseconds / 1000000.0,
+                    renderNanoseconds / 1000000.0));
+        } catch (Exception e) {
+            failureCause = "exception in JsonTest.benchmark(): " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        return successful;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
 }
@@ -0,0 +1,186 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.KeyValueJournal;
+import co.nyzo.verifier.RunMode;
+import co.nyzo.verifier.util.FileUtil;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class KeyValueJournalTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        KeyValueJournalTest test = new KeyValueJournalTest();
+        boolean successful = test.run() && test.benchmark();
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("nyzo_journal_test").toFile();
+            File snapshotFile = new File(directory, "data");
+            File journalFile = new File(directory, "data_journal");
+
+            // Write values, flush, and abandon the journal without closing it to simulate a crash. Then, append a
+            // torn record, as would be left by a write interrupted partway through.
+            KeyValueJournal journal = new KeyValueJournal(snapshotFile, journalFile, 10L);
+            for (int i = 0; i < 100; i++) {
+                journal.put("key_" + (i % 10), i + "");
+            }
+            journal.flush();
+            appendBytes(journalFile, "1234abcd key_0=torn".getBytes(StandardCharsets.UTF_8));
+
+            KeyValueJournal recovered = new KeyValueJournal(snapshotFile, journalFile, 10L);
+            for (int i = 0; i < 10 && successful; i++) {
+                String expected = (90 + i) + "";
+                String actual = recovered.get("key_" + i);
+                if (!expected.equals(actual)) {
+                    successful = false;
+                    failureCause = "after crash, key_" + i + " expected=" + expected + ", actual=" + actual;
+                }
+            }
+
+            // The torn record must have been truncated, so records written after recovery are also recovered.
+            if (successful) {
+                recovered.put("key_after_recovery", "1");
+                recovered.flush();
+                KeyValueJournal reopened = new KeyValueJournal(snapshotFile, journalFile, 10L);
+                if (!"1".equals(reopened.get("key_after_recovery")) || !"90".equals(reopened.get("key_0"))) {
+                    successful = false;
+                    failureCause = "record written after recovery was not replayed";
+                }
+            }
+
+            // A record with an incorrect checksum, and everything after it, must be discarded.
+            if (successful) {
+                appendBytes(journalFile, ("00000000 key_1=corrupt\n" + lineWithValidChecksum("key_2", "after"))
+                        .getBytes(StandardCharsets.UTF_8));
+                KeyValueJournal reopened = new KeyValueJournal(snapshotFile, journalFile, 10L);
+                if (!"91".equals(reopened.get("key_1")) || !"92".equals(reopened.get("key_2"))) {
+                    successful = false;
+                    failureCause = "corrupt record was applied: key_1=" + reopened.get("key_1") + ", key_2=" +
+                            reopened.get("key_2");
+                }
+            }
+
+            // Enough puts to trigger compaction must move the data to the snapshot and shrink the journal.
+            if (successful) {
+                KeyValueJournal compacting = new KeyValueJournal(snapshotFile, journalFile, 10L);
+                for (int i = 0; i < 5000; i++) {
+                    compacting.put("compaction_key_" + (i % 5), i + "");
+                    if (i % 10 == 0) {
+                        compacting.flush();
+                    }
+                }
+                compacting.close();
+
+                Map<String, String> expected = compacting.getAll();
+                KeyValueJournal reopened = new KeyValueJournal(snapshotFile, journalFile, 10L);
+                if (!expected.equals(reopened.getAll())) {
+                    successful = false;
+                    failureCause = "contents after compaction do not match: expected=" + expected + ", actual=" +
+                            reopened.getAll();
+                } else if (!snapshotFile.exists() || reopened.getJournalRecordCount() >= 1000) {
+                    successful = false;
+                    failureCause = "journal was not compacted, record count=" + reopened.getJournalRecordCount();
+                }
+            }
+
+        } catch (Exception e) {
+            failureCause = "exception in KeyValueJournalTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        if (directory != null) {
+            FileUtil.delete(directory);
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    public boolean benchmark() {
+
+        // This compares put throughput of the journal to the previous approach of rewriting the entire file on each
+        // put. The journal is flushed at the end so that its figure includes the time to make the data durable.
+        boolean successful = true;
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("nyzo_journal_benchmark").toFile();
+            int numberOfKeys = 20;
+
+            KeyValueJournal journal = new KeyValueJournal(new File(directory, "data"),
+                    new File(directory, "data_journal"), 50L);
+            int journalPuts = 200000;
+            long startTimestamp = System.nanoTime();
+            for (int i = 0; i < journalPuts; i++) {
+                journal.put("key_" + (i % numberOfKeys), i + "");
+            }
+            journal.flush();
+            double journalSeconds = (System.nanoTime() - startTimestamp) / 1.0e9;
+            journal.close();
+
+            File rewriteFile = new File(directory, "rewrite");
+            int rewritePuts = 500;
+            startTimestamp = System.nanoTime();
+            for (int i = 0; i < rewritePuts; i++) {
+                List<String> lines = new ArrayList<>();
+                for (int j = 0; j < numberOfKeys; j++) {
+                    lines.add("key_" + j + "=" + i);
+                }
+                FileUtil.writeFile(Paths.get(rewriteFile.getAbsolutePath()), lines);
+            }
+            double rewriteSeconds = (System.nanoTime() - startTimestamp) / 1.0e9;
+
+            System.out.println(String.format("journal: %.0f puts/sec, full rewrite: %.0f puts/sec",
+                    journalPuts / journalSeconds, rewritePuts / rewriteSeconds));
+        } catch (Exception e) {
+            failureCause = "exception in KeyValueJournalTest.benchmark(): " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        if (directory != null) {
+            FileUtil.delete(directory);
+        }
+
+        return successful;
+    }
+
+    private static void appendBytes(File file, byte[] bytes) throws Exception {
+
+        FileOutputStream outputStream = new FileOutputStream(file, true);
+        outputStream.write(bytes);
+        outputStream.close();
+    }
+
+    private static String lineWithValidChecksum(String key, String value) {
+
+        CRC32 crc = new CRC32();
+        String record = key + "=" + value;
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x %s\n", crc.getValue(), record);
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
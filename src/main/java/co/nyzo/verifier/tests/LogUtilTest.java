@@ -0,0 +1,145 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.RunMode;
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+public class LogUtilTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        LogUtilTest test = new LogUtilTest();
+        boolean successful = test.run() && test.benchmark(1000000);
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        PrintStream standardOutput = System.out;
+        try {
+            // Lines passed as a format and arguments are formatted when written, and consecutive duplicates are
+            // reported as a count.
+            long marker = System.nanoTime();
+            LogUtil.println("LogUtilTest %d: %s", marker, "first");
+            for (int i = 0; i < 50; i++) {
+                LogUtil.println("LogUtilTest " + marker + ": repeated");
+            }
+            LogUtil.println("LogUtilTest " + marker + ": last");
+            LogUtil.flush();
+
+            List<String> lines = LogUtil.getRecentLines();
+            int index = lines.indexOf("LogUtilTest " + marker + ": first");
+            if (index < 0 || index + 3 >= lines.size() ||
+                    !lines.get(index + 1).equals("LogUtilTest " + marker + ": repeated") ||
+                    !lines.get(index + 2).equals("[previous line repeated 49 times]") ||
+                    !lines.get(index + 3).equals("LogUtilTest " + marker + ": last")) {
+                successful = false;
+                failureCause = "unexpected recent lines: " + lines;
+            }
+
+            // With an output stream that stalls, logging must still return promptly, dropping lines when the ring is
+            // full.
+            if (successful) {
+                System.setOut(new PrintStream(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                        stall();
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        stall();
+                    }
+                }));
+                long droppedBefore = LogUtil.getNumberOfLinesDropped();
+                long startTimestamp = System.currentTimeMillis();
+                for (int i = 0; i < 100000; i++) {
+                    LogUtil.println("LogUtilTest stalled output line %d", i);
+                }
+                long elapsed = System.currentTimeMillis() - startTimestamp;
+                System.setOut(discardingStream());
+
+                if (elapsed > 1000L) {
+                    successful = false;
+                    failureCause = "logging 100000 lines with stalled output took " + elapsed + " ms";
+                } else if (LogUtil.getNumberOfLinesDropped() == droppedBefore) {
+                    successful = false;
+                    failureCause = "no lines were dropped with stalled output";
+                }
+                LogUtil.flush();
+                System.setOut(standardOutput);
+            }
+        } catch (Exception e) {
+            failureCause = "exception in LogUtilTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+        System.setOut(standardOutput);
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    public boolean benchmark(int numberOfLines) {
+
+        // This compares formatting and writing each line on the calling thread, as LogUtil previously did, to logging
+        // through the ring. Output is discarded, so the measurement is of the logging itself.
+        PrintStream standardOutput = System.out;
+        System.setOut(discardingStream());
+        long startTimestamp = System.nanoTime();
+        for (int i = 0; i < numberOfLines; i++) {
+            System.out.println(String.format("benchmark line %d of %d", i, numberOfLines));
+        }
+        long synchronousNanoseconds = System.nanoTime() - startTimestamp;
+
+        long droppedBefore = LogUtil.getNumberOfLinesDropped();
+        startTimestamp = System.nanoTime();
+        for (int i = 0; i < numberOfLines; i++) {
+            LogUtil.println("benchmark line %d of %d", i, numberOfLines);
+        }
+        long callerNanoseconds = System.nanoTime() - startTimestamp;
+        LogUtil.flush();
+        long totalNanoseconds = System.nanoTime() - startTimestamp;
+        System.setOut(standardOutput);
+
+        long numberOfLinesDropped = LogUtil.getNumberOfLinesDropped() - droppedBefore;
+        System.out.println(String.format("synchronous: %.0f ns/line; ring: %.0f ns/line on the caller, %.0f lines/s " +
+                        "written, %d of %d dropped", synchronousNanoseconds / (double) numberOfLines,
+                callerNanoseconds / (double) numberOfLines,
+                (numberOfLines - numberOfLinesDropped) * 1000000000.0 / totalNanoseconds, numberOfLinesDropped,
+                numberOfLines));
+
+        return true;
+    }
+
+    private static PrintStream discardingStream() {
+        return new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) { }
+
+            @Override
+            public void write(byte[] b, int off, int len) { }
+        });
+    }
+
+    private static void stall() {
+        try {
+            Thread.sleep(200L);
+        } catch (Exception ignored) { }
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
@@ -0,0 +1,145 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.RunMode;
+import co.nyzo.verifier.metrics.LatencyHistogram;
+import co.nyzo.verifier.metrics.MetricsCounter;
+import co.nyzo.verifier.metrics.MetricsRegistry;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class MetricsRegistryTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        MetricsRegistryTest test = new MetricsRegistryTest();
+        boolean successful = test.run() && test.benchmark(10000000);
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        try {
+            // Values spread over several orders of magnitude are recorded, and each reported quantile must be within
+            // the resolution of the histogram of the exact quantile.
+            LatencyHistogram histogram = MetricsRegistry.histogram("nyzo_test_seconds", "case", "quantiles");
+            Random random = new Random(4242);
+            long[] values = new long[100000];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (long) Math.exp(random.nextDouble() * 20.0);
+                histogram.record(values[i]);
+            }
+            Arrays.sort(values);
+            for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+                long expected = values[(int) Math.ceil(quantile * values.length) - 1];
+                long actual = histogram.valueAtQuantile(quantile);
+                if (actual < expected || actual > expected * 1.04 + 1) {
+                    successful = false;
+                    failureCause = "quantile " + quantile + " expected about " + expected + ", actual=" + actual;
+                }
+            }
+            if (successful && histogram.getMaximum() != values[values.length - 1]) {
+                successful = false;
+                failureCause = "maximum expected=" + values[values.length - 1] + ", actual=" +
+                        histogram.getMaximum();
+            }
+
+            // Registering the same name and label must return the same object.
+            MetricsCounter counter = MetricsRegistry.counter("nyzo_test_total");
+            counter.add(5L);
+            MetricsRegistry.counter("nyzo_test_total").increment();
+            if (successful && counter.get() != 6L) {
+                successful = false;
+                failureCause = "counter registered twice did not share its value: " + counter.get();
+            }
+
+            // Recording must not allocate once the histogram and counter exist. The earlier passes warm up the
+            // measurement and the compiled code, and the last pass is measured. The allocation of the measurement itself
+            // is subtracted.
+            long allocatedBytes = 0L;
+            for (int pass = 0; pass < 5; pass++) {
+                long measurementBytes = -allocatedBytes() + allocatedBytes();
+                allocatedBytes = allocatedBytes();
+                for (int i = 0; i < 50000; i++) {
+                    histogram.record(i * 37L);
+                    counter.increment();
+                }
+                allocatedBytes = allocatedBytes() - allocatedBytes - measurementBytes;
+            }
+            if (successful && allocatedBytes > 1024L) {
+                successful = false;
+                failureCause = "recording allocated " + allocatedBytes + " bytes";
+            }
+
+            // The scrape must include the type line, the quantiles, the sum, and the count.
+            List<String> lines = MetricsRegistry.scrapeLines();
+            if (successful && (!lines.contains("# TYPE nyzo_test_seconds summary") ||
+                    !lines.contains("nyzo_test_seconds_count{case=\"quantiles\"} 350000") ||
+                    !lines.contains("nyzo_test_total 250006") ||
+                    !containsPrefix(lines, "nyzo_test_seconds{case=\"quantiles\",quantile=\"0.99\"} "))) {
+                successful = false;
+                failureCause = "scrape is missing expected lines: " + lines;
+            }
+        } catch (Exception e) {
+            failureCause = "exception in MetricsRegistryTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    public boolean benchmark(int numberOfValues) {
+
+        LatencyHistogram histogram = MetricsRegistry.histogram("nyzo_test_seconds", "case", "benchmark");
+        for (int pass = 0; pass < 2; pass++) {
+            long startTimestamp = System.nanoTime();
+            for (int i = 0; i < numberOfValues; i++) {
+                histogram.recordSince(startTimestamp);
+            }
+            long elapsed = System.nanoTime() - startTimestamp;
+            if (pass > 0) {
+                System.out.println(String.format("%.1f ns per recorded value", elapsed / (double) numberOfValues));
+            }
+        }
+
+        return true;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long allocatedBytes() {
+
+        long allocatedBytes = 0L;
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            allocatedBytes = ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return allocatedBytes;
+    }
+
+    private static boolean containsPrefix(List<String> lines, String prefix) {
+
+        boolean contains = false;
+        for (String line : lines) {
+            contains |= line.startsWith(prefix);
+        }
+
+        return contains;
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
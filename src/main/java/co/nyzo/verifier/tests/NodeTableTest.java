@@ -0,0 +1,230 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.ByteUtil;
+import co.nyzo.verifier.FieldByteSize;
+import co.nyzo.verifier.Node;
+import co.nyzo.verifier.NodeTable;
+import co.nyzo.verifier.RunMode;
+import co.nyzo.verifier.util.FileUtil;
+import co.nyzo.verifier.util.IpUtil;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.*;
+
+public class NodeTableTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        NodeTableTest test = new NodeTableTest();
+        boolean successful = test.run() && test.benchmark(10000) && test.benchmark(100000);
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("nyzo_node_table_test").toFile();
+            File tableFile = new File(directory, "node_table");
+
+            // Write enough nodes to require growth of the table, then reload and compare.
+            List<Node> nodes = createNodes(3000, new Random(1));
+            NodeTable table = new NodeTable(tableFile);
+            table.load();
+            int recordsWritten = table.update(nodes);
+            table.close();
+            if (recordsWritten != nodes.size()) {
+                successful = false;
+                failureCause = "expected " + nodes.size() + " records written, actual=" + recordsWritten;
+            }
+
+            NodeTable reopened = new NodeTable(tableFile);
+            if (successful) {
+                successful = nodesMatch(nodes, reopened.load(), "after initial write");
+            }
+
+            // Change one node and remove another. Only those two records should be written.
+            if (successful) {
+                nodes.get(10).setQueueTimestamp(nodes.get(10).getQueueTimestamp() + 1L);
+                nodes.remove(20);
+                recordsWritten = reopened.update(nodes);
+                reopened.close();
+                if (recordsWritten != 2) {
+                    successful = false;
+                    failureCause = "expected 2 records written for incremental update, actual=" + recordsWritten;
+                } else {
+                    successful = nodesMatch(nodes, new NodeTable(tableFile).load(), "after incremental update");
+                }
+            }
+
+            // Damage one record, as an interrupted write would. Only that node should be lost.
+            if (successful) {
+                RandomAccessFile file = new RandomAccessFile(tableFile, "rw");
+                file.seek(16 + 5 * NodeTable.recordSize + 40);
+                file.write(0xff);
+                file.close();
+                List<Node> loadedNodes = new NodeTable(tableFile).load();
+                if (loadedNodes.size() != nodes.size() - 1) {
+                    successful = false;
+                    failureCause = "expected " + (nodes.size() - 1) + " nodes after damaging a record, actual=" +
+                            loadedNodes.size();
+                }
+            }
+
+            // The text format must load to the same nodes for migration.
+            if (successful) {
+                File textFile = new File(directory, "nodes");
+                writeTextFile(nodes, textFile);
+                successful = nodesMatch(nodes, NodeTable.loadTextFile(textFile), "from text file");
+            }
+
+        } catch (Exception e) {
+            failureCause = "exception in NodeTableTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        if (directory != null) {
+            FileUtil.delete(directory);
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    public boolean benchmark(int numberOfNodes) {
+
+        // This compares the startup load time of the binary node table to the text format it replaces.
+        boolean successful = true;
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("nyzo_node_table_benchmark").toFile();
+            List<Node> nodes = createNodes(numberOfNodes, new Random(numberOfNodes));
+
+            File textFile = new File(directory, "nodes");
+            writeTextFile(nodes, textFile);
+            File tableFile = new File(directory, "node_table");
+            NodeTable table = new NodeTable(tableFile);
+            table.load();
+            table.update(nodes);
+            table.close();
+
+            // Run each load several times and keep the best time, to reduce the effect of class loading and JIT
+            // compilation on the comparison.
+            long textNanoseconds = Long.MAX_VALUE;
+            long tableNanoseconds = Long.MAX_VALUE;
+            for (int i = 0; i < 5; i++) {
+                long startTimestamp = System.nanoTime();
+                int textCount = NodeTable.loadTextFile(textFile).size();
+                textNanoseconds = Math.min(textNanoseconds, System.nanoTime() - startTimestamp);
+
+                startTimestamp = System.nanoTime();
+                NodeTable loadTable = new NodeTable(tableFile);
+                int tableCount = loadTable.load().size();
+                loadTable.close();
+                tableNanoseconds = Math.min(tableNanoseconds, System.nanoTime() - startTimestamp);
+
+                if (textCount != numberOfNodes || tableCount != numberOfNodes) {
+                    successful = false;
+                    failureCause = "benchmark loaded incorrect number of nodes: text=" + textCount + ", table=" +
+                            tableCount;
+                }
+            }
+
+            System.out.println(String.format("%d nodes: text load %.1f ms (%d bytes), table load %.1f ms (%d bytes)",
+                    numberOfNodes, textNanoseconds / 1000000.0, textFile.length(), tableNanoseconds / 1000000.0,
+                    tableFile.length()));
+        } catch (Exception e) {
+            failureCause = "exception in NodeTableTest.benchmark(): " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        if (directory != null) {
+            FileUtil.delete(directory);
+        }
+
+        return successful;
+    }
+
+    private boolean nodesMatch(List<Node> expectedNodes, List<Node> actualNodes, String description) {
+
+        boolean successful = expectedNodes.size() == actualNodes.size();
+        if (!successful) {
+            failureCause = description + ": expected " + expectedNodes.size() + " nodes, actual=" +
+                    actualNodes.size();
+        }
+
+        Map<String, Node> actualMap = new HashMap<>();
+        for (Node node : actualNodes) {
+            actualMap.put(IpUtil.addressAsString(node.getIpAddress()), node);
+        }
+        for (int i = 0; i < expectedNodes.size() && successful; i++) {
+            Node expected = expectedNodes.get(i);
+            Node actual = actualMap.get(IpUtil.addressAsString(expected.getIpAddress()));
+            if (actual == null || !ByteUtil.arraysAreEqual(expected.getIdentifier(), actual.getIdentifier()) ||
+                    expected.getPortTcp() != actual.getPortTcp() || expected.getPortUdp() != actual.getPortUdp() ||
+                    expected.getQueueTimestamp() != actual.getQueueTimestamp() ||
+                    expected.getInactiveTimestamp() != actual.getInactiveTimestamp()) {
+                successful = false;
+                failureCause = description + ": mismatch for node " + expected + ", actual=" + actual;
+            }
+        }
+
+        return successful;
+    }
+
+    private static List<Node> createNodes(int numberOfNodes, Random random) {
+
+        List<Node> nodes = new ArrayList<>();
+        Set<Integer> ipAddresses = new HashSet<>();
+        while (nodes.size() < numberOfNodes) {
+            int ipAddressValue = random.nextInt();
+            if (ipAddresses.add(ipAddressValue)) {
+                byte[] identifier = new byte[FieldByteSize.identifier];
+                random.nextBytes(identifier);
+                byte[] ipAddress = new byte[] { (byte) (ipAddressValue >> 24), (byte) (ipAddressValue >> 16),
+                        (byte) (ipAddressValue >> 8), (byte) ipAddressValue };
+                Node node = new Node(identifier, ipAddress, 9444, random.nextBoolean() ? 9446 : -1);
+                node.setQueueTimestamp(1500000000000L + random.nextInt(Integer.MAX_VALUE));
+                node.setInactiveTimestamp(random.nextInt(4) == 0 ? 1600000000000L + random.nextInt(1000000) : -1L);
+                nodes.add(node);
+            }
+        }
+
+        return nodes;
+    }
+
+    private static void writeTextFile(List<Node> nodes, File file) throws Exception {
+
+        // This is the format of the node file written by previous versions of NodeManager.
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        String separator = "";
+        for (Node node : nodes) {
+            writer.write(separator + ByteUtil.arrayAsStringWithDashes(node.getIdentifier()) + ":" +
+                    IpUtil.addressAsString(node.getIpAddress()) + ":" +
+                    node.getPortTcp() + ":" +
+                    node.getPortUdp() + ":" +
+                    node.getQueueTimestamp() + ":" +
+                    "0:" +
+                    node.getInactiveTimestamp());
+            separator = "\n";
+        }
+        writer.close();
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
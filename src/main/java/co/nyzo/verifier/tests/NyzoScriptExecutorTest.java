@@ -0,0 +1,245 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.FieldByteSize;
+import co.nyzo.verifier.RunMode;
+import co.nyzo.verifier.Transaction;
+import co.nyzo.verifier.nyzoScript.*;
+import co.nyzo.verifier.nyzoScript.scripts.GraffitiScript;
+import co.nyzo.verifier.nyzoScript.scripts.NicknameScript;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class NyzoScriptExecutorTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        NyzoScriptExecutorTest test = new NyzoScriptExecutorTest();
+        boolean successful = test.run() && test.benchmark(3000);
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        NyzoScriptExecutor executor = new NyzoScriptExecutor(4, 200L, 32L * 1024L * 1024L, 1000L);
+        try {
+            // A script that spins and a script that allocates without limit are mixed with well-behaved scripts. The
+            // runaway scripts must be cancelled without holding the batch, and all other scripts must complete.
+            NyzoScript spinningScript = new NyzoScript() {
+                @Override
+                public NyzoScriptState update(NyzoScriptState inputState, List<Transaction> transactions) {
+                    long counter = 0L;
+                    while (!Thread.currentThread().isInterrupted()) {
+                        counter++;
+                    }
+                    return new NyzoScriptState(NyzoScriptStateContentType.Binary, ByteBuffer.allocate(8)
+                            .putLong(counter).array());
+                }
+            };
+            NyzoScript allocatingScript = new NyzoScript() {
+                @Override
+                public NyzoScriptState update(NyzoScriptState inputState, List<Transaction> transactions) {
+                    byte[][] arrays = new byte[8][];
+                    for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+                        arrays[i % arrays.length] = new byte[1024 * 1024];
+                    }
+                    return new NyzoScriptState(NyzoScriptStateContentType.Binary, arrays[0]);
+                }
+            };
+
+            List<NyzoScriptExecutor.Task> tasks = new ArrayList<>();
+            ByteBuffer spinningAccount = account(-1);
+            ByteBuffer allocatingAccount = account(-2);
+            tasks.add(new NyzoScriptExecutor.Task(spinningAccount, spinningScript, null, Collections.emptyList()));
+            tasks.add(new NyzoScriptExecutor.Task(allocatingAccount, allocatingScript, null,
+                    Collections.emptyList()));
+            NicknameScript nicknameScript = new NicknameScript();
+            for (int i = 0; i < 100; i++) {
+                tasks.add(new NyzoScriptExecutor.Task(account(i), nicknameScript, null,
+                        Collections.singletonList(transaction(i, "nickname " + i))));
+            }
+
+            long startTimestamp = System.currentTimeMillis();
+            Map<ByteBuffer, NyzoScriptState> results = executor.execute(tasks);
+            long elapsed = System.currentTimeMillis() - startTimestamp;
+
+            if (results.containsKey(spinningAccount) || results.containsKey(allocatingAccount)) {
+                successful = false;
+                failureCause = "results of scripts exceeding their budgets were not discarded";
+            } else if (results.size() != 100) {
+                successful = false;
+                failureCause = "expected 100 results from well-behaved scripts, actual=" + results.size();
+            } else if (elapsed > 1500L) {
+                successful = false;
+                failureCause = "batch took " + elapsed + " ms; runaway scripts were not cancelled promptly";
+            }
+
+            // Both runaway scripts must be recorded as budget violations once they have stopped.
+            for (int i = 0; i < 100 && successful && (executor.metricsForAccount(spinningAccount)
+                    .getNumberOfExecutions() == 0 || executor.metricsForAccount(allocatingAccount)
+                    .getNumberOfExecutions() == 0); i++) {
+                Thread.sleep(10L);
+            }
+            if (successful && (executor.metricsForAccount(spinningAccount).getNumberOfBudgetViolations() != 1 ||
+                    executor.metricsForAccount(allocatingAccount).getNumberOfBudgetViolations() != 1)) {
+                successful = false;
+                failureCause = "budget violations were not recorded: spinning=" +
+                        executor.metricsForAccount(spinningAccount) + ", allocating=" +
+                        executor.metricsForAccount(allocatingAccount);
+            }
+            if (successful && executor.metricsForAccount(account(0)).getNumberOfExecutions() != 1) {
+                successful = false;
+                failureCause = "execution of well-behaved script was not recorded: " +
+                        executor.metricsForAccount(account(0));
+            }
+        } catch (Exception e) {
+            failureCause = "exception in NyzoScriptExecutorTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+        executor.shutdown();
+
+        // The wall-clock limit is measured from the start of each update. With one thread, three updates that each
+        // take most of the limit must all complete, even though the last waits longer than the limit for the thread.
+        if (successful) {
+            NyzoScriptExecutor singleThreadExecutor = new NyzoScriptExecutor(1, 1000L, 32L * 1024L * 1024L, 400L);
+            NyzoScript sleepingScript = new NyzoScript() {
+                @Override
+                public NyzoScriptState update(NyzoScriptState inputState, List<Transaction> transactions) {
+                    try {
+                        Thread.sleep(250L);
+                    } catch (InterruptedException ignored) { }
+                    return new NyzoScriptState(NyzoScriptStateContentType.Binary, new byte[1]);
+                }
+            };
+            List<NyzoScriptExecutor.Task> tasks = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                tasks.add(new NyzoScriptExecutor.Task(account(-10 - i), sleepingScript, null,
+                        Collections.emptyList()));
+            }
+            Map<ByteBuffer, NyzoScriptState> results = singleThreadExecutor.execute(tasks);
+            singleThreadExecutor.shutdown();
+            if (results.size() != 3) {
+                successful = false;
+                failureCause = "time waiting for a thread was counted against the wall-clock limit; expected 3 " +
+                        "results, actual=" + results.size();
+            } else if (singleThreadExecutor.getNumberOfExecutions() != 3 ||
+                    singleThreadExecutor.getNumberOfBudgetViolations() != 0) {
+                successful = false;
+                failureCause = "executor totals were not correct: executions=" +
+                        singleThreadExecutor.getNumberOfExecutions() + ", budget violations=" +
+                        singleThreadExecutor.getNumberOfBudgetViolations();
+            }
+        }
+
+        // Without budgets, as used for frozen blocks, a script that runs longer than the limits above must complete.
+        if (successful) {
+            NyzoScriptExecutor unboundedExecutor = new NyzoScriptExecutor(1);
+            NyzoScript slowScript = new NyzoScript() {
+                @Override
+                public NyzoScriptState update(NyzoScriptState inputState, List<Transaction> transactions) {
+                    long endTimestamp = System.currentTimeMillis() + 1200L;
+                    long counter = 0L;
+                    while (System.currentTimeMillis() < endTimestamp) {
+                        counter++;
+                    }
+                    return new NyzoScriptState(NyzoScriptStateContentType.Binary, ByteBuffer.allocate(8)
+                            .putLong(counter).array());
+                }
+            };
+            ByteBuffer slowAccount = account(-3);
+            Map<ByteBuffer, NyzoScriptState> results = unboundedExecutor.execute(Collections.singletonList(
+                    new NyzoScriptExecutor.Task(slowAccount, slowScript, null, Collections.emptyList())));
+            unboundedExecutor.shutdown();
+            if (!results.containsKey(slowAccount)) {
+                successful = false;
+                failureCause = "script without budgets was not run to completion";
+            }
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    public boolean benchmark(int numberOfAccounts) {
+
+        // This registers a script for each of many accounts, one in ten a graffiti script and the rest nickname
+        // scripts, and measures the end-to-end latency of two rounds of updates with one thread and with a pool. The
+        // second round starts from the states produced by the first, as the script manager does for new transactions.
+        boolean successful = true;
+        try {
+            // The first pass is a warm-up to reduce the effect of JIT compilation, and it is not reported.
+            int numberOfThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            int[] threadCounts = { numberOfThreads, 1, numberOfThreads };
+            for (int pass = 0; pass < threadCounts.length; pass++) {
+                int threads = threadCounts[pass];
+                NyzoScriptExecutor executor = new NyzoScriptExecutor(threads, 1000L, 1024L * 1024L * 1024L, 5000L);
+                Map<ByteBuffer, NyzoScriptState> states = new HashMap<>();
+                long totalNanoseconds = 0L;
+                for (int round = 0; round < 2; round++) {
+                    List<NyzoScriptExecutor.Task> tasks = new ArrayList<>();
+                    GraffitiScript graffitiScript = new GraffitiScript();
+                    NicknameScript nicknameScript = new NicknameScript();
+                    for (int i = 0; i < numberOfAccounts; i++) {
+                        ByteBuffer account = account(i);
+                        List<Transaction> transactions = new ArrayList<>();
+                        for (int j = 0; j < 5; j++) {
+                            transactions.add(transaction(i * 10 + round * 5 + j, i % 10 == 0 ? "\u0001\u0002\u0003" +
+                                    j : "name " + i + "/" + j));
+                        }
+                        tasks.add(new NyzoScriptExecutor.Task(account, i % 10 == 0 ? graffitiScript : nicknameScript,
+                                states.get(account), transactions));
+                    }
+
+                    long startTimestamp = System.nanoTime();
+                    states = executor.execute(tasks);
+                    totalNanoseconds += System.nanoTime() - startTimestamp;
+
+                    if (states.size() != numberOfAccounts) {
+                        successful = false;
+                        failureCause = "benchmark produced " + states.size() + " states for " + numberOfAccounts +
+                                " accounts";
+                    }
+                }
+                executor.shutdown();
+
+                if (pass > 0) {
+                    System.out.println(String.format("%d scripts, %d thread%s: %.1f ms for two rounds",
+                            numberOfAccounts, threads, threads == 1 ? "" : "s", totalNanoseconds / 1000000.0));
+                }
+            }
+        } catch (Exception e) {
+            failureCause = "exception in NyzoScriptExecutorTest.benchmark(): " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        return successful;
+    }
+
+    private static ByteBuffer account(int index) {
+        return ByteBuffer.wrap(ByteBuffer.allocate(FieldByteSize.identifier).putInt(index).array());
+    }
+
+    private static Transaction transaction(int index, String senderData) {
+
+        byte[] signature = new byte[FieldByteSize.signature];
+        ByteBuffer.wrap(signature).putInt(index);
+        byte[] sender = new byte[FieldByteSize.identifier];
+        ByteBuffer.wrap(sender).putInt(index % 1000);
+        return Transaction.standardTransaction(1600000000000L + index, 2000000L, new byte[FieldByteSize.identifier],
+                0L, new byte[FieldByteSize.hash], sender, senderData.getBytes(StandardCharsets.UTF_8), signature);
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
@@ -0,0 +1,175 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.util.IpUtil;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class PeerQualityTrackerTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        PeerQualityTrackerTest test = new PeerQualityTrackerTest();
+        boolean successful = test.run() && test.benchmark(2000, 1000000);
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        // The records are made directly, so no connections are needed. The local node, a fast node, a slow node, and a
+        // failing node make up the cycle.
+        boolean successful = true;
+        Node localNode = nodeWithIndex(0);
+        Node fastNode = nodeWithIndex(1);
+        Node slowNode = nodeWithIndex(2);
+        Node failingNode = nodeWithIndex(3);
+        Node[] cycle = { localNode, fastNode, slowNode, failingNode };
+        for (int i = 0; i < 20; i++) {
+            record(fastNode, 5L, 20L, true);
+            record(slowNode, 50L, i < 19 ? 400L : 1150L, true);
+            record(failingNode, 2000L, -1L, false);
+        }
+
+        // With two choices, the fast node wins every comparison it is in, the slow node only wins against the failing
+        // node, and the failing node and the local node are never selected.
+        Map<Node, Integer> counts = new HashMap<>();
+        int numberOfSelections = 30000;
+        for (int i = 0; i < numberOfSelections; i++) {
+            Node node = PeerQualityTracker.selectNode(cycle, localNode.getIdentifier(), null);
+            counts.put(node, counts.getOrDefault(node, 0) + 1);
+        }
+        double fastFraction = counts.getOrDefault(fastNode, 0) / (double) numberOfSelections;
+        if (counts.containsKey(localNode) || counts.containsKey(failingNode) || fastFraction < 0.62 ||
+                fastFraction > 0.71) {
+            successful = false;
+            failureCause = "unexpected selection counts: fast=" + counts.get(fastNode) + ", slow=" +
+                    counts.get(slowNode) + ", failing=" + counts.get(failingNode) + ", local=" +
+                    counts.get(localNode);
+        }
+
+        // The hedge delay is the 95th-percentile fetch time, limited to a reasonable range. A node without records
+        // gets the default delay.
+        if (successful) {
+            long fastDelay = PeerQualityTracker.hedgeDelay(fastNode);
+            long slowDelay = PeerQualityTracker.hedgeDelay(slowNode);
+            long unknownDelay = PeerQualityTracker.hedgeDelay(nodeWithIndex(4));
+            if (fastDelay != 50L || slowDelay != 450L || unknownDelay != 1500L) {
+                successful = false;
+                failureCause = "unexpected hedge delays: fast=" + fastDelay + ", slow=" + slowDelay + ", unknown=" +
+                        unknownDelay;
+            }
+        }
+
+        // A hedge must not go to the excluded node or another node of the same verifier.
+        if (successful) {
+            Node otherFastNode = new Node(fastNode.getIdentifier(), new byte[] { (byte) 203, 0, 113, 100 },
+                    MeshListener.standardPortTcp, MeshListener.standardPortUdp);
+            Node[] smallCycle = { localNode, fastNode, otherFastNode };
+            if (PeerQualityTracker.selectNode(smallCycle, localNode.getIdentifier(), fastNode) != null ||
+                    PeerQualityTracker.selectNode(smallCycle, localNode.getIdentifier(), null) == null) {
+                successful = false;
+                failureCause = "exclusion of local and hedged verifiers failed";
+            }
+        }
+
+        // The failure rate is an average, so a node that recovers is trusted again after a number of successes.
+        if (successful) {
+            for (int i = 0; i < 30; i++) {
+                record(failingNode, 10L, 20L, true);
+            }
+            double expectedTime = PeerQualityTracker.expectedFetchTime(failingNode);
+            if (expectedTime > 100.0) {
+                successful = false;
+                failureCause = "recovered node has expected fetch time of " + expectedTime + "ms";
+            }
+        }
+
+        // The debug summary shows the records of a node.
+        if (successful) {
+            String summary = PeerQualityTracker.summary(slowNode);
+            if (!summary.contains("p95=450ms") || !summary.contains("ok=20") ||
+                    !PeerQualityTracker.summary(nodeWithIndex(4)).equals("-")) {
+                successful = false;
+                failureCause = "unexpected summary: " + summary;
+            }
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    public boolean benchmark(int numberOfNodes, int numberOfSelections) {
+
+        // The previous selection copied the cycle from the mesh map into a new list and removed random entries until it
+        // found a node other than the local node. This compares that to a selection from the cycle snapshot.
+        Map<ByteBuffer, Node> mesh = new HashMap<>();
+        Set<ByteBuffer> cycleSet = new HashSet<>();
+        for (int i = 0; i < numberOfNodes; i++) {
+            Node node = nodeWithIndex(i);
+            mesh.put(ByteBuffer.wrap(node.getIpAddress()), node);
+            cycleSet.add(ByteBuffer.wrap(node.getIdentifier()));
+            record(node, 5L + i % 40, 20L + i % 300, i % 17 != 0);
+        }
+        byte[] localIdentifier = nodeWithIndex(0).getIdentifier();
+
+        Random random = new Random(48);
+        int found = 0;
+        long startTimestamp = System.nanoTime();
+        for (int i = 0; i < numberOfSelections / 100; i++) {
+            List<Node> cycle = new ArrayList<>();
+            for (Node node : mesh.values()) {
+                if (cycleSet.contains(ByteBuffer.wrap(node.getIdentifier()))) {
+                    cycle.add(node);
+                }
+            }
+            Node selected = null;
+            while (selected == null && !cycle.isEmpty()) {
+                Node node = cycle.remove(random.nextInt(cycle.size()));
+                if (!ByteUtil.arraysAreEqual(node.getIdentifier(), localIdentifier)) {
+                    selected = node;
+                }
+            }
+            if (selected != null) {
+                found++;
+            }
+        }
+        double copyNanoseconds = (System.nanoTime() - startTimestamp) / (double) (numberOfSelections / 100);
+
+        Node[] snapshot = mesh.values().toArray(new Node[0]);
+        startTimestamp = System.nanoTime();
+        for (int i = 0; i < numberOfSelections; i++) {
+            if (PeerQualityTracker.selectNode(snapshot, localIdentifier, null) != null) {
+                found++;
+            }
+        }
+        double snapshotNanoseconds = (System.nanoTime() - startTimestamp) / (double) numberOfSelections;
+
+        System.out.println(String.format("%d nodes: copy and draw %.0f ns, two choices from snapshot %.0f ns",
+                numberOfNodes, copyNanoseconds, snapshotNanoseconds));
+
+        return found == numberOfSelections + numberOfSelections / 100;
+    }
+
+    private static void record(Node node, long connectMilliseconds, long responseMilliseconds, boolean success) {
+        PeerQualityTracker.record(IpUtil.addressAsString(node.getIpAddress()), connectMilliseconds,
+                responseMilliseconds, success, 100L);
+    }
+
+    private static Node nodeWithIndex(int index) {
+        byte[] identifier = new byte[] { 48, (byte) (index / 256), (byte) (index % 256) };
+        byte[] ipAddress = new byte[] { (byte) 198, 51, (byte) (index / 256), (byte) (index % 256) };
+        return new Node(identifier, ipAddress, MeshListener.standardPortTcp, MeshListener.standardPortUdp);
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
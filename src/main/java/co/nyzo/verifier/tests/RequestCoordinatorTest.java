@@ -0,0 +1,283 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.messages.MissingBlockVoteRequest;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+public class RequestCoordinatorTest implements NyzoTest {
+
+    private static final long initialBackOff = 500L;
+    private static final long maximumBackOff = 16000L;
+    private static final long requestTimeout = 5000L;
+
+    private String failureCause = null;
+
+    private final AtomicLong clockTimestamp = new AtomicLong(1000000L);
+    private final LongSupplier clock = new LongSupplier() {
+        @Override
+        public long getAsLong() {
+            return clockTimestamp.get();
+        }
+    };
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        RequestCoordinatorTest test = new RequestCoordinatorTest();
+        boolean successful = test.run() && test.benchmark(200, 3);
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        // The transport holds the callbacks of the fetches, so the test decides when and how each request completes.
+        // Only the local node and two other nodes are in the cycle.
+        boolean successful = true;
+        TestTransport transport = new TestTransport(5, clock);
+        RequestCoordinator coordinator = new RequestCoordinator(2, 4, initialBackOff, maximumBackOff, requestTimeout,
+                clock, transport);
+        AtomicInteger handlerCalls = new AtomicInteger(0);
+        boolean[] satisfy = { false };
+        RequestCoordinator.ResponseHandler handler = new RequestCoordinator.ResponseHandler() {
+            @Override
+            public boolean handleResponse(Message response) {
+                handlerCalls.incrementAndGet();
+                return satisfy[0];
+            }
+        };
+
+        // A second request for the same key is not sent while the first is in flight.
+        byte[] hash = new byte[] { 1 };
+        if (!request(coordinator, 10L, hash, null, handler) || request(coordinator, 10L, hash, null, handler) ||
+                transport.fetches.size() != 1 || coordinator.getNumberDeduplicated() != 1L) {
+            successful = false;
+            failureCause = "duplicate request was not suppressed";
+        }
+
+        // A failed request backs off. It is not sent again until the back-off has elapsed, and the retry goes to the
+        // other verifier.
+        if (successful) {
+            Node firstNode = transport.fetches.get(0).node;
+            transport.complete(0);
+            clockTimestamp.addAndGet(initialBackOff / 2L - 1L);
+            boolean suppressed = !request(coordinator, 10L, hash, null, handler);
+            clockTimestamp.addAndGet(initialBackOff / 2L + 1L);
+            boolean retried = request(coordinator, 10L, hash, null, handler);
+            Node retryNode = transport.fetches.get(transport.fetches.size() - 1).node;
+            if (!suppressed || !retried || retryNode == firstNode || coordinator.getNumberFailed() != 1L) {
+                successful = false;
+                failureCause = "back-off was not applied: suppressed=" + suppressed + ", retried=" + retried;
+            }
+        }
+
+        // The back-off doubles with each failure, up to the maximum, with a random delay in the upper half.
+        if (successful) {
+            for (int attempt = 2; attempt <= 8 && successful; attempt++) {
+                transport.complete(transport.fetches.size() - 1);
+                long delay = Math.min(maximumBackOff, initialBackOff << (attempt - 1));
+                clockTimestamp.addAndGet(delay / 2L - 1L);
+                if (request(coordinator, 10L, hash, null, handler)) {
+                    successful = false;
+                    failureCause = "request sent before half of back-off " + delay + " elapsed";
+                }
+                clockTimestamp.addAndGet(delay / 2L + 1L);
+                if (successful && !request(coordinator, 10L, hash, null, handler)) {
+                    successful = false;
+                    failureCause = "request not sent after back-off " + delay + " elapsed";
+                }
+            }
+        }
+
+        // A satisfied request is removed, so the key may be requested again immediately.
+        if (successful) {
+            satisfy[0] = true;
+            transport.complete(transport.fetches.size() - 1);
+            boolean removed = coordinator.getNumberInFlight() == 0 && coordinator.getNumberBackingOff() == 0;
+            boolean requestedAgain = request(coordinator, 10L, hash, null, handler);
+            transport.complete(transport.fetches.size() - 1);
+            satisfy[0] = false;
+            if (!removed || !requestedAgain) {
+                successful = false;
+                failureCause = "satisfied request was not removed";
+            }
+        }
+
+        // The per-peer limit is 2, and the total limit is 4. Requests targeted at one node stop at the per-peer limit.
+        // Selected peers then fill the other node to its limit, which also reaches the total limit.
+        int firstTargetedFetch = transport.fetches.size();
+        if (successful) {
+            Node target = transport.nodes[1];
+            int targeted = 0;
+            for (int i = 0; i < 4; i++) {
+                if (request(coordinator, 20L, new byte[] { (byte) i }, target, handler)) {
+                    targeted++;
+                }
+            }
+            for (int i = 0; i < 4; i++) {
+                request(coordinator, 30L, new byte[] { (byte) i }, null, handler);
+            }
+            if (targeted != 2 || coordinator.getNumberInFlight() != 4 || coordinator.getNumberOfPeersInFlight() != 2 ||
+                    coordinator.getNumberDeferred() != 4L) {
+                successful = false;
+                failureCause = "limits not applied: targeted=" + targeted + ", in flight=" +
+                        coordinator.getNumberInFlight() + ", deferred=" + coordinator.getNumberDeferred();
+            }
+        }
+
+        // Requests at or below the frozen edge are cancelled, and a late response to a cancelled request is not
+        // passed to the handler.
+        if (successful) {
+            int handlerCallsBefore = handlerCalls.get();
+            coordinator.performMaintenance(20L);
+            transport.complete(firstTargetedFetch);
+            transport.complete(firstTargetedFetch + 1);
+            if (coordinator.getNumberInFlight() != 2 || coordinator.getNumberCancelled() != 2L ||
+                    handlerCalls.get() != handlerCallsBefore) {
+                successful = false;
+                failureCause = "cancellation failed: in flight=" + coordinator.getNumberInFlight() + ", cancelled=" +
+                        coordinator.getNumberCancelled();
+            }
+        }
+
+        // A request in flight past the timeout is treated as a failure, and its key backs off. The fetches still hold
+        // the slots of their peer until their callbacks fire, so a request targeted at that peer is deferred. Late
+        // responses release the slots without reaching the handler.
+        if (successful) {
+            long failedBefore = coordinator.getNumberFailed();
+            int handlerCallsBefore = handlerCalls.get();
+            Node busyNode = transport.fetches.get(transport.fetches.size() - 1).node;
+            clockTimestamp.addAndGet(requestTimeout + 1L);
+            coordinator.performMaintenance(20L);
+            boolean held = coordinator.getNumberInFlight() == 2 && coordinator.getNumberOfPeersInFlight() == 1 &&
+                    coordinator.getNumberFailed() == failedBefore + 2L && coordinator.getNumberBackingOff() == 2;
+            boolean deferred = !request(coordinator, 40L, new byte[] { 0 }, busyNode, handler);
+            transport.complete(transport.fetches.size() - 1);
+            transport.complete(transport.fetches.size() - 2);
+            boolean released = coordinator.getNumberInFlight() == 0 && coordinator.getNumberOfPeersInFlight() == 0 &&
+                    handlerCalls.get() == handlerCallsBefore;
+            if (!held || !deferred || !released) {
+                successful = false;
+                failureCause = "timed-out requests: held=" + held + ", deferred=" + deferred + ", released=" +
+                        released;
+            }
+        }
+
+        // A fetch whose callback never fires is abandoned after ten timeouts, and its slot is released.
+        if (successful) {
+            request(coordinator, 50L, hash, null, handler);
+            clockTimestamp.addAndGet(requestTimeout * 10L + 1L);
+            coordinator.performMaintenance(20L);
+            if (coordinator.getNumberInFlight() != 0 || coordinator.getNumberAbandoned() != 1L) {
+                successful = false;
+                failureCause = "fetch was not abandoned: in flight=" + coordinator.getNumberInFlight() +
+                        ", abandoned=" + coordinator.getNumberAbandoned();
+            }
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    public boolean benchmark(int numberOfIterations, int numberOfMissingBlocks) {
+
+        // This simulates a stall of one minute in which peers do not answer. Previously, each pass of the 300 ms loop
+        // sent a new request for every missing block, so the number of requests was the product of the passes and
+        // the missing blocks.
+        TestTransport transport = new TestTransport(2000, clock);
+        RequestCoordinator coordinator = new RequestCoordinator(2, 24, initialBackOff, maximumBackOff,
+                requestTimeout, clock, transport);
+        RequestCoordinator.ResponseHandler handler = new RequestCoordinator.ResponseHandler() {
+            @Override
+            public boolean handleResponse(Message response) {
+                return false;
+            }
+        };
+
+        // Each unanswered fetch fails when its socket times out, about 3 seconds after it is sent.
+        int numberCompleted = 0;
+        for (int i = 0; i < numberOfIterations; i++) {
+            while (numberCompleted < transport.fetches.size() &&
+                    transport.fetches.get(numberCompleted).timestamp <= clockTimestamp.get() - 3000L) {
+                transport.complete(numberCompleted++);
+            }
+            coordinator.performMaintenance(0L);
+            for (int j = 0; j < numberOfMissingBlocks; j++) {
+                request(coordinator, 1L, new byte[] { (byte) j }, null, handler);
+            }
+            clockTimestamp.addAndGet(300L);
+        }
+
+        System.out.println(String.format("%d passes, %d missing blocks, unresponsive peers: %d requests without " +
+                        "coordination, %d with coordination", numberOfIterations, numberOfMissingBlocks,
+                numberOfIterations * numberOfMissingBlocks, transport.fetches.size()));
+
+        return transport.fetches.size() < numberOfIterations * numberOfMissingBlocks;
+    }
+
+    private static boolean request(RequestCoordinator coordinator, long height, byte[] discriminator, Node targetNode,
+                                   RequestCoordinator.ResponseHandler handler) {
+        return coordinator.request(MessageType.MissingBlockVoteRequest23, height, discriminator, targetNode,
+                new MissingBlockVoteRequest(height), handler);
+    }
+
+    private static class TestTransport implements RequestCoordinator.Transport {
+
+        private final Node[] nodes;
+        private final LongSupplier clock;
+        private final List<Fetch> fetches = new ArrayList<>();
+
+        private TestTransport(int numberOfNodes, LongSupplier clock) {
+            this.clock = clock;
+            nodes = new Node[numberOfNodes];
+            for (int i = 0; i < numberOfNodes; i++) {
+                byte[] identifier = new byte[] { 49, (byte) (i / 256), (byte) (i % 256) };
+                byte[] ipAddress = new byte[] { (byte) 198, 18, (byte) (i / 256), (byte) (i % 256) };
+                nodes[i] = new Node(identifier, ipAddress, MeshListener.standardPortTcp, MeshListener.standardPortUdp);
+            }
+        }
+
+        @Override
+        public Node[] candidateNodes() {
+            return Arrays.copyOf(nodes, Math.min(nodes.length, 3));
+        }
+
+        @Override
+        public byte[] localIdentifier() {
+            return nodes[0].getIdentifier();
+        }
+
+        @Override
+        public void fetch(Node node, MessageType type, MessageObject content, MessageCallback callback) {
+            fetches.add(new Fetch(node, callback, clock.getAsLong()));
+        }
+
+        private void complete(int index) {
+            fetches.get(index).callback.responseReceived(null);
+        }
+    }
+
+    private static class Fetch {
+
+        private final Node node;
+        private final MessageCallback callback;
+        private final long timestamp;
+
+        private Fetch(Node node, MessageCallback callback, long timestamp) {
+            this.node = node;
+            this.callback = callback;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
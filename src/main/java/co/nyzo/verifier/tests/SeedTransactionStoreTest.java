@@ -0,0 +1,276 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SeedTransactionStoreTest implements NyzoTest {
+
+    // The previous-hash height of the test transactions is above any frozen edge, so the transactions are signed and
+    // read with an all-zero previous-block hash.
+    private static final long previousHashHeight = 1000000000000L;
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        SeedTransactionStoreTest test = new SeedTransactionStoreTest();
+        boolean successful = test.run() && test.benchmark(10000, 20);
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        File hostDirectory = null;
+        File directory = null;
+        try {
+            // A local directory stands in for the seed host. The file has a transaction at every other height.
+            hostDirectory = Files.createTempDirectory("nyzo_seed_host").toFile();
+            directory = Files.createTempDirectory("nyzo_seed_transactions").toFile();
+            long blocksPerFile = 100L;
+            long fileIndex = 3L;
+            Map<Long, Transaction> transactions = writeSeedFile(hostDirectory, fileIndex, blocksPerFile, 2);
+            RemoteFileSource source = new UrlFileSource(hostDirectory.toURI().toString());
+            SeedTransactionStore store = new SeedTransactionStore(directory, blocksPerFile, source);
+            if (!store.prepareFile(fileIndex)) {
+                successful = false;
+                failureCause = "unable to prepare file " + fileIndex;
+            }
+
+            if (successful) {
+                successful = checkTransactions(store, transactions, fileIndex * blocksPerFile,
+                        (fileIndex + 1L) * blocksPerFile);
+            }
+
+            // A decoded transaction is kept, so the same object is returned for each request.
+            long height = fileIndex * blocksPerFile;
+            if (successful && store.transactionForBlock(height) != store.transactionForBlock(height)) {
+                successful = false;
+                failureCause = "transaction at height " + height + " was decoded twice";
+            }
+
+            // A new store on the same directory maps the file and its index from disk without fetching. Several
+            // threads read the same transactions at once.
+            if (successful) {
+                SeedTransactionStore reopenedStore = new SeedTransactionStore(directory, blocksPerFile,
+                        new UrlFileSource(new File(hostDirectory, "missing").toURI().toString()));
+                AtomicReference<String> threadFailure = new AtomicReference<>();
+                List<Thread> threads = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (long height = fileIndex * blocksPerFile; height < (fileIndex + 1L) * blocksPerFile;
+                                 height++) {
+                                Transaction expected = transactions.get(height);
+                                Transaction actual = reopenedStore.transactionForBlock(height);
+                                if ((expected == null) != (actual == null) || (expected != null &&
+                                        !Arrays.equals(expected.getBytes(), actual.getBytes()))) {
+                                    threadFailure.set("concurrent read mismatch at height " + height);
+                                }
+                            }
+                        }
+                    });
+                    threads.add(thread);
+                    thread.start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                if (threadFailure.get() != null) {
+                    successful = false;
+                    failureCause = threadFailure.get();
+                }
+            }
+
+            // A file that is not on the host cannot be prepared, and heights in that file have no transactions.
+            if (successful && (store.prepareFile(fileIndex + 1L) ||
+                    store.transactionForBlock((fileIndex + 1L) * blocksPerFile) != null)) {
+                successful = false;
+                failureCause = "file missing from host was prepared";
+            }
+
+            // A truncated file must be rejected and removed.
+            if (successful) {
+                writeSeedFile(hostDirectory, fileIndex + 2L, blocksPerFile, 3);
+                File hostFile = new File(hostDirectory, SeedTransactionStore.fileNameForIndex(fileIndex + 2L));
+                RandomAccessFile file = new RandomAccessFile(hostFile, "rw");
+                file.setLength(file.length() - 10L);
+                file.close();
+                if (store.prepareFile(fileIndex + 2L) || store.fileForIndex(fileIndex + 2L).exists()) {
+                    successful = false;
+                    failureCause = "truncated file was prepared";
+                }
+            }
+
+            // A transaction with an invalid signature is not returned, and its file is released to be fetched again.
+            if (successful) {
+                Map<Long, Transaction> badTransactions = writeSeedFile(hostDirectory, fileIndex + 4L, blocksPerFile,
+                        1);
+                File hostFile = new File(hostDirectory, SeedTransactionStore.fileNameForIndex(fileIndex + 4L));
+                RandomAccessFile file = new RandomAccessFile(hostFile, "rw");
+                file.seek(file.length() - 1L);
+                byte lastByte = file.readByte();
+                file.seek(file.length() - 1L);
+                file.writeByte(lastByte ^ 1);
+                file.close();
+                long lastHeight = (fileIndex + 5L) * blocksPerFile - 1L;
+                if (!store.prepareFile(fileIndex + 4L) || store.transactionForBlock(lastHeight - 1L) == null ||
+                        store.transactionForBlock(lastHeight) != null || store.isFileMapped(fileIndex + 4L) ||
+                        store.fileForIndex(fileIndex + 4L).exists() || badTransactions.size() != blocksPerFile) {
+                    successful = false;
+                    failureCause = "transaction with invalid signature was not rejected";
+                }
+            }
+
+            // Releasing files below an index unmaps and deletes them.
+            if (successful) {
+                store.releaseFilesBelow(fileIndex + 1L);
+                if (store.isFileMapped(fileIndex) || store.fileForIndex(fileIndex).exists() ||
+                        store.indexFileForIndex(fileIndex).exists() || store.transactionForBlock(height) != null) {
+                    successful = false;
+                    failureCause = "file was not released";
+                }
+            }
+        } catch (Exception e) {
+            failureCause = "exception in SeedTransactionStoreTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        deleteDirectory(hostDirectory);
+        deleteDirectory(directory);
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    private boolean checkTransactions(SeedTransactionStore store, Map<Long, Transaction> transactions,
+                                      long startHeight, long endHeight) {
+
+        boolean successful = true;
+        for (long height = startHeight; height < endHeight && successful; height++) {
+            Transaction expected = transactions.get(height);
+            Transaction actual = store.transactionForBlock(height);
+            if ((expected == null) != (actual == null) || (expected != null &&
+                    !Arrays.equals(expected.getBytes(), actual.getBytes()))) {
+                successful = false;
+                failureCause = "transaction mismatch at height " + height + ": expected=" + expected + ", actual=" +
+                        actual;
+            }
+        }
+
+        return successful;
+    }
+
+    public boolean benchmark(int blocksPerFile, int numberOfLookups) {
+
+        // The previous manager parsed every transaction in a file and checked its signature before any transaction
+        // was available. This compares that to preparing the file and reading a few transactions from the mapping.
+        File hostDirectory = null;
+        File directory = null;
+        try {
+            hostDirectory = Files.createTempDirectory("nyzo_seed_host").toFile();
+            directory = Files.createTempDirectory("nyzo_seed_transactions").toFile();
+            writeSeedFile(hostDirectory, 0L, blocksPerFile, 1);
+            File hostFile = new File(hostDirectory, SeedTransactionStore.fileNameForIndex(0L));
+
+            long startTimestamp = System.nanoTime();
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(hostFile.toPath()));
+            int numberOfTransactions = buffer.getInt();
+            Map<Long, Transaction> transactionMap = new HashMap<>();
+            for (int i = 0; i < numberOfTransactions; i++) {
+                long height = buffer.getLong();
+                Transaction transaction = Transaction.fromByteBuffer(buffer);
+                if (transaction.signatureIsValid()) {
+                    transactionMap.put(height, transaction);
+                }
+            }
+            double fullLoadSeconds = (System.nanoTime() - startTimestamp) / 1000000000.0;
+
+            startTimestamp = System.nanoTime();
+            SeedTransactionStore store = new SeedTransactionStore(directory, blocksPerFile,
+                    new UrlFileSource(hostDirectory.toURI().toString()));
+            store.prepareFile(0L);
+            double prepareSeconds = (System.nanoTime() - startTimestamp) / 1000000000.0;
+
+            startTimestamp = System.nanoTime();
+            for (int i = 0; i < numberOfLookups; i++) {
+                if (store.transactionForBlock(i) == null) {
+                    failureCause = "no transaction at height " + i;
+                }
+            }
+            double lookupMicroseconds = (System.nanoTime() - startTimestamp) / 1000.0 / numberOfLookups;
+
+            System.out.println(String.format("%d seed transactions: full load %.2f s (%d transactions); prepare " +
+                            "%.3f s; first lookup %.1f us", blocksPerFile, fullLoadSeconds, transactionMap.size(),
+                    prepareSeconds, lookupMicroseconds));
+        } catch (Exception e) {
+            failureCause = "exception in SeedTransactionStoreTest benchmark: " + PrintUtil.printException(e);
+        }
+
+        deleteDirectory(hostDirectory);
+        deleteDirectory(directory);
+
+        return failureCause == null;
+    }
+
+    private static Map<Long, Transaction> writeSeedFile(File directory, long fileIndex, long blocksPerFile,
+                                                        int heightInterval) throws Exception {
+
+        // The file format is a transaction count, followed by a height and transaction for each.
+        Random random = new Random(fileIndex);
+        byte[] signerSeed = new byte[FieldByteSize.seed];
+        random.nextBytes(signerSeed);
+        Map<Long, Transaction> transactions = new TreeMap<>();
+        int size = 4;
+        for (long height = fileIndex * blocksPerFile; height < (fileIndex + 1L) * blocksPerFile;
+             height += heightInterval) {
+            byte[] senderData = new byte[random.nextInt(33)];
+            random.nextBytes(senderData);
+            Transaction transaction = Transaction.seedTransaction(height * 7000L, 1000L + height,
+                    KeyUtil.identifierForSeed(signerSeed), previousHashHeight, new byte[FieldByteSize.hash],
+                    senderData, signerSeed);
+            transactions.put(height, transaction);
+            size += FieldByteSize.blockHeight + transaction.getByteSize();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(transactions.size());
+        for (Map.Entry<Long, Transaction> entry : transactions.entrySet()) {
+            buffer.putLong(entry.getKey());
+            buffer.put(entry.getValue().getBytes());
+        }
+        Files.write(new File(directory, SeedTransactionStore.fileNameForIndex(fileIndex)).toPath(), buffer.array());
+
+        return transactions;
+    }
+
+    private static void deleteDirectory(File directory) {
+
+        if (directory != null) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
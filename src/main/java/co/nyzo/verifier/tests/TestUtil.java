@@ -15,15 +15,33 @@ public class TestUtil {
 
         RunMode.setRunMode(RunMode.Test);
         NyzoTest[] tests = {
+                new BalanceHistoryStoreTest(),
+                new BalanceListCheckpointTest(),
+                new BalanceListTest(),
+                new BlockFileConsolidatorTest(),
+                new BlockWithVotesCompactResponseTest(),
                 new ClientArgumentUtilTest(),
                 new ClientNodeManagerTest(),
                 new CommandManagerTest(),
+                new HeightWindowAccumulatorTest(),
+                new HistoricalChainFillerTest(),
+                new IpReputationTableTest(),
                 new IpUtilTest(),
                 new JsonTest(),
+                new KeyValueJournalTest(),
+                new LogUtilTest(),
+                new MetricsRegistryTest(),
+                new NodeTableTest(),
+                new NyzoScriptExecutorTest(),
                 new NyzoScriptStateTest(),
                 new NyzoStringTest(),
+                new PeerQualityTrackerTest(),
+                new RequestCoordinatorTest(),
+                new SeedTransactionStoreTest(),
                 new ShortLongTest(),
-                new TransactionIndexerTest()
+                new TransactionForwardStoreTest(),
+                new TransactionIndexerTest(),
+                new TransactionSubmissionEngineTest()
         };
 
         boolean successful = true;
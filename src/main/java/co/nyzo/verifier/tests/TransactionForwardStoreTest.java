@@ -0,0 +1,272 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.client.TransactionForwardStore;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class TransactionForwardStoreTest implements NyzoTest {
+
+    private static final long baseHeight = 1000L;
+
+    // These are artificial sender and receiver identifiers.
+    private static final byte[][] senders = {
+            ByteUtil.byteArrayFromHexString("a1", FieldByteSize.identifier),
+            ByteUtil.byteArrayFromHexString("a2", FieldByteSize.identifier),
+            ByteUtil.byteArrayFromHexString("a3", FieldByteSize.identifier)
+    };
+    private static final byte[][] receivers = {
+            ByteUtil.byteArrayFromHexString("b1", FieldByteSize.identifier),
+            ByteUtil.byteArrayFromHexString("b2", FieldByteSize.identifier)
+    };
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        TransactionForwardStoreTest test = new TransactionForwardStoreTest();
+        boolean successful = test.run();
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        try {
+            successful = checkBucketRemoval();
+            if (successful) {
+                successful = checkEviction();
+            }
+            if (successful) {
+                successful = checkRandomOperations();
+            }
+        } catch (Exception e) {
+            failureCause = "exception in TransactionForwardStoreTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    private boolean checkBucketRemoval() {
+
+        // Ten transactions share a height bucket. The senders alternate, so an entry's position in its sender bucket
+        // differs from its position in the height bucket. The first, middle, and last entries of the height bucket are
+        // removed, then the rest in a shuffled order. If the position of an entry moved into a gap were not updated,
+        // a later removal would remove the wrong entry, and the store would no longer match the expected contents.
+        boolean successful = true;
+        TransactionForwardStore store = new TransactionForwardStore(100);
+        Map<String, Transaction> expected = new HashMap<>();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            String key = "bucket-" + i;
+            Transaction transaction = transaction(i, baseHeight, senders[i % 2], receivers[0]);
+            store.put(key, transaction);
+            expected.put(key, transaction);
+            keys.add(key);
+        }
+
+        List<String> removalOrder = new ArrayList<>(Arrays.asList(keys.get(0), keys.get(5), keys.get(9)));
+        List<String> remainingKeys = new ArrayList<>(keys);
+        remainingKeys.removeAll(removalOrder);
+        Collections.shuffle(remainingKeys, new Random(35L));
+        removalOrder.addAll(remainingKeys);
+        for (int i = 0; i < removalOrder.size() && successful; i++) {
+            String key = removalOrder.get(i);
+            if (!store.remove(key)) {
+                successful = false;
+                failureCause = "unable to remove " + key;
+            } else if (store.remove(key)) {
+                successful = false;
+                failureCause = key + " was removed twice";
+            } else {
+                expected.remove(key);
+                successful = matches(store, expected, "after removing " + key);
+            }
+        }
+
+        // A removed key can be added again and is found by every index.
+        if (successful) {
+            String key = keys.get(5);
+            Transaction transaction = transaction(5, baseHeight, senders[1], receivers[0]);
+            store.put(key, transaction);
+            expected.put(key, transaction);
+            successful = matches(store, expected, "after adding " + key + " again");
+        }
+
+        return successful;
+    }
+
+    private boolean checkEviction() {
+
+        // At capacity, the transaction with the highest target height is removed, including a new transaction if its
+        // height is the highest.
+        boolean successful = true;
+        TransactionForwardStore store = new TransactionForwardStore(5);
+        Map<String, Transaction> expected = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            String key = "eviction-" + i;
+            Transaction transaction = transaction(i, baseHeight + i, senders[0], receivers[i % 2]);
+            store.put(key, transaction);
+            expected.put(key, transaction);
+        }
+
+        Transaction lowTransaction = transaction(10, baseHeight + 2L, senders[1], receivers[0]);
+        store.put("eviction-low", lowTransaction);
+        expected.put("eviction-low", lowTransaction);
+        expected.remove("eviction-4");
+        successful = matches(store, expected, "after adding a low transaction at capacity");
+
+        if (successful) {
+            store.put("eviction-high", transaction(11, baseHeight + 10L, senders[1], receivers[1]));
+            successful = matches(store, expected, "after adding a high transaction at capacity");
+        }
+
+        // Expiring through a height removes whole buckets, and removed keys are not found.
+        if (successful) {
+            int numberRemoved = store.removeThroughHeight(baseHeight + 1L);
+            expected.remove("eviction-0");
+            expected.remove("eviction-1");
+            if (numberRemoved != 2) {
+                successful = false;
+                failureCause = "expected 2 transactions removed through height, actual=" + numberRemoved;
+            } else {
+                successful = matches(store, expected, "after removing through height");
+            }
+        }
+
+        return successful;
+    }
+
+    private boolean checkRandomOperations() {
+
+        // Random puts, removals, and expirations over a few heights and accounts are compared to a simple map. The
+        // store is larger than the number of keys, as the entry removed at capacity is not determined within a bucket.
+        boolean successful = true;
+        Random random = new Random(1035L);
+        TransactionForwardStore store = new TransactionForwardStore(100);
+        Map<String, Transaction> expected = new HashMap<>();
+        for (int i = 0; i < 5000 && successful; i++) {
+            int operation = random.nextInt(20);
+            String key = "random-" + random.nextInt(60);
+            if (operation == 0) {
+                store.removeThroughHeight(baseHeight);
+                expected.values().removeIf(transaction -> height(transaction) <= baseHeight);
+            } else if (operation < 8) {
+                boolean removed = store.remove(key);
+                if (removed != (expected.remove(key) != null)) {
+                    successful = false;
+                    failureCause = "unexpected result removing " + key + ": " + removed;
+                }
+            } else {
+                Transaction transaction = transaction(i, baseHeight + random.nextInt(4),
+                        senders[random.nextInt(senders.length)], receivers[random.nextInt(receivers.length)]);
+                store.put(key, transaction);
+                expected.put(key, transaction);
+            }
+
+            if (successful) {
+                successful = matches(store, expected, "after random operation " + i);
+            }
+        }
+
+        return successful;
+    }
+
+    private boolean matches(TransactionForwardStore store, Map<String, Transaction> expected, String label) {
+
+        // The store is compared to the expected contents through each index.
+        boolean successful = true;
+        if (store.size() != expected.size()) {
+            successful = false;
+            failureCause = "expected size " + expected.size() + " " + label + ", actual=" + store.size();
+        }
+        for (String key : expected.keySet()) {
+            if (successful && !store.contains(key)) {
+                successful = false;
+                failureCause = key + " not found " + label;
+            }
+        }
+
+        for (long height = baseHeight; height <= baseHeight + 10L && successful; height++) {
+            Set<ByteBuffer> expectedSignatures = new HashSet<>();
+            for (Transaction transaction : expected.values()) {
+                if (height(transaction) == height) {
+                    expectedSignatures.add(ByteBuffer.wrap(transaction.getSignature()));
+                }
+            }
+            successful = signaturesMatch(store.transactionsInRange(height, height), expectedSignatures,
+                    "height " + height + " " + label);
+
+            for (int i = 0; i < senders.length && successful; i++) {
+                successful = signaturesMatch(store.transactionsForSender(senders[i], height, height),
+                        signatures(expected.values(), height, senders[i], true),
+                        "sender " + i + " at height " + height + " " + label);
+            }
+            for (int i = 0; i < receivers.length && successful; i++) {
+                successful = signaturesMatch(store.transactionsForReceiver(receivers[i], height, height),
+                        signatures(expected.values(), height, receivers[i], false),
+                        "receiver " + i + " at height " + height + " " + label);
+            }
+        }
+
+        return successful;
+    }
+
+    private boolean signaturesMatch(List<Transaction> transactions, Set<ByteBuffer> expectedSignatures,
+                                    String label) {
+
+        Set<ByteBuffer> signatures = new HashSet<>();
+        for (Transaction transaction : transactions) {
+            signatures.add(ByteBuffer.wrap(transaction.getSignature()));
+        }
+
+        boolean successful = signatures.size() == transactions.size() && signatures.equals(expectedSignatures);
+        if (!successful) {
+            failureCause = "mismatch for " + label + ": expected " + expectedSignatures.size() + " transactions, " +
+                    "actual=" + transactions.size();
+        }
+
+        return successful;
+    }
+
+    private static Set<ByteBuffer> signatures(Collection<Transaction> transactions, long height, byte[] account,
+                                              boolean sender) {
+
+        Set<ByteBuffer> signatures = new HashSet<>();
+        for (Transaction transaction : transactions) {
+            byte[] transactionAccount = sender ? transaction.getSenderIdentifier() :
+                    transaction.getReceiverIdentifier();
+            if (height(transaction) == height && Arrays.equals(transactionAccount, account)) {
+                signatures.add(ByteBuffer.wrap(transaction.getSignature()));
+            }
+        }
+
+        return signatures;
+    }
+
+    private static long height(Transaction transaction) {
+        return BlockManager.heightForTimestamp(transaction.getTimestamp());
+    }
+
+    private static Transaction transaction(int index, long height, byte[] sender, byte[] receiver) {
+
+        // The signature is not valid, but it is unique, which is all that the store needs.
+        byte[] signature = new byte[FieldByteSize.signature];
+        ByteBuffer.wrap(signature).putInt(index).putLong(height);
+        return Transaction.standardTransaction(BlockManager.startTimestampForHeight(height) + 1L + index % 1000,
+                1000L, receiver, 0L, new byte[FieldByteSize.hash], sender, new byte[0], signature);
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
@@ -0,0 +1,274 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.client.*;
+import co.nyzo.verifier.client.commands.TransactionBatchSendCommand;
+import co.nyzo.verifier.messages.MeshResponse;
+import co.nyzo.verifier.messages.TransactionResponse;
+import co.nyzo.verifier.nyzoString.NyzoStringEncoder;
+import co.nyzo.verifier.nyzoString.NyzoStringPrivateSeed;
+import co.nyzo.verifier.nyzoString.NyzoStringPublicIdentifier;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class TransactionSubmissionEngineTest implements NyzoTest {
+
+    private static final int numberOfVerifiers = 3;
+    private static final int numberOfEntries = 45;
+    private static final int transactionsPerBlock = 20;
+    private static final int maximumSendAttempts = 3;
+    private static final long retryDelay = 100L;
+
+    private String failureCause = null;
+
+    // The send times are recorded for each verifier and transaction signature.
+    private final Map<ByteBuffer, Map<ByteBuffer, List<Long>>> sendTimestamps = new ConcurrentHashMap<>();
+    private final Map<ByteBuffer, Transaction> transactionsBySignature = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) {
+
+        RunMode.setRunMode(RunMode.Test);
+        TransactionSubmissionEngineTest test = new TransactionSubmissionEngineTest();
+        boolean successful = test.run();
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = true;
+        long genesisBlockStartTimestamp = BlockManager.getGenesisBlockStartTimestamp();
+        try {
+            // The frozen edge is set two blocks past the current edge with a cycle of three test verifiers, and the
+            // genesis timestamp is moved so that the open edge is just past the frozen edge. With three verifiers, all
+            // are likely verifiers for every height. The first always accepts, the second fails the first send of each
+            // transaction, and the third never responds.
+            List<byte[]> seeds = new ArrayList<>();
+            List<ByteBuffer> cycle = new ArrayList<>();
+            List<Node> mesh = new ArrayList<>();
+            for (int i = 0; i < numberOfVerifiers; i++) {
+                byte[] seed = KeyUtil.generateSeed();
+                seeds.add(seed);
+                cycle.add(ByteBuffer.wrap(KeyUtil.identifierForSeed(seed)));
+                mesh.add(new Node(KeyUtil.identifierForSeed(seed), new byte[] { 127, 0, 2, (byte) i },
+                        MeshListener.standardPortTcp, MeshListener.standardPortUdp));
+            }
+            long frozenEdgeHeight = Math.max(BlockManager.getFrozenEdgeHeight() + 2L, 10L);
+            BlockManager.setGenesisBlockStartTimestamp(System.currentTimeMillis() - Block.blockDuration -
+                    1500L - (frozenEdgeHeight + 1L) * Block.blockDuration - Block.blockDuration / 2L);
+            BlockManager.setFrozenEdge(new Block(1, frozenEdgeHeight, new byte[FieldByteSize.hash],
+                    BlockManager.startTimestampForHeight(frozenEdgeHeight), new ArrayList<>(),
+                    new byte[FieldByteSize.hash], seeds.get(0)), cycle);
+            ClientNodeManager.setRanking(ClientNodeManager.createRanking(60000L, System::currentTimeMillis));
+            ClientNodeManager.processMeshResponse(new MeshResponse(mesh));
+
+            ByteBuffer acceptingVerifier = cycle.get(0);
+            ByteBuffer recoveringVerifier = cycle.get(1);
+            ByteBuffer silentVerifier = cycle.get(2);
+            TransactionSubmissionEngine engine = new TransactionSubmissionEngine(
+                    new TransactionSubmissionEngine.Transport() {
+                        @Override
+                        public TransactionResponse send(Node node, Transaction transaction) {
+                            ByteBuffer identifier = ByteBuffer.wrap(node.getIdentifier());
+                            List<Long> timestamps = timestampsFor(identifier, transaction);
+                            timestamps.add(System.currentTimeMillis());
+                            boolean responds = identifier.equals(acceptingVerifier) ||
+                                    (identifier.equals(recoveringVerifier) && timestamps.size() > 1);
+                            return responds ? response(identifier.equals(acceptingVerifier)) : null;
+                        }
+                    }, retryDelay);
+
+            byte[] signerSeed = KeyUtil.generateSeed();
+            List<TransactionSubmissionEngine.Entry> entries = new ArrayList<>();
+            for (int i = 0; i < numberOfEntries; i++) {
+                entries.add(new TransactionSubmissionEngine.Entry(signerSeed, KeyUtil.identifierForSeed(
+                        KeyUtil.generateSeed()), 1000000L + i, ("entry " + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            engine.addEntries(entries);
+
+            // Run the update passes until the silent verifier has received every allowed attempt, then for long
+            // enough to show that no further attempts are made.
+            long endTimestamp = System.currentTimeMillis() + 5000L;
+            while (System.currentTimeMillis() < endTimestamp &&
+                    numberOfSends(silentVerifier) < numberOfEntries * maximumSendAttempts) {
+                engine.update();
+                Thread.sleep(10L);
+            }
+            for (int i = 0; i < 50; i++) {
+                engine.update();
+                Thread.sleep(10L);
+            }
+
+            successful = checkBatching(engine, acceptingVerifier, frozenEdgeHeight);
+            if (successful) {
+                successful = checkRetries(recoveringVerifier, 2, "recovering verifier");
+            }
+            if (successful) {
+                successful = checkRetries(silentVerifier, maximumSendAttempts, "silent verifier");
+            }
+            if (successful && engine.getNumberAccepted() != numberOfEntries) {
+                successful = false;
+                failureCause = "expected " + numberOfEntries + " accepted transactions, actual=" +
+                        engine.getNumberAccepted();
+            }
+        } catch (Exception e) {
+            failureCause = "exception in TransactionSubmissionEngineTest: " + PrintUtil.printException(e);
+            successful = false;
+        }
+        BlockManager.setGenesisBlockStartTimestamp(genesisBlockStartTimestamp);
+        ClientNodeManager.setRanking(ClientNodeManager.createRanking(60000L, System::currentTimeMillis));
+
+        if (successful) {
+            successful = checkBatchFilePaths();
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    private boolean checkBatching(TransactionSubmissionEngine engine, ByteBuffer verifier, long frozenEdgeHeight) {
+
+        // Each entry is sent once to the accepting verifier. The blocks past the frozen edge are filled in order, up
+        // to the limit for each block, and the timestamps are spaced through each block.
+        boolean successful = true;
+        Map<Long, Integer> transactionsPerHeight = new TreeMap<>();
+        Set<Long> timestamps = new HashSet<>();
+        Map<ByteBuffer, List<Long>> verifierTimestamps = sendTimestamps.getOrDefault(verifier,
+                Collections.emptyMap());
+        for (ByteBuffer signature : verifierTimestamps.keySet()) {
+            Transaction transaction = transactionsBySignature.get(signature);
+            long height = BlockManager.heightForTimestamp(transaction.getTimestamp());
+            transactionsPerHeight.merge(height, 1, Integer::sum);
+            timestamps.add(transaction.getTimestamp());
+        }
+
+        List<Long> heights = new ArrayList<>(transactionsPerHeight.keySet());
+        List<Integer> counts = new ArrayList<>(transactionsPerHeight.values());
+        if (engine.getNumberSubmitted() != numberOfEntries || verifierTimestamps.size() != numberOfEntries) {
+            successful = false;
+            failureCause = "expected " + numberOfEntries + " transactions submitted and sent, actual submitted=" +
+                    engine.getNumberSubmitted() + ", sent=" + verifierTimestamps.size();
+        } else if (!counts.equals(Arrays.asList(transactionsPerBlock, transactionsPerBlock,
+                numberOfEntries - transactionsPerBlock * 2))) {
+            successful = false;
+            failureCause = "unexpected transactions per height: " + transactionsPerHeight;
+        } else if (heights.get(0) <= frozenEdgeHeight || heights.get(2) - heights.get(0) != 2L) {
+            successful = false;
+            failureCause = "heights not consecutive past the frozen edge (" + frozenEdgeHeight + "): " + heights;
+        } else if (timestamps.size() != numberOfEntries) {
+            successful = false;
+            failureCause = "transaction timestamps are not distinct";
+        }
+
+        return successful;
+    }
+
+    private boolean checkRetries(ByteBuffer verifier, int expectedAttempts, String label) {
+
+        // Each transaction must be sent the expected number of times, and each retry must wait at least the delay
+        // multiplied by the number of failures so far.
+        boolean successful = true;
+        Map<ByteBuffer, List<Long>> verifierTimestamps = sendTimestamps.getOrDefault(verifier,
+                Collections.emptyMap());
+        if (verifierTimestamps.size() != numberOfEntries) {
+            successful = false;
+            failureCause = "expected " + numberOfEntries + " transactions sent to " + label + ", actual=" +
+                    verifierTimestamps.size();
+        }
+        for (List<Long> timestamps : verifierTimestamps.values()) {
+            if (successful && timestamps.size() != expectedAttempts) {
+                successful = false;
+                failureCause = "expected " + expectedAttempts + " attempts for " + label + ", actual=" +
+                        timestamps.size();
+            }
+            for (int i = 1; i < timestamps.size() && successful; i++) {
+                long interval = timestamps.get(i) - timestamps.get(i - 1);
+                if (interval < retryDelay * i) {
+                    successful = false;
+                    failureCause = "retry " + i + " for " + label + " was sent after " + interval + " ms, " +
+                            "expected at least " + retryDelay * i + " ms";
+                }
+            }
+        }
+
+        return successful;
+    }
+
+    private boolean checkBatchFilePaths() {
+
+        // A batch file is read from the interactive console. From the web, the same path is parsed as the batch text
+        // itself, so it is rejected.
+        boolean successful = true;
+        File file = null;
+        try {
+            file = File.createTempFile("nyzo_batch", ".txt");
+            String receiver = NyzoStringEncoder.encode(new NyzoStringPublicIdentifier(KeyUtil.identifierForSeed(
+                    KeyUtil.generateSeed())));
+            Files.write(file.toPath(), Arrays.asList(receiver + ",1.5,first", receiver + ",2,second"),
+                    StandardCharsets.UTF_8);
+            List<String> arguments = Arrays.asList(NyzoStringEncoder.encode(new NyzoStringPrivateSeed(
+                    KeyUtil.generateSeed())), file.getAbsolutePath());
+
+            TransactionBatchSendCommand command = new TransactionBatchSendCommand();
+            ValidationResult consoleResult = command.validate(arguments, new CommandOutputConsole());
+            ValidationResult webResult = command.validate(arguments, new CommandOutputWeb());
+            if (consoleResult.numberOfInvalidArguments() != 0) {
+                successful = false;
+                failureCause = "batch file was not accepted from the console: " +
+                        consoleResult.getArgumentResults().get(1).getValidationMessage();
+            } else if (!consoleResult.getArgumentResults().get(1).getValidationMessage().startsWith("2 transactions")) {
+                successful = false;
+                failureCause = "unexpected console validation of batch file: " +
+                        consoleResult.getArgumentResults().get(1).getValidationMessage();
+            } else if (webResult.getArgumentResults().get(1).isValid()) {
+                successful = false;
+                failureCause = "batch file path was accepted from the web";
+            }
+        } catch (Exception e) {
+            failureCause = "exception checking batch file paths: " + PrintUtil.printException(e);
+            successful = false;
+        }
+        if (file != null) {
+            file.delete();
+        }
+
+        return successful;
+    }
+
+    private List<Long> timestampsFor(ByteBuffer identifier, Transaction transaction) {
+
+        ByteBuffer signature = ByteBuffer.wrap(transaction.getSignature());
+        transactionsBySignature.put(signature, transaction);
+        return sendTimestamps.computeIfAbsent(identifier, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(signature, key -> Collections.synchronizedList(new ArrayList<>()));
+    }
+
+    private int numberOfSends(ByteBuffer identifier) {
+
+        int numberOfSends = 0;
+        for (List<Long> timestamps : sendTimestamps.getOrDefault(identifier, Collections.emptyMap()).values()) {
+            numberOfSends += timestamps.size();
+        }
+
+        return numberOfSends;
+    }
+
+    private static TransactionResponse response(boolean accepted) {
+
+        // The message is empty, so the response is a flag followed by a zero length.
+        return TransactionResponse.fromByteBuffer(ByteBuffer.wrap(new byte[] { (byte) (accepted ? 1 : 0), 0, 0 }));
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
@@ -0,0 +1,519 @@
+package co.nyzo.verifier.util;
+
+import co.nyzo.verifier.Block;
+import co.nyzo.verifier.FieldByteSize;
+import co.nyzo.verifier.messages.BlockVote;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class ConsensusEventLog {
+
+    // This is the storage back end of the consensus tracker. Events are encoded as fixed-width binary records into a
+    // preallocated ring. Registering threads claim a slot with a compare-and-set, write the record into the slot, and
+    // publish the slot by storing its sequence number. No locks are taken and no objects are allocated for the record.
+    // If the ring is full, the event is dropped and counted rather than blocking the caller.
+
+    // A single background thread drains the ring in sequence order into an append-only segment file. Each segment has
+    // an index file with one entry (height, record number) for each record, so the events for a height can be found
+    // without reading the segments in full. Segments are rotated when they reach the configured size, and a new
+    // segment is started each time the log is opened, so a record torn by a crash is only ever at the end of a
+    // segment.
+
+    // While a segment is open, its index entries are appended in arrival order to an open index file. When the
+    // segment is closed, the entries are sorted by height and written to the final index file, which is searched with
+    // a binary search. The open index of a segment left by a crash is sorted when the log is next opened. Only the
+    // index of the segment that is currently being written is scanned linearly.
+
+    // Record layout (96 bytes): timestamp (8), height (8), type (1), reserved (3), count (4), identifier (32),
+    // hash (32), value (8). For a block, the identifier is the verifier, the hash is the block hash, the count is the
+    // number of transactions, and the value is the verification timestamp. For a vote, the identifier is the sender,
+    // the hash is the voted hash, and the value is the vote timestamp. For a note, the identifier and hash fields hold
+    // up to 64 bytes of UTF-8 text.
+
+    public static final int recordSize = 96;
+    public static final int indexEntrySize = 12;
+
+    public static final byte typeBlock = 1;
+    public static final byte typeVote = 2;
+    public static final byte typeNote = 3;
+
+    private static final int timestampOffset = 0;
+    private static final int heightOffset = 8;
+    private static final int typeOffset = 16;
+    private static final int countOffset = 20;
+    private static final int identifierOffset = 24;
+    private static final int hashOffset = 56;
+    private static final int valueOffset = 88;
+    private static final int noteLength = 64;
+
+    private static final String segmentPrefix = "segment_";
+    private static final String segmentSuffix = ".nyzoconsensus";
+    private static final String indexSuffix = ".nyzoconsensusindex";
+    private static final String openIndexSuffix = ".nyzoconsensusindex_open";
+
+    private final File directory;
+    private final int capacity;
+    private final long segmentSize;
+    private final byte[] ring;
+    private final AtomicLongArray publishedSequences;
+    private final AtomicLong claimedSequence = new AtomicLong(0L);
+    private final AtomicLong drainedSequence = new AtomicLong(0L);
+    private final AtomicLong droppedEvents = new AtomicLong(0L);
+    private final AtomicLong writtenEvents = new AtomicLong(0L);
+
+    private int segmentNumber;
+    private int openSegmentNumber = -1;
+    private int segmentRecordCount = 0;
+    private FileOutputStream segmentStream = null;
+    private FileOutputStream indexStream = null;
+    private volatile boolean closed = false;
+    private final Thread writerThread;
+    private final byte[] indexEntry = new byte[indexEntrySize];
+
+    public ConsensusEventLog(File directory, int capacity, long segmentSize) {
+
+        this.directory = directory;
+        this.capacity = capacity;
+        this.segmentSize = segmentSize;
+        this.ring = new byte[capacity * recordSize];
+        this.publishedSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            publishedSequences.set(i, -1L);
+        }
+
+        directory.mkdirs();
+        segmentNumber = highestSegmentNumber(directory) + 1;
+        for (int i = 0; i < segmentNumber; i++) {
+            if (openIndexFile(directory, i).exists()) {
+                sortIndex(directory, i);
+            }
+        }
+
+        writerThread = ThreadUtil.startLongRunning(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    ThreadUtil.sleep(100L);
+                    drain();
+                }
+                drain();
+                closeSegment();
+            }
+        }, "ConsensusEventLog-writer", true);
+    }
+
+    public void registerBlock(long timestamp, Block block) {
+
+        long sequence = claimSequence();
+        if (sequence >= 0) {
+            int offset = (int) (sequence % capacity) * recordSize;
+            writeHeader(offset, timestamp, block.getBlockHeight(), typeBlock, block.getTransactions().size());
+            System.arraycopy(block.getVerifierIdentifier(), 0, ring, offset + identifierOffset,
+                    FieldByteSize.identifier);
+            System.arraycopy(block.getHash(), 0, ring, offset + hashOffset, FieldByteSize.hash);
+            putLong(ring, offset + valueOffset, block.getVerificationTimestamp());
+            publishedSequences.set((int) (sequence % capacity), sequence);
+        }
+    }
+
+    public void registerVote(long timestamp, BlockVote vote) {
+
+        long sequence = claimSequence();
+        if (sequence >= 0) {
+            int offset = (int) (sequence % capacity) * recordSize;
+            writeHeader(offset, timestamp, vote.getHeight(), typeVote, 0);
+            byte[] senderIdentifier = vote.getSenderIdentifier();
+            if (senderIdentifier == null) {
+                Arrays.fill(ring, offset + identifierOffset, offset + hashOffset, (byte) 0);
+            } else {
+                System.arraycopy(senderIdentifier, 0, ring, offset + identifierOffset, FieldByteSize.identifier);
+            }
+            System.arraycopy(vote.getHash(), 0, ring, offset + hashOffset, FieldByteSize.hash);
+            putLong(ring, offset + valueOffset, vote.getTimestamp());
+            publishedSequences.set((int) (sequence % capacity), sequence);
+        }
+    }
+
+    public void registerNote(long timestamp, long height, String note) {
+
+        long sequence = claimSequence();
+        if (sequence >= 0) {
+            int offset = (int) (sequence % capacity) * recordSize;
+            writeHeader(offset, timestamp, height, typeNote, 0);
+            byte[] noteBytes = note.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(noteBytes.length, noteLength);
+            System.arraycopy(noteBytes, 0, ring, offset + identifierOffset, length);
+            Arrays.fill(ring, offset + identifierOffset + length, offset + valueOffset, (byte) 0);
+            putLong(ring, offset + valueOffset, 0L);
+            publishedSequences.set((int) (sequence % capacity), sequence);
+        }
+    }
+
+    private long claimSequence() {
+
+        // The sequence is only advanced if the slot it maps to has been drained. Otherwise, the event is dropped. The
+        // volatile store of the sequence to the published array after the record is written makes the record visible
+        // to the writer thread.
+        long claimed = -1L;
+        boolean done = closed;
+        while (!done) {
+            long sequence = claimedSequence.get();
+            if (sequence - drainedSequence.get() >= capacity) {
+                droppedEvents.incrementAndGet();
+                done = true;
+            } else if (claimedSequence.compareAndSet(sequence, sequence + 1L)) {
+                claimed = sequence;
+                done = true;
+            }
+        }
+
+        return claimed;
+    }
+
+    private void writeHeader(int offset, long timestamp, long height, byte type, int count) {
+
+        putLong(ring, offset + timestampOffset, timestamp);
+        putLong(ring, offset + heightOffset, height);
+        ring[offset + typeOffset] = type;
+        ring[offset + typeOffset + 1] = 0;
+        ring[offset + typeOffset + 2] = 0;
+        ring[offset + typeOffset + 3] = 0;
+        putInt(ring, offset + countOffset, count);
+    }
+
+    public void drain() {
+
+        synchronized (this) {
+            long sequence = drainedSequence.get();
+            int slot = (int) (sequence % capacity);
+            while (publishedSequences.get(slot) == sequence) {
+                int offset = slot * recordSize;
+                writeRecord(offset);
+                drainedSequence.set(sequence + 1L);
+                sequence++;
+                slot = (int) (sequence % capacity);
+            }
+
+            flushSegment();
+        }
+    }
+
+    private void writeRecord(int offset) {
+
+        try {
+            if (segmentStream == null || (long) segmentRecordCount * recordSize >= segmentSize) {
+                closeSegment();
+                segmentStream = new FileOutputStream(segmentFile(directory, segmentNumber), true);
+                indexStream = new FileOutputStream(openIndexFile(directory, segmentNumber), true);
+                openSegmentNumber = segmentNumber;
+                segmentRecordCount = 0;
+                segmentNumber++;
+            }
+
+            System.arraycopy(ring, offset + heightOffset, indexEntry, 0, 8);
+            putInt(indexEntry, 8, segmentRecordCount);
+
+            segmentStream.write(ring, offset, recordSize);
+            indexStream.write(indexEntry);
+            segmentRecordCount++;
+            writtenEvents.incrementAndGet();
+        } catch (Exception e) {
+            LogUtil.println("unable to write consensus event: " + PrintUtil.printException(e));
+        }
+    }
+
+    private void flushSegment() {
+
+        try {
+            if (segmentStream != null) {
+                segmentStream.flush();
+                indexStream.flush();
+            }
+        } catch (Exception ignored) { }
+    }
+
+    private void closeSegment() {
+
+        if (segmentStream != null) {
+            try {
+                segmentStream.close();
+                indexStream.close();
+            } catch (Exception ignored) { }
+            sortIndex(directory, openSegmentNumber);
+        }
+        segmentStream = null;
+        indexStream = null;
+    }
+
+    private static void sortIndex(File directory, int segmentNumber) {
+
+        // The sort is stable, so the entries for each height remain in record order. The entries are mostly in height
+        // order already, which the merge sort handles in close to linear time. The sorted index is written to a
+        // temporary file and moved into place before the open index is deleted.
+        File openIndexFile = openIndexFile(directory, segmentNumber);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(openIndexFile.toPath()));
+            int numberOfEntries = buffer.remaining() / indexEntrySize;
+            long[] heights = new long[numberOfEntries];
+            int[] recordNumbers = new int[numberOfEntries];
+            Integer[] order = new Integer[numberOfEntries];
+            for (int i = 0; i < numberOfEntries; i++) {
+                heights[i] = buffer.getLong();
+                recordNumbers[i] = buffer.getInt();
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer index1, Integer index2) {
+                    return Long.compare(heights[index1], heights[index2]);
+                }
+            });
+
+            ByteBuffer sortedBuffer = ByteBuffer.allocate(numberOfEntries * indexEntrySize);
+            for (Integer index : order) {
+                sortedBuffer.putLong(heights[index]);
+                sortedBuffer.putInt(recordNumbers[index]);
+            }
+            File indexFile = indexFile(directory, segmentNumber);
+            File temporaryFile = new File(directory, indexFile.getName() + "_temp");
+            Files.write(temporaryFile.toPath(), sortedBuffer.array());
+            Files.move(temporaryFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(openIndexFile.toPath());
+        } catch (Exception e) {
+            LogUtil.println("unable to sort consensus index " + segmentNumber + ": " + PrintUtil.printException(e));
+        }
+    }
+
+    public void close() {
+
+        closed = true;
+        try {
+            writerThread.join(5000L);
+        } catch (Exception ignored) { }
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    public long getWrittenEvents() {
+        return writtenEvents.get();
+    }
+
+    public static List<ConsensusLogRecord> recordsForHeight(File directory, long height) {
+
+        // Use the index of each segment to find the records for the height, then read only those records. A sorted
+        // index is searched for the first entry at the height. An open index is scanned in full.
+        List<ConsensusLogRecord> records = new ArrayList<>();
+        int highestSegmentNumber = highestSegmentNumber(directory);
+        for (int segmentNumber = 0; segmentNumber <= highestSegmentNumber; segmentNumber++) {
+            File indexFile = indexFile(directory, segmentNumber);
+            boolean sorted = indexFile.exists();
+            if (!sorted) {
+                indexFile = openIndexFile(directory, segmentNumber);
+            }
+            File segmentFile = segmentFile(directory, segmentNumber);
+            if (indexFile.exists() && segmentFile.exists()) {
+                try (RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+                     RandomAccessFile segment = new RandomAccessFile(segmentFile, "r")) {
+                    long numberOfEntries = index.length() / indexEntrySize;
+                    long numberOfRecords = segment.length() / recordSize;
+                    long entryNumber = sorted ? firstEntryAtOrAbove(index, numberOfEntries, height) : 0L;
+                    index.seek(entryNumber * indexEntrySize);
+                    byte[] record = new byte[recordSize];
+                    boolean done = false;
+                    for (; entryNumber < numberOfEntries && !done; entryNumber++) {
+                        long entryHeight = index.readLong();
+                        int recordNumber = index.readInt();
+                        if (entryHeight == height && recordNumber < numberOfRecords) {
+                            segment.seek((long) recordNumber * recordSize);
+                            segment.readFully(record);
+                            records.add(ConsensusLogRecord.fromBytes(record));
+                        } else if (sorted && entryHeight > height) {
+                            done = true;
+                        }
+                    }
+                } catch (Exception e) {
+                    LogUtil.println("unable to read consensus segment " + segmentNumber + ": " +
+                            PrintUtil.printException(e));
+                }
+            }
+        }
+
+        return records;
+    }
+
+    private static long firstEntryAtOrAbove(RandomAccessFile index, long numberOfEntries, long height)
+            throws IOException {
+
+        long low = 0L;
+        long high = numberOfEntries;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            index.seek(middle * indexEntrySize);
+            if (index.readLong() < height) {
+                low = middle + 1L;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private static int highestSegmentNumber(File directory) {
+
+        int highest = -1;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(segmentPrefix) && name.endsWith(segmentSuffix)) {
+                    try {
+                        highest = Math.max(highest, Integer.parseInt(name.substring(segmentPrefix.length(),
+                                name.length() - segmentSuffix.length())));
+                    } catch (Exception ignored) { }
+                }
+            }
+        }
+
+        return highest;
+    }
+
+    private static File segmentFile(File directory, int segmentNumber) {
+        return new File(directory, String.format("%s%06d%s", segmentPrefix, segmentNumber, segmentSuffix));
+    }
+
+    private static File indexFile(File directory, int segmentNumber) {
+        return new File(directory, String.format("%s%06d%s", segmentPrefix, segmentNumber, indexSuffix));
+    }
+
+    private static File openIndexFile(File directory, int segmentNumber) {
+        return new File(directory, String.format("%s%06d%s", segmentPrefix, segmentNumber, openIndexSuffix));
+    }
+
+    private static void putLong(byte[] array, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            array[offset + i] = (byte) value;
+            value >>= 8;
+        }
+    }
+
+    private static void putInt(byte[] array, int offset, int value) {
+        for (int i = 3; i >= 0; i--) {
+            array[offset + i] = (byte) value;
+            value >>= 8;
+        }
+    }
+
+    public static class ConsensusLogRecord {
+
+        private final long timestamp;
+        private final long height;
+        private final byte type;
+        private final int count;
+        private final byte[] identifier;
+        private final byte[] hash;
+        private final long value;
+
+        private ConsensusLogRecord(long timestamp, long height, byte type, int count, byte[] identifier, byte[] hash,
+                                   long value) {
+            this.timestamp = timestamp;
+            this.height = height;
+            this.type = type;
+            this.count = count;
+            this.identifier = identifier;
+            this.hash = hash;
+            this.value = value;
+        }
+
+        static ConsensusLogRecord fromBytes(byte[] record) {
+
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            long timestamp = buffer.getLong(timestampOffset);
+            long height = buffer.getLong(heightOffset);
+            byte type = buffer.get(typeOffset);
+            int count = buffer.getInt(countOffset);
+            byte[] identifier = Arrays.copyOfRange(record, identifierOffset, identifierOffset +
+                    FieldByteSize.identifier);
+            byte[] hash = Arrays.copyOfRange(record, hashOffset, hashOffset + FieldByteSize.hash);
+            long value = buffer.getLong(valueOffset);
+
+            return new ConsensusLogRecord(timestamp, height, type, count, identifier, hash, value);
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getHeight() {
+            return height;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public byte[] getIdentifier() {
+            return identifier;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        public String getNote() {
+
+            byte[] noteBytes = new byte[noteLength];
+            System.arraycopy(identifier, 0, noteBytes, 0, identifier.length);
+            System.arraycopy(hash, 0, noteBytes, identifier.length, hash.length);
+            int length = 0;
+            while (length < noteBytes.length && noteBytes[length] != 0) {
+                length++;
+            }
+
+            return new String(noteBytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+
+            String result;
+            if (type == typeBlock) {
+                result = "[Block: height=" + height + ", hash=" + PrintUtil.compactPrintByteArray(hash) +
+                        ", verifier=" + PrintUtil.compactPrintByteArray(identifier) + ", transactions=" + count +
+                        ", verification timestamp=" + PrintUtil.compactPrintTimestamp(value) + "]";
+            } else if (type == typeVote) {
+                result = "[BlockVote: height=" + height + ", hash=" + PrintUtil.compactPrintByteArray(hash) +
+                        ", sender=" + PrintUtil.compactPrintByteArray(identifier) + ", timestamp=" +
+                        PrintUtil.compactPrintTimestamp(value) + "]";
+            } else {
+                result = getNote();
+            }
+
+            return PrintUtil.compactPrintTimestamp(timestamp) + ":" + result;
+        }
+    }
+}
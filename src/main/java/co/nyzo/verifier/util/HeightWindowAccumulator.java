@@ -0,0 +1,169 @@
+package co.nyzo.verifier.util;
+
+import java.util.Arrays;
+
+public class HeightWindowAccumulator {
+
+    // This holds one value per block height in a ring of primitive arrays indexed by height, and it maintains the sum
+    // of the values as they are added and removed. Adding a value and advancing the start of the window are constant
+    // time for consecutive heights, so the sum over a window of any length is available without iterating the window.
+
+    // The start of the window is set by the caller, so the window length may change from one block to the next, as
+    // the cycle length does. Values below the start are removed and are not restored if the start later moves back,
+    // which matches the behavior of removing old entries from a map. Gaps in the heights contribute nothing to the
+    // sum.
+
+    // The span of stored heights is limited to the maximum span. When a put would exceed it, the values that fall out
+    // of the span are removed before the ring grows, so the capacity never exceeds the maximum span, and a jump in
+    // height does not inflate the ring. Within that limit, the ring grows when the span of stored heights exceeds its
+    // capacity, so no stored value is overwritten, and it shrinks back when the span falls well below the capacity.
+
+    private static final long emptySlot = Long.MIN_VALUE;
+
+    private final int initialCapacity;
+    private final int maximumSpan;
+    private long[] heights;
+    private long[] values;
+    private boolean empty = true;
+    private long windowStart = 0L;  // all stored heights are at or above this height
+    private long highestHeight = 0L;
+    private int numberOfValues = 0;
+    private long sum = 0L;
+
+    public HeightWindowAccumulator(int initialCapacity, int maximumSpan) {
+        this.maximumSpan = Math.max(maximumSpan, 1);
+        this.initialCapacity = Math.min(Math.max(initialCapacity, 1), this.maximumSpan);
+        heights = new long[this.initialCapacity];
+        values = new long[this.initialCapacity];
+        Arrays.fill(heights, emptySlot);
+    }
+
+    public void put(long height, long value) {
+
+        // A value below the maximum span from the highest height is outside the window. A value above the highest
+        // height first removes the values that its height pushes out of the span.
+        if (!empty && height <= highestHeight - maximumSpan) {
+            return;
+        }
+        if (!empty && height - maximumSpan + 1L > windowStart) {
+            removeBelow(height - maximumSpan + 1L);
+        }
+
+        if (empty) {
+            windowStart = height;
+            highestHeight = height;
+            empty = false;
+        } else {
+            windowStart = Math.min(windowStart, height);
+            highestHeight = Math.max(highestHeight, height);
+        }
+        ensureCapacity(highestHeight - windowStart + 1L);
+
+        int slot = slot(height);
+        if (heights[slot] == height) {
+            sum -= values[slot];
+        } else {
+            numberOfValues++;
+        }
+        heights[slot] = height;
+        values[slot] = value;
+        sum += value;
+    }
+
+    public void removeBelow(long height) {
+
+        if (!empty && height > windowStart) {
+            if (height > highestHeight) {
+                clear();
+            } else {
+                if (height - windowStart >= heights.length) {
+                    // After a large jump, scanning the ring is less work than stepping through the skipped heights.
+                    for (int slot = 0; slot < heights.length; slot++) {
+                        if (heights[slot] != emptySlot && heights[slot] < height) {
+                            removeSlot(slot);
+                        }
+                    }
+                } else {
+                    for (long removalHeight = windowStart; removalHeight < height; removalHeight++) {
+                        int slot = slot(removalHeight);
+                        if (heights[slot] == removalHeight) {
+                            removeSlot(slot);
+                        }
+                    }
+                }
+                windowStart = height;
+                shrinkIfSparse();
+            }
+        }
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public int getNumberOfValues() {
+        return numberOfValues;
+    }
+
+    public int getCapacity() {
+        return heights.length;
+    }
+
+    public void clear() {
+        if (heights.length > initialCapacity) {
+            heights = new long[initialCapacity];
+            values = new long[initialCapacity];
+        }
+        Arrays.fill(heights, emptySlot);
+        empty = true;
+        numberOfValues = 0;
+        sum = 0L;
+    }
+
+    private void removeSlot(int slot) {
+        sum -= values[slot];
+        heights[slot] = emptySlot;
+        numberOfValues--;
+    }
+
+    private int slot(long height) {
+        return (int) Math.floorMod(height, (long) heights.length);
+    }
+
+    private void ensureCapacity(long span) {
+
+        if (span > heights.length) {
+            resize((int) Math.min(maximumSpan, Math.max(span, heights.length * 2L)));
+        }
+    }
+
+    private void shrinkIfSparse() {
+
+        // The ring is halved while the span of stored heights is no more than a quarter of the capacity, so that
+        // alternating jumps do not resize it repeatedly.
+        long span = highestHeight - windowStart + 1L;
+        int capacity = heights.length;
+        while (capacity / 2 >= initialCapacity && span * 4L <= capacity) {
+            capacity /= 2;
+        }
+        if (capacity < heights.length) {
+            resize(capacity);
+        }
+    }
+
+    private void resize(int capacity) {
+
+        long[] oldHeights = heights;
+        long[] oldValues = values;
+        heights = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(heights, emptySlot);
+        for (int i = 0; i < oldHeights.length; i++) {
+            if (oldHeights[i] != emptySlot) {
+                int slot = slot(oldHeights[i]);
+                heights[slot] = oldHeights[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
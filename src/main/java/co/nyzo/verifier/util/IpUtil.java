@@ -1,5 +1,7 @@
 package co.nyzo.verifier.util;
 
+import java.net.InetAddress;
+
 public class IpUtil {
 
     public static byte[] addressFromString(String addressString) {
@@ -34,7 +36,32 @@ public class IpUtil {
 
     public static String addressAsString(byte[] address) {
 
-        return (address[0] & 0xff) + "." + (address[1] & 0xff) + "." + (address[2] & 0xff) + "." + (address[3] & 0xff);
+        // Addresses other than IPv4 addresses, which are only seen on incoming connections, use the standard format.
+        String result;
+        if (address.length == 4) {
+            result = (address[0] & 0xff) + "." + (address[1] & 0xff) + "." + (address[2] & 0xff) + "." +
+                    (address[3] & 0xff);
+        } else {
+            try {
+                result = InetAddress.getByAddress(address).getHostAddress();
+            } catch (Exception e) {
+                result = "(invalid address)";
+            }
+        }
+
+        return result;
+    }
+
+    public static String addressAsString(int address) {
+
+        return ((address >>> 24) & 0xff) + "." + ((address >>> 16) & 0xff) + "." + ((address >>> 8) & 0xff) + "." +
+                (address & 0xff);
+    }
+
+    public static int addressAsInt(byte[] address) {
+
+        return ((address[0] & 0xff) << 24) | ((address[1] & 0xff) << 16) | ((address[2] & 0xff) << 8) |
+                (address[3] & 0xff);
     }
 
     public static boolean isPrivate(byte[] address) {
@@ -2,29 +2,321 @@ package co.nyzo.verifier.util;
 
 import co.nyzo.verifier.RunMode;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
 public class LogUtil {
 
+    // Lines are not written on the calling thread. They are placed in a bounded, lock-free ring of preallocated slots
+    // and written to standard output by a background thread, so a slow output pipe cannot stall consensus threads. A
+    // caller never waits: if the ring is full, a line is dropped according to the drop policy, and the number of
+    // dropped lines is reported in the log when space is available again.
+    //
+    // Formatting is deferred to the writer thread. Timestamps are recorded as numbers, and lines passed as a format and
+    // arguments are formatted only when written, so the arguments should not be modified after they are logged.
+    // Consecutive identical lines are written once per suppression interval, followed by a count of the repeats.
+    //
+    // The ring is the bounded multi-producer, multi-consumer queue described by Dmitry Vyukov. Each slot has a
+    // sequence number that indicates whether it is ready to be written or read in the current lap of the ring.
+
+    private enum DropPolicy {
+        Newest,  // the line being logged is dropped
+        Oldest   // the oldest line waiting to be written is dropped to make room
+    }
+
     private static final boolean logTimestamps = PreferencesUtil.getBoolean("log_timestamps", false);
+    private static final boolean asynchronous = PreferencesUtil.getBoolean("log_asynchronous", true);
+    private static final DropPolicy dropPolicy = PreferencesUtil.get("log_drop_policy", "newest")
+            .equalsIgnoreCase("oldest") ? DropPolicy.Oldest : DropPolicy.Newest;
+    private static final long duplicateSuppressionInterval =
+            PreferencesUtil.getLong("log_duplicate_suppression_interval", 10000L);
+
+    private static final int capacity = Integer.highestOneBit(Math.max(2,
+            PreferencesUtil.getInt("log_ring_capacity", 8192)));
+    private static final int mask = capacity - 1;
+    private static final AtomicLongArray sequences = createSequences();
+    private static final long[] timestamps = new long[capacity];
+    private static final String[] formats = new String[capacity];
+    private static final Object[][] arguments = new Object[capacity][];
+    private static final AtomicLong head = new AtomicLong(0L);
+    private static final AtomicLong tail = new AtomicLong(0L);
+    private static final AtomicLong numberOfLinesDropped = new AtomicLong(0L);
+    private static final AtomicLong numberOfLinesWritten = new AtomicLong(0L);
+    private static final AtomicLong numberOfLinesProcessed = new AtomicLong(0L);
+    private static final AtomicLong numberOfLinesSkipped = new AtomicLong(0L);
 
-    // The "lines" field is initialized to null and assigned in the method below. If the field is statically initialized
-    // with an array object, this can cause an initialization race that can cause a null-pointer exception to be thrown
-    // when the array is accessed.
-    private static final int numberOfLines = 100;
-    private static String[] lines = null;
-    private static int lineIndex = 0;
+    // The most recent lines are kept in memory. This array is only accessed by the writer thread, except when copied.
+    private static final int numberOfRecentLines = 100;
+    private static final String[] recentLines = new String[numberOfRecentLines];
+    private static int recentLineIndex = 0;
+
+    // These fields are used only by the thread that writes, which is the writer thread in asynchronous mode and a
+    // caller holding the class lock in synchronous mode.
+    private static String previousLine = null;
+    private static long previousLineTimestamp = 0L;
+    private static int numberOfRepeats = 0;
+    private static long numberOfDropsReported = 0L;
+
+    private static volatile Thread writerThread = null;
+
+    // Loading the preferences for this class can cause a line to be logged before the fields above are initialized.
+    // Such lines are written directly.
+    private static final boolean initialized;
+    static {
+        initialized = true;
+    }
 
     public static void println(String line) {
+        log(line, null);
+    }
+
+    public static void println(String format, Object... arguments) {
+        log(format, arguments);
+    }
+
+    private static void log(String format, Object[] lineArguments) {
+
+        long timestamp = System.currentTimeMillis();
+        if (!initialized) {
+            System.out.println(lineArguments == null ? format : String.format(format, lineArguments));
+        } else if (!asynchronous) {
+            synchronized (LogUtil.class) {
+                write(timestamp, format, lineArguments, new StringBuilder());
+            }
+        } else {
+            startWriterThread();
+            if (!offer(timestamp, format, lineArguments)) {
+                if (dropPolicy == DropPolicy.Oldest && poll(null)) {
+                    numberOfLinesDropped.incrementAndGet();
+                }
+                if (dropPolicy == DropPolicy.Newest || !offer(timestamp, format, lineArguments)) {
+                    numberOfLinesDropped.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public static long getNumberOfLinesDropped() {
+        return numberOfLinesDropped.get();
+    }
+
+    public static long getNumberOfLinesWritten() {
+        return numberOfLinesWritten.get();
+    }
+
+    public static List<String> getRecentLines() {
+
+        List<String> lines = new ArrayList<>();
+        synchronized (recentLines) {
+            for (int i = 0; i < numberOfRecentLines; i++) {
+                String line = recentLines[(recentLineIndex + i) % numberOfRecentLines];
+                if (line != null) {
+                    lines.add(line);
+                }
+            }
+        }
+
+        return lines;
+    }
+
+    public static void flush() {
+
+        // This waits until all lines logged before the call have been written. It is intended for tests and shutdown,
+        // not for the paths that log.
+        long target = tail.get();
+        while (asynchronous && numberOfLinesProcessed.get() < target - numberOfLinesSkipped.get() &&
+                writerThread != null && writerThread.isAlive()) {
+            LockSupport.parkNanos(1000000L);
+        }
+    }
+
+    private static boolean offer(long timestamp, String format, Object[] lineArguments) {
+
+        boolean offered = false;
+        long position = tail.get();
+        boolean full = false;
+        while (!offered && !full) {
+            int slot = (int) (position & mask);
+            long difference = sequences.get(slot) - position;
+            if (difference == 0L) {
+                if (tail.compareAndSet(position, position + 1L)) {
+                    timestamps[slot] = timestamp;
+                    formats[slot] = format;
+                    arguments[slot] = lineArguments;
+                    sequences.lazySet(slot, position + 1L);
+                    offered = true;
+                } else {
+                    position = tail.get();
+                }
+            } else if (difference < 0L) {
+                full = true;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        return offered;
+    }
+
+    private static boolean poll(StringBuilder builder) {
+
+        // If a builder is provided, the line is written. Otherwise, the line is discarded.
+        boolean polled = false;
+        long position = head.get();
+        boolean empty = false;
+        while (!polled && !empty) {
+            int slot = (int) (position & mask);
+            long difference = sequences.get(slot) - (position + 1L);
+            if (difference == 0L) {
+                if (head.compareAndSet(position, position + 1L)) {
+                    long timestamp = timestamps[slot];
+                    String format = formats[slot];
+                    Object[] lineArguments = arguments[slot];
+                    formats[slot] = null;
+                    arguments[slot] = null;
+                    sequences.lazySet(slot, position + capacity);
+                    if (builder == null) {
+                        numberOfLinesSkipped.incrementAndGet();
+                    } else {
+                        write(timestamp, format, lineArguments, builder);
+                        numberOfLinesProcessed.incrementAndGet();
+                    }
+                    polled = true;
+                } else {
+                    position = head.get();
+                }
+            } else if (difference < 0L) {
+                empty = true;
+            } else {
+                position = head.get();
+            }
+        }
+
+        return polled;
+    }
+
+    private static void write(long timestamp, String format, Object[] lineArguments, StringBuilder builder) {
+
+        String line;
+        try {
+            line = lineArguments == null ? format : String.format(format, lineArguments);
+        } catch (Exception e) {
+            line = format + " (unable to format: " + e.getMessage() + ")";
+        }
+
+        // Report dropped lines before the next line written.
+        long numberOfDrops = numberOfLinesDropped.get();
+        if (numberOfDrops > numberOfDropsReported) {
+            appendLine(timestamp, "[" + (numberOfDrops - numberOfDropsReported) + " log lines dropped]", builder);
+            numberOfDropsReported = numberOfDrops;
+        }
+
+        // Consecutive identical lines within the suppression interval are counted and not written.
+        if (line.equals(previousLine) && timestamp - previousLineTimestamp < duplicateSuppressionInterval) {
+            numberOfRepeats++;
+        } else {
+            flushRepeats(timestamp, builder);
+            appendLine(timestamp, line, builder);
+            previousLine = line;
+            previousLineTimestamp = timestamp;
+        }
+    }
+
+    private static void flushRepeats(long timestamp, StringBuilder builder) {
+
+        if (numberOfRepeats > 0) {
+            appendLine(timestamp, "[previous line repeated " + numberOfRepeats + " times]", builder);
+            numberOfRepeats = 0;
+        }
+    }
+
+    private static void appendLine(long timestamp, String line, StringBuilder builder) {
+
+        synchronized (recentLines) {
+            recentLines[recentLineIndex] = line;
+            recentLineIndex = (recentLineIndex + 1) % numberOfRecentLines;
+        }
 
         if (RunMode.getRunMode() != RunMode.Client) {
-            String timestamp = logTimestamps ? "[" + PrintUtil.printTimestamp(System.currentTimeMillis()) + "]: " : "";
-            System.out.println(timestamp + line);
+            if (logTimestamps) {
+                builder.append('[').append(PrintUtil.printTimestamp(timestamp)).append("]: ");
+            }
+            builder.append(line).append('\n');
+            numberOfLinesWritten.incrementAndGet();
         }
 
-        // See above for why assignment here is necessary.
-        if (lines == null) {
-            lines = new String[numberOfLines];
+        // In synchronous mode, each line is written immediately.
+        if (!asynchronous) {
+            System.out.print(builder);
+            builder.setLength(0);
         }
-        lines[lineIndex] = line;
-        lineIndex = (lineIndex + 1) % numberOfLines;
+    }
+
+    private static void startWriterThread() {
+
+        if (writerThread == null) {
+            synchronized (LogUtil.class) {
+                if (writerThread == null) {
+                    Thread thread = ThreadUtil.startLongRunning(new Runnable() {
+                        @Override
+                        public void run() {
+                            StringBuilder builder = new StringBuilder();
+                            int idleIterations = 0;
+                            while (true) {
+                                // Drain up to a batch of lines and write them with a single call.
+                                int numberOfLines = 0;
+                                while (numberOfLines < 1000 && poll(builder)) {
+                                    numberOfLines++;
+                                }
+
+                                // If the suppression interval for a repeated line has passed, report the repeats.
+                                if (numberOfLines == 0 && numberOfRepeats > 0 &&
+                                        System.currentTimeMillis() - previousLineTimestamp >=
+                                                duplicateSuppressionInterval) {
+                                    flushRepeats(System.currentTimeMillis(), builder);
+                                    previousLine = null;
+                                }
+
+                                if (builder.length() > 0) {
+                                    System.out.print(builder);
+                                    System.out.flush();
+                                    builder.setLength(0);
+                                }
+
+                                if (numberOfLines == 0) {
+                                    idleIterations++;
+                                    LockSupport.parkNanos(idleIterations < 10 ? 100000L : 2000000L);
+                                } else {
+                                    idleIterations = 0;
+                                }
+                            }
+                        }
+                    }, "LogUtil-writer", true);
+
+                    // Lines remaining at shutdown are written by the hook.
+                    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    }, "LogUtil-shutdown"));
+
+                    writerThread = thread;
+                }
+            }
+        }
+    }
+
+    private static AtomicLongArray createSequences() {
+
+        AtomicLongArray sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+
+        return sequences;
     }
 }
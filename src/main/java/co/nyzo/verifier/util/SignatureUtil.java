@@ -2,6 +2,8 @@ package co.nyzo.verifier.util;
 
 import co.nyzo.verifier.ByteUtil;
 import co.nyzo.verifier.KeyUtil;
+import co.nyzo.verifier.metrics.LatencyHistogram;
+import co.nyzo.verifier.metrics.MetricsRegistry;
 import net.i2p.crypto.eddsa.EdDSAEngine;
 import net.i2p.crypto.eddsa.EdDSASecurityProvider;
 import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
@@ -17,6 +19,9 @@ public class SignatureUtil {
     private static final Map<ByteBuffer, EdDSAEngine> seedToSignatureMap = new HashMap<>();
     private static final Map<ByteBuffer, EdDSAEngine> identifierToSignatureMap = new HashMap<>();
 
+    private static final LatencyHistogram signatureVerificationTime =
+            MetricsRegistry.histogram("nyzo_signature_verification_seconds");
+
     public static final EdDSAParameterSpec spec;
 
     static {
@@ -57,6 +62,7 @@ public class SignatureUtil {
     public static boolean signatureIsValid(byte[] signatureBytes, byte[] signedBytes, byte[] publicIdentifier,
                                            int signedBytesStart, int signedBytesEnd) {
 
+        long startTimestamp = System.nanoTime();
         boolean signatureIsValid;
 
         try {
@@ -85,6 +91,7 @@ public class SignatureUtil {
 
             signatureIsValid = false;
         }
+        signatureVerificationTime.recordSince(startTimestamp);
 
         return signatureIsValid;
     }
@@ -1,7 +1,41 @@
 package co.nyzo.verifier.util;
 
+import co.nyzo.verifier.metrics.LatencyHistogram;
+import co.nyzo.verifier.metrics.MetricsCounter;
+import co.nyzo.verifier.metrics.MetricsRegistry;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class ThreadUtil {
 
+    // Tasks that block on network I/O, such as an outbound request or an inbound connection, are run with execute().
+    // The execution mode is set with the thread_execution_mode preference:
+    //   - platform (default): a new platform thread for each task, which is the original behavior
+    //   - pool: a bounded pool of platform threads with a bounded queue; if the pool and its queue are full, the task
+    //     is rejected, so load is shed instead of growing without bound or blocking the submitter
+    //   - virtual: a new virtual thread for each task, if the JDK provides virtual threads; otherwise, the pool
+
+    // The execute() method returns false if the task was rejected. The submitter is responsible for the work the task
+    // would have done: a fetch reports a null response to its callback, and a listener closes the socket.
+
+    // Loops that run for the life of the process, and other tasks that may block for minutes, are started with
+    // startLongRunning(). These always get their own platform thread. They would hold threads of the pool for long
+    // periods, and several of them block while holding monitors, which pins a virtual thread to its carrier thread.
+    // Threads created by the dedicated pools of other classes and shutdown hooks are not started here.
+
+    // The virtual-thread API is accessed by reflection so the code still compiles and runs on JDKs without it.
+
+    public enum ExecutionMode {
+        Platform,
+        Pool,
+        Virtual
+    }
+
+    private static final AtomicInteger longRunningThreads = new AtomicInteger(0);
+
     public static void sleep(long milliseconds) {
 
         if (milliseconds > 0) {
@@ -10,4 +44,187 @@ public class ThreadUtil {
             } catch (Exception ignored) { }
         }
     }
+
+    public static boolean execute(Runnable task, String name) {
+        return Execution.execute(task, name);
+    }
+
+    public static Thread startLongRunning(Runnable task, String name) {
+        return startLongRunning(task, name, false);
+    }
+
+    public static Thread startLongRunning(Runnable task, String name, boolean daemon) {
+
+        // The count of long-running threads is decremented when the task ends, so the gauge shows the threads that
+        // are alive.
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    longRunningThreads.decrementAndGet();
+                }
+            }
+        }, name);
+        thread.setDaemon(daemon);
+        longRunningThreads.incrementAndGet();
+        thread.start();
+
+        return thread;
+    }
+
+    public static ExecutionMode getExecutionMode() {
+        return Execution.mode;
+    }
+
+    public static Executor createExecutor(ExecutionMode mode, int poolSize) {
+
+        // This returns an executor for the mode without metrics. It is used by the stress script to compare modes in
+        // one process. A null value is returned for the virtual mode if virtual threads are not available. The pool
+        // executor throws RejectedExecutionException if its queue is full.
+        Executor executor = null;
+        if (mode == ExecutionMode.Platform) {
+            executor = new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    new Thread(task).start();
+                }
+            };
+        } else if (mode == ExecutionMode.Pool) {
+            executor = createPool(poolSize, poolSize * 16);
+        } else {
+            ThreadFactory factory = virtualThreadFactory();
+            if (factory != null) {
+                executor = new Executor() {
+                    @Override
+                    public void execute(Runnable task) {
+                        factory.newThread(task).start();
+                    }
+                };
+            }
+        }
+
+        return executor;
+    }
+
+    private static ThreadPoolExecutor createPool(int poolSize, int queueSize) {
+
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ThreadUtil-pool-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+
+        return pool;
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+
+        // Thread.ofVirtual().factory() is available in Java 21, and in Java 19 and 20 with preview features enabled.
+        // Otherwise, the reflective call throws, and null is returned.
+        ThreadFactory factory = null;
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factoryMethod = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            factory = (ThreadFactory) factoryMethod.invoke(builder);
+        } catch (Throwable ignored) { }
+
+        return factory;
+    }
+
+    // The execution state is held in a nested class so that it is only initialized when first used. This class is
+    // used for sleeping during the initialization of the preferences, before the mode can be read.
+    private static class Execution {
+
+        private static final LatencyHistogram schedulingLatency =
+                MetricsRegistry.histogram("nyzo_executor_scheduling_seconds");
+        private static final MetricsCounter tasksSubmitted = MetricsRegistry.counter("nyzo_executor_tasks_submitted");
+        private static final MetricsCounter tasksStarted = MetricsRegistry.counter("nyzo_executor_tasks_started");
+        private static final MetricsCounter tasksCompleted = MetricsRegistry.counter("nyzo_executor_tasks_completed");
+        private static final MetricsCounter tasksRejected = MetricsRegistry.counter("nyzo_executor_tasks_rejected");
+
+        private static final ThreadFactory virtualThreadFactory;
+        private static final ThreadPoolExecutor pool;
+        private static final ExecutionMode mode;
+        static {
+            String modeName = PreferencesUtil.get("thread_execution_mode", "platform").trim().toLowerCase();
+            ThreadFactory factory = modeName.equals("virtual") ? virtualThreadFactory() : null;
+            if (factory != null) {
+                mode = ExecutionMode.Virtual;
+            } else if (modeName.equals("pool") || modeName.equals("virtual")) {
+                mode = ExecutionMode.Pool;
+            } else {
+                mode = ExecutionMode.Platform;
+            }
+            virtualThreadFactory = factory;
+            pool = mode == ExecutionMode.Pool ? createPool(PreferencesUtil.getInt("thread_pool_size", 256),
+                    PreferencesUtil.getInt("thread_pool_queue_size", 4096)) : null;
+            if (modeName.equals("virtual") && factory == null) {
+                LogUtil.println("virtual threads are not available; using a pool of platform threads");
+            }
+
+            MetricsRegistry.gauge("nyzo_executor_tasks_active", () -> tasksStarted.get() - tasksCompleted.get());
+            MetricsRegistry.gauge("nyzo_executor_tasks_pending", () -> tasksSubmitted.get() - tasksStarted.get() -
+                    tasksRejected.get());
+            MetricsRegistry.gauge("nyzo_executor_long_running_threads", longRunningThreads::get);
+            MetricsRegistry.gauge("nyzo_executor_mode", "mode", mode.toString().toLowerCase(), () -> 1L);
+            MetricsRegistry.gauge("nyzo_jvm_platform_threads", () -> ManagementFactory.getThreadMXBean()
+                    .getThreadCount());
+            MetricsRegistry.gauge("nyzo_jvm_platform_threads_peak", () -> ManagementFactory.getThreadMXBean()
+                    .getPeakThreadCount());
+        }
+
+        private static boolean execute(Runnable task, String name) {
+
+            long submissionTimestamp = System.nanoTime();
+            tasksSubmitted.increment();
+            Runnable measuredTask = new Runnable() {
+                @Override
+                public void run() {
+                    schedulingLatency.recordSince(submissionTimestamp);
+                    tasksStarted.increment();
+
+                    // Pool threads are renamed for the task so that thread dumps remain readable.
+                    Thread thread = Thread.currentThread();
+                    String threadName = thread.getName();
+                    if (mode == ExecutionMode.Pool) {
+                        thread.setName(name);
+                    }
+                    try {
+                        task.run();
+                    } finally {
+                        if (mode == ExecutionMode.Pool) {
+                            thread.setName(threadName);
+                        }
+                        tasksCompleted.increment();
+                    }
+                }
+            };
+
+            boolean accepted = true;
+            if (mode == ExecutionMode.Virtual) {
+                Thread thread = virtualThreadFactory.newThread(measuredTask);
+                thread.setName(name);
+                thread.start();
+            } else if (mode == ExecutionMode.Pool) {
+                try {
+                    pool.execute(measuredTask);
+                } catch (RejectedExecutionException ignored) {
+                    tasksRejected.increment();
+                    accepted = false;
+                }
+            } else {
+                new Thread(measuredTask, name).start();
+            }
+
+            return accepted;
+        }
+    }
 }
@@ -29,7 +29,7 @@ public class UpdateUtil {
 
     public static void reset() {
 
-        new Thread(new Runnable() {
+        ThreadUtil.startLongRunning(new Runnable() {
             @Override
             public void run() {
                 // Flag that the system should terminate and close the MeshListener socket.
@@ -52,6 +52,6 @@ public class UpdateUtil {
                 // Exit the application.
                 System.exit(0);
             }
-        }).start();
+        }, "UpdateUtil-reset");
     }
 }
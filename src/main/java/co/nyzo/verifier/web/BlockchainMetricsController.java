@@ -0,0 +1,23 @@
+package co.nyzo.verifier.web;
+
+import co.nyzo.verifier.BlockchainMetricsManager;
+import co.nyzo.verifier.json.JsonWriter;
+
+public class BlockchainMetricsController {
+
+    public static final Endpoint metricsEndpoint = new Endpoint("/blockchainMetrics");
+
+    public static EndpointResponse metrics(EndpointRequest request) {
+
+        // The windows are rendered from their getters, one object per window length.
+        JsonWriter writer = new JsonWriter();
+        writer.beginObject()
+                .name("cycleTransactionSum").value(BlockchainMetricsManager.getCycleTransactionSum())
+                .name("maximumTransactionsForBlockAssembly")
+                .value(BlockchainMetricsManager.maximumTransactionsForBlockAssembly())
+                .name("windows").value(BlockchainMetricsManager.getMetricsWindows())
+                .endObject();
+
+        return new EndpointResponse(writer.toByteArray(), EndpointResponse.contentTypeJson);
+    }
+}
@@ -0,0 +1,15 @@
+package co.nyzo.verifier.web;
+
+import co.nyzo.verifier.metrics.MetricsRegistry;
+
+import java.nio.charset.StandardCharsets;
+
+public class MetricsController {
+
+    public static final Endpoint metricsEndpoint = new Endpoint("/metrics");
+
+    public static EndpointResponse metrics(EndpointRequest request) {
+        return new EndpointResponse(MetricsRegistry.scrape().getBytes(StandardCharsets.UTF_8),
+                EndpointResponse.contentTypeText);
+    }
+}
@@ -11,7 +11,6 @@ import javax.net.ssl.*;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -25,7 +24,6 @@ import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.BiFunction;
 
 public class WebListener {
 
@@ -40,7 +38,6 @@ public class WebListener {
     private static final AtomicLong numberOfMessagesRejected = new AtomicLong(0);
     private static final AtomicLong numberOfMessagesAccepted = new AtomicLong(0);
 
-    private static final Map<ByteBuffer, Integer> connectionsPerIp = new ConcurrentHashMap<>();
     private static final AtomicInteger activeReadThreads = new AtomicInteger(0);
 
     private static final int maximumConcurrentConnectionsForIp =
@@ -50,16 +47,6 @@ public class WebListener {
 
     private static final File temporaryForwardingWebDirectory = new File(Verifier.dataRootDirectory, "webTemp");
 
-    private static final BiFunction<Integer, Integer, Integer> mergeFunction =
-            new BiFunction<Integer, Integer, Integer>() {
-                @Override
-                public Integer apply(Integer integer0, Integer integer1) {
-                    int value0 = integer0 == null ? 0 : integer0;
-                    int value1 = integer1 == null ? 0 : integer1;
-                    return value0 + value1;
-                }
-            };
-
     private static Map<Endpoint, EndpointResponseProvider> endpointMap = new ConcurrentHashMap<>();
 
     public static void start() {
@@ -78,7 +65,7 @@ public class WebListener {
     private static void openHttpListener() {
         try {
             ServerSocket serverSocket = new ServerSocket(getPort());
-            new Thread(new Runnable() {
+            ThreadUtil.startLongRunning(new Runnable() {
                 @Override
                 public void run() {
                     while (!UpdateUtil.shouldTerminate()) {
@@ -88,7 +75,7 @@ public class WebListener {
                         } catch (Exception ignored) { }
                     }
                 }
-            }).start();
+            }, "WebListener-serverSocketHttp");
 
             LogUtil.println("opened HTTP listener on port " + serverSocket.getLocalPort());
         } catch (Exception e) {
@@ -126,7 +113,7 @@ public class WebListener {
                 SSLServerSocket sslServerSocket = (SSLServerSocket) factory.createServerSocket(443);
                 sslServerSocket.setEnabledProtocols(new String[] { "TLSv1.2" });
                 sslServerSocket.setEnabledCipherSuites(WebListenerCipherSuites.strongCipherSuites);
-                new Thread(new Runnable() {
+                ThreadUtil.startLongRunning(new Runnable() {
                     @Override
                     public void run() {
                         while (!UpdateUtil.shouldTerminate()) {
@@ -136,7 +123,7 @@ public class WebListener {
                             } catch (Exception ignored) { }
                         }
                     }
-                }).start();
+                }, "WebListener-serverSocketHttps");
             } catch (Exception e) {
                 LogUtil.println("exception starting HTTPS web listener: " + PrintUtil.printException(e));
             }
@@ -150,8 +137,8 @@ public class WebListener {
             numberOfMessagesRejected.incrementAndGet();
             ConnectionManager.fastCloseSocket(clientSocket);
         } else {
-            ByteBuffer ipBuffer = ByteBuffer.wrap(ipAddress);
-            int connectionsForIp = connectionsPerIp.merge(ipBuffer, 1, mergeFunction);
+            int connectionsForIp = IpReputationTable.incrementConnections(ipAddress,
+                    IpReputationTable.ConnectionType.Web);
 
             if (connectionsForIp > maximumConcurrentConnectionsForIp && !Message.ipIsWhitelisted(ipAddress)) {
 
@@ -159,7 +146,7 @@ public class WebListener {
                         " due to too many concurrent connections");
 
                 // Decrement the counter, add the IP to the blacklist, and close the socket without responding.
-                connectionsPerIp.merge(ipBuffer, -1, mergeFunction);
+                IpReputationTable.decrementConnections(ipAddress, IpReputationTable.ConnectionType.Web);
                 BlacklistManager.addToBlacklist(ipAddress);
                 ConnectionManager.fastCloseSocket(clientSocket);
 
@@ -168,7 +155,7 @@ public class WebListener {
                 // Read the message and respond.
                 numberOfMessagesAccepted.incrementAndGet();
                 activeReadThreads.incrementAndGet();
-                new Thread(new Runnable() {
+                boolean accepted = ThreadUtil.execute(new Runnable() {
                     @Override
                     public void run() {
 
@@ -182,18 +169,19 @@ public class WebListener {
                             ConnectionManager.slowCloseSocket(clientSocket);
                         } catch (Exception ignored) { }
 
-                        // Decrement the counter for this IP.
-                        connectionsPerIp.merge(ipBuffer, -1, mergeFunction);
-
-                        if (activeReadThreads.decrementAndGet() == 0) {
-
-                            // When the number of active threads is zero, clear the map of
-                            // connections per IP to prevent accumulation of too many IP
-                            // addresses over time.
-                            connectionsPerIp.clear();
-                        }
+                        // Decrement the counter for this IP. The entry is removed from the table when it has no
+                        // connections and no other state, so addresses do not accumulate over time.
+                        IpReputationTable.decrementConnections(ipAddress, IpReputationTable.ConnectionType.Web);
+                        activeReadThreads.decrementAndGet();
                     }
-                }, "WebListener-clientSocket").start();
+                }, "WebListener-clientSocket");
+
+                // If the executor is saturated, the connection is closed without a response to shed load.
+                if (!accepted) {
+                    IpReputationTable.decrementConnections(ipAddress, IpReputationTable.ConnectionType.Web);
+                    activeReadThreads.decrementAndGet();
+                    ConnectionManager.fastCloseSocket(clientSocket);
+                }
             }
         }
     }
@@ -402,9 +390,16 @@ public class WebListener {
                 map.put(new Endpoint("/"), CycleController::page);  // will be removed in a later version
                 map.put(CycleController.pageEndpoint, CycleController::page);
                 map.put(CycleController.updateEndpoint, CycleController::update);
+                map.put(BlockchainMetricsController.metricsEndpoint, BlockchainMetricsController::metrics);
                 break;
         }
 
+        // The metrics scrape is available in all run modes if it is enabled. It is disabled by default, as the web
+        // listener is often public, and the metrics describe the internal state of the node.
+        if (PreferencesUtil.getBoolean("web_metrics_endpoint_enabled", false)) {
+            map.put(MetricsController.metricsEndpoint, MetricsController::metrics);
+        }
+
         // Assign the map to the static variable. Building and swapping results in an atomic update of the endpoints.
         endpointMap = map;
     }